@@ -1,31 +1,156 @@
 package Controller;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+import org.eclipse.jetty.server.Request;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import DAO.DataSourceRouter;
+import DAO.Exception;
+import DAO.UnitOfWork;
+import DAO.Versioned;
 import Model.Account;
 import Model.Message;
+import Model.MessageStats;
 import Service.AccountService;
+import Service.ChangeLog;
+import Service.FeedService;
+import Service.InvalidationBus;
 import Service.MessageService;
+import Service.TokenService;
 import Service.ExceptionService;
+import Util.Config;
+import Util.FirstPageOutputStream;
+import Util.Metrics;
+import Util.RateLimiter;
 import io.javalin.Javalin;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.UnauthorizedResponse;
 
 public class SocialMediaController {
 
     private final AccountService accountService;
     private final MessageService messageService;
+    private final TokenService tokenService;
+    private final FeedService feedService;
+    // null when changes.enabled is false
+    private final ChangeLog changeLog;
+    // null when invalidation.enabled is false
+    private final InvalidationBus invalidations;
+    private final boolean rateLimitEnabled = Config.getBoolean("ratelimit.enabled", true);
+    // false makes the async handlers wait for their futures on the Jetty
+    // thread, as a baseline for comparing throughput
+    private final boolean asyncHandlers = Config.getBoolean("http.async", true);
+    private final int streamFirstPageBytes = Config.getInt("http.stream.firstPageBytes", 64 * 1024);
+    private final RateLimiter postMessageAccountLimiter = RateLimiter
+            .fromConfig("ratelimit.post_messages.account", 20, 40);
+    private final RateLimiter postMessageIpLimiter = RateLimiter
+            .fromConfig("ratelimit.post_messages.ip", 100, 200);
+    private final RateLimiter patchMessageAccountLimiter = RateLimiter
+            .fromConfig("ratelimit.patch_messages.account", 20, 40);
+    private final RateLimiter patchMessageIpLimiter = RateLimiter
+            .fromConfig("ratelimit.patch_messages.ip", 100, 200);
+
+    private static final String AUTH_HEADER = "Authorization";
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String TOKEN_HEADER = "X-Auth-Token";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_FEED_SIZE = 50;
+    private static final int DEFAULT_SEARCH_SIZE = 10;
+    private static final int DEFAULT_CHANGES_SIZE = 100;
+    private static final int MAX_CHANGES_WAIT_SECONDS = 30;
+    private static final String LAST_SEQUENCE_HEADER = "X-Last-Sequence";
+    static final String WARM_UP_HEADER = "X-Warm-Up-Token";
+
+    // ObjectMapper is thread-safe once configured; sharing it keeps its
+    // serializer caches warm instead of rebuilding them on every request
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // with db.commits, the commits each request costs
+    private final LongAdder requests = Metrics.counter("http.requests");
+
+    private volatile boolean ready = true;
+    // sent by the warm-up's own requests, null once the server is ready
+    private volatile String warmUpToken;
+    private volatile Map<String, Long> startupMilestones = Collections.emptyMap();
 
     public SocialMediaController() {
+        this(ChangeLog.getDefault());
+    }
+
+    /**
+     * @param changeLog the log served at /changes, or null for none
+     */
+    public SocialMediaController(ChangeLog changeLog) {
         this.accountService = new AccountService();
         this.messageService = new MessageService();
+        this.tokenService = new TokenService();
+        this.feedService = new FeedService(messageService);
+        this.changeLog = changeLog;
+        if (changeLog != null) {
+            messageService.addListener(changeLog);
+            accountService.addListener(changeLog);
+        }
+        this.invalidations = InvalidationBus.fromConfig();
+        if (invalidations != null) {
+            messageService.addListener(invalidations);
+            accountService.addListener(invalidations);
+            feedService.addListener(invalidations);
+            invalidations.addListener(accountService);
+            invalidations.addListener(messageService);
+            invalidations.addListener(feedService);
+        }
     }
 
     public Javalin startAPI() {
         Javalin app = Javalin.create();
+        if (rateLimitEnabled) {
+            app.before("/messages", this::limitMessageWrites);
+            app.before("/messages/{message_id}", this::limitMessageWrites);
+        }
+        app.events(event -> event.serverStopped(() -> {
+            if (invalidations != null) {
+                invalidations.close();
+            }
+            feedService.close();
+            messageService.close();
+        }));
+        if (UnitOfWork.getConnectionSource() instanceof DataSourceRouter) {
+            app.before(this::bindRequester);
+            app.after(ctx -> DataSourceRouter.clearRequester());
+        }
+        app.after(ctx -> requests.increment());
+        app.get("/ready", this::getReadiness);
+        app.get("/metrics", this::getMetrics);
         app.post("/register", this::registerAccount);
         app.post("/login", this::loginAccount);
         app.post("/messages", this::createMessage);
@@ -33,20 +158,60 @@ public class SocialMediaController {
         app.get("/messages/{message_id}", this::getMessageById);
         app.delete("/messages/{message_id}", this::deleteMessageById);
         app.patch("/messages/{message_id}", this::updateMessageById);
+        app.get("/accounts", this::searchAccounts);
         app.get("/accounts/{account_id}/messages",
                 this::getMessagesByAccountId);
+        app.put("/accounts/{account_id}/following/{followee_id}", this::followAccount);
+        app.delete("/accounts/{account_id}/following/{followee_id}", this::unfollowAccount);
+        app.get("/accounts/{account_id}/feed", this::getFeed);
+        app.get("/accounts/{account_id}/stats", this::getAccountStats);
+        app.get("/stats", this::getGlobalStats);
+        app.get("/changes", this::getChanges);
 
         return app;
 
     }
 
+    /**
+     * Marks the server as warming up: GET /ready answers 503 until
+     * {@link #markReady} is called, and until then requests carrying the
+     * returned token in an X-Warm-Up-Token header skip the write rate limits.
+     *
+     * @return a secret for the warm-up driver's requests only
+     */
+    public String beginWarmUp() {
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+        warmUpToken = token;
+        ready = false;
+        return token;
+    }
+
+    public void markReady(Map<String, Long> milestones) {
+        startupMilestones = Collections.unmodifiableMap(new LinkedHashMap<>(milestones));
+        warmUpToken = null;
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void getReadiness(Context ctx) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("ready", ready);
+        body.put("startup_ms", startupMilestones);
+        ctx.status(ready ? 200 : 503);
+        ctx.json(body);
+    }
+
     private void registerAccount(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(ctx.body(), Account.class);
+        Account account = MAPPER.readValue(ctx.body(), Account.class);
         try {
             Account registeredAccount = accountService.createAccount(account);
 
-            ctx.json(mapper.writeValueAsString(registeredAccount));
+            ctx.json(MAPPER.writeValueAsString(registeredAccount));
         } catch (ExceptionService e) {
 
             ctx.status(400);
@@ -54,65 +219,128 @@ public class SocialMediaController {
     }
 
     private void loginAccount(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(ctx.body(), Account.class);
+        Account account = MAPPER.readValue(ctx.body(), Account.class);
 
-        try {
-            Optional<Account> loggedInAccount = accountService
-                    .validateLogin(account);
+        respond(ctx, accountService.validateLoginAsync(account), loggedInAccount -> {
             if (loggedInAccount.isPresent()) {
 
-                ctx.json(mapper.writeValueAsString(loggedInAccount));
-                ctx.sessionAttribute("logged_in_account",
-                        loggedInAccount.get());
+                ctx.header(TOKEN_HEADER,
+                        tokenService.issueToken(loggedInAccount.get()));
                 ctx.json(loggedInAccount.get());
             } else {
 
                 ctx.status(401);
             }
-        } catch (ExceptionService e) {
-
-            ctx.status(401);
-        }
+        }, () -> ctx.status(401));
     }
 
+    /**
+     * A retried POST returns the message the first attempt created when it
+     * carries the same Idempotency-Key, or without one the same poster, text
+     * and time; see {@link MessageService#createMessage(Message, Optional, String)}.
+     */
     private void createMessage(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Message mappedMessage = mapper.readValue(ctx.body(), Message.class);
+        Message mappedMessage = MAPPER.readValue(ctx.body(), Message.class);
+        String idempotencyKey = ctx.header(IDEMPOTENCY_KEY_HEADER);
+        if (idempotencyKey != null && (idempotencyKey.isEmpty()
+                || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+            ctx.status(400);
+            return;
+        }
         try {
-            Optional<Account> account = accountService
-                    .getAccountById(mappedMessage.getPosted_by());
-            Message message = messageService.createMessage(mappedMessage,
-                    account);
+            // A valid session token identifies the caller without a DB lookup
+            Optional<Account> caller = resolveCaller(ctx);
+            Message message = UnitOfWork.inTransaction(() -> {
+                Optional<Account> account = caller.isPresent() ? caller
+                        : accountService.getAccountById(mappedMessage.getPosted_by());
+                return messageService.createMessage(mappedMessage, account, idempotencyKey);
+            });
             ctx.json(message);
-        } catch (ExceptionService e) {
+        } catch (ExceptionService | Exception e) {
 
             ctx.status(400);
         }
     }
 
-    private void getAllMessages(Context ctx) {
+    private void getAllMessages(Context ctx) throws IOException {
+        String from = ctx.queryParam("from");
+        String to = ctx.queryParam("to");
+        String postedBy = ctx.queryParam("posted_by");
+        // a bare ?posted_by= names no account
+        if (postedBy != null && postedBy.isBlank()) {
+            postedBy = null;
+        }
+        if (from != null || to != null || postedBy != null) {
+            getMessagesInRange(ctx, from, to, postedBy);
+            return;
+        }
+        if (messageService.isScanFileEnabled()) {
+            streamJson(ctx, messageService::writeAllMessagesJson);
+            return;
+        }
 
-        List<Message> messages = messageService.getAllMessages();
-        ctx.json(messages);
+        respond(ctx, messageService.getAllMessagesAsync(), ctx::json, () -> ctx.status(500));
     }
 
-    private void getMessageById(Context ctx) {
+    /**
+     * GET /messages?from=&to=&posted_by=: messages posted in [from, to),
+     * streamed in time order. Missing bounds are open.
+     */
+    private void getMessagesInRange(Context ctx, String from, String to, String postedBy) {
+        long fromTime;
+        long toTime;
+        int account;
         try {
-            int id = Integer.parseInt(ctx.pathParam("message_id"));
-            Optional<Message> message = messageService.getMessageById(id);
-            if (message.isPresent()) {
-                ctx.json(message.get());
-            } else {
-                ctx.status(200);
-                ctx.result("");
-            }
+            fromTime = from == null ? Long.MIN_VALUE : Long.parseLong(from);
+            toTime = to == null ? Long.MAX_VALUE : Long.parseLong(to);
+            account = postedBy == null ? 0 : Integer.parseInt(postedBy);
         } catch (NumberFormatException e) {
             ctx.status(400);
+            return;
+        }
+        if (fromTime > toTime || account < 0) {
+            ctx.status(400);
+            return;
+        }
+        streamJson(ctx, out -> messageService.writeMessagesInRangeJson(fromTime, toTime, account, out));
+    }
+
+    /**
+     * Streams a JSON response, holding back its first page so that a failure
+     * within it still answers 500. A failure after that breaks off the
+     * response without its final chunk, so the client sees an error rather
+     * than a shorter array.
+     */
+    private void streamJson(Context ctx, Consumer<OutputStream> write) {
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        FirstPageOutputStream out = new FirstPageOutputStream(ctx.outputStream(), streamFirstPageBytes);
+        try {
+            write.accept(out);
         } catch (ExceptionService e) {
+            if (!out.isCommitted()) {
+                ctx.status(500);
+                return;
+            }
+            Request.getBaseRequest(ctx.req()).getHttpChannel().abort(e);
+        }
+    }
+
+    private void getMessageById(Context ctx) {
+        int id;
+        try {
+            id = Integer.parseInt(ctx.pathParam("message_id"));
+        } catch (NumberFormatException e) {
+            ctx.status(400);
+            return;
+        }
+        Runnable notFound = () -> {
             ctx.status(200);
             ctx.result("");
-        }
+        };
+        respond(ctx, messageService.getMessageByIdAsync(id), message -> {
+            setEtag(ctx, message.getVersion());
+            ctx.json(message.getValue());
+        }, notFound);
     }
 
     private void deleteMessageById(Context ctx) {
@@ -120,10 +348,13 @@ public class SocialMediaController {
 
             int id = Integer.parseInt(ctx.pathParam("message_id"));
 
-            Optional<Message> message = messageService.getMessageById(id);
+            // the lookup and the delete commit together
+            Optional<Message> message = UnitOfWork.inTransaction(() -> {
+                Optional<Message> found = messageService.getMessageById(id);
+                found.ifPresent(messageService::deleteMessage);
+                return found;
+            });
             if (message.isPresent()) {
-
-                messageService.deleteMessage(message.get());
                 ctx.status(200);
 
                 ctx.json(message.get());
@@ -131,23 +362,23 @@ public class SocialMediaController {
 
                 ctx.status(200);
             }
-        } catch (ExceptionService e) {
+        } catch (ExceptionService | Exception e) {
 
             ctx.status(200);
         }
     }
 
     private void updateMessageById(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Message mappedMessage = mapper.readValue(ctx.body(), Message.class);
+        Message mappedMessage = MAPPER.readValue(ctx.body(), Message.class);
         try {
             int id = Integer.parseInt(ctx.pathParam("message_id"));
             mappedMessage.setMessage_id(id);
 
-            Message messageUpdated = messageService
-                    .updateMessage(mappedMessage);
+            Versioned<Message> messageUpdated = messageService
+                    .updateMessage(mappedMessage, resolveCaller(ctx), ifMatch(ctx.header(IF_MATCH_HEADER)));
 
-            ctx.json(messageUpdated);
+            setEtag(ctx, messageUpdated.getVersion());
+            ctx.json(messageUpdated.getValue());
 
         } catch (ExceptionService e) {
 
@@ -155,22 +386,353 @@ public class SocialMediaController {
         }
     }
 
+    /**
+     * Stores without versions report every message at version 0, which
+     * would give every state of a message the same tag, so they send none.
+     */
+    private void setEtag(Context ctx, long version) {
+        if (messageService.keepsVersions()) {
+            ctx.header(ETAG_HEADER, etag(version));
+        }
+    }
+
+    private static String etag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * If-Match as a test of the message's current version: absent or *
+     * accepts any version, otherwise one of the listed entity tags must be
+     * the version's. Weak tags never match.
+     */
+    private static LongPredicate ifMatch(String header) {
+        if (header == null || header.trim().equals("*")) {
+            return version -> true;
+        }
+        Set<String> tags = new HashSet<>();
+        for (String tag : header.split(",")) {
+            tags.add(tag.trim());
+        }
+        return version -> tags.contains(etag(version));
+    }
+
     private void getMessagesByAccountId(Context ctx) {
+        CompletableFuture<List<Message>> messages;
         try {
             int accountId = Integer.parseInt(ctx.pathParam("account_id"));
+            String limit = ctx.queryParam("limit");
+            if (limit != null) {
+                // recent timeline page, newest first
+                String before = ctx.queryParam("before");
+                int pageSize = Integer.parseInt(limit);
+                if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                    ctx.status(400);
+                    return;
+                }
+                messages = messageService.getRecentMessagesByAccountIdAsync(accountId,
+                        before == null ? Integer.MAX_VALUE : Integer.parseInt(before), pageSize);
+            } else {
+                messages = messageService.getMessagesByAccountIdAsync(accountId);
+            }
+        } catch (NumberFormatException e) {
 
-            List<Message> messages = messageService.getMessagesByAccountId(accountId);
-            if (!messages.isEmpty()) {
+            ctx.status(400);
+            return;
+        }
+        respond(ctx, messages, ctx::json, () -> ctx.status(400));
+    }
 
-                ctx.json(messages);
-            } else {
+    /**
+     * GET /accounts?prefix=&limit= for mention autocomplete: the ids and
+     * usernames of accounts whose username starts with the prefix, in
+     * username order, at most limit of them (default 10).
+     */
+    private void searchAccounts(Context ctx) {
+        String prefix = ctx.queryParam("prefix");
+        String limit = ctx.queryParam("limit");
+        try {
+            int pageSize = limit == null ? DEFAULT_SEARCH_SIZE : Integer.parseInt(limit);
+            if (prefix == null || pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                ctx.status(400);
+                return;
+            }
+            ctx.json(accountService.findAccountsByUsernamePrefix(prefix, pageSize));
+        } catch (NumberFormatException | ExceptionService e) {
+            ctx.status(400);
+        }
+    }
 
-                ctx.json(messages);
-                ctx.status(200);
+    private void followAccount(Context ctx) {
+        try {
+            int followeeId = Integer.parseInt(ctx.pathParam("followee_id"));
+            ctx.status(UnitOfWork.inTransaction(() -> {
+                int followerId = followerParam(ctx);
+                if (!accountService.getAccountById(followeeId).isPresent()) {
+                    throw new ExceptionService("Account to follow not found");
+                }
+                return feedService.follow(followerId, followeeId) ? 201 : 200;
+            }));
+        } catch (NumberFormatException | ExceptionService | Exception e) {
+            ctx.status(400);
+        }
+    }
+
+    private void unfollowAccount(Context ctx) {
+        try {
+            int followeeId = Integer.parseInt(ctx.pathParam("followee_id"));
+            ctx.status(UnitOfWork.inTransaction(() -> {
+                int followerId = followerParam(ctx);
+                return feedService.unfollow(followerId, followeeId) ? 200 : 404;
+            }));
+        } catch (NumberFormatException | ExceptionService | Exception e) {
+            ctx.status(400);
+        }
+    }
+
+    private void getFeed(Context ctx) {
+        try {
+            int accountId = Integer.parseInt(ctx.pathParam("account_id"));
+            String limit = ctx.queryParam("limit");
+            int pageSize = limit == null ? DEFAULT_FEED_SIZE : Integer.parseInt(limit);
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                ctx.status(400);
+                return;
             }
+            ctx.json(feedService.getFeed(accountId, pageSize));
+        } catch (NumberFormatException | ExceptionService e) {
+            ctx.status(400);
+        }
+    }
+
+    /**
+     * The account_id of a follow request, which must exist and, when the
+     * request carries a session token, be the caller.
+     */
+    private int followerParam(Context ctx) {
+        int followerId = Integer.parseInt(ctx.pathParam("account_id"));
+        Optional<Account> caller = resolveCaller(ctx);
+        if (caller.isPresent() && caller.get().getAccount_id() != followerId) {
+            throw new ExceptionService("Only the account itself can change whom it follows");
+        }
+        if (!caller.isPresent() && !accountService.getAccountById(followerId).isPresent()) {
+            throw new ExceptionService("Account not found");
+        }
+        return followerId;
+    }
+
+    private void getAccountStats(Context ctx) {
+        try {
+            int accountId = Integer.parseInt(ctx.pathParam("account_id"));
+            MessageStats stats = messageService.getAccountStats(accountId);
+            if (stats.getMessage_count() == 0 && !accountService.getAccountById(accountId).isPresent()) {
+                ctx.status(404);
+                return;
+            }
+            ctx.json(stats);
+        } catch (NumberFormatException | ExceptionService e) {
+            ctx.status(400);
+        }
+    }
+
+    private void getGlobalStats(Context ctx) {
+        try {
+            ctx.json(messageService.getGlobalStats());
         } catch (ExceptionService e) {
+            ctx.status(400);
+        }
+    }
 
+    /**
+     * GET /changes?since=&limit=&wait= streams change log events after the
+     * since sequence (default 0) as a JSON array, at most limit of them
+     * (default 100). With wait seconds (at most 30) and nothing new yet, the
+     * request is parked on a future until an event arrives or the wait ends,
+     * then answers with what there is. X-Last-Sequence is the sequence to
+     * pass as since next time.
+     */
+    private void getChanges(Context ctx) {
+        if (changeLog == null) {
+            ctx.status(404);
+            return;
+        }
+        long since;
+        int pageSize;
+        int waitSeconds;
+        try {
+            String sinceParam = ctx.queryParam("since");
+            String limit = ctx.queryParam("limit");
+            String wait = ctx.queryParam("wait");
+            since = sinceParam == null ? 0 : Long.parseLong(sinceParam);
+            pageSize = limit == null ? DEFAULT_CHANGES_SIZE : Integer.parseInt(limit);
+            waitSeconds = wait == null ? 0 : Integer.parseInt(wait);
+        } catch (NumberFormatException e) {
+            ctx.status(400);
+            return;
+        }
+        if (since < 0 || pageSize < 1 || pageSize > MAX_PAGE_SIZE || waitSeconds < 0
+                || waitSeconds > MAX_CHANGES_WAIT_SECONDS) {
             ctx.status(400);
+            return;
+        }
+        CompletableFuture<Void> ready = waitSeconds == 0 ? CompletableFuture.completedFuture(null)
+                : changeLog.awaitAfter(since, waitSeconds * 1000L);
+        respond(ctx, ready.thenApply(ignored -> changeLog.read(since, pageSize)), events -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write('[');
+            for (int i = 0; i < events.size(); i++) {
+                if (i > 0) {
+                    body.write(',');
+                }
+                body.writeBytes(events.get(i));
+            }
+            body.write(']');
+            // a since older than the retained events reads from the oldest one
+            long last = events.isEmpty() ? Math.max(since, changeLog.lastSequence())
+                    : ChangeLog.sequenceOf(events.get(events.size() - 1));
+            ctx.header(LAST_SEQUENCE_HEADER, Long.toString(last));
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            ctx.result(body.toByteArray());
+        }, () -> ctx.status(500));
+    }
+
+    private void getMetrics(Context ctx) {
+        ctx.json(Metrics.snapshot());
+    }
+
+    /**
+     * Resolves the caller from an "Authorization: Bearer <token>" header.
+     * Requests without the header are anonymous; a header carrying an invalid
+     * or expired token is rejected with 401.
+     */
+    private Optional<Account> resolveCaller(Context ctx) {
+        String header = ctx.header(AUTH_HEADER);
+        if (header == null || !header.startsWith(BEARER_PREFIX)) {
+            return Optional.empty();
+        }
+        Optional<Account> caller = tokenService
+                .verifyToken(header.substring(BEARER_PREFIX.length()).trim());
+        if (!caller.isPresent()) {
+            throw new UnauthorizedResponse();
+        }
+        return caller;
+    }
+
+    /**
+     * Finishes the request when the service's future completes, so the Jetty
+     * thread is free while the work waits on a bulkhead or the password
+     * hasher. onServiceError answers an ExceptionService the way the handler's
+     * synchronous version did. Saturation (a full bulkhead or hasher, or a
+     * hash timeout) answers 503 with Retry-After; anything else goes to
+     * Javalin's exception handling.
+     */
+    private <T> void respond(Context ctx, CompletableFuture<T> work, Consumer<T> onSuccess,
+            Runnable onServiceError) {
+        // the work captured the requester; the after-handlers may run on
+        // whichever thread completes it
+        DataSourceRouter.clearRequester();
+        CompletableFuture<Void> response = work.handle((result, e) -> {
+            if (e == null) {
+                onSuccess.accept(result);
+                return null;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException) {
+                ctx.header("Retry-After", "1");
+                ctx.status(503);
+            } else if (cause instanceof HttpResponseException) {
+                ctx.status(((HttpResponseException) cause).getStatus());
+            } else if (cause instanceof ExceptionService) {
+                onServiceError.run();
+            } else {
+                throw new CompletionException(cause);
+            }
+            return null;
+        });
+        if (asyncHandlers) {
+            ctx.future(() -> response);
+        } else {
+            response.join();
+        }
+    }
+
+    /**
+     * Before-handler telling the {@link DataSourceRouter} whose writes the
+     * request must see: the session token's account or, for anonymous
+     * requests under /accounts/{account_id}, that account.
+     */
+    private void bindRequester(Context ctx) {
+        int requester = 0;
+        try {
+            Optional<Account> caller = resolveCaller(ctx);
+            if (caller.isPresent()) {
+                requester = caller.get().getAccount_id();
+            }
+        } catch (UnauthorizedResponse e) {
+            // the handler rejects the token if it needs one
+        }
+        String path = ctx.path();
+        if (requester == 0 && path.startsWith("/accounts/")) {
+            int end = path.indexOf('/', "/accounts/".length());
+            try {
+                requester = Integer.parseInt(path.substring("/accounts/".length(), end < 0 ? path.length() : end));
+            } catch (NumberFormatException e) {
+                // the handler answers 400
+            }
+        }
+        DataSourceRouter.setRequester(requester);
+    }
+
+    /**
+     * Before-handler enforcing the per-account and per-client-address token
+     * buckets on message writes. The account bucket is only charged for a
+     * caller authenticated by a session token: the posted_by of an anonymous
+     * request is unverified, and charging it would let anyone use up another
+     * account's quota. Anonymous writes are limited by address alone.
+     */
+    private void limitMessageWrites(Context ctx) {
+        RateLimiter accountLimiter;
+        RateLimiter ipLimiter;
+        if (ctx.method() == HandlerType.POST) {
+            accountLimiter = postMessageAccountLimiter;
+            ipLimiter = postMessageIpLimiter;
+        } else if (ctx.method() == HandlerType.PATCH) {
+            accountLimiter = patchMessageAccountLimiter;
+            ipLimiter = patchMessageIpLimiter;
+        } else {
+            return;
+        }
+        if (isWarmUpRequest(ctx)) {
+            return;
+        }
+        long waitMillis = ipLimiter.tryAcquire(hashAddress(ctx.ip()));
+        if (waitMillis == 0) {
+            Optional<Account> caller = resolveCaller(ctx);
+            if (caller.isPresent()) {
+                waitMillis = accountLimiter.tryAcquire(caller.get().getAccount_id());
+            }
+        }
+        if (waitMillis > 0) {
+            ctx.header("Retry-After", Long.toString((waitMillis + 999) / 1000));
+            throw new HttpResponseException(429, "Too many requests");
+        }
+    }
+
+    private boolean isWarmUpRequest(Context ctx) {
+        String token = warmUpToken;
+        String sent = ctx.header(WARM_UP_HEADER);
+        return token != null && sent != null && MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.US_ASCII), sent.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the client address, used as its bucket key.
+     */
+    private static long hashAddress(String ip) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : ip.getBytes(StandardCharsets.US_ASCII)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
         }
+        return hash;
     }
 }
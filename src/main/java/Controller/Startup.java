@@ -0,0 +1,260 @@
+package Controller;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import DAO.DataSourceRouter;
+import DAO.UnitOfWork;
+import Model.Account;
+import Model.Message;
+import Service.PasswordHasher;
+import Util.Config;
+import Util.ConnectionUtil;
+import Util.SchemaInitializer;
+import io.javalin.Javalin;
+
+/**
+ * Startup pipeline used by Main:
+ *
+ * <ol>
+ * <li>initialize: open the database, check the schema and start any read
+ * replicas listed in db.replicas, calibrate the password hasher and prime
+ * Jackson in parallel, then build the controller</li>
+ * <li>start: bind the port with GET /ready answering 503</li>
+ * <li>warmUp: replay every route's hot path over loopback until request
+ * times stop improving, then flip /ready to 200</li>
+ * </ol>
+ *
+ * Warm-up requests never change data: writes are sent with ids that do not
+ * exist or bodies that fail validation after the lookups have run. They
+ * carry the token the controller handed out for the warm-up, which exempts
+ * them, and nothing else, from the write rate limits.
+ *
+ * The milestones are recorded in milliseconds since JVM start, logged, and
+ * reported by GET /ready: listening, first_request (the first request served,
+ * usually a warm-up request), steady_state (when warm-up request times
+ * settled) and ready.
+ *
+ * Tunables: startup.warmup.enabled, startup.warmup.maxSeconds.
+ */
+public class Startup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Startup.class);
+    // iterations per window, and how many consecutive windows must agree
+    private static final int WINDOW = 25;
+    private static final int STABLE_WINDOWS = 3;
+    private static final double STABLE_TOLERANCE = 0.10;
+    // login only hits the database for an unknown user, but keep it rarer
+    private static final int LOGIN_EVERY = 5;
+
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final Map<String, Long> milestones = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final boolean warmUpEnabled;
+    private final long warmUpMaxMillis;
+    // held open so H2 keeps the database and its page cache open until the
+    // server's own connections take over
+    private Connection connection;
+    private String warmUpToken;
+
+    public Startup() {
+        this(Config.getBoolean("startup.warmup.enabled", true),
+                Config.getLong("startup.warmup.maxSeconds", 30) * 1000);
+    }
+
+    public Startup(boolean warmUpEnabled, long warmUpMaxMillis) {
+        this.warmUpEnabled = warmUpEnabled;
+        this.warmUpMaxMillis = warmUpMaxMillis;
+    }
+
+    public SocialMediaController initialize() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CompletableFuture<Void> database = CompletableFuture.runAsync(this::openDatabase, executor);
+            CompletableFuture<Void> hasher = CompletableFuture.runAsync(PasswordHasher::getDefault, executor);
+            CompletableFuture<Void> json = CompletableFuture.runAsync(Startup::primeJackson, executor);
+            CompletableFuture.allOf(database, hasher, json).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Startup failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        SocialMediaController controller = new SocialMediaController();
+        milestone("initialized");
+        return controller;
+    }
+
+    private void openDatabase() {
+        try {
+            connection = ConnectionUtil.getConnection();
+            SchemaInitializer.ensureSchema(connection);
+            DataSourceRouter router = DataSourceRouter.fromConfig();
+            if (router != null) {
+                router.start();
+                UnitOfWork.setConnectionSource(router);
+            }
+            try (Statement statement = connection.createStatement()) {
+                // touch both tables so their first pages are cached
+                statement.execute("SELECT COUNT(*) FROM account");
+                statement.execute("SELECT COUNT(*) FROM message");
+            }
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void primeJackson() {
+        try {
+            SocialMediaController.MAPPER.readValue(SocialMediaController.MAPPER.writeValueAsString(
+                    new Message(1, 1, "warm-up", 0)), Message.class);
+            SocialMediaController.MAPPER.readValue(SocialMediaController.MAPPER.writeValueAsString(
+                    new Account(1, "warm-up", "warm-up")), Account.class);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Starts the API on the given port. GET /ready answers 503 until
+     * {@link #warmUp} completes.
+     */
+    public Javalin start(SocialMediaController controller, int port) {
+        warmUpToken = controller.beginWarmUp();
+        Javalin app = controller.startAPI();
+        AtomicBoolean served = new AtomicBoolean();
+        app.after(ctx -> {
+            if (!served.get() && served.compareAndSet(false, true)) {
+                milestone("first_request");
+            }
+        });
+        app.events(event -> event.serverStopped(this::closeDatabase));
+        app.start(port);
+        milestone("listening");
+        return app;
+    }
+
+    /**
+     * Runs the warm-up against the started app and marks the controller
+     * ready. Warm-up ends once the mean time of an iteration over every
+     * route changes by less than 10% for three consecutive windows, or after
+     * startup.warmup.maxSeconds.
+     */
+    public void warmUp(SocialMediaController controller, Javalin app) {
+        if (warmUpEnabled) {
+            try {
+                runWarmUp("http://localhost:" + app.port());
+            } catch (IOException e) {
+                LOGGER.warn("Warm-up failed, marking the server ready anyway", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        milestone("ready");
+        controller.markReady(getMilestones());
+        LOGGER.info("Startup milestones (ms since JVM start): {}", getMilestones());
+    }
+
+    private void runWarmUp(String baseUrl) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        List<HttpRequest> routes = List.of(
+                request(baseUrl, "/messages/1", "GET", null),
+                request(baseUrl, "/accounts/1/messages", "GET", null),
+                request(baseUrl, "/messages", "POST",
+                        "{\"posted_by\":0,\"message_text\":\"warm-up\",\"time_posted_epoch\":0}"),
+                request(baseUrl, "/messages/0", "PATCH", "{\"message_text\":\"warm-up\"}"),
+                request(baseUrl, "/messages/0", "DELETE", null),
+                request(baseUrl, "/register", "POST", "{\"username\":\"\",\"password\":\"\"}"));
+        HttpRequest login = request(baseUrl, "/login", "POST",
+                "{\"username\":\"\",\"password\":\"warm-up\"}");
+
+        // the full scan is costly on a large table, so it only runs once
+        client.send(request(baseUrl, "/messages", "GET", null), HttpResponse.BodyHandlers.discarding());
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUpMaxMillis);
+        long windowNanos = 0;
+        double previousMean = 0;
+        int stableWindows = 0;
+        int iterations = 0;
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            for (HttpRequest route : routes) {
+                client.send(route, HttpResponse.BodyHandlers.discarding());
+            }
+            if (iterations % LOGIN_EVERY == 0) {
+                client.send(login, HttpResponse.BodyHandlers.discarding());
+            }
+            windowNanos += System.nanoTime() - start;
+            iterations++;
+
+            if (iterations % WINDOW == 0) {
+                double mean = (double) windowNanos / WINDOW;
+                boolean stable = previousMean > 0 && Math.abs(mean - previousMean) / previousMean < STABLE_TOLERANCE;
+                stableWindows = stable ? stableWindows + 1 : 0;
+                previousMean = mean;
+                windowNanos = 0;
+                if (stableWindows == STABLE_WINDOWS) {
+                    milestone("steady_state");
+                    break;
+                }
+            }
+        }
+        LOGGER.info("Warm-up sent {} iterations over {} routes, last window averaged {} us per iteration",
+                iterations, routes.size() + 2, (long) previousMean / 1000);
+        if (stableWindows < STABLE_WINDOWS) {
+            LOGGER.warn("Warm-up stopped after {} ms without reaching a steady state", warmUpMaxMillis);
+        }
+    }
+
+    private HttpRequest request(String baseUrl, String path, String method, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .header(SocialMediaController.WARM_UP_HEADER, warmUpToken)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private void closeDatabase() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to close the startup connection", e);
+            }
+        }
+    }
+
+    private void milestone(String name) {
+        milestones.putIfAbsent(name, System.currentTimeMillis() - jvmStartMillis);
+    }
+
+    /**
+     * @return milestone name to milliseconds since JVM start, in the order
+     *         they were reached
+     */
+    public Map<String, Long> getMilestones() {
+        synchronized (milestones) {
+            return new LinkedHashMap<>(milestones);
+        }
+    }
+}
@@ -1,25 +1,26 @@
 package DAO;
 
 import Model.Account;
-import Util.ConnectionUtil;
+import Model.AccountSummary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.SQLException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
+import java.util.function.ObjIntConsumer;
 
 public class AccountDAO implements Base<Account> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AccountDAO.class);
 
+    private final IdAllocator ids = IdAllocator.forColumn("account", "account_id");
+
     private void handleSQLException(SQLException e, String sql, String errorMessage) {
         LOGGER.error("SQLException Details: {}", e.getMessage());
         LOGGER.error("SQL State: {}", e.getSQLState());
@@ -30,9 +31,14 @@ public class AccountDAO implements Base<Account> {
 
     @Override
     public Optional<Account> getById(int id) {
+        // read-only so that a DataSourceRouter may send it to a replica
+        return UnitOfWork.readOnly(() -> selectById(id));
+    }
+
+    private Optional<Account> selectById(int id) {
 
         String sql = "SELECT * FROM account WHERE account_id = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, id);
 
@@ -52,9 +58,13 @@ public class AccountDAO implements Base<Account> {
 
     @Override
     public List<Account> getAll() {
+        return UnitOfWork.readOnly(this::selectAll);
+    }
+
+    private List<Account> selectAll() {
         List<Account> accounts = new ArrayList<>();
         String sql = "SELECT * FROM account";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -71,55 +81,83 @@ public class AccountDAO implements Base<Account> {
         return accounts;
     }
 
-    public Optional<Account> findAccountByUsername(String username) {
+    /**
+     * Streams every username with its account id to the consumer, for
+     * building in-memory indexes. Reads the primary so that no committed
+     * account is missed.
+     */
+    public void forEachUsername(ObjIntConsumer<String> consumer) {
+        String sql = "SELECT username, account_id FROM account";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(10_000);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String username = rs.getString(1);
+                    if (username != null) {
+                        consumer.accept(username, rs.getInt(2));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while scanning usernames");
+        }
+    }
 
-        String sql = "SELECT * FROM account WHERE username = ?";
-        Connection conn = ConnectionUtil.getConnection();
+    /**
+     * @return up to limit accounts whose username starts with the prefix, in
+     *         username order
+     */
+    public List<AccountSummary> findByUsernamePrefix(String prefix, int limit) {
+        return UnitOfWork.readOnly(() -> selectByUsernamePrefix(prefix, limit));
+    }
 
+    private List<AccountSummary> selectByUsernamePrefix(String prefix, int limit) {
+        List<AccountSummary> accounts = new ArrayList<>();
+        // a range on the unique index rather than LIKE, so the prefix needs
+        // no escaping of wildcards
+        String sql = "SELECT account_id, username FROM account WHERE username >= ? AND username < ? "
+                + "ORDER BY username LIMIT ?";
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
+            ps.setString(1, prefix);
+            ps.setString(2, prefix + Character.MAX_VALUE);
+            ps.setInt(3, limit);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return Optional.of(new Account(
-                            rs.getInt("account_id"),
-                            rs.getString("username"),
-                            rs.getString("password")));
+                while (rs.next()) {
+                    accounts.add(new AccountSummary(rs.getInt("account_id"), rs.getString("username")));
                 }
             }
         } catch (SQLException e) {
-            handleSQLException(e, sql, "Error while finding account with username: " + username);
+            handleSQLException(e, sql, "Error while searching accounts by username prefix: " + prefix);
         }
-        return Optional.empty();
+        return accounts;
     }
 
-    public Optional<Account> validateLogin(String username, String password) {
+    public Optional<Account> findAccountByUsername(String username) {
+
         String sql = "SELECT * FROM account WHERE username = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
 
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    Account account = new Account(
+                    return Optional.of(new Account(
                             rs.getInt("account_id"),
                             rs.getString("username"),
-                            rs.getString("password"));
-
-                    if (Objects.equals(password, account.getPassword())) {
-
-                        return Optional.of(account);
-                    }
+                            rs.getString("password")));
                 }
             }
         } catch (SQLException e) {
-            handleSQLException(e, sql, "Error while validating login for username: " + username);
+            handleSQLException(e, sql, "Error while finding account with username: " + username);
         }
         return Optional.empty();
     }
 
     public boolean doesUsernameExist(String username) {
         String sql = "SELECT COUNT(*) FROM account WHERE username = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
@@ -137,21 +175,15 @@ public class AccountDAO implements Base<Account> {
 
     @Override
     public Account insert(Account account) {
-        String sql = "INSERT INTO account (username, password) VALUES (?, ?)";
-        Connection conn = ConnectionUtil.getConnection();
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, account.getUsername());
-            ps.setString(2, account.getPassword());
+        String sql = "INSERT INTO account (account_id, username, password) VALUES (?, ?, ?)";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int accountId = ids.next();
+            ps.setInt(1, accountId);
+            ps.setString(2, account.getUsername());
+            ps.setString(3, account.getPassword());
             ps.executeUpdate();
-
-            try (ResultSet generatedKeys = ps.getGeneratedKeys()) {
-                if (generatedKeys.next()) {
-                    int generatedAccountId = generatedKeys.getInt(1);
-                    return new Account(generatedAccountId, account.getUsername(), account.getPassword());
-                } else {
-                    throw new Exception("Creating account failed, no ID obtained.");
-                }
-            }
+            return new Account(accountId, account.getUsername(), account.getPassword());
         } catch (SQLException e) {
             throw new Exception("Creating account failed due to SQL error", e);
         }
@@ -160,7 +192,7 @@ public class AccountDAO implements Base<Account> {
     @Override
     public boolean update(Account account) {
         String sql = "UPDATE account SET username = ?, password = ? WHERE account_id = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, account.getUsername());
             ps.setString(2, account.getPassword());
@@ -176,10 +208,29 @@ public class AccountDAO implements Base<Account> {
         }
     }
 
+    /**
+     * Replaces the account's password only while it still holds the expected
+     * value, so that a change committed meanwhile is kept.
+     *
+     * @return whether the password was replaced
+     */
+    public boolean replacePassword(int accountId, String expected, String password) {
+        String sql = "UPDATE account SET password = ? WHERE account_id = ? AND password = ?";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, password);
+            ps.setInt(2, accountId);
+            ps.setString(3, expected);
+            return ps.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new Exception("Replacing the password failed due to SQL error", e);
+        }
+    }
+
     @Override
     public boolean delete(Account account) {
         String sql = "DELETE FROM account WHERE account_id = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = UnitOfWork.connection();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, account.getAccount_id());
             int affectedRows = ps.executeUpdate();
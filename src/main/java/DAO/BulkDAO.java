@@ -0,0 +1,271 @@
+package DAO;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.Account;
+import Model.Message;
+import Util.ConnectionUtil;
+import Util.IntSet;
+
+/**
+ * Statements for loading and dumping whole tables offline, on one
+ * connection of its own: batched inserts committed a batch at a time, and
+ * reads streamed in primary key order.
+ *
+ * A message load defers the work the table's secondary indexes and foreign
+ * key would do per row. {@link #beginMessageLoad} drops the indexes and turns
+ * the posted_by check off; {@link #finishMessageLoad} builds each index in
+ * one pass and turns the check back on, verifying every row. Callers are
+ * expected to have checked posted_by already, so the verification only
+ * catches a concurrent account delete. Both cost a pass over the whole
+ * table, so they only pay off when the load is large next to it. A load in
+ * progress is recorded in the bulk_load table, so that a process killed
+ * before finishing is finished by {@link Util.SchemaInitializer} at the
+ * next startup.
+ *
+ * Nothing else may write to the database meanwhile: no server may be
+ * running, as the H2 file is single-process anyway.
+ */
+public class BulkDAO implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkDAO.class);
+
+    // the secondary indexes of SocialMedia.sql
+    private static final String[][] MESSAGE_INDEXES = {
+            { "message_time", "message(time_posted_epoch, message_id)" },
+            { "message_posted_by_time", "message(posted_by, time_posted_epoch, message_id)" },
+    };
+    private static final String INSERT_ACCOUNT =
+            "INSERT INTO account (account_id, username, password) VALUES (?, ?, ?)";
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO message (message_id, posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?, ?)";
+    private static final int FETCH_SIZE = 10_000;
+
+    private final Connection conn;
+
+    public BulkDAO() {
+        this.conn = ConnectionUtil.getConnection();
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new Exception("Unable to open a bulk connection", e);
+        }
+    }
+
+    private void handleSQLException(SQLException e, String sql, String errorMessage) {
+        LOGGER.error("SQLException Details: {}", e.getMessage());
+        LOGGER.error("SQL State: {}", e.getSQLState());
+        LOGGER.error("Error Code: {}", e.getErrorCode());
+        LOGGER.error("SQL: {}", sql);
+        throw new Exception(errorMessage, e);
+    }
+
+    /**
+     * @return the largest id in the table's primary key, or 0 if it is empty
+     */
+    public int maxId(String table, String column) {
+        String sql = "SELECT MAX(" + column + ") FROM " + table;
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while reading the largest id of " + table);
+        }
+        return 0;
+    }
+
+    public IntSet accountIds() {
+        IntSet ids = new IntSet();
+        // in key order, so every add appends
+        String sql = "SELECT account_id FROM account ORDER BY account_id";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while reading account ids");
+        }
+        return ids;
+    }
+
+    public Set<String> usernames() {
+        Set<String> usernames = new HashSet<>();
+        String sql = "SELECT username FROM account";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    usernames.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while reading usernames");
+        }
+        return usernames;
+    }
+
+    /**
+     * Inserts the accounts, ids included, as one batch and commits it.
+     */
+    public void insertAccounts(List<Account> accounts) {
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_ACCOUNT)) {
+            for (Account account : accounts) {
+                ps.setInt(1, account.getAccount_id());
+                ps.setString(2, account.getUsername());
+                ps.setString(3, account.getPassword());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            rollback();
+            handleSQLException(e, INSERT_ACCOUNT, "Error while inserting " + accounts.size() + " accounts");
+        }
+    }
+
+    /**
+     * Inserts the messages, ids included, as one batch and commits it.
+     */
+    public void insertMessages(List<Message> messages) {
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_MESSAGE)) {
+            for (Message message : messages) {
+                ps.setInt(1, message.getMessage_id());
+                ps.setInt(2, message.getPosted_by());
+                ps.setString(3, message.getMessage_text());
+                ps.setLong(4, message.getTime_posted_epoch());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            rollback();
+            handleSQLException(e, INSERT_MESSAGE, "Error while inserting " + messages.size() + " messages");
+        }
+    }
+
+    /**
+     * @return the table's row count
+     */
+    public long count(String table) {
+        String sql = "SELECT COUNT(*) FROM " + table;
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while counting the rows of " + table);
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether an earlier message load never finished
+     */
+    public boolean messageLoadInterrupted() {
+        String sql = "SELECT COUNT(*) FROM bulk_load WHERE name = 'message'";
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1) > 0;
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while reading unfinished bulk loads");
+        }
+        return false;
+    }
+
+    public void beginMessageLoad() {
+        execute("MERGE INTO bulk_load (name, started_epoch) KEY (name) VALUES ('message', "
+                + System.currentTimeMillis() / 1000 + ")");
+        execute("ALTER TABLE message SET REFERENTIAL_INTEGRITY FALSE");
+        for (String[] index : MESSAGE_INDEXES) {
+            execute("DROP INDEX IF EXISTS " + index[0]);
+        }
+    }
+
+    /**
+     * Rebuilds the indexes and re-enables the posted_by check. Run it even
+     * when the load failed, or the table is left without them.
+     */
+    public void finishMessageLoad() {
+        for (String[] index : MESSAGE_INDEXES) {
+            long start = System.nanoTime();
+            execute("CREATE INDEX IF NOT EXISTS " + index[0] + " ON " + index[1]);
+            LOGGER.info("Built index {} in {} ms", index[0], (System.nanoTime() - start) / 1_000_000);
+        }
+        execute("ALTER TABLE message SET REFERENTIAL_INTEGRITY TRUE CHECK");
+        execute("DELETE FROM bulk_load WHERE name = 'message'");
+    }
+
+    /**
+     * Streams every account to the consumer in id order.
+     */
+    public void forEachAccount(Consumer<Account> consumer) {
+        String sql = "SELECT account_id, username, password FROM account ORDER BY account_id";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new Account(rs.getInt(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while exporting accounts");
+        }
+    }
+
+    /**
+     * Streams every message to the consumer in id order.
+     */
+    public void forEachMessage(Consumer<Message> consumer) {
+        String sql = "SELECT message_id, posted_by, message_text, time_posted_epoch FROM message "
+                + "ORDER BY message_id";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new Message(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getLong(4)));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while exporting messages");
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Closing the bulk connection failed", e);
+        }
+    }
+
+    private void execute(String sql) {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(sql);
+            conn.commit();
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while preparing a bulk load");
+        }
+    }
+
+    private void rollback() {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            LOGGER.warn("Rolling back a failed batch failed", e);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+/**
+ * Row changes committed to the database, in commit order, for components
+ * that keep copies of the tables such as read replicas. {@link #install} puts
+ * a {@link ReplicationTrigger} on every table but the allocators'
+ * bookkeeping, which hands each inserted, updated or deleted row to the
+ * feed. A change is published once its {@link UnitOfWork} commits and
+ * dropped if it rolls back. A trigger cannot tell when an auto-commit
+ * statement commits, so while the feed is installed a write to a
+ * replicated table outside a unit fails instead of publishing a row that
+ * may never commit.
+ *
+ * Every change has two numbers. Its version is taken when the row is written,
+ * while the writer holds the row lock, so of two changes to one row the one
+ * with the higher version is newer. Its sequence is taken when it is
+ * published and orders the feed. Changes can publish out of version order,
+ * so each change also carries a floor below which no later change's version
+ * falls, telling a copy which versions it no longer needs to remember.
+ *
+ * Tables kept in other databases instead of the primary, such as the
+ * message shards, are registered with {@link #addShards}. Whoever installs
+ * the triggers for a copy of the tables also installs them on the shards,
+ * and copies those tables from the shards.
+ */
+public final class ChangeFeed {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    // versions recorded and neither published nor rolled back yet
+    private static final NavigableSet<Long> UNPUBLISHED = new TreeSet<>();
+    private static final List<Consumer<Change>> SUBSCRIBERS = new CopyOnWriteArrayList<>();
+    private static final List<List<DataSource>> SHARDS = new ArrayList<>();
+    private static final List<Consumer<List<DataSource>>> SHARD_LISTENERS = new ArrayList<>();
+    // written on connections of their own and only ever read from the primary
+    private static final Set<String> UNREPLICATED = Set.of("ID_BLOCK", "BULK_LOAD");
+    // triggers left behind by an earlier run stay quiet until install is called
+    private static volatile boolean active;
+    private static volatile long sequence;
+
+    private ChangeFeed() {
+    }
+
+    /**
+     * A row as it is after an insert or update, or as it was before a delete.
+     */
+    public static final class Change {
+        private final long version;
+        private long sequence;
+        private long floor;
+        private final String table;
+        private final String[] columns;
+        private final int[] keyColumns;
+        private final Object[] row;
+        private final boolean deleted;
+
+        Change(long version, String table, String[] columns, int[] keyColumns, Object[] row, boolean deleted) {
+            this.version = version;
+            this.table = table;
+            this.columns = columns;
+            this.keyColumns = keyColumns;
+            this.row = row;
+            this.deleted = deleted;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return a version no change published after this one is older than
+         */
+        public long getFloor() {
+            return floor;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        public int[] getKeyColumns() {
+            return keyColumns;
+        }
+
+        public Object[] getRow() {
+            return row;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the value of the named column, or null if the table has no
+         *         such column
+         */
+        public Object get(String column) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equalsIgnoreCase(column)) {
+                    return row[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the table and primary key values, identifying the row
+         */
+        public String rowKey() {
+            StringBuilder key = new StringBuilder(table);
+            for (int column : keyColumns) {
+                key.append(':').append(row[column]);
+            }
+            return key.toString();
+        }
+
+        @Override
+        public String toString() {
+            return (deleted ? "delete " : "upsert ") + rowKey() + " v" + version + " #" + sequence;
+        }
+    }
+
+    /**
+     * Subscribers are called on the committing thread, one change at a time
+     * in sequence order, and must hand the change off rather than block.
+     */
+    public static void subscribe(Consumer<Change> subscriber) {
+        SUBSCRIBERS.add(subscriber);
+    }
+
+    public static void unsubscribe(Consumer<Change> subscriber) {
+        SUBSCRIBERS.remove(subscriber);
+    }
+
+    /**
+     * Registers databases that together hold some tables in place of the
+     * primary's tables of the same names.
+     */
+    public static void addShards(List<DataSource> shards) {
+        List<Consumer<List<DataSource>>> listeners;
+        synchronized (SHARDS) {
+            SHARDS.add(shards);
+            listeners = new ArrayList<>(SHARD_LISTENERS);
+        }
+        listeners.forEach(listener -> listener.accept(shards));
+    }
+
+    public static void removeShards(List<DataSource> shards) {
+        synchronized (SHARDS) {
+            SHARDS.remove(shards);
+        }
+    }
+
+    /**
+     * Calls the listener with every set of shards registered so far and then
+     * with each one registered later, on the registering thread.
+     */
+    public static void onShards(Consumer<List<DataSource>> listener) {
+        List<List<DataSource>> registered;
+        synchronized (SHARDS) {
+            SHARD_LISTENERS.add(listener);
+            registered = new ArrayList<>(SHARDS);
+        }
+        registered.forEach(listener);
+    }
+
+    public static void removeShardListener(Consumer<List<DataSource>> listener) {
+        synchronized (SHARDS) {
+            SHARD_LISTENERS.remove(listener);
+        }
+    }
+
+    /**
+     * @return the sequence of the newest published change
+     */
+    public static long lastSequence() {
+        return sequence;
+    }
+
+    /**
+     * Puts the replication trigger on every replicated table of the public
+     * schema.
+     */
+    public static void install(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            for (String table : tables(conn)) {
+                if (UNREPLICATED.contains(table)) {
+                    continue;
+                }
+                statement.execute("CREATE TRIGGER IF NOT EXISTS " + triggerName(table)
+                        + " AFTER INSERT, UPDATE, DELETE ON " + table
+                        + " FOR EACH ROW CALL '" + ReplicationTrigger.class.getName() + "'");
+            }
+        }
+        active = true;
+    }
+
+    public static void uninstall(Connection conn) throws SQLException {
+        active = false;
+        try (Statement statement = conn.createStatement()) {
+            for (String table : tables(conn)) {
+                statement.execute("DROP TRIGGER IF EXISTS " + triggerName(table));
+            }
+        }
+    }
+
+    /**
+     * @return the names of the tables in the public schema
+     */
+    public static List<String> tables(Connection conn) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getTables(null, "PUBLIC", null, new String[] { "BASE TABLE" })) {
+            while (rs.next()) {
+                tables.add(rs.getString("TABLE_NAME"));
+            }
+        }
+        return tables;
+    }
+
+    private static String triggerName(String table) {
+        return "REPLICATE_" + table;
+    }
+
+    static void record(String table, String[] columns, int[] keyColumns, Object[] oldRow, Object[] newRow)
+            throws SQLException {
+        if (!active) {
+            return;
+        }
+        if (!UnitOfWork.isActive()) {
+            throw new SQLException("Writes to " + table + " must run in a unit of work while it is replicated");
+        }
+        List<Change> changes = new ArrayList<>(2);
+        if (oldRow != null && (newRow == null || !sameKey(keyColumns, oldRow, newRow))) {
+            changes.add(new Change(nextVersion(), table, columns, keyColumns, oldRow, true));
+        }
+        if (newRow != null) {
+            changes.add(new Change(nextVersion(), table, columns, keyColumns, newRow.clone(), false));
+        }
+        UnitOfWork.afterCommit(() -> changes.forEach(ChangeFeed::publish));
+        UnitOfWork.afterRollback(() -> forget(changes));
+    }
+
+    private static synchronized long nextVersion() {
+        long version = VERSIONS.incrementAndGet();
+        UNPUBLISHED.add(version);
+        return version;
+    }
+
+    private static synchronized void forget(List<Change> changes) {
+        changes.forEach(change -> UNPUBLISHED.remove(change.version));
+    }
+
+    private static boolean sameKey(int[] keyColumns, Object[] oldRow, Object[] newRow) {
+        for (int column : keyColumns) {
+            if (!Objects.equals(oldRow[column], newRow[column])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized void publish(Change change) {
+        UNPUBLISHED.remove(change.version);
+        change.floor = UNPUBLISHED.isEmpty() ? VERSIONS.get() + 1 : UNPUBLISHED.first();
+        change.sequence = sequence + 1;
+        sequence = change.sequence;
+        for (Consumer<Change> subscriber : SUBSCRIBERS) {
+            subscriber.accept(change);
+        }
+    }
+}
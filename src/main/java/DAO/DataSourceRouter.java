@@ -0,0 +1,513 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Util.Config;
+import Util.ConnectionUtil;
+import Util.Metrics;
+import Util.SchemaInitializer;
+
+/**
+ * Connection source sending read-write units of work to the primary database
+ * and read-only ones to read replicas: further H2 databases, listed as JDBC
+ * URLs in db.replicas (comma separated), e.g.
+ * jdbc:h2:mem:replica1;DB_CLOSE_DELAY=-1.
+ *
+ * {@link #start} gives each replica the schema and a copy of every table,
+ * then keeps it in step from the {@link ChangeFeed}: one thread per replica
+ * applies published changes in order, in batches of one transaction each. A
+ * change is skipped when the replica already holds a newer version of its
+ * row, so the copy and changes that commit while it is taken converge.
+ * Tables held by shards registered with {@link ChangeFeed#addShards} are
+ * followed the same way: the router installs the triggers on the shards and
+ * replaces each replica's copy of those tables with the shards' rows.
+ *
+ * Reads are consistent with the requesting account's own writes. The router
+ * remembers the feed sequence of the last change each account wrote (the
+ * account a row belongs to, and the requester bound with
+ * {@link #setRequester} when the change was published), and a read for that
+ * account only goes to a replica that has applied it; otherwise it stays on
+ * the primary. Requests with no known account may read slightly stale data.
+ *
+ * Metrics: db.route.primary and db.route.replica (units of work sent to
+ * each), db.route.readYourWrites (reads kept on the primary because every
+ * replica was behind the requester), db.replica.lag (changes published but not yet applied by the
+ * slowest replica) and db.replica.failed.
+ */
+public class DataSourceRouter implements UnitOfWork.ConnectionSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceRouter.class);
+    private static final ThreadLocal<Integer> REQUESTER = new ThreadLocal<>();
+    // the column naming the account a row belongs to
+    private static final Map<String, String> OWNER_COLUMNS = Map.of(
+            "ACCOUNT", "ACCOUNT_ID",
+            "MESSAGE", "POSTED_BY",
+            "FOLLOW", "FOLLOWER_ID");
+    private static final int BATCH_SIZE = 1000;
+    private static final int TRACKED_ACCOUNTS = 10_000;
+    private static final int TRACKED_ROWS = 10_000;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Map<Integer, Long> lastWrites = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Consumer<ChangeFeed.Change> subscriber = this::published;
+    private final Consumer<List<DataSource>> shardListener = this::attachShards;
+    private final List<List<DataSource>> attachedShards = new CopyOnWriteArrayList<>();
+    private final LongAdder primaryReads = Metrics.counter("db.route.primary");
+    private final LongAdder replicaReads = Metrics.counter("db.route.replica");
+    private final LongAdder readYourWrites = Metrics.counter("db.route.readYourWrites");
+
+    public DataSourceRouter(List<String> replicaUrls) {
+        for (int i = 0; i < replicaUrls.size(); i++) {
+            replicas.add(new Replica(i, replicaUrls.get(i)));
+        }
+        Metrics.gauge("db.replica.lag", () -> replicas.isEmpty() ? 0 : ChangeFeed.lastSequence() - minApplied());
+        Metrics.gauge("db.replica.failed", () -> replicas.stream().filter(replica -> replica.failed).count());
+    }
+
+    /**
+     * @return a router for the replicas in db.replicas, or null if there are
+     *         none
+     */
+    public static DataSourceRouter fromConfig() {
+        List<String> urls = new ArrayList<>();
+        for (String url : Config.getString("db.replicas", "").split(",")) {
+            if (!url.trim().isEmpty()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls.isEmpty() ? null : new DataSourceRouter(urls);
+    }
+
+    /**
+     * Binds the account the current thread's request is made by, or 0 for
+     * none.
+     */
+    public static void setRequester(int accountId) {
+        REQUESTER.set(accountId);
+    }
+
+    public static void clearRequester() {
+        REQUESTER.remove();
+    }
+
+    /**
+     * Wraps work handed to another thread so that it runs with the calling
+     * thread's requester bound.
+     */
+    public static <T> Supplier<T> withRequester(Supplier<T> work) {
+        Integer requester = REQUESTER.get();
+        if (requester == null) {
+            return work;
+        }
+        return () -> {
+            REQUESTER.set(requester);
+            try {
+                return work.get();
+            } finally {
+                REQUESTER.remove();
+            }
+        };
+    }
+
+    /**
+     * Installs the change feed triggers on the primary, copies every table to
+     * the replicas and starts applying changes.
+     */
+    public void start() {
+        Connection primary = ConnectionUtil.getConnection();
+        try {
+            ChangeFeed.install(primary);
+            ChangeFeed.subscribe(subscriber);
+            long published = ChangeFeed.lastSequence();
+            for (Replica replica : replicas) {
+                long start = System.nanoTime();
+                long rows = replica.copyFrom(primary);
+                replica.applied = published;
+                LOGGER.info("Copied {} rows to replica {} in {} ms", rows, replica.url,
+                        (System.nanoTime() - start) / 1_000_000);
+                replica.thread.start();
+            }
+            ChangeFeed.onShards(shardListener);
+        } catch (SQLException e) {
+            close();
+            throw new Exception("Unable to start the read replicas", e);
+        } finally {
+            closeQuietly(primary);
+        }
+    }
+
+    /**
+     * Stops applying changes and removes the change feed triggers.
+     */
+    public void close() {
+        ChangeFeed.unsubscribe(subscriber);
+        ChangeFeed.removeShardListener(shardListener);
+        for (List<DataSource> shards : attachedShards) {
+            for (DataSource shard : shards) {
+                Connection conn = null;
+                try {
+                    conn = shard.getConnection();
+                    ChangeFeed.uninstall(conn);
+                } catch (SQLException e) {
+                    LOGGER.warn("Unable to remove the change feed triggers from a shard", e);
+                } finally {
+                    closeQuietly(conn);
+                }
+            }
+        }
+        attachedShards.clear();
+        Connection primary = ConnectionUtil.getConnection();
+        try {
+            ChangeFeed.uninstall(primary);
+        } catch (SQLException e) {
+            LOGGER.warn("Unable to remove the change feed triggers", e);
+        } finally {
+            closeQuietly(primary);
+        }
+        for (Replica replica : replicas) {
+            replica.thread.interrupt();
+        }
+    }
+
+    /**
+     * Installs the change feed triggers on the shards, then replaces each
+     * replica's copy of their tables with the shards' rows. Changes that
+     * commit meanwhile are applied after the copy, so the replicas converge.
+     */
+    private void attachShards(List<DataSource> shards) {
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (DataSource shard : shards) {
+                Connection conn = shard.getConnection();
+                connections.add(conn);
+                ChangeFeed.install(conn);
+            }
+            attachedShards.add(shards);
+            for (Replica replica : replicas) {
+                long start = System.nanoTime();
+                long rows = replica.copyShards(connections);
+                LOGGER.info("Copied {} rows from {} shards to replica {} in {} ms", rows, shards.size(),
+                        replica.url, (System.nanoTime() - start) / 1_000_000);
+            }
+        } catch (SQLException e) {
+            throw new Exception("Unable to replicate the shards", e);
+        } finally {
+            connections.forEach(DataSourceRouter::closeQuietly);
+        }
+    }
+
+    /**
+     * Waits until every replica has applied every change published so far.
+     *
+     * @return false if that did not happen within the timeout
+     */
+    public boolean awaitReplicas(long timeoutMillis) throws InterruptedException {
+        long target = ChangeFeed.lastSequence();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (minApplied() < target) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public Connection open(boolean readOnly) throws SQLException {
+        if (readOnly && !replicas.isEmpty()) {
+            Integer requester = REQUESTER.get();
+            long required = requester == null ? 0 : lastWrites.getOrDefault(requester, 0L);
+            int first = next.getAndIncrement();
+            boolean behind = false;
+            for (int i = 0; i < replicas.size(); i++) {
+                Replica replica = replicas.get(Math.floorMod(first + i, replicas.size()));
+                if (replica.failed) {
+                    continue;
+                }
+                if (replica.applied >= required) {
+                    replicaReads.increment();
+                    return replica.dataSource.getConnection();
+                }
+                behind = true;
+            }
+            if (behind) {
+                readYourWrites.increment();
+                return ConnectionUtil.getConnection();
+            }
+        }
+        primaryReads.increment();
+        return ConnectionUtil.getConnection();
+    }
+
+    /**
+     * @return true if every replica has applied the writes the current
+     *         requester must see, so a read made on its behalf can be answered
+     *         by any copy of the data
+     */
+    public boolean requesterCaughtUp() {
+        Integer requester = REQUESTER.get();
+        return requester == null || lastWrites.getOrDefault(requester, 0L) <= minApplied();
+    }
+
+    private void published(ChangeFeed.Change change) {
+        String ownerColumn = OWNER_COLUMNS.get(change.getTable());
+        Object owner = ownerColumn == null ? null : change.get(ownerColumn);
+        if (owner instanceof Integer) {
+            lastWrites.put((Integer) owner, change.getSequence());
+        }
+        Integer requester = REQUESTER.get();
+        if (requester != null && requester != 0) {
+            lastWrites.put(requester, change.getSequence());
+        }
+        for (Replica replica : replicas) {
+            replica.queue.add(change);
+        }
+    }
+
+    private long minApplied() {
+        long min = Long.MAX_VALUE;
+        for (Replica replica : replicas) {
+            if (!replica.failed) {
+                min = Math.min(min, replica.applied);
+            }
+        }
+        return min == Long.MAX_VALUE ? ChangeFeed.lastSequence() : min;
+    }
+
+    /**
+     * Forgets writes every replica has applied once too many accounts are
+     * tracked.
+     */
+    private void pruneLastWrites() {
+        if (lastWrites.size() > TRACKED_ACCOUNTS) {
+            long applied = minApplied();
+            lastWrites.values().removeIf(sequence -> sequence <= applied);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Unable to close a connection", e);
+        }
+    }
+
+    private final class Replica implements Runnable {
+        final String url;
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        final BlockingQueue<ChangeFeed.Change> queue = new LinkedBlockingQueue<>();
+        final Thread thread;
+        volatile long applied;
+        volatile boolean failed;
+        // the newest version applied to recently changed rows, least recently changed first
+        private final Map<String, Long> rowVersions = new LinkedHashMap<>(256, 0.75f, true);
+        // no change still to come is older than this
+        private long floor;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private Connection connection;
+
+        Replica(int index, String url) {
+            this.url = url;
+            dataSource.setURL(url);
+            dataSource.setUser("sa");
+            dataSource.setPassword("sa");
+            thread = new Thread(this, "replica-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Replaces the replica's rows with the primary's.
+         *
+         * @return the number of rows copied
+         */
+        long copyFrom(Connection primary) throws SQLException {
+            connection = dataSource.getConnection();
+            SchemaInitializer.ensureSchema(connection);
+            long rows = 0;
+            try (Statement statement = connection.createStatement()) {
+                // changes arrive in commit order, not in foreign key order
+                statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+                connection.setAutoCommit(false);
+                for (String table : ChangeFeed.tables(primary)) {
+                    statement.execute("TRUNCATE TABLE " + table);
+                    rows += copyTable(primary, table);
+                }
+                connection.commit();
+            }
+            return rows;
+        }
+
+        /**
+         * Replaces the replica's rows of the shards' tables with the shards'
+         * rows, between two batches of changes.
+         *
+         * @return the number of rows copied
+         */
+        synchronized long copyShards(List<Connection> shards) throws SQLException {
+            if (failed || shards.isEmpty()) {
+                return 0;
+            }
+            long rows = 0;
+            try (Statement statement = connection.createStatement()) {
+                for (String table : ChangeFeed.tables(shards.get(0))) {
+                    statement.execute("DELETE FROM " + table);
+                    for (Connection shard : shards) {
+                        rows += copyTable(shard, table);
+                    }
+                }
+                connection.commit();
+            }
+            return rows;
+        }
+
+        private long copyTable(Connection primary, String table) throws SQLException {
+            long rows = 0;
+            try (Statement select = primary.createStatement();
+                    ResultSet rs = select.executeQuery("SELECT * FROM " + table)) {
+                ResultSetMetaData meta = rs.getMetaData();
+                String[] columns = new String[meta.getColumnCount()];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = meta.getColumnName(i + 1);
+                }
+                int[] keyColumns = ReplicationTrigger.keyColumns(primary, "PUBLIC", table, columns);
+                while (rs.next()) {
+                    Object[] row = new Object[columns.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    write(new ChangeFeed.Change(0, table, columns, keyColumns, row, false));
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        public void run() {
+            List<ChangeFeed.Change> batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    synchronized (this) {
+                        for (ChangeFeed.Change change : batch) {
+                            apply(change);
+                        }
+                        connection.commit();
+                        forgetRowVersions();
+                    }
+                    applied = batch.get(batch.size() - 1).getSequence();
+                    batch.clear();
+                    pruneLastWrites();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                LOGGER.error("Replica {} stopped applying changes and no longer serves reads", url, e);
+                failed = true;
+            } finally {
+                statements.clear();
+                closeQuietly(connection);
+            }
+        }
+
+        private void apply(ChangeFeed.Change change) throws SQLException {
+            String rowKey = change.rowKey();
+            Long newest = rowVersions.get(rowKey);
+            if (newest != null && newest > change.getVersion()) {
+                return;
+            }
+            rowVersions.put(rowKey, change.getVersion());
+            floor = change.getFloor();
+            write(change);
+        }
+
+        /**
+         * Forgets the least recently changed rows beyond TRACKED_ROWS,
+         * keeping any whose version a change still in flight could be older
+         * than.
+         */
+        private void forgetRowVersions() {
+            Iterator<Long> versions = rowVersions.values().iterator();
+            while (rowVersions.size() > TRACKED_ROWS && versions.hasNext()) {
+                if (versions.next() < floor) {
+                    versions.remove();
+                }
+            }
+        }
+
+        private void write(ChangeFeed.Change change) throws SQLException {
+            String[] columns = change.getColumns();
+            int[] keyColumns = change.getKeyColumns();
+            Object[] row = change.getRow();
+            String statementKey = change.getTable() + (change.isDeleted() ? ":delete" : ":merge");
+            PreparedStatement ps = statements.get(statementKey);
+            if (ps == null) {
+                ps = connection.prepareStatement(change.isDeleted()
+                        ? deleteSql(change.getTable(), columns, keyColumns)
+                        : mergeSql(change.getTable(), columns, keyColumns));
+                statements.put(statementKey, ps);
+            }
+            if (change.isDeleted()) {
+                for (int i = 0; i < keyColumns.length; i++) {
+                    ps.setObject(i + 1, row[keyColumns[i]]);
+                }
+            } else {
+                for (int i = 0; i < row.length; i++) {
+                    ps.setObject(i + 1, row[i]);
+                }
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    private static String mergeSql(String table, String[] columns, int[] keyColumns) {
+        StringBuilder sql = new StringBuilder("MERGE INTO ").append(table).append(" (")
+                .append(String.join(", ", columns)).append(") KEY (");
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[keyColumns[i]]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String deleteSql(String table, String[] columns, int[] keyColumns) {
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table).append(" WHERE ");
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i == 0 ? "" : " AND ").append(columns[keyColumns[i]]).append(" = ?");
+        }
+        return sql.toString();
+    }
+}
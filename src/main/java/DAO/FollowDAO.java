@@ -0,0 +1,118 @@
+package DAO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The follow table: one row per (follower_id, followee_id) pair.
+ */
+public class FollowDAO {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FollowDAO.class);
+
+    public interface FollowConsumer {
+        void accept(int followerId, int followeeId);
+    }
+
+    private void handleSQLException(SQLException e, String sql, String errorMessage) {
+        LOGGER.error("SQLException Details: {}", e.getMessage());
+        LOGGER.error("SQL State: {}", e.getSQLState());
+        LOGGER.error("Error Code: {}", e.getErrorCode());
+        LOGGER.error("SQL: {}", sql);
+        throw new Exception(errorMessage, e);
+    }
+
+    /**
+     * @return false if the follow already existed
+     */
+    public boolean follow(int followerId, int followeeId) {
+        String sql = "MERGE INTO follow (follower_id, followee_id) KEY (follower_id, followee_id) VALUES (?, ?)";
+        return UnitOfWork.inTransaction(() -> {
+            if (isFollowing(followerId, followeeId)) {
+                return false;
+            }
+            Connection conn = UnitOfWork.connection();
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, followerId);
+                ps.setInt(2, followeeId);
+                return ps.executeUpdate() > 0;
+            } catch (SQLException e) {
+                handleSQLException(e, sql, "Error while following " + followeeId + " as " + followerId);
+            }
+            return false;
+        });
+    }
+
+    public boolean unfollow(int followerId, int followeeId) {
+        String sql = "DELETE FROM follow WHERE follower_id = ? AND followee_id = ?";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, followerId);
+            ps.setInt(2, followeeId);
+            return ps.executeUpdate() > 0;
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while unfollowing " + followeeId + " as " + followerId);
+        }
+        return false;
+    }
+
+    public boolean isFollowing(int followerId, int followeeId) {
+        String sql = "SELECT 1 FROM follow WHERE follower_id = ? AND followee_id = ?";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, followerId);
+            ps.setInt(2, followeeId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while checking whether " + followerId + " follows " + followeeId);
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids of the accounts the account follows
+     */
+    public List<Integer> getFolloweeIds(int followerId) {
+        String sql = "SELECT followee_id FROM follow WHERE follower_id = ?";
+        List<Integer> followees = new ArrayList<>();
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, followerId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    followees.add(rs.getInt(1));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while listing the accounts " + followerId + " follows");
+        }
+        return followees;
+    }
+
+    /**
+     * Streams every follow, for loading the graph into memory.
+     */
+    public void forEachFollow(FollowConsumer consumer) {
+        String sql = "SELECT follower_id, followee_id FROM follow";
+        Connection conn = UnitOfWork.connection();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while streaming follows");
+        }
+    }
+}
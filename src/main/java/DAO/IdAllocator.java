@@ -0,0 +1,264 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import Util.Config;
+import Util.ConnectionUtil;
+import Util.Metrics;
+
+/**
+ * Hands out ids for a table's primary key from blocks reserved in the
+ * id_block table (hi/lo), so inserts know their id before they run and can
+ * be batched instead of reading generated keys back row by row.
+ *
+ * Ids come from an atomic counter over the current block; only the thread
+ * that exhausts a block takes the lock to reserve the next one. A
+ * reservation moves the table's id_block row forward by db.idBlockSize in
+ * its own committed transaction, under the row's lock, so processes sharing
+ * the database never receive the same block, and a restart or a rolled back
+ * insert leaves a gap rather than reusing ids. Reservations also start
+ * above the table's largest id, so rows inserted without the allocator
+ * (seed data, an older release) are skipped over.
+ *
+ * H2 does not move an identity column's sequence past ids inserted
+ * explicitly, so after each reservation the column is restarted at the end
+ * of the block: an insert that still lets the identity pick its id lands
+ * above every block handed out so far, instead of on an allocated id or
+ * inside a block some process has yet to use.
+ */
+public final class IdAllocator {
+    private static final Map<String, IdAllocator> ALLOCATORS = new ConcurrentHashMap<>();
+    private static final LongAdder RESERVATIONS = Metrics.counter("db.idBlocks.reserved");
+    private static final String DUPLICATE_KEY = "23505";
+
+    private final String table;
+    private final String column;
+    private final int blockSize;
+    private volatile Block block;
+    private Boolean identity;
+
+    public IdAllocator(String table, String column, int blockSize) {
+        this.table = table;
+        this.column = column;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the process-wide allocator for the table's id column
+     */
+    public static IdAllocator forColumn(String table, String column) {
+        return ALLOCATORS.computeIfAbsent(table + "." + column,
+                key -> new IdAllocator(table, column, Config.getInt("db.idBlockSize", 1000)));
+    }
+
+    /**
+     * Drops every allocator's current block, for when the database has been
+     * reset underneath them.
+     */
+    public static void resetAll() {
+        ALLOCATORS.values().forEach(allocator -> allocator.block = null);
+    }
+
+    /**
+     * Makes later reservations for the column start above the given id, for
+     * ids that live where the allocator does not look, such as message
+     * shards or rows a bulk load inserted with their ids. Drops this
+     * process's current block if it is not above the id, and moves the
+     * identity column past it.
+     */
+    public static void reserveThrough(String table, String column, long id) {
+        String name = table + "." + column;
+        Connection conn = ConnectionUtil.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(
+                    "SELECT next_id FROM id_block WHERE name = ? FOR UPDATE")) {
+                select.setString(1, name);
+                try (ResultSet rs = select.executeQuery()) {
+                    boolean exists = rs.next();
+                    if (!exists || rs.getLong(1) <= id) {
+                        try (PreparedStatement ps = conn.prepareStatement(exists
+                                ? "UPDATE id_block SET next_id = ? WHERE name = ?"
+                                : "INSERT INTO id_block (next_id, name) VALUES (?, ?)")) {
+                            ps.setLong(1, id + 1);
+                            ps.setString(2, name);
+                            ps.executeUpdate();
+                        }
+                    }
+                }
+            }
+            conn.commit();
+            IdAllocator allocator = forColumn(table, column);
+            synchronized (allocator) {
+                allocator.restartIdentity(conn, id + 1);
+                Block current = allocator.block;
+                if (current != null && current.next.get() <= id) {
+                    allocator.block = null;
+                }
+            }
+        } catch (SQLException e) {
+            throw new Exception("Unable to reserve ids for " + name, e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // committed or rolled back either way
+            }
+        }
+    }
+
+    public int next() {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                int id = current.next.getAndIncrement();
+                if (id < current.end) {
+                    return id;
+                }
+            }
+            synchronized (this) {
+                if (block == current) {
+                    block = reserve();
+                }
+            }
+        }
+    }
+
+    private Block reserve() {
+        Connection conn = ConnectionUtil.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            for (int attempt = 1;; attempt++) {
+                try {
+                    Block reserved = reserve(conn);
+                    conn.commit();
+                    RESERVATIONS.increment();
+                    restartIdentity(conn, reserved.end);
+                    return reserved;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    // another process created the row first: read it again
+                    if (attempt == 3 || !DUPLICATE_KEY.equals(e.getSQLState())) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new Exception("Unable to reserve ids for " + table + "." + column, e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // the block is committed either way
+            }
+        }
+    }
+
+    private Block reserve(Connection conn) throws SQLException {
+        String name = table + "." + column;
+        long start;
+        try (Statement statement = conn.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT MAX(" + column + ") FROM " + table)) {
+            rs.next();
+            start = rs.getLong(1) + 1;
+        }
+        boolean exists = false;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT next_id FROM id_block WHERE name = ? FOR UPDATE")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    exists = true;
+                    start = Math.max(start, rs.getLong(1));
+                }
+            }
+        }
+        long end = start + blockSize;
+        if (end > Integer.MAX_VALUE) {
+            throw new Exception("Ids for " + name + " are exhausted");
+        }
+        try (PreparedStatement ps = conn.prepareStatement(exists
+                ? "UPDATE id_block SET next_id = ? WHERE name = ?"
+                : "INSERT INTO id_block (next_id, name) VALUES (?, ?)")) {
+            ps.setLong(1, end);
+            ps.setString(2, name);
+            ps.executeUpdate();
+        }
+        return new Block((int) start, (int) end);
+    }
+
+    /**
+     * Restarts the identity column at the end of the block, or further if
+     * another reservation committed meanwhile: its own restart may have run
+     * before this one. Never moves the column back, as rows may already
+     * have taken ids from it.
+     */
+    private void restartIdentity(Connection conn, long end) throws SQLException {
+        if (identity == null) {
+            String sql = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? "
+                    + "AND COLUMN_NAME = ? AND IS_IDENTITY = 'YES'";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, table.toUpperCase());
+                ps.setString(2, column.toUpperCase());
+                try (ResultSet rs = ps.executeQuery()) {
+                    identity = rs.next() && rs.getInt(1) > 0;
+                }
+            }
+        }
+        if (!identity) {
+            return;
+        }
+        conn.setAutoCommit(true);
+        long restartAt = end;
+        while (true) {
+            if (identityBase(conn) >= restartAt) {
+                return;
+            }
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + restartAt);
+            }
+            long reserved;
+            try (PreparedStatement ps = conn.prepareStatement("SELECT next_id FROM id_block WHERE name = ?")) {
+                ps.setString(1, table + "." + column);
+                try (ResultSet rs = ps.executeQuery()) {
+                    reserved = rs.next() ? rs.getLong(1) : restartAt;
+                }
+            }
+            if (reserved <= restartAt) {
+                return;
+            }
+            restartAt = reserved;
+        }
+    }
+
+    /**
+     * @return the next value the identity column would give
+     */
+    private long identityBase(Connection conn) throws SQLException {
+        String sql = "SELECT IDENTITY_BASE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, table.toUpperCase());
+            ps.setString(2, column.toUpperCase());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static final class Block {
+        final AtomicInteger next;
+        final int end;
+
+        Block(int start, int end) {
+            this.next = new AtomicInteger(start);
+            this.end = end;
+        }
+    }
+}
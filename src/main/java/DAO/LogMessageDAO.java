@@ -0,0 +1,622 @@
+package DAO;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.Message;
+import Util.Config;
+import Util.IntLongHashMap;
+import Util.SegmentLog;
+import Util.TimeIndex;
+
+/**
+ * A message store that keeps messages in an append-only {@link SegmentLog}
+ * on local disk instead of the H2 message table.
+ *
+ * Every insert or update appends a PUT record holding the whole message and
+ * every delete appends a DELETE tombstone. Memory holds only an index from
+ * message_id to the record's log position, a per-posted_by list of ids and
+ * a {@link TimeIndex} over time_posted_epoch; message bodies are read from
+ * disk on demand.
+ *
+ * A background task periodically writes a snapshot of the index so a restart
+ * only replays the log written since, and compacts the log once more than
+ * compactRatio of it is superseded records: live records are copied forward
+ * into the active segment and the old segments are deleted.
+ *
+ * When the store is opened for the first time it imports the current
+ * contents of the H2 message table.
+ */
+public class LogMessageDAO implements MessageBase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogMessageDAO.class);
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // version 2 adds time_posted_epoch to each entry; older snapshots are
+    // ignored and the log is replayed in full instead
+    private static final int SNAPSHOT_MAGIC = 0x4D534E51;
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+    private static final String LOCK_FILE = "store.lock";
+    private static final int COMPACTION_BATCH = 1024;
+    private static final int READ_BATCH = 1024;
+    private static final long TIME_BUCKET_SECONDS = 3600;
+
+    private final Path directory;
+    private final SegmentLog log;
+    private final boolean syncWrites;
+    private final double compactRatio;
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final ScheduledExecutorService maintenance;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object snapshotMonitor = new Object();
+
+    // message_id -> log position of its latest PUT record
+    private final IntLongHashMap positions = new IntLongHashMap(1024, -1L);
+    // message_id -> posted_by (high 32 bits) and record size in bytes (low 32 bits)
+    private final IntLongHashMap details = new IntLongHashMap(1024, -1L);
+    private final Map<Integer, IdList> idsByPoster = new HashMap<>();
+    private final TimeIndex timeIndex = new TimeIndex(TIME_BUCKET_SECONDS);
+    private int nextId = 1;
+    private long liveBytes;
+
+    public LogMessageDAO(Path directory, long segmentBytes, long fsyncMillis, boolean syncWrites,
+            double compactRatio, long maintenanceSeconds, boolean reset) {
+        this.directory = directory;
+        this.syncWrites = syncWrites;
+        this.compactRatio = compactRatio;
+        try {
+            Files.createDirectories(directory);
+            lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = lockChannel.tryLock();
+            if (fileLock == null) {
+                throw new Exception("Message store " + directory + " is in use by another process");
+            }
+            if (reset) {
+                deleteStoreFiles();
+            }
+        } catch (IOException e) {
+            throw new Exception("Unable to open message store " + directory, e);
+        }
+        log = new SegmentLog(directory, segmentBytes, fsyncMillis);
+        boolean fresh = !Files.exists(directory.resolve(SNAPSHOT_FILE)) && log.sizeBytes() == 0;
+        long replayFrom = loadSnapshot();
+        log.replay(replayFrom, this::apply);
+        if (fresh) {
+            importFromDatabase();
+        }
+        LOGGER.info("Opened message store {} with {} messages", directory, positions.size());
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-store-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, maintenanceSeconds, maintenanceSeconds, TimeUnit.SECONDS);
+    }
+
+    public static LogMessageDAO fromConfig() {
+        return new LogMessageDAO(
+                Paths.get(Config.getString("message.store.log.dir", "./h2/messages")),
+                Config.getLong("message.store.log.segmentBytes", 64L * 1024 * 1024),
+                Config.getLong("message.store.log.fsyncMillis", 5),
+                Config.getBoolean("message.store.log.syncWrites", true),
+                Double.parseDouble(Config.getString("message.store.log.compactRatio", "0.5")),
+                Config.getLong("message.store.log.maintenanceSeconds", 60),
+                Config.getBoolean("message.store.log.reset", false));
+    }
+
+    @Override
+    public Optional<Message> getById(int id) {
+        lock.readLock().lock();
+        try {
+            long position = positions.get(id);
+            return position < 0 ? Optional.empty() : Optional.of(decode(log.read(position)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getAll() {
+        lock.readLock().lock();
+        try {
+            int[] ids = positions.sortedKeys();
+            List<Message> messages = new ArrayList<>(ids.length);
+            for (int id : ids) {
+                messages.add(decode(log.read(positions.get(id))));
+            }
+            return messages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getMessagesByAccountId(int accountId) {
+        lock.readLock().lock();
+        try {
+            IdList ids = idsByPoster.get(accountId);
+            if (ids == null) {
+                return new ArrayList<>();
+            }
+            List<Message> messages = new ArrayList<>(ids.size);
+            for (int i = 0; i < ids.size; i++) {
+                messages.add(decode(log.read(positions.get(ids.ids[i]))));
+            }
+            return messages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+        lock.readLock().lock();
+        try {
+            IdList ids = idsByPoster.get(accountId);
+            List<Message> messages = new ArrayList<>();
+            if (ids == null) {
+                return messages;
+            }
+            int index = Arrays.binarySearch(ids.ids, 0, ids.size, beforeId);
+            for (int i = (index >= 0 ? index : -index - 1) - 1; i >= 0 && messages.size() < limit; i--) {
+                messages.add(decode(log.read(positions.get(ids.ids[i]))));
+            }
+            return messages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Seeks the time index, or when posted_by is given and has fewer messages
+     * than the range, filters that account's id list instead. Records are
+     * read in batches so writers are never blocked for the whole range.
+     */
+    @Override
+    public void forEachMessageInRange(long from, long to, int postedBy, Consumer<Message> consumer) {
+        int[] ids;
+        int count;
+        lock.readLock().lock();
+        try {
+            IdList posted = postedBy > 0 ? idsByPoster.get(postedBy) : null;
+            if (postedBy > 0 && posted == null) {
+                return;
+            }
+            long inRange = timeIndex.count(from, to);
+            if (posted != null && posted.size < inRange) {
+                ids = Arrays.copyOf(posted.ids, posted.size);
+                count = timeIndex.filterAndSort(ids, posted.size, from, to);
+            } else {
+                int[] matched = new int[(int) inRange];
+                int[] size = new int[1];
+                timeIndex.forEach(from, to, id -> {
+                    if (postedBy <= 0 || (int) (details.get(id) >>> 32) == postedBy) {
+                        matched[size[0]++] = id;
+                    }
+                });
+                ids = matched;
+                count = size[0];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Message> batch = new ArrayList<>(Math.min(count, READ_BATCH));
+        for (int start = 0; start < count; start += READ_BATCH) {
+            batch.clear();
+            lock.readLock().lock();
+            try {
+                for (int i = start; i < Math.min(count, start + READ_BATCH); i++) {
+                    long position = positions.get(ids[i]);
+                    if (position >= 0) {
+                        Message message = decode(log.read(position));
+                        // skip messages moved out of the range since the index was read
+                        if (message.getTime_posted_epoch() >= from && message.getTime_posted_epoch() < to
+                                && (postedBy <= 0 || message.getPosted_by() == postedBy)) {
+                            batch.add(message);
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            batch.forEach(consumer);
+        }
+    }
+
+    @Override
+    public long[] getPostTimeBounds(int postedBy) {
+        lock.readLock().lock();
+        try {
+            if (postedBy <= 0) {
+                return timeIndex.bounds();
+            }
+            IdList ids = idsByPoster.get(postedBy);
+            long[] bounds = null;
+            for (int i = 0; ids != null && i < ids.size; i++) {
+                long time = timeIndex.getTime(ids.ids[i]);
+                if (bounds == null) {
+                    bounds = new long[] { time, time };
+                } else {
+                    bounds[0] = Math.min(bounds[0], time);
+                    bounds[1] = Math.max(bounds[1], time);
+                }
+            }
+            return bounds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Message insert(Message message) {
+        Message inserted;
+        lock.writeLock().lock();
+        try {
+            inserted = new Message(nextId, message.getPosted_by(), message.getMessage_text(),
+                    message.getTime_posted_epoch());
+            write(encodePut(inserted));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        awaitDurable();
+        return inserted;
+    }
+
+    @Override
+    public boolean update(Message message) {
+        lock.writeLock().lock();
+        try {
+            if (!positions.containsKey(message.getMessage_id())) {
+                return false;
+            }
+            write(encodePut(message));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        awaitDurable();
+        return true;
+    }
+
+    @Override
+    public boolean delete(Message message) {
+        lock.writeLock().lock();
+        try {
+            long detail = details.get(message.getMessage_id());
+            if (detail < 0) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(9)
+                    .put(DELETE)
+                    .putInt(message.getMessage_id())
+                    .putInt((int) (detail >>> 32));
+            write(buffer.array());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        awaitDurable();
+        return true;
+    }
+
+    /**
+     * Writes a final snapshot and releases the store's files.
+     */
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        try {
+            writeSnapshot();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to write snapshot of message store {}", directory, e);
+        }
+        log.close();
+        try {
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to release lock on message store {}", directory, e);
+        }
+    }
+
+    /**
+     * Copies live records out of sealed segments into the active one and
+     * deletes the sealed segments. Concurrent writers only block for one
+     * batch of records at a time.
+     */
+    public void compact() {
+        log.rollOver();
+        Set<Integer> sealed = new HashSet<>(log.sealedSegments());
+        if (sealed.isEmpty()) {
+            return;
+        }
+        int[] ids;
+        lock.readLock().lock();
+        try {
+            ids = positions.sortedKeys();
+        } finally {
+            lock.readLock().unlock();
+        }
+        int moved = 0;
+        for (int start = 0; start < ids.length; start += COMPACTION_BATCH) {
+            lock.writeLock().lock();
+            try {
+                for (int i = start; i < Math.min(ids.length, start + COMPACTION_BATCH); i++) {
+                    long position = positions.get(ids[i]);
+                    // ids updated since the scan already live in the active segment
+                    if (position >= 0 && sealed.contains(SegmentLog.segmentOf(position))) {
+                        positions.put(ids[i], log.append(log.read(position)));
+                        moved++;
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        log.sync();
+        writeSnapshot();
+        lock.writeLock().lock();
+        try {
+            for (int segment : sealed) {
+                log.deleteSegment(segment);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOGGER.info("Compacted message store {}: moved {} records, removed {} segments",
+                directory, moved, sealed.size());
+    }
+
+    /**
+     * Persists the index so that a restart replays only the log written
+     * after this point.
+     */
+    public void writeSnapshot() {
+        synchronized (snapshotMonitor) {
+            byte[] body;
+            lock.readLock().lock();
+            try {
+                log.sync();
+                ByteBuffer out = ByteBuffer.allocate(20 + positions.size() * 28)
+                        .putInt(SNAPSHOT_MAGIC)
+                        .putLong(log.endPosition())
+                        .putInt(nextId)
+                        .putInt(positions.size());
+                positions.forEach((id, position) -> out.putInt(id).putLong(position).putLong(details.get(id))
+                        .putLong(timeIndex.getTime(id)));
+                body = out.array();
+            } finally {
+                lock.readLock().unlock();
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(body.length + Long.BYTES);
+                buffer.put(body).putLong(crc.getValue()).flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void maintain() {
+        try {
+            long garbage = log.sizeBytes() - liveBytes;
+            if (garbage > 0 && garbage > compactRatio * log.sizeBytes()) {
+                compact();
+            } else {
+                writeSnapshot();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Message store maintenance failed for {}", directory, e);
+        }
+    }
+
+    private void write(byte[] payload) {
+        apply(log.append(payload), payload);
+    }
+
+    private void awaitDurable() {
+        if (syncWrites) {
+            log.sync();
+        }
+    }
+
+    /**
+     * Applies one log record to the in-memory index. Used both for live
+     * writes and when replaying the log at startup.
+     */
+    private void apply(long position, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte type = buffer.get();
+        int id = buffer.getInt();
+        int postedBy = buffer.getInt();
+        nextId = Math.max(nextId, id + 1);
+        long previous = details.get(id);
+        if (previous >= 0) {
+            liveBytes -= (int) previous;
+            IdList ids = idsByPoster.get((int) (previous >>> 32));
+            if (ids != null) {
+                ids.remove(id);
+            }
+        }
+        if (type == PUT) {
+            timeIndex.put(id, buffer.getLong());
+            int recordBytes = payload.length + 8;
+            positions.put(id, position);
+            details.put(id, ((long) postedBy << 32) | recordBytes);
+            idsByPoster.computeIfAbsent(postedBy, k -> new IdList()).add(id);
+            liveBytes += recordBytes;
+        } else {
+            positions.remove(id);
+            details.remove(id);
+            timeIndex.remove(id);
+        }
+    }
+
+    private long loadSnapshot() {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return SegmentLog.position(0, 0);
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES).getLong()) {
+                LOGGER.warn("Ignoring corrupt snapshot of message store {}", directory);
+                return SegmentLog.position(0, 0);
+            }
+            ByteBuffer in = ByteBuffer.wrap(bytes, 0, bytes.length - Long.BYTES);
+            if (in.getInt() != SNAPSHOT_MAGIC) {
+                return SegmentLog.position(0, 0);
+            }
+            long endPosition = in.getLong();
+            nextId = in.getInt();
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int id = in.getInt();
+                long position = in.getLong();
+                long detail = in.getLong();
+                timeIndex.put(id, in.getLong());
+                positions.put(id, position);
+                details.put(id, detail);
+                liveBytes += (int) detail;
+                idsByPoster.computeIfAbsent((int) (detail >>> 32), k -> new IdList()).add(id);
+            }
+            return endPosition;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read snapshot of message store {}", directory, e);
+            positions.clear();
+            details.clear();
+            idsByPoster.clear();
+            timeIndex.clear();
+            liveBytes = 0;
+            nextId = 1;
+            return SegmentLog.position(0, 0);
+        }
+    }
+
+    private void importFromDatabase() {
+        List<Message> messages = new MessageDAO().getAll();
+        lock.writeLock().lock();
+        try {
+            for (Message message : messages) {
+                write(encodePut(message));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.sync();
+        LOGGER.info("Imported {} messages from the database into {}", messages.size(), directory);
+    }
+
+    private void deleteStoreFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().equals(LOCK_FILE)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static byte[] encodePut(Message message) {
+        byte[] text = message.getMessage_text() == null ? null
+                : message.getMessage_text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(21 + (text == null ? 0 : text.length))
+                .put(PUT)
+                .putInt(message.getMessage_id())
+                .putInt(message.getPosted_by())
+                .putLong(message.getTime_posted_epoch())
+                .putInt(text == null ? -1 : text.length);
+        if (text != null) {
+            buffer.put(text);
+        }
+        return buffer.array();
+    }
+
+    private static Message decode(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.get();
+        int id = buffer.getInt();
+        int postedBy = buffer.getInt();
+        long time = buffer.getLong();
+        int length = buffer.getInt();
+        String text = length < 0 ? null
+                : new String(payload, buffer.position(), length, StandardCharsets.UTF_8);
+        return new Message(id, postedBy, text, time);
+    }
+
+    /**
+     * Ascending list of message ids posted by one account. Ids are assigned
+     * in increasing order, so appends keep it sorted.
+     */
+    private static final class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package DAO;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import Model.Message;
+
+/**
+ * Operations every message store offers, whether it is backed by the H2
+ * message table or by another storage engine.
+ */
+public interface MessageBase extends Base<Message> {
+
+    List<Message> getMessagesByAccountId(int accountId);
+
+    /**
+     * Up to limit messages posted by the account with a message_id below
+     * beforeId, newest first. Stores that can seek should override this.
+     */
+    default List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+        List<Message> messages = new ArrayList<>();
+        for (Message message : getMessagesByAccountId(accountId)) {
+            if (message.getMessage_id() < beforeId) {
+                messages.add(message);
+            }
+        }
+        messages.sort(Comparator.comparingInt(Message::getMessage_id).reversed());
+        return messages.size() > limit ? new ArrayList<>(messages.subList(0, limit)) : messages;
+    }
+
+    /**
+     * @return whether the store keeps message versions; if not, versions
+     *         say nothing about whether a message has changed
+     */
+    default boolean keepsVersions() {
+        return false;
+    }
+
+    /**
+     * The message with its version. Stores that do not keep versions report
+     * every message at version 0.
+     */
+    default Optional<Versioned<Message>> getVersionedById(int id) {
+        return getById(id).map(message -> new Versioned<>(message, 0));
+    }
+
+    /**
+     * Updates the message only if it is still at expectedVersion, moving it
+     * to the next version.
+     *
+     * @return false if the message is missing or has been updated since.
+     *         Stores that do not keep versions update unconditionally.
+     */
+    default boolean update(Message message, long expectedVersion) {
+        return update(message);
+    }
+
+    /**
+     * Inserts the messages in order and returns them with their ids. Stores
+     * that can batch should override this.
+     */
+    default List<Message> insertAll(List<Message> messages) {
+        List<Message> inserted = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            inserted.add(insert(message));
+        }
+        return inserted;
+    }
+
+    /**
+     * Visits every message in message_id order. Stores that can stream should
+     * override this so large tables are never held in memory at once.
+     */
+    default void forEachMessage(Consumer<Message> consumer) {
+        getAll().forEach(consumer);
+    }
+
+    /**
+     * Visits the messages with from <= time_posted_epoch < to, only those
+     * posted by postedBy unless it is 0, in (time_posted_epoch, message_id)
+     * order. Stores with a time index should override this.
+     */
+    default void forEachMessageInRange(long from, long to, int postedBy, Consumer<Message> consumer) {
+        List<Message> messages = new ArrayList<>();
+        for (Message message : getAll()) {
+            if (message.getTime_posted_epoch() >= from && message.getTime_posted_epoch() < to
+                    && (postedBy <= 0 || message.getPosted_by() == postedBy)) {
+                messages.add(message);
+            }
+        }
+        messages.sort(Comparator.comparingLong(Message::getTime_posted_epoch)
+                .thenComparingInt(Message::getMessage_id));
+        messages.forEach(consumer);
+    }
+
+    /**
+     * The smallest and largest time_posted_epoch of the account's messages,
+     * or of all messages when postedBy is 0.
+     *
+     * @return {first, last}, or null if there are no such messages
+     */
+    default long[] getPostTimeBounds(int postedBy) {
+        long[] bounds = null;
+        for (Message message : postedBy > 0 ? getMessagesByAccountId(postedBy) : getAll()) {
+            long time = message.getTime_posted_epoch();
+            if (bounds == null) {
+                bounds = new long[] { time, time };
+            } else {
+                bounds[0] = Math.min(bounds[0], time);
+                bounds[1] = Math.max(bounds[1], time);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Releases files, threads or connections held by the store.
+     */
+    default void close() {
+    }
+}
@@ -11,14 +11,35 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import Model.Message;
-import Util.ConnectionUtil;
 
-public class MessageDAO implements Base<Message> {
+public class MessageDAO implements MessageBase {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageDAO.class);
 
+    private static final String INSERT_WITH_ID =
+            "INSERT INTO message(message_id, posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?, ?)";
+
+    // where each statement gets its connection, which it must not close
+    private final Supplier<Connection> connections;
+    private final IdAllocator ids;
+
+    public MessageDAO() {
+        this(UnitOfWork::connection, IdAllocator.forColumn("message", "message_id"));
+    }
+
+    /**
+     * A DAO for the message table of another database, such as one shard of a
+     * {@link ShardedMessageDAO}, taking its ids from the given allocator.
+     */
+    public MessageDAO(Supplier<Connection> connections, IdAllocator ids) {
+        this.connections = connections;
+        this.ids = ids;
+    }
+
     private void handleSQLException(SQLException e, String sql, String errorMessage) {
         LOGGER.error("SQLException Details: {}", e.getMessage());
         LOGGER.error("SQL State: {}", e.getSQLState());
@@ -29,9 +50,41 @@ public class MessageDAO implements Base<Message> {
 
     @Override
     public Optional<Message> getById(int id) {
+        // read-only so that a DataSourceRouter may send it to a replica
+        return UnitOfWork.readOnly(() -> selectById(id));
+    }
+
+    @Override
+    public boolean keepsVersions() {
+        return true;
+    }
+
+    @Override
+    public Optional<Versioned<Message>> getVersionedById(int id) {
+        return UnitOfWork.readOnly(() -> selectVersionedById(id));
+    }
 
+    private Optional<Versioned<Message>> selectVersionedById(int id) {
         String sql = "SELECT * FROM message WHERE message_id = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, id);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new Versioned<>(mapResultSetToMessage(rs), rs.getLong("version")));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while retrieving the message with id: " + id);
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Message> selectById(int id) {
+
+        String sql = "SELECT * FROM message WHERE message_id = ?";
+        Connection conn = connections.get();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, id);
 
@@ -48,8 +101,12 @@ public class MessageDAO implements Base<Message> {
 
     @Override
     public List<Message> getAll() {
+        return UnitOfWork.readOnly(this::selectAll);
+    }
+
+    private List<Message> selectAll() {
         String sql = "SELECT * FROM message";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = connections.get();
         List<Message> messages = new ArrayList<>();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             try (ResultSet rs = ps.executeQuery()) {
@@ -63,9 +120,86 @@ public class MessageDAO implements Base<Message> {
         return messages;
     }
 
+    @Override
+    public void forEachMessage(Consumer<Message> consumer) {
+        String sql = "SELECT * FROM message ORDER BY message_id";
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setFetchSize(1000);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while streaming all messages");
+        }
+    }
+
+    /**
+     * Range scan on the message_time or message_posted_by_time index, whose
+     * column order matches the ORDER BY so no sort is needed.
+     */
+    @Override
+    public void forEachMessageInRange(long from, long to, int postedBy, Consumer<Message> consumer) {
+        String sql = postedBy > 0
+                ? "SELECT * FROM message WHERE posted_by = ? AND time_posted_epoch >= ? AND time_posted_epoch < ? "
+                        + "ORDER BY posted_by, time_posted_epoch, message_id"
+                : "SELECT * FROM message WHERE time_posted_epoch >= ? AND time_posted_epoch < ? "
+                        + "ORDER BY time_posted_epoch, message_id";
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int parameter = 1;
+            if (postedBy > 0) {
+                ps.setInt(parameter++, postedBy);
+            }
+            ps.setLong(parameter++, from);
+            ps.setLong(parameter, to);
+            ps.setFetchSize(1000);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while streaming messages posted from " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Reads both ends of the message_time or message_posted_by_time index.
+     */
+    @Override
+    public long[] getPostTimeBounds(int postedBy) {
+        String sql = "SELECT MIN(time_posted_epoch), MAX(time_posted_epoch) FROM message"
+                + (postedBy > 0 ? " WHERE posted_by = ?" : "");
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            if (postedBy > 0) {
+                ps.setInt(1, postedBy);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    long first = rs.getLong(1);
+                    if (!rs.wasNull()) {
+                        return new long[] { first, rs.getLong(2) };
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while reading post time bounds of account: " + postedBy);
+        }
+        return null;
+    }
+
+    @Override
     public List<Message> getMessagesByAccountId(int accountId) {
+        return UnitOfWork.readOnly(() -> selectByAccountId(accountId));
+    }
+
+    private List<Message> selectByAccountId(int accountId) {
         String sql = "SELECT * FROM message WHERE posted_by = ?";
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = connections.get();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, accountId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -78,47 +212,93 @@ public class MessageDAO implements Base<Message> {
     }
 
     @Override
-    public Message insert(Message message) {
-        String sql = "INSERT INTO message(posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
-        Connection conn = ConnectionUtil.getConnection();
-
-        // INSERT operation on a table with an auto-incrementing primary key column
-        // Database assigns a unique value to the primary key column for the newly
-        // inserted row
-        // The generatedKeys feature enables us to retrieve the generated key value
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setInt(1, message.getPosted_by());
-            ps.setString(2, message.getMessage_text());
-            ps.setLong(3, message.getTime_posted_epoch());
+    public List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+        String sql = "SELECT * FROM message WHERE posted_by = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?";
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, accountId);
+            ps.setInt(2, beforeId);
+            ps.setInt(3, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                return mapResultSetToList(rs);
+            }
+        } catch (SQLException e) {
+            handleSQLException(e, sql, "Error while retrieving recent messages by account ID: " + accountId);
+        }
+        return new ArrayList<>();
+    }
 
+    @Override
+    public Message insert(Message message) {
+        Message inserted = new Message(ids.next(), message.getPosted_by(), message.getMessage_text(),
+                message.getTime_posted_epoch());
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_WITH_ID)) {
+            setInsertParameters(ps, inserted);
             ps.executeUpdate();
+        } catch (SQLException e) {
+            handleSQLException(e, INSERT_WITH_ID, "Error while inserting a message");
+        }
+        return inserted;
+    }
 
-            // After executing the INSERT statement using ps.executeUpdate()
-            // The ResultSet object named generatedKeys is obtained by calling
-            // ps.getGeneratedKeys()
-            try (ResultSet generatedKeys = ps.getGeneratedKeys()) {
-
-                if (generatedKeys.next()) {
-
-                    int generatedId = generatedKeys.getInt(1);
-
-                    return new Message(generatedId, message.getPosted_by(), message.getMessage_text(),
+    /**
+     * Inserts the messages as one JDBC batch in one transaction, with their
+     * ids allocated up front.
+     */
+    @Override
+    public List<Message> insertAll(List<Message> messages) {
+        return UnitOfWork.inTransaction(() -> {
+            List<Message> inserted = new ArrayList<>(messages.size());
+            Connection conn = connections.get();
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_WITH_ID)) {
+                for (Message message : messages) {
+                    Message withId = new Message(ids.next(), message.getPosted_by(), message.getMessage_text(),
                             message.getTime_posted_epoch());
-                } else {
-                    throw new Exception("Failed to insert message, no ID obtained.");
+                    setInsertParameters(ps, withId);
+                    ps.addBatch();
+                    inserted.add(withId);
                 }
+                ps.executeBatch();
+            } catch (SQLException e) {
+                handleSQLException(e, INSERT_WITH_ID, "Error while inserting " + messages.size() + " messages");
             }
+            return inserted;
+        });
+    }
+
+    private static void setInsertParameters(PreparedStatement ps, Message message) throws SQLException {
+        ps.setInt(1, message.getMessage_id());
+        ps.setInt(2, message.getPosted_by());
+        ps.setString(3, message.getMessage_text());
+        ps.setLong(4, message.getTime_posted_epoch());
+    }
+
+    @Override
+    public boolean update(Message message, long expectedVersion) {
+        String sql = "UPDATE message SET posted_by = ?, message_text = ?, time_posted_epoch = ?, version = version + 1"
+                + " WHERE message_id = ? AND version = ?";
+        int rowsUpdated = 0;
+        Connection conn = connections.get();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, message.getPosted_by());
+            ps.setString(2, message.getMessage_text());
+            ps.setLong(3, message.getTime_posted_epoch());
+            ps.setInt(4, message.getMessage_id());
+            ps.setLong(5, expectedVersion);
+            rowsUpdated = ps.executeUpdate();
         } catch (SQLException e) {
-            handleSQLException(e, sql, "Error while inserting a message");
+            handleSQLException(e, sql, "Error while updating the message with id: " + message.getMessage_id());
         }
-        throw new Exception("Failed to insert message");
+        return rowsUpdated > 0;
     }
 
     @Override
     public boolean update(Message message) {
-        String sql = "UPDATE message SET posted_by = ?, message_text = ?, time_posted_epoch = ? WHERE message_id = ?";
+        String sql = "UPDATE message SET posted_by = ?, message_text = ?, time_posted_epoch = ?, version = version + 1"
+                + " WHERE message_id = ?";
         int rowsUpdated = 0;
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = connections.get();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, message.getPosted_by());
             ps.setString(2, message.getMessage_text());
@@ -135,7 +315,7 @@ public class MessageDAO implements Base<Message> {
     public boolean delete(Message message) {
         String sql = "DELETE FROM message WHERE message_id = ?";
         int rowsUpdated = 0;
-        Connection conn = ConnectionUtil.getConnection();
+        Connection conn = connections.get();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, message.getMessage_id());
             rowsUpdated = ps.executeUpdate();
@@ -0,0 +1,535 @@
+package DAO;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.Message;
+import Util.Config;
+import Util.IntLongHashMap;
+
+/**
+ * A compact binary copy of the message table used for full scans. Scans
+ * memory-map the segment files and hand each record's fields and raw UTF-8
+ * text to a visitor, so no Message objects or Strings are created.
+ *
+ * Each segment holds records of the form
+ *
+ * <pre>
+ *   | int length | byte live | int message_id | int posted_by | long time_posted_epoch | UTF-8 text |
+ * </pre>
+ *
+ * mostly in message_id order. MessageService keeps the file in step with its
+ * writes, and only ever appends records or clears a live flag, so a scan
+ * reading a mapping never sees a half-written record. Inserts append in
+ * order (live 1). An update, or an insert that finished out of id order,
+ * appends a relocated record (live 2), which sequential reading skips; the
+ * relocated records are kept in id order in memory and merged into scans,
+ * and a record an update supersedes stays in place, skipped by the scans
+ * that know of its replacement. Deletes clear the live flag of the current
+ * record and of the one it superseded.
+ *
+ * Writes made through another node's MessageService reach the file through
+ * {@link #refresh}, which re-reads the message; writes made to the table
+ * directly are only seen after a rebuild. A large share of dead records or
+ * a fresh start marks the file stale, and the next scan rebuilds it from the
+ * message store.
+ */
+public class MessageScanFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageScanFile.class);
+    private static final int HEADER_BYTES = 4;
+    private static final int FIXED_BYTES = 1 + 4 + 4 + 8;
+    private static final byte DEAD = 0;
+    private static final byte IN_ORDER = 1;
+    private static final byte RELOCATED = 2;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final MessageBase source;
+    private final Object rebuildLock = new Object();
+
+    // guarded by this
+    private List<Segment> segments = new ArrayList<>();
+    private IntLongHashMap offsets = new IntLongHashMap(1024, -1L);
+    // live relocated records by id, and the in-order records they superseded
+    private TreeMap<Integer, Long> relocated = new TreeMap<>();
+    private IntLongHashMap superseded = new IntLongHashMap(16, -1L);
+    private int generation;
+    private int lastId;
+    private long totalBytes;
+    private long deadBytes;
+    private boolean stale = true;
+    private List<Runnable> pendingDuringRebuild;
+
+    public MessageScanFile(Path directory, long segmentBytes, MessageBase source) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.source = source;
+    }
+
+    public static MessageScanFile fromConfig(MessageBase source) {
+        return new MessageScanFile(
+                Paths.get(Config.getString("message.scanfile.dir", "./h2/scan")),
+                Config.getLong("message.scanfile.segmentBytes", 256L * 1024 * 1024),
+                source);
+    }
+
+    public interface Visitor {
+        void accept(int messageId, int postedBy, long timePostedEpoch, byte[] text, int offset, int length)
+                throws IOException;
+    }
+
+    public synchronized void append(Message message) {
+        if (pendingDuringRebuild != null) {
+            pendingDuringRebuild.add(() -> append(message));
+            return;
+        }
+        if (stale) {
+            return;
+        }
+        if (offsets.containsKey(message.getMessage_id())) {
+            update(message);
+            return;
+        }
+        // concurrent inserts can finish out of id order
+        write(message, message.getMessage_id() < lastId ? RELOCATED : IN_ORDER);
+    }
+
+    /**
+     * Appends the new version as a relocated record; the old one becomes
+     * dead space, reclaimed by the next rebuild.
+     */
+    public synchronized void update(Message message) {
+        if (pendingDuringRebuild != null) {
+            pendingDuringRebuild.add(() -> update(message));
+            return;
+        }
+        int id = message.getMessage_id();
+        long location = offsets.get(id);
+        if (stale || location < 0) {
+            return;
+        }
+        try {
+            // left live for scans already reading it; later scans only reach it through the maps
+            if (!relocated.containsKey(id)) {
+                superseded.put(id, location);
+            }
+            deadBytes += recordBytes(location);
+            write(message, RELOCATED);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to update scan file, marking it stale", e);
+            stale = true;
+        }
+    }
+
+    public synchronized void delete(int messageId) {
+        if (pendingDuringRebuild != null) {
+            pendingDuringRebuild.add(() -> delete(messageId));
+            return;
+        }
+        long location = offsets.remove(messageId);
+        relocated.remove(messageId);
+        long original = superseded.remove(messageId);
+        if (stale || location < 0) {
+            return;
+        }
+        try {
+            kill(location);
+            if (original >= 0) {
+                // already counted as dead when it was superseded
+                writeFully(segments.get((int) (original >>> 32)).channel, ByteBuffer.wrap(new byte[] { DEAD }),
+                        (original & 0xFFFFFFFFL) + HEADER_BYTES);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to update scan file, marking it stale", e);
+            stale = true;
+        }
+    }
+
+    /**
+     * Brings the message's record in line with the store after another node
+     * wrote it.
+     */
+    public void refresh(int messageId) {
+        Optional<Message> current = source.getById(messageId);
+        if (current.isPresent()) {
+            append(current.get());
+        } else {
+            delete(messageId);
+        }
+    }
+
+    private void kill(long location) throws IOException {
+        writeFully(segments.get((int) (location >>> 32)).channel, ByteBuffer.wrap(new byte[] { DEAD }),
+                (location & 0xFFFFFFFFL) + HEADER_BYTES);
+        deadBytes += recordBytes(location);
+    }
+
+    private long recordBytes(long location) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(segments.get((int) (location >>> 32)).channel, length, location & 0xFFFFFFFFL);
+        return HEADER_BYTES + length.flip().getInt();
+    }
+
+    public synchronized void markStale() {
+        stale = true;
+    }
+
+    /**
+     * Visits every live record in message_id order, optionally only those
+     * posted by one account (postedBy &lt;= 0 means all).
+     */
+    public long scan(int postedBy, Visitor visitor) throws IOException {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = stale || deadBytes * 2 > totalBytes ? null : snapshot();
+        }
+        if (snapshot == null) {
+            rebuild();
+            synchronized (this) {
+                snapshot = snapshot();
+            }
+        }
+        Reader reader = new Reader(snapshot.mapped, postedBy, visitor);
+        int next = 0;
+        for (int index = 0; index < snapshot.mapped.size(); index++) {
+            ByteBuffer buffer = snapshot.mapped.get(index);
+            int position = 0;
+            int limit = buffer.limit();
+            while (position + HEADER_BYTES <= limit) {
+                int length = buffer.getInt(position);
+                int body = position + HEADER_BYTES;
+                int offset = position;
+                position = body + length;
+                if (buffer.get(body) != IN_ORDER) {
+                    continue;
+                }
+                int id = buffer.getInt(body + 1);
+                while (next < snapshot.relocatedIds.length && snapshot.relocatedIds[next] < id) {
+                    reader.visit(snapshot.relocatedLocations[next++]);
+                }
+                if (next < snapshot.relocatedIds.length && snapshot.relocatedIds[next] == id) {
+                    // superseded by the relocated record, visited in its place
+                    continue;
+                }
+                reader.visit(((long) index << 32) | offset);
+            }
+        }
+        while (next < snapshot.relocatedIds.length) {
+            reader.visit(snapshot.relocatedLocations[next++]);
+        }
+        return reader.visited;
+    }
+
+    /**
+     * The segments mapped up to their present size, and the relocated
+     * records as of the same moment.
+     */
+    private static final class Snapshot {
+        final List<ByteBuffer> mapped;
+        final int[] relocatedIds;
+        final long[] relocatedLocations;
+
+        Snapshot(List<ByteBuffer> mapped, int[] relocatedIds, long[] relocatedLocations) {
+            this.mapped = mapped;
+            this.relocatedIds = relocatedIds;
+            this.relocatedLocations = relocatedLocations;
+        }
+    }
+
+    private Snapshot snapshot() throws IOException {
+        int[] ids = new int[relocated.size()];
+        long[] locations = new long[relocated.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : relocated.entrySet()) {
+            ids[i] = entry.getKey();
+            locations[i++] = entry.getValue();
+        }
+        return new Snapshot(mapSegments(), ids, locations);
+    }
+
+    /**
+     * Hands live records at given locations to the visitor.
+     */
+    private static final class Reader {
+        final List<ByteBuffer> mapped;
+        final int postedBy;
+        final Visitor visitor;
+        byte[] text = new byte[1024];
+        long visited;
+
+        Reader(List<ByteBuffer> mapped, int postedBy, Visitor visitor) {
+            this.mapped = mapped;
+            this.postedBy = postedBy;
+            this.visitor = visitor;
+        }
+
+        void visit(long location) throws IOException {
+            ByteBuffer buffer = mapped.get((int) (location >>> 32));
+            int position = (int) (location & 0xFFFFFFFFL);
+            int length = buffer.getInt(position);
+            int body = position + HEADER_BYTES;
+            if (buffer.get(body) == DEAD) {
+                // deleted since the snapshot
+                return;
+            }
+            int recordPostedBy = buffer.getInt(body + 5);
+            if (postedBy > 0 && recordPostedBy != postedBy) {
+                return;
+            }
+            int textLength = length - FIXED_BYTES;
+            if (textLength > text.length) {
+                text = new byte[Math.max(textLength, text.length * 2)];
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(body + FIXED_BYTES);
+            view.get(text, 0, textLength);
+            visitor.accept(buffer.getInt(body + 1), recordPostedBy, buffer.getLong(body + 9), text, 0, textLength);
+            visited++;
+        }
+    }
+
+    /**
+     * Rewrites the file from the message store. Writes that arrive while the
+     * rebuild streams are queued and applied to the new copy afterwards.
+     */
+    public void rebuild() {
+        synchronized (rebuildLock) {
+            int newGeneration;
+            synchronized (this) {
+                if (!stale && deadBytes * 2 <= totalBytes) {
+                    return;
+                }
+                pendingDuringRebuild = new ArrayList<>();
+                newGeneration = generation + 1;
+            }
+            long start = System.nanoTime();
+            List<Segment> oldSegments;
+            List<Runnable> pending;
+            try {
+                Files.createDirectories(directory);
+                Builder builder = new Builder(newGeneration);
+                source.forEachMessage(builder::add);
+                builder.finish();
+                synchronized (this) {
+                    oldSegments = segments;
+                    segments = builder.segments;
+                    offsets = builder.offsets;
+                    relocated = new TreeMap<>();
+                    superseded = new IntLongHashMap(16, -1L);
+                    lastId = builder.lastId;
+                    totalBytes = builder.totalBytes;
+                    deadBytes = 0;
+                    generation = newGeneration;
+                    stale = false;
+                    pending = pendingDuringRebuild;
+                    pendingDuringRebuild = null;
+                    pending.forEach(Runnable::run);
+                }
+                LOGGER.info("Rebuilt message scan file with {} records in {} ms", builder.offsets.size(),
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    pendingDuringRebuild = null;
+                    stale = true;
+                }
+                throw new Exception("Unable to rebuild message scan file", e);
+            }
+            // scans that still hold the old mappings keep working after the files are removed
+            for (Segment segment : oldSegments) {
+                segment.delete();
+            }
+            deleteOtherGenerations(newGeneration);
+        }
+    }
+
+    private void write(Message message, byte live) {
+        byte[] record = encode(message);
+        record[HEADER_BYTES] = live;
+        try {
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.size + record.length > segmentBytes) {
+                segment = new Segment(segmentPath(generation, segments.size()));
+                segments.add(segment);
+            }
+            writeFully(segment.channel, ByteBuffer.wrap(record), segment.size);
+            long location = ((long) (segments.size() - 1) << 32) | segment.size;
+            offsets.put(message.getMessage_id(), location);
+            segment.size += record.length;
+            totalBytes += record.length;
+            if (live == RELOCATED) {
+                relocated.put(message.getMessage_id(), location);
+            } else {
+                lastId = message.getMessage_id();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to append to scan file, marking it stale", e);
+            stale = true;
+        }
+    }
+
+    private void deleteOtherGenerations(int keep) {
+        String prefix = "gen-" + keep + "-";
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().startsWith(prefix)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove old scan file segments", e);
+        }
+    }
+
+    private Path segmentPath(int generation, int index) {
+        return directory.resolve("gen-" + generation + "-" + String.format("%05d", index) + ".bin");
+    }
+
+    /**
+     * Maps the current segments up to their present size. A mapping stays
+     * valid after a rebuild closes and deletes its file, so a scan can keep
+     * reading a generation that has since been replaced.
+     */
+    private List<ByteBuffer> mapSegments() throws IOException {
+        List<ByteBuffer> mapped = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            ByteBuffer buffer = segment.map();
+            mapped.add(buffer.duplicate().limit((int) segment.size));
+        }
+        return mapped;
+    }
+
+    private static byte[] encode(Message message) {
+        byte[] text = message.getMessage_text() == null ? new byte[0]
+                : message.getMessage_text().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(HEADER_BYTES + FIXED_BYTES + text.length)
+                .putInt(FIXED_BYTES + text.length)
+                .put(IN_ORDER)
+                .putInt(message.getMessage_id())
+                .putInt(message.getPosted_by())
+                .putLong(message.getTime_posted_epoch())
+                .put(text)
+                .array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of scan file");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    /**
+     * Writes a new generation of segments with buffered sequential writes.
+     */
+    private final class Builder {
+        final List<Segment> segments = new ArrayList<>();
+        final IntLongHashMap offsets = new IntLongHashMap(1024, -1L);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        final int generation;
+        Segment current;
+        int lastId;
+        long totalBytes;
+
+        Builder(int generation) {
+            this.generation = generation;
+        }
+
+        void add(Message message) {
+            byte[] record = encode(message);
+            try {
+                if (current == null || current.size + buffer.position() + record.length > segmentBytes) {
+                    flush();
+                    current = new Segment(segmentPath(generation, segments.size()));
+                    segments.add(current);
+                }
+                if (buffer.remaining() < record.length) {
+                    flush();
+                }
+                offsets.put(message.getMessage_id(),
+                        ((long) (segments.size() - 1) << 32) | (current.size + buffer.position()));
+                if (record.length > buffer.capacity()) {
+                    writeFully(current.channel, ByteBuffer.wrap(record), current.size);
+                    current.size += record.length;
+                } else {
+                    buffer.put(record);
+                }
+                lastId = message.getMessage_id();
+                totalBytes += record.length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void flush() throws IOException {
+            if (current == null || buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            int written = buffer.remaining();
+            writeFully(current.channel, buffer, current.size);
+            current.size += written;
+            buffer.clear();
+        }
+
+        void finish() throws IOException {
+            try {
+                flush();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        volatile long size;
+        MappedByteBuffer mapped;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        MappedByteBuffer map() throws IOException {
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapped;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to remove scan file segment {}", path, e);
+            }
+        }
+    }
+}
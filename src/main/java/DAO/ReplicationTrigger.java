@@ -0,0 +1,57 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.api.Trigger;
+
+/**
+ * Row trigger installed by {@link ChangeFeed#install} that passes every
+ * inserted, updated and deleted row of its table to the feed.
+ */
+public class ReplicationTrigger implements Trigger {
+    private String table;
+    private String[] columns;
+    private int[] keyColumns;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName, boolean before,
+            int type) throws SQLException {
+        this.table = tableName;
+        List<String> names = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getColumns(null, schemaName, tableName, null)) {
+            while (rs.next()) {
+                names.add(rs.getString("COLUMN_NAME"));
+            }
+        }
+        this.columns = names.toArray(new String[0]);
+        this.keyColumns = keyColumns(conn, schemaName, tableName, columns);
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        ChangeFeed.record(table, columns, keyColumns, oldRow, newRow);
+    }
+
+    /**
+     * @return the positions of the primary key columns among columns
+     */
+    static int[] keyColumns(Connection conn, String schemaName, String tableName, String[] columns)
+            throws SQLException {
+        List<Integer> keys = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getPrimaryKeys(null, schemaName, tableName)) {
+            while (rs.next()) {
+                String key = rs.getString("COLUMN_NAME");
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i].equalsIgnoreCase(key)) {
+                        keys.add(i);
+                    }
+                }
+            }
+        }
+        return keys.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,618 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.Message;
+import Util.Config;
+import Util.ConnectionUtil;
+
+/**
+ * Message store spread over several H2 databases (shards), each holding the
+ * messages of the accounts whose posted_by hashes to it. Every shard is a
+ * {@link MessageDAO} over its own message table. Inside a read-write
+ * {@link UnitOfWork} it runs on a connection enlisted in the unit, so its
+ * writes commit and roll back with the unit's. The commit is not atomic
+ * across databases: the shard commits just after the primary. Elsewhere it
+ * runs on one auto-commit connection per thread.
+ *
+ * Message ids come from the primary's {@link IdAllocator}, as they do for
+ * the unsharded store, so they follow posting order across shards the way
+ * timelines and feeds expect. Ids do not name a shard, so an id lookup asks
+ * every shard, in parallel outside a read-write unit.
+ *
+ * Account queries, inserts, updates and deletes touch one shard. getAll,
+ * forEachMessage and range queries over every account scan all shards in
+ * parallel and k-way merge their ordered results. Scans run on a fixed pool
+ * of message.shards.scans threads per shard, and at most message.shards.scans
+ * merges run at once, so every merge has a thread for each of its shards.
+ * A merge fails after waiting message.shards.scanTimeoutMillis for a shard.
+ *
+ * When the shards' tables are first created, existing rows of the primary
+ * database's message table are copied in with their ids. The shard count
+ * cannot change afterwards. The shards are registered with
+ * {@link ChangeFeed#addShards}, so read replicas follow them.
+ *
+ * Tunables: message.shards (count), message.shards.url (JDBC URL in which
+ * {shard} is replaced by the shard number), message.shards.scans and
+ * message.shards.scanTimeoutMillis.
+ */
+public class ShardedMessageDAO implements MessageBase {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedMessageDAO.class);
+    private static final Comparator<Message> BY_ID = Comparator.comparingInt(Message::getMessage_id);
+    private static final Comparator<Message> BY_TIME = Comparator.comparingLong(Message::getTime_posted_epoch)
+            .thenComparingInt(Message::getMessage_id);
+    // messages per hand-off from a shard scan to the merging thread
+    private static final int CHUNK = 256;
+    private static final int CHUNKS_AHEAD = 4;
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final List<DataSource> dataSources = new ArrayList<>();
+    private final IdAllocator ids = IdAllocator.forColumn("message", "message_id");
+    private final Semaphore merges;
+    private final long scanTimeoutMillis = Config.getLong("message.shards.scanTimeoutMillis", 30_000);
+    private final ExecutorService executor;
+
+    public ShardedMessageDAO(List<String> urls) {
+        for (String url : urls) {
+            Shard shard = new Shard(url, ids);
+            shards.add(shard);
+            dataSources.add(shard.dataSource);
+        }
+        int scans = Config.getInt("message.shards.scans", 4);
+        merges = new Semaphore(scans);
+        executor = Executors.newFixedThreadPool(scans * urls.size(), runnable -> {
+            Thread thread = new Thread(runnable, "message-shard-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            createTables();
+        } catch (SQLException e) {
+            close();
+            throw new Exception("Unable to open the message shards", e);
+        }
+        ChangeFeed.addShards(dataSources);
+    }
+
+    public static ShardedMessageDAO fromConfig() {
+        int count = Config.getInt("message.shards", 4);
+        String url = Config.getString("message.shards.url", "jdbc:h2:./h2/messages-{shard}");
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            urls.add(url.replace("{shard}", Integer.toString(i)));
+        }
+        return new ShardedMessageDAO(urls);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @return the shard holding the account's messages
+     */
+    public int shardOf(int postedBy) {
+        // murmur3 finalizer, so runs of account ids spread evenly
+        int h = postedBy;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shards.size());
+    }
+
+    private Shard shardFor(int postedBy) {
+        return shards.get(shardOf(postedBy));
+    }
+
+    @Override
+    public Optional<Message> getById(int id) {
+        return findById(id, dao -> dao.getById(id));
+    }
+
+    @Override
+    public boolean keepsVersions() {
+        return true;
+    }
+
+    @Override
+    public Optional<Versioned<Message>> getVersionedById(int id) {
+        return findById(id, dao -> dao.getVersionedById(id));
+    }
+
+    private <T> Optional<T> findById(int id, Function<MessageDAO, Optional<T>> lookup) {
+        if (shards.size() == 1 || UnitOfWork.isActive() && !UnitOfWork.isReadOnly()) {
+            // on the unit's connections, which see its own writes
+            for (Shard shard : shards) {
+                Optional<T> found = lookup.apply(shard.dao);
+                if (found.isPresent()) {
+                    return found;
+                }
+            }
+            return Optional.empty();
+        }
+        List<Future<Optional<T>>> lookups = new ArrayList<>();
+        for (Shard shard : shards) {
+            lookups.add(executor.submit(() -> lookup.apply(shard.dao)));
+        }
+        Optional<T> found = Optional.empty();
+        for (Future<Optional<T>> pending : lookups) {
+            Optional<T> result = await(pending);
+            if (result.isPresent()) {
+                found = result;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return every message in message_id order
+     */
+    @Override
+    public List<Message> getAll() {
+        List<Future<List<Message>>> scans = new ArrayList<>();
+        for (Shard shard : shards) {
+            scans.add(executor.submit(() -> {
+                List<Message> messages = new ArrayList<>();
+                shard.dao.forEachMessage(messages::add);
+                return messages;
+            }));
+        }
+        List<Message> all = new ArrayList<>();
+        List<List<Message>> sorted = new ArrayList<>();
+        for (Future<List<Message>> scan : scans) {
+            sorted.add(await(scan));
+        }
+        merge(sorted, BY_ID, all::add);
+        return all;
+    }
+
+    @Override
+    public void forEachMessage(Consumer<Message> consumer) {
+        mergeScans((dao, sink) -> dao.forEachMessage(sink), BY_ID, consumer);
+    }
+
+    @Override
+    public void forEachMessageInRange(long from, long to, int postedBy, Consumer<Message> consumer) {
+        if (postedBy > 0) {
+            shardFor(postedBy).dao.forEachMessageInRange(from, to, postedBy, consumer);
+            return;
+        }
+        mergeScans((dao, sink) -> dao.forEachMessageInRange(from, to, 0, sink), BY_TIME, consumer);
+    }
+
+    @Override
+    public long[] getPostTimeBounds(int postedBy) {
+        if (postedBy > 0) {
+            return shardFor(postedBy).dao.getPostTimeBounds(postedBy);
+        }
+        long[] bounds = null;
+        for (Shard shard : shards) {
+            long[] shardBounds = shard.dao.getPostTimeBounds(0);
+            if (shardBounds == null) {
+                continue;
+            }
+            if (bounds == null) {
+                bounds = shardBounds;
+            } else {
+                bounds[0] = Math.min(bounds[0], shardBounds[0]);
+                bounds[1] = Math.max(bounds[1], shardBounds[1]);
+            }
+        }
+        return bounds;
+    }
+
+    @Override
+    public List<Message> getMessagesByAccountId(int accountId) {
+        return shardFor(accountId).dao.getMessagesByAccountId(accountId);
+    }
+
+    @Override
+    public List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+        return shardFor(accountId).dao.getRecentMessagesByAccountId(accountId, beforeId, limit);
+    }
+
+    @Override
+    public Message insert(Message message) {
+        return shardFor(message.getPosted_by()).dao.insert(message);
+    }
+
+    /**
+     * Messages never move between accounts, so posted_by names the shard.
+     */
+    @Override
+    public boolean update(Message message) {
+        return shardFor(message.getPosted_by()).dao.update(message);
+    }
+
+    @Override
+    public boolean update(Message message, long expectedVersion) {
+        return shardFor(message.getPosted_by()).dao.update(message, expectedVersion);
+    }
+
+    @Override
+    public boolean delete(Message message) {
+        return shardFor(message.getPosted_by()).dao.delete(message);
+    }
+
+    @Override
+    public void close() {
+        ChangeFeed.removeShards(dataSources);
+        executor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Creates missing shard tables, copying the primary's messages into them
+     * when none of the shards had one yet.
+     */
+    private void createTables() throws SQLException {
+        List<Shard> missing = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (!shard.hasMessageTable()) {
+                missing.add(shard);
+            } else {
+                shard.addVersionColumn();
+            }
+        }
+        boolean copy = !missing.isEmpty() && missing.size() == shards.size();
+        for (Shard shard : missing) {
+            shard.createTable();
+        }
+        if (copy) {
+            Connection primary = ConnectionUtil.getConnection();
+            try {
+                long start = System.nanoTime();
+                long copied = copyFrom(primary);
+                LOGGER.info("Copied {} messages into {} shards in {} ms", copied, shards.size(),
+                        (System.nanoTime() - start) / 1_000_000);
+            } finally {
+                primary.close();
+            }
+        }
+        reserveShardIds();
+    }
+
+    /**
+     * Keeps the allocator above every id in the shards, which it does not
+     * see, including ids the shards' identity columns assigned before ids
+     * came from the allocator.
+     */
+    private void reserveShardIds() throws SQLException {
+        int maxId = 0;
+        for (Shard shard : shards) {
+            try (Statement statement = shard.connection().createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT MAX(message_id) FROM message")) {
+                if (rs.next()) {
+                    maxId = Math.max(maxId, rs.getInt(1));
+                }
+            }
+        }
+        IdAllocator.reserveThrough("message", "message_id", maxId);
+    }
+
+    private long copyFrom(Connection primary) throws SQLException {
+        String sql = "INSERT INTO message (message_id, posted_by, message_text, time_posted_epoch, version)"
+                + " VALUES (?, ?, ?, ?, ?)";
+        List<PreparedStatement> inserts = new ArrayList<>();
+        long copied = 0;
+        try {
+            for (Shard shard : shards) {
+                inserts.add(shard.connection().prepareStatement(sql));
+            }
+            try (Statement statement = primary.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT * FROM message")) {
+                while (rs.next()) {
+                    PreparedStatement insert = inserts.get(shardOf(rs.getInt("posted_by")));
+                    insert.setInt(1, rs.getInt("message_id"));
+                    insert.setInt(2, rs.getInt("posted_by"));
+                    insert.setString(3, rs.getString("message_text"));
+                    insert.setLong(4, rs.getLong("time_posted_epoch"));
+                    insert.setLong(5, rs.getLong("version"));
+                    insert.addBatch();
+                    copied++;
+                }
+            }
+            for (PreparedStatement insert : inserts) {
+                insert.executeBatch();
+            }
+        } finally {
+            for (PreparedStatement insert : inserts) {
+                insert.close();
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Runs the scan on every shard in parallel, each delivering its messages
+     * in order, and passes them to the consumer merged into one ordered
+     * stream. Shards hand messages over in chunks through small bounded
+     * queues, so at most a few chunks per shard are in memory at once.
+     */
+    private void mergeScans(BiConsumer<MessageDAO, Consumer<Message>> scan, Comparator<Message> order,
+            Consumer<Message> consumer) {
+        try {
+            if (!merges.tryAcquire(scanTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new Exception("Timed out waiting to scan the message shards");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("Interrupted while waiting to scan the message shards", e);
+        }
+        List<ShardStream> streams = new ArrayList<>();
+        try {
+            for (Shard shard : shards) {
+                ShardStream stream = new ShardStream(scanTimeoutMillis);
+                executor.execute(() -> stream.produce(shard, scan));
+                streams.add(stream);
+            }
+            PriorityQueue<ShardStream> heads = new PriorityQueue<>((a, b) -> order.compare(a.head(), b.head()));
+            for (ShardStream stream : streams) {
+                if (stream.advance()) {
+                    heads.add(stream);
+                }
+            }
+            while (!heads.isEmpty()) {
+                ShardStream stream = heads.poll();
+                consumer.accept(stream.head());
+                if (stream.advance()) {
+                    heads.add(stream);
+                }
+            }
+        } finally {
+            for (ShardStream stream : streams) {
+                stream.cancel();
+            }
+            merges.release();
+        }
+    }
+
+    /**
+     * Merges lists that are each sorted by order.
+     */
+    private static void merge(List<List<Message>> sorted, Comparator<Message> order, Consumer<Message> consumer) {
+        int[] positions = new int[sorted.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(
+                (a, b) -> order.compare(sorted.get(a).get(positions[a]), sorted.get(b).get(positions[b])));
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+        while (!heads.isEmpty()) {
+            int list = heads.poll();
+            consumer.accept(sorted.get(list).get(positions[list]++));
+            if (positions[list] < sorted.get(list).size()) {
+                heads.add(list);
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("Interrupted while reading the message shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new Exception("Error while reading the message shards", e.getCause());
+        }
+    }
+
+    /**
+     * The messages of one shard's scan on their way to the merging thread.
+     */
+    private static final class ShardStream {
+        private static final List<Message> END = new ArrayList<>();
+
+        final BlockingQueue<List<Message>> chunks = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+        final long timeoutMillis;
+        volatile boolean cancelled;
+        volatile Throwable failure;
+        List<Message> chunk;
+        int position;
+
+        ShardStream(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void produce(Shard shard, BiConsumer<MessageDAO, Consumer<Message>> scan) {
+            List<Message> pending = new ArrayList<>(CHUNK);
+            try {
+                scan.accept(shard.dao, message -> {
+                    pending.add(message);
+                    if (pending.size() == CHUNK) {
+                        put(new ArrayList<>(pending));
+                        pending.clear();
+                    }
+                });
+                if (!pending.isEmpty()) {
+                    put(pending);
+                }
+                put(END);
+            } catch (RuntimeException e) {
+                failure = e;
+                put(END);
+            } catch (Error e) {
+                failure = e;
+                put(END);
+                throw e;
+            }
+        }
+
+        /**
+         * Waits for room in the queue, giving up once the merge is cancelled.
+         * Producers are never interrupted, as that would disturb H2's file
+         * channels.
+         */
+        private void put(List<Message> messages) {
+            try {
+                while (!chunks.offer(messages, 100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        throw new Exception("The merge stopped reading");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while scanning a message shard", e);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            chunks.clear();
+        }
+
+        Message head() {
+            return chunk.get(position);
+        }
+
+        /**
+         * Moves to the next message.
+         *
+         * @return false at the end of the scan
+         */
+        boolean advance() {
+            if (chunk != null && ++position < chunk.size()) {
+                return true;
+            }
+            try {
+                chunk = chunks.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Exception("Interrupted while merging the message shards", e);
+            }
+            if (chunk == null) {
+                throw new Exception("Timed out waiting for a message shard");
+            }
+            position = 0;
+            if (chunk == END) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Shard {
+        final String url;
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        final ThreadLocal<Connection> connections = new ThreadLocal<>();
+        // closed once their thread has ended
+        final Map<Thread, Connection> opened = new HashMap<>();
+        final MessageDAO dao;
+
+        Shard(String url, IdAllocator ids) {
+            this.url = url;
+            this.dao = new MessageDAO(this::connection, ids);
+            dataSource.setURL(url);
+            dataSource.setUser("sa");
+            dataSource.setPassword("sa");
+        }
+
+        /**
+         * The current read-write unit's connection to the shard, or else the
+         * calling thread's auto-commit one.
+         */
+        Connection connection() {
+            Connection enlisted = UnitOfWork.enlist(dataSource);
+            if (enlisted != null) {
+                return enlisted;
+            }
+            Connection connection = connections.get();
+            if (connection == null) {
+                try {
+                    connection = dataSource.getConnection();
+                } catch (SQLException e) {
+                    throw new Exception("Unable to connect to message shard " + url, e);
+                }
+                connections.set(connection);
+                synchronized (opened) {
+                    opened.entrySet().removeIf(entry -> !entry.getKey().isAlive() && close(entry.getValue()));
+                    opened.put(Thread.currentThread(), connection);
+                }
+            }
+            return connection;
+        }
+
+        boolean hasMessageTable() throws SQLException {
+            try (ResultSet rs = connection().getMetaData().getTables(null, "PUBLIC", "MESSAGE", null)) {
+                return rs.next();
+            }
+        }
+
+        void createTable() throws SQLException {
+            try (Statement statement = connection().createStatement()) {
+                statement.execute("CREATE TABLE message (message_id INT PRIMARY KEY, "
+                        + "posted_by INT, message_text VARCHAR(255), time_posted_epoch BIGINT, "
+                        + "version BIGINT DEFAULT 0 NOT NULL)");
+                statement.execute("CREATE INDEX message_time ON message(time_posted_epoch, message_id)");
+                statement.execute(
+                        "CREATE INDEX message_posted_by_time ON message(posted_by, time_posted_epoch, message_id)");
+            }
+        }
+
+        // for shard tables created before messages had versions
+        void addVersionColumn() throws SQLException {
+            try (Statement statement = connection().createStatement()) {
+                statement.execute("ALTER TABLE message ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL");
+            }
+        }
+
+        void close() {
+            synchronized (opened) {
+                opened.values().forEach(this::close);
+                opened.clear();
+            }
+        }
+
+        private boolean close(Connection connection) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to close a connection to message shard {}", url, e);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Util.ConnectionUtil;
+import Util.Metrics;
+
+/**
+ * Groups several DAO calls on the current thread into one transaction on one
+ * connection. DAOs get their connection from {@link #connection()}: inside a
+ * unit of work that is the unit's connection, opened on first use with
+ * auto-commit off; outside one it is a fresh auto-commit connection as
+ * before, so every statement is its own commit.
+ *
+ * Units nest by joining the outermost one, which commits when its work
+ * returns and rolls back when it throws. Read-only units ask their
+ * {@link ConnectionSource} for a read-only connection, so a source can send
+ * them elsewhere; a read-write unit cannot start inside a read-only one.
+ * Reads whose results outlive the request, such as cache fills, use
+ * {@link #readPrimary}: a read-only unit that always reads the primary, as
+ * a replica may not have the writes whose invalidations the cache has
+ * already seen. Inside a unit that may be on a replica it runs as a unit of
+ * its own.
+ *
+ * DAOs of other databases, such as the message shards, join a read-write
+ * unit through {@link #enlist}: their connection commits right after the
+ * unit's own and rolls back with it. That is not a two-phase commit. If a
+ * later commit fails, the earlier ones stand, and the unit reports the
+ * failure and runs its rollback tasks.
+ *
+ * Side effects that must only happen once the data is committed (cache and
+ * listener updates) are registered with {@link #afterCommit}, and undoing
+ * in-memory claims made for a unit that failed with {@link #afterRollback}.
+ * Locks that must cover those tasks are released with
+ * {@link #afterCompletion}. A task that throws is logged and the remaining
+ * tasks still run; the unit's outcome is not changed by it.
+ *
+ * Metrics: db.autocommit.statements counts statements outside any unit,
+ * db.unitOfWork.statements and db.unitOfWork.commits those inside units and
+ * the commits read-write units took, db.unitOfWork.readOnly the read-only
+ * units, db.unitOfWork.taskFailures the tasks that threw, and db.commits
+ * the sum of both kinds of commit.
+ */
+public final class UnitOfWork {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UnitOfWork.class);
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+    private static final LongAdder AUTOCOMMIT_STATEMENTS = Metrics.counter("db.autocommit.statements");
+    private static final LongAdder UNIT_STATEMENTS = Metrics.counter("db.unitOfWork.statements");
+    private static final LongAdder UNIT_COMMITS = Metrics.counter("db.unitOfWork.commits");
+    private static final LongAdder UNIT_ROLLBACKS = Metrics.counter("db.unitOfWork.rollbacks");
+    private static final LongAdder TASK_FAILURES = Metrics.counter("db.unitOfWork.taskFailures");
+    private static final LongAdder READ_ONLY_UNITS = Metrics.counter("db.unitOfWork.readOnly");
+    private static volatile ConnectionSource source = readOnly -> ConnectionUtil.getConnection();
+
+    static {
+        Metrics.gauge("db.commits", () -> AUTOCOMMIT_STATEMENTS.sum() + UNIT_COMMITS.sum());
+    }
+
+    /**
+     * Where units of work get their connections.
+     */
+    public interface ConnectionSource {
+        Connection open(boolean readOnly) throws SQLException;
+    }
+
+    private final boolean readOnly;
+    private final boolean primary;
+    private Connection connection;
+    private Map<DataSource, Connection> enlisted;
+    private int statements;
+    private List<Runnable> afterCommit;
+    private List<Runnable> afterRollback;
+    private List<Runnable> afterCompletion;
+
+    private UnitOfWork(boolean readOnly, boolean primary) {
+        this.readOnly = readOnly;
+        this.primary = primary;
+    }
+
+    public static void setConnectionSource(ConnectionSource connectionSource) {
+        source = connectionSource;
+    }
+
+    public static ConnectionSource getConnectionSource() {
+        return source;
+    }
+
+    public static <T> T inTransaction(Supplier<T> work) {
+        return run(false, false, work);
+    }
+
+    public static void inTransaction(Runnable work) {
+        run(false, false, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public static <T> T readOnly(Supplier<T> work) {
+        return run(true, false, work);
+    }
+
+    public static <T> T readPrimary(Supplier<T> work) {
+        return run(true, true, work);
+    }
+
+    /**
+     * @return whether the current thread is inside a unit of work
+     */
+    public static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * @return whether the current thread is inside a read-only unit of work
+     */
+    public static boolean isReadOnly() {
+        UnitOfWork unit = CURRENT.get();
+        return unit != null && unit.readOnly;
+    }
+
+    /**
+     * The connection a DAO should run its next statement on. DAOs must not
+     * close or commit it.
+     */
+    public static Connection connection() {
+        UnitOfWork unit = CURRENT.get();
+        if (unit == null) {
+            AUTOCOMMIT_STATEMENTS.increment();
+            return ConnectionUtil.getConnection();
+        }
+        return unit.acquire();
+    }
+
+    /**
+     * The connection to another database that a DAO should run its next
+     * statement on. Inside a read-write unit it is opened on first use with
+     * auto-commit off and committed or rolled back with the unit. Read-only
+     * units and code outside any unit get null, and the DAO uses a
+     * connection of its own. DAOs must not close or commit it.
+     */
+    public static Connection enlist(DataSource database) {
+        UnitOfWork unit = CURRENT.get();
+        if (unit == null || unit.readOnly) {
+            return null;
+        }
+        if (unit.enlisted == null) {
+            unit.enlisted = new LinkedHashMap<>();
+        }
+        Connection enlisted = unit.enlisted.get(database);
+        if (enlisted == null) {
+            try {
+                enlisted = database.getConnection();
+                enlisted.setAutoCommit(false);
+            } catch (SQLException e) {
+                throw new Exception("Unable to open a connection for a unit of work", e);
+            }
+            unit.enlisted.put(database, enlisted);
+        }
+        unit.statements++;
+        UNIT_STATEMENTS.increment();
+        return enlisted;
+    }
+
+    /**
+     * Runs the task once the current unit of work has committed, or right
+     * away outside one. Dropped if the unit rolls back.
+     */
+    public static void afterCommit(Runnable task) {
+        UnitOfWork unit = CURRENT.get();
+        if (unit == null) {
+            runAll(List.of(task), "after commit");
+            return;
+        }
+        if (unit.afterCommit == null) {
+            unit.afterCommit = new ArrayList<>();
+        }
+        unit.afterCommit.add(task);
+    }
+
+    /**
+     * Runs the task once the current unit of work has rolled back. Outside a
+     * unit there is nothing to roll back and the task is dropped.
+     */
+    public static void afterRollback(Runnable task) {
+        UnitOfWork unit = CURRENT.get();
+        if (unit == null) {
+            return;
+        }
+        if (unit.afterRollback == null) {
+            unit.afterRollback = new ArrayList<>();
+        }
+        unit.afterRollback.add(task);
+    }
+
+    /**
+     * Runs the task once the current unit of work has ended either way,
+     * after its afterCommit or afterRollback tasks, even if one of those
+     * throws; or right away outside a unit.
+     */
+    public static void afterCompletion(Runnable task) {
+        UnitOfWork unit = CURRENT.get();
+        if (unit == null) {
+            runAll(List.of(task), "after completion");
+            return;
+        }
+        if (unit.afterCompletion == null) {
+            unit.afterCompletion = new ArrayList<>();
+        }
+        unit.afterCompletion.add(task);
+    }
+
+    private static <T> T run(boolean readOnly, boolean primary, Supplier<T> work) {
+        UnitOfWork outer = CURRENT.get();
+        if (outer != null) {
+            if (outer.readOnly && !readOnly) {
+                throw new IllegalStateException("Cannot start a read-write unit of work inside a read-only one");
+            }
+            if (primary && outer.readOnly && !outer.primary) {
+                CURRENT.remove();
+                try {
+                    return run(true, true, work);
+                } finally {
+                    CURRENT.set(outer);
+                }
+            }
+            return work.get();
+        }
+        UnitOfWork unit = new UnitOfWork(readOnly, primary);
+        CURRENT.set(unit);
+        T result;
+        try {
+            result = work.get();
+            unit.commit();
+        } catch (RuntimeException | Error e) {
+            unit.rollback();
+            CURRENT.remove();
+            unit.release();
+            try {
+                runAll(unit.afterRollback, "after rollback");
+            } finally {
+                runAll(unit.afterCompletion, "after completion");
+            }
+            throw e;
+        }
+        CURRENT.remove();
+        unit.release();
+        try {
+            runAll(unit.afterCommit, "after commit");
+        } finally {
+            runAll(unit.afterCompletion, "after completion");
+        }
+        return result;
+    }
+
+    /**
+     * Runs every task even if some throw, logging the failures; the work
+     * they follow has already committed or rolled back.
+     */
+    private static void runAll(List<Runnable> tasks, String phase) {
+        if (tasks == null) {
+            return;
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                TASK_FAILURES.increment();
+                LOGGER.error("A task run {} a unit of work failed", phase, e);
+            }
+        }
+    }
+
+    private Connection acquire() {
+        if (connection == null) {
+            try {
+                connection = source.open(readOnly && !primary);
+                connection.setAutoCommit(false);
+                if (readOnly) {
+                    connection.setReadOnly(true);
+                }
+            } catch (SQLException e) {
+                throw new Exception("Unable to open a connection for a unit of work", e);
+            }
+        }
+        statements++;
+        UNIT_STATEMENTS.increment();
+        return connection;
+    }
+
+    private List<Connection> connections() {
+        List<Connection> connections = new ArrayList<>();
+        if (connection != null) {
+            connections.add(connection);
+        }
+        if (enlisted != null) {
+            connections.addAll(enlisted.values());
+        }
+        return connections;
+    }
+
+    private void commit() {
+        List<Connection> connections = connections();
+        if (connections.isEmpty()) {
+            return;
+        }
+        try {
+            for (Connection conn : connections) {
+                conn.commit();
+            }
+            (readOnly ? READ_ONLY_UNITS : UNIT_COMMITS).increment();
+        } catch (SQLException e) {
+            throw new Exception("Unable to commit a unit of work of " + statements + " statements", e);
+        }
+    }
+
+    private void rollback() {
+        List<Connection> connections = connections();
+        if (connections.isEmpty()) {
+            return;
+        }
+        UNIT_ROLLBACKS.increment();
+        for (Connection conn : connections) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to roll back a unit of work", e);
+            }
+        }
+    }
+
+    private void release() {
+        for (Connection conn : connections()) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Unable to close the connection of a unit of work", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package DAO;
+
+/**
+ * A row read together with its version, which every update of the row
+ * increments. Clients see the version as an ETag, so conditional updates can
+ * fail instead of overwriting a change they have not seen.
+ */
+public final class Versioned<T> {
+    private final T value;
+    private final long version;
+
+    public Versioned(T value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -1,14 +1,26 @@
 import Controller.SocialMediaController;
+import Controller.Startup;
+import Util.Config;
 import io.javalin.Javalin;
 
 /**
  * This class is provided with a main method to allow you to manually run and test your application. This class will not
  * affect your program in any way and you may write whatever code you like here.
+ *
+ * The server starts through {@link Startup}: parallel initialization, then the port opens with GET /ready answering
+ * 503 until the warm-up has run. With -Dstartup.exitAfterWarmup=true the server stops once it is ready, which is how
+ * the appcds Maven profile records its class-data sharing archive.
+ *
+ * Accounts and messages are bulk loaded and dumped offline, with the server stopped, by {@link Util.BulkTool}.
  */
 public class Main {
     public static void main(String[] args) {
-        SocialMediaController controller = new SocialMediaController();
-        Javalin app = controller.startAPI();
-        app.start(8080);
+        Startup startup = new Startup();
+        SocialMediaController controller = startup.initialize();
+        Javalin app = startup.start(controller, Config.getInt("server.port", 8080));
+        startup.warmUp(controller, app);
+        if (Config.getBoolean("startup.exitAfterWarmup", false)) {
+            app.stop();
+        }
     }
 }
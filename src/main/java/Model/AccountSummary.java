@@ -0,0 +1,58 @@
+package Model;
+
+import java.util.Objects;
+
+/**
+ * An account's public fields, without its password, as returned by
+ * GET /accounts?prefix=.
+ */
+public class AccountSummary {
+    public int account_id;
+    public String username;
+
+    public AccountSummary() {
+    }
+
+    public AccountSummary(int account_id, String username) {
+        this.account_id = account_id;
+        this.username = username;
+    }
+
+    public int getAccount_id() {
+        return account_id;
+    }
+
+    public void setAccount_id(int account_id) {
+        this.account_id = account_id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        AccountSummary that = (AccountSummary) o;
+        return account_id == that.account_id && Objects.equals(username, that.username);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(account_id, username);
+    }
+
+    @Override
+    public String toString() {
+        return "AccountSummary{account_id=" + account_id + ", username='" + username + "'}";
+    }
+}
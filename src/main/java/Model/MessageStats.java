@@ -0,0 +1,108 @@
+package Model;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Message statistics for one account or for all of them, as returned by
+ * GET /accounts/{account_id}/stats and GET /stats.
+ */
+public class MessageStats {
+    /**
+     * Number of messages currently stored.
+     */
+    public long message_count;
+    /**
+     * Smallest and largest time_posted_epoch among them, or null when there are no messages.
+     */
+    public Long first_post_epoch;
+    public Long last_post_epoch;
+    /**
+     * Width of the buckets below, in seconds.
+     */
+    public long bucket_seconds;
+    /**
+     * Messages per bucket, keyed by the epoch second the bucket starts at, for the most recent buckets. Empty
+     * buckets are left out.
+     */
+    public Map<Long, Long> buckets = new TreeMap<>();
+
+    public MessageStats() {
+    }
+
+    public MessageStats(long message_count, Long first_post_epoch, Long last_post_epoch, long bucket_seconds,
+            Map<Long, Long> buckets) {
+        this.message_count = message_count;
+        this.first_post_epoch = first_post_epoch;
+        this.last_post_epoch = last_post_epoch;
+        this.bucket_seconds = bucket_seconds;
+        this.buckets = buckets;
+    }
+
+    public long getMessage_count() {
+        return message_count;
+    }
+
+    public void setMessage_count(long message_count) {
+        this.message_count = message_count;
+    }
+
+    public Long getFirst_post_epoch() {
+        return first_post_epoch;
+    }
+
+    public void setFirst_post_epoch(Long first_post_epoch) {
+        this.first_post_epoch = first_post_epoch;
+    }
+
+    public Long getLast_post_epoch() {
+        return last_post_epoch;
+    }
+
+    public void setLast_post_epoch(Long last_post_epoch) {
+        this.last_post_epoch = last_post_epoch;
+    }
+
+    public long getBucket_seconds() {
+        return bucket_seconds;
+    }
+
+    public void setBucket_seconds(long bucket_seconds) {
+        this.bucket_seconds = bucket_seconds;
+    }
+
+    public Map<Long, Long> getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(Map<Long, Long> buckets) {
+        this.buckets = buckets;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MessageStats stats = (MessageStats) o;
+        return message_count == stats.message_count && bucket_seconds == stats.bucket_seconds
+                && Objects.equals(first_post_epoch, stats.first_post_epoch)
+                && Objects.equals(last_post_epoch, stats.last_post_epoch) && Objects.equals(buckets, stats.buckets);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(message_count, first_post_epoch, last_post_epoch, bucket_seconds, buckets);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageStats{" +
+                "message_count=" + message_count +
+                ", first_post_epoch=" + first_post_epoch +
+                ", last_post_epoch=" + last_post_epoch +
+                ", bucket_seconds=" + bucket_seconds +
+                ", buckets=" + buckets +
+                '}';
+    }
+}
@@ -0,0 +1,20 @@
+package Service;
+
+import Model.AccountSummary;
+
+/**
+ * Notified by {@link AccountService} after an account write has committed,
+ * with the account's public fields. Called on the request thread, so
+ * implementations should hand slow work off.
+ */
+public interface AccountListener {
+
+    default void accountCreated(AccountSummary account) {
+    }
+
+    default void accountUpdated(AccountSummary before, AccountSummary after) {
+    }
+
+    default void accountDeleted(AccountSummary account) {
+    }
+}
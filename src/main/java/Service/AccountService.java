@@ -1,26 +1,85 @@
 package Service;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import DAO.AccountDAO;
+import DAO.DataSourceRouter;
 import DAO.Exception;
+import DAO.UnitOfWork;
 import Model.Account;
+import Model.AccountSummary;
+import Util.Bulkhead;
+import Util.Config;
+import Util.Metrics;
+import Util.RadixTree;
+import io.javalin.http.ServiceUnavailableResponse;
 
-public class AccountService {
+public class AccountService implements InvalidationListener {
     private AccountDAO accountDao;
+    private final PasswordHasher passwordHasher;
+    // null when account.filter.enabled is false or other nodes write accounts
+    // this one is not told about
+    private final UsernameFilter usernames;
+    // username to account id for prefix searches; null when
+    // account.index.enabled is false, and searches go to the database
+    private final RadixTree usernameIndex;
+    private final List<AccountListener> listeners = new CopyOnWriteArrayList<>();
+    private final long hashTimeoutMillis = Config.getLong("password.hash.timeoutMillis", 5000);
+    // accounts whose rehash is queued or running
+    private final Set<Integer> pendingRehashes = ConcurrentHashMap.newKeySet();
+    private final LongAdder rehashes = Metrics.counter("accounts.rehashes");
+    private final LongAdder rehashesSkipped = Metrics.counter("accounts.rehashes.skipped");
     private static final Logger LOGGER = LoggerFactory.getLogger(AccountService.class);
+    // account lookups for the async variants; separate from the message
+    // bulkhead so neither kind of read can take all the database threads.
+    // H2 runs in process, so more threads than cores only add contention
+    private static final Bulkhead LOOKUPS = Bulkhead.fromConfig("accounts",
+            Math.max(2, Runtime.getRuntime().availableProcessors()), 256);
 
     // Default constructor initializing the AccountDao object
     public AccountService() {
-        accountDao = new AccountDAO();
+        this(new AccountDAO());
     }
 
     public AccountService(AccountDAO accountDao) {
+        this(accountDao, PasswordHasher.getDefault());
+    }
+
+    public AccountService(AccountDAO accountDao, PasswordHasher passwordHasher) {
         this.accountDao = accountDao;
+        this.passwordHasher = passwordHasher;
+        this.usernames = UsernameFilter.fromConfig(accountDao);
+        this.usernameIndex = Config.getBoolean("account.index.enabled", true) ? loadUsernameIndex() : null;
+    }
+
+    private RadixTree loadUsernameIndex() {
+        RadixTree index = new RadixTree();
+        try {
+            accountDao.forEachUsername(index::put);
+            LOGGER.info("Indexed {} usernames", index.size());
+            return index;
+        } catch (Exception e) {
+            LOGGER.warn("Indexing usernames failed; prefix searches will query the database", e);
+            return null;
+        }
+    }
+
+    public void addListener(AccountListener listener) {
+        listeners.add(listener);
     }
 
     public Optional<Account> getAccountById(int id) {
@@ -56,29 +115,120 @@ public class AccountService {
         }
     }
 
+    /**
+     * @return up to limit accounts whose username starts with the prefix, in
+     *         username order
+     */
+    public List<AccountSummary> findAccountsByUsernamePrefix(String prefix, int limit) {
+        if (usernameIndex != null) {
+            List<AccountSummary> accounts = new ArrayList<>(Math.min(limit, 64));
+            usernameIndex.visitPrefix(prefix, limit,
+                    (username, id) -> accounts.add(new AccountSummary(id, username)));
+            return accounts;
+        }
+        try {
+            return accountDao.findByUsernamePrefix(prefix, limit);
+        } catch (Exception e) {
+            throw new ExceptionService("Exception occurred while searching accounts by username", e);
+        }
+    }
+
     public Optional<Account> validateLogin(Account account) {
         LOGGER.info("Validating login");
         try {
-            Optional<Account> validatedAccount = accountDao.validateLogin(account.getUsername(),
-                    account.getPassword());
-            LOGGER.info("Login validation result: {}", validatedAccount.isPresent());
-            return validatedAccount;
+            if (!mightExist(account.getUsername())) {
+                LOGGER.info("Login validation result: false");
+                return Optional.empty();
+            }
+            Optional<Account> storedAccount = accountDao.findAccountByUsername(account.getUsername());
+            if (!storedAccount.isPresent()) {
+                falsePositive();
+                LOGGER.info("Login validation result: false");
+                return Optional.empty();
+            }
+            Account stored = storedAccount.get();
+            boolean valid = await(passwordHasher.verify(account.getPassword(), stored.getPassword()));
+            LOGGER.info("Login validation result: {}", valid);
+            if (!valid) {
+                return Optional.empty();
+            }
+            if (passwordHasher.needsRehash(stored.getPassword())) {
+                rehash(stored, account.getPassword());
+            }
+            return Optional.of(new Account(stored.getAccount_id(), stored.getUsername(), account.getPassword()));
         } catch (Exception e) {
             throw new ExceptionService("Exception occurred while validating login", e);
         }
     }
 
+    /**
+     * {@link #validateLogin} without blocking the caller: the account is read
+     * on the accounts bulkhead and the password checked on the hasher's
+     * threads. A full bulkhead or hasher fails the future with a
+     * RejectedExecutionException, a slow hasher with a TimeoutException.
+     */
+    public CompletableFuture<Optional<Account>> validateLoginAsync(Account account) {
+        LOGGER.info("Validating login");
+        if (!mightExist(account.getUsername())) {
+            LOGGER.info("Login validation result: false");
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return LOOKUPS.supply(DataSourceRouter.withRequester(() -> findAccountByUsername(account.getUsername())))
+                .thenCompose(storedAccount -> {
+                    if (!storedAccount.isPresent()) {
+                        falsePositive();
+                        LOGGER.info("Login validation result: false");
+                        return CompletableFuture.completedFuture(Optional.<Account>empty());
+                    }
+                    Account stored = storedAccount.get();
+                    return passwordHasher.verify(account.getPassword(), stored.getPassword())
+                            .orTimeout(hashTimeoutMillis, TimeUnit.MILLISECONDS)
+                            .thenApply(valid -> {
+                                LOGGER.info("Login validation result: {}", valid);
+                                if (!valid) {
+                                    return Optional.<Account>empty();
+                                }
+                                if (passwordHasher.needsRehash(stored.getPassword())) {
+                                    rehash(stored, account.getPassword());
+                                }
+                                return Optional.of(new Account(stored.getAccount_id(), stored.getUsername(),
+                                        account.getPassword()));
+                            });
+                });
+    }
+
+    /**
+     * Validation fails fast before the password is hashed; the uniqueness
+     * check is then repeated together with the insert in one transaction.
+     */
     public Account createAccount(Account account) {
         LOGGER.info("Creating account: {}", account);
         try {
             validateAccount(account);
-            Optional<Account> searchedAccount = findAccountByUsername(account.getUsername());
-            if (searchedAccount.isPresent()) {
-                throw new ExceptionService("Account already exist");
-            }
-            Account createdAccount = accountDao.insert(account);
-            LOGGER.info("Created account: {}", createdAccount);
-            return createdAccount;
+            String hashedPassword = await(passwordHasher.hash(account.getPassword()));
+            Account createdAccount = UnitOfWork.inTransaction(() -> {
+                Optional<Account> searchedAccount = findAccountByUsername(account.getUsername());
+                if (searchedAccount.isPresent()) {
+                    throw new ExceptionService("Account already exist");
+                }
+                if (usernames != null) {
+                    usernames.add(account.getUsername());
+                    UnitOfWork.afterCommit(() -> usernames.add(account.getUsername()));
+                }
+                Account inserted = accountDao.insert(new Account(account.getUsername(), hashedPassword));
+                UnitOfWork.afterCommit(() -> {
+                    if (usernameIndex != null) {
+                        usernameIndex.put(inserted.getUsername(), inserted.getAccount_id());
+                    }
+                    AccountSummary created = new AccountSummary(inserted.getAccount_id(), inserted.getUsername());
+                    for (AccountListener listener : listeners) {
+                        listener.accountCreated(created);
+                    }
+                });
+                return inserted;
+            });
+            LOGGER.info("Created account: {}", createdAccount.getAccount_id());
+            return new Account(createdAccount.getAccount_id(), createdAccount.getUsername(), account.getPassword());
         } catch (Exception e) {
             throw new ExceptionService("Exception occurred while creating account", e);
         }
@@ -87,8 +237,35 @@ public class AccountService {
     public boolean updateAccount(Account account) {
         LOGGER.info("Updating account: {}", account);
         try {
-            account.setPassword(account.password);
-            boolean updated = accountDao.update(account);
+            String hashedPassword = await(passwordHasher.hash(account.getPassword()));
+            if (usernames != null && account.getUsername() != null) {
+                usernames.add(account.getUsername());
+            }
+            boolean updated = UnitOfWork.inTransaction(() -> {
+                Optional<Account> before = accountDao.getById(account.getAccount_id());
+                // an update without a username keeps the stored one
+                String username = account.getUsername() != null ? account.getUsername()
+                        : before.map(Account::getUsername).orElse(null);
+                boolean changed = accountDao.update(new Account(account.getAccount_id(), username, hashedPassword));
+                if (changed) {
+                    before.ifPresent(old -> UnitOfWork.afterCommit(() -> {
+                        if (usernameIndex != null) {
+                            if (old.getUsername() != null) {
+                                usernameIndex.remove(old.getUsername());
+                            }
+                            if (username != null) {
+                                usernameIndex.put(username, account.getAccount_id());
+                            }
+                        }
+                        AccountSummary previous = new AccountSummary(old.getAccount_id(), old.getUsername());
+                        AccountSummary updatedAccount = new AccountSummary(account.getAccount_id(), username);
+                        for (AccountListener listener : listeners) {
+                            listener.accountUpdated(previous, updatedAccount);
+                        }
+                    }));
+                }
+                return changed;
+            });
             LOGGER.info("Updated account: {}. Update successful {}", account, updated);
             return updated;
         } catch (Exception e) {
@@ -102,7 +279,25 @@ public class AccountService {
             throw new IllegalArgumentException("Account ID cannot be null");
         }
         try {
-            boolean deleted = accountDao.delete(account);
+            boolean deleted = UnitOfWork.inTransaction(() -> {
+                Optional<Account> before = accountDao.getById(account.getAccount_id());
+                boolean removed = accountDao.delete(account);
+                if (removed) {
+                    before.ifPresent(old -> UnitOfWork.afterCommit(() -> {
+                        if (usernameIndex != null) {
+                            usernameIndex.remove(old.getUsername());
+                        }
+                        AccountSummary deletedAccount = new AccountSummary(old.getAccount_id(), old.getUsername());
+                        for (AccountListener listener : listeners) {
+                            listener.accountDeleted(deletedAccount);
+                        }
+                    }));
+                }
+                return removed;
+            });
+            if (deleted && usernames != null) {
+                usernames.removed();
+            }
             LOGGER.info("Deleted account: {} . Deletion successful {}", account, deleted);
             return deleted;
         } catch (Exception e) {
@@ -127,8 +322,11 @@ public class AccountService {
             if (password.length() < 4) {
                 throw new ExceptionService("Password must be at least 4 characters long");
             }
-            if (accountDao.doesUsernameExist(account.getUsername())) {
-                throw new ExceptionService("The username must be unique");
+            if (mightExist(account.getUsername())) {
+                if (accountDao.doesUsernameExist(account.getUsername())) {
+                    throw new ExceptionService("The username must be unique");
+                }
+                falsePositive();
             }
         } catch (Exception e) {
             throw new ExceptionService("Exception occurred while validating account", e);
@@ -146,4 +344,114 @@ public class AccountService {
             throw new ExceptionService("Exception occurred while checking account existence", e);
         }
     }
+
+    /**
+     * Re-reads an account another node created, renamed or deleted into the
+     * username filter and index.
+     */
+    @Override
+    public void usernameInvalidated(String username) {
+        if (usernames == null && usernameIndex == null) {
+            return;
+        }
+        try {
+            Optional<Account> account = accountDao.findAccountByUsername(username);
+            if (account.isPresent()) {
+                if (usernames != null) {
+                    usernames.add(username);
+                }
+                if (usernameIndex != null) {
+                    usernameIndex.put(username, account.get().getAccount_id());
+                }
+            } else {
+                if (usernameIndex != null) {
+                    usernameIndex.remove(username);
+                }
+                if (usernames != null) {
+                    usernames.removed();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Re-reading username {} failed; reloading every username", username, e);
+            allInvalidated();
+        }
+    }
+
+    /**
+     * Reloads the username filter and index from the database. The index keeps
+     * answering searches while it reloads; local writes to it wait.
+     */
+    @Override
+    public void allInvalidated() {
+        if (usernames != null) {
+            usernames.rebuild();
+        }
+        if (usernameIndex != null) {
+            try {
+                usernameIndex.replaceAll(accountDao::forEachUsername);
+                LOGGER.info("Reindexed {} usernames", usernameIndex.size());
+            } catch (Exception e) {
+                LOGGER.warn("Reindexing usernames failed; the index may be stale", e);
+            }
+        }
+    }
+
+    private boolean mightExist(String username) {
+        return usernames == null || username == null || usernames.mightExist(username);
+    }
+
+    private void falsePositive() {
+        if (usernames != null) {
+            usernames.falsePositive();
+        }
+    }
+
+    /**
+     * Upgrades a legacy or outdated password hash in the background once the
+     * caller has proven they know the password. Logins that arrive while one
+     * is pending leave it to finish. Failures are only logged; the next
+     * successful login will try again.
+     */
+    private void rehash(Account stored, String password) {
+        if (!pendingRehashes.add(stored.getAccount_id())) {
+            rehashesSkipped.increment();
+            return;
+        }
+        rehashes.increment();
+        // only while the hash read at login is still stored: an update may have committed since
+        passwordHasher.hash(password)
+                .thenApply(hash -> UnitOfWork.inTransaction(() -> accountDao.replacePassword(
+                        stored.getAccount_id(), stored.getPassword(), hash)))
+                .whenComplete((replaced, e) -> {
+                    pendingRehashes.remove(stored.getAccount_id());
+                    if (e != null) {
+                        LOGGER.warn("Rehashing password for account {} failed", stored.getAccount_id(), e);
+                    } else if (replaced) {
+                        LOGGER.info("Rehashed password for account {}", stored.getAccount_id());
+                    } else {
+                        LOGGER.info("Account {} changed before its rehash was stored", stored.getAccount_id());
+                    }
+                });
+    }
+
+    /**
+     * Waits for work submitted to the password hasher. A saturated hasher is
+     * reported as 503 so clients back off instead of queueing behind it.
+     */
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(hashTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                throw new ServiceUnavailableResponse("Password hashing capacity exceeded");
+            }
+            throw new ExceptionService("Password hashing failed", e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new ServiceUnavailableResponse("Password hashing timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExceptionService("Interrupted while hashing password", e);
+        }
+    }
 }
@@ -0,0 +1,358 @@
+package Service;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.AccountSummary;
+import Model.Message;
+import Util.Config;
+import Util.Metrics;
+import Util.SegmentLog;
+
+/**
+ * Sequenced log of committed message and account changes, for downstream
+ * systems that need to follow the data without re-reading it. Each event is
+ * a JSON object
+ *
+ * <pre>
+ *   {"sequence":7,"entity":"message","op":"update","id":3,"version":2,"time":1700000000000,"data":{...}}
+ * </pre>
+ *
+ * appended to a {@link SegmentLog} in sequence order. data is the message, or
+ * the account's id and username; a delete carries the row as it was.
+ * Sequences have no gaps, so the log keeps the position of every retained
+ * event in one long array and a page from any sequence is a slice of it
+ * followed by positional reads.
+ *
+ * Events are appended after the change commits, on the committing thread.
+ * {@link MessageService} holds the message's stripe lock until the listeners
+ * have run, so the events of one message are logged in commit order. Message
+ * events also carry the row version (see {@link MessageListener}); a
+ * consumer can drop an event whose version is below one it has already
+ * applied. Accounts are not versioned.
+ *
+ * Events are fsynced in groups every changes.fsyncMillis, or before the
+ * writer returns with changes.syncWrites; a crash can lose the events of the
+ * last interval. Consumers waiting for new events hold a future, not a
+ * thread: appends and timeouts complete the waiting futures on the log's own
+ * changes.notifyThreads threads, which also run whatever the consumer chained
+ * to them.
+ *
+ * Only the newest changes.retainSegments segments are kept; older ones are
+ * deleted as the log rolls over, and a read from before the oldest retained
+ * event starts at that event, so a consumer sees the jump in sequence.
+ * Startup replays only what is retained.
+ *
+ * One log serves the process, in changes.dir, and only when changes.enabled
+ * is set. Tunables: changes.enabled, changes.dir, changes.segmentBytes,
+ * changes.retainSegments, changes.fsyncMillis, changes.syncWrites and
+ * changes.notifyThreads.
+ */
+public class ChangeLog implements MessageListener, AccountListener, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeLog.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final byte[] SEQUENCE_FIELD = "{\"sequence\":".getBytes(StandardCharsets.US_ASCII);
+    private static volatile ChangeLog defaultInstance;
+
+    private final SegmentLog log;
+    private final int retainSegments;
+    private final boolean syncWrites;
+    private final ScheduledExecutorService notifier;
+    private final Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private final LongAdder appended = Metrics.counter("changes.appended");
+    private final LongAdder pruned = Metrics.counter("changes.pruned");
+    // positions[sequence - firstSequence] for the retained events, guarded by this
+    private long[] positions = new long[1024];
+    private long firstSequence = 1;
+    private int activeSegment;
+    private volatile long lastSequence;
+
+    public ChangeLog(Path directory, long segmentBytes, long fsyncMillis, boolean syncWrites) {
+        this(directory, segmentBytes, Integer.MAX_VALUE, fsyncMillis, syncWrites, 2);
+    }
+
+    public ChangeLog(Path directory, long segmentBytes, int retainSegments, long fsyncMillis, boolean syncWrites,
+            int notifyThreads) {
+        this.log = new SegmentLog(directory, segmentBytes, fsyncMillis);
+        this.retainSegments = Math.max(1, retainSegments);
+        this.syncWrites = syncWrites;
+        synchronized (this) {
+            prune();
+            log.replay(SegmentLog.position(0, 0), (position, payload) -> {
+                long sequence = sequenceOf(payload);
+                if (lastSequence == 0) {
+                    firstSequence = sequence;
+                } else if (sequence != lastSequence + 1) {
+                    throw new IllegalStateException("Change log " + directory + " jumps from sequence "
+                            + lastSequence + " to " + sequence);
+                }
+                record(sequence, position);
+            });
+            activeSegment = SegmentLog.segmentOf(log.endPosition());
+        }
+        AtomicInteger threads = new AtomicInteger();
+        notifier = Executors.newScheduledThreadPool(notifyThreads, runnable -> {
+            Thread thread = new Thread(runnable, "change-log-notify-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("Change log in {} holds events {} to {}", directory, firstSequence, lastSequence);
+        Metrics.gauge("changes.lastSequence", () -> lastSequence);
+        Metrics.gauge("changes.waiters", waiters::size);
+    }
+
+    /**
+     * @return the process-wide change log, or null when changes.enabled is
+     *         false
+     */
+    public static ChangeLog getDefault() {
+        if (!Config.getBoolean("changes.enabled", false)) {
+            return null;
+        }
+        if (defaultInstance == null) {
+            synchronized (ChangeLog.class) {
+                if (defaultInstance == null) {
+                    defaultInstance = new ChangeLog(Paths.get(Config.getString("changes.dir", "./h2/changes")),
+                            Config.getLong("changes.segmentBytes", 64L * 1024 * 1024),
+                            Config.getInt("changes.retainSegments", 16),
+                            Config.getLong("changes.fsyncMillis", 50),
+                            Config.getBoolean("changes.syncWrites", false),
+                            Config.getInt("changes.notifyThreads", 2));
+                }
+            }
+        }
+        return defaultInstance;
+    }
+
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the sequence of the oldest retained event
+     */
+    public synchronized long oldestSequence() {
+        return firstSequence;
+    }
+
+    @Override
+    public void messageCreated(Message message, long version) {
+        append("message", "create", message.getMessage_id(), version, message);
+    }
+
+    @Override
+    public void messageUpdated(Message message, long version) {
+        append("message", "update", message.getMessage_id(), version, message);
+    }
+
+    @Override
+    public void messageDeleted(Message message, long version) {
+        append("message", "delete", message.getMessage_id(), version, message);
+    }
+
+    @Override
+    public void accountCreated(AccountSummary account) {
+        append("account", "create", account.getAccount_id(), account);
+    }
+
+    @Override
+    public void accountUpdated(AccountSummary before, AccountSummary after) {
+        append("account", "update", after.getAccount_id(), after);
+    }
+
+    @Override
+    public void accountDeleted(AccountSummary account) {
+        append("account", "delete", account.getAccount_id(), account);
+    }
+
+    /**
+     * @return the sequence given to the event
+     */
+    public long append(String entity, String op, int id, Object data) {
+        return append(entity, op, id, -1, data);
+    }
+
+    /**
+     * @param version the row version after the change, or -1 if the entity
+     *                is not versioned
+     * @return the sequence given to the event
+     */
+    public long append(String entity, String op, int id, long version, Object data) {
+        long sequence;
+        synchronized (this) {
+            sequence = lastSequence + 1;
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("sequence", sequence);
+            event.put("entity", entity);
+            event.put("op", op);
+            event.put("id", id);
+            if (version >= 0) {
+                event.put("version", version);
+            }
+            event.put("time", System.currentTimeMillis());
+            event.put("data", data);
+            byte[] payload;
+            try {
+                payload = MAPPER.writeValueAsBytes(event);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Unable to encode change " + entity + " " + id, e);
+            }
+            long position = log.append(payload);
+            record(sequence, position);
+            if (SegmentLog.segmentOf(position) != activeSegment) {
+                activeSegment = SegmentLog.segmentOf(position);
+                prune();
+            }
+        }
+        appended.increment();
+        if (syncWrites) {
+            log.sync();
+        }
+        if (!waiters.isEmpty()) {
+            notifier.execute(this::wakeWaiters);
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the JSON of up to limit events after the given sequence, in
+     *         order
+     */
+    public List<byte[]> read(long since, int limit) {
+        long[] page;
+        long first;
+        synchronized (this) {
+            first = Math.max(since, firstSequence - 1);
+            long last = Math.min(lastSequence, first + limit);
+            if (last <= first) {
+                return new ArrayList<>();
+            }
+            page = Arrays.copyOfRange(positions, (int) (first + 1 - firstSequence),
+                    (int) (last + 1 - firstSequence));
+        }
+        List<byte[]> events = new ArrayList<>(page.length);
+        for (long position : page) {
+            try {
+                events.add(log.read(position));
+            } catch (RuntimeException e) {
+                if (first + 1 < oldestSequence()) {
+                    // the segment was pruned after the page was sliced
+                    return read(since, limit);
+                }
+                throw new ExceptionService("Unable to read the change log", e);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return a future completed once there are events after the given
+     *         sequence, or after the timeout, whichever comes first; either
+     *         way on one of the log's notify threads unless already complete
+     */
+    public CompletableFuture<Void> awaitAfter(long since, long timeoutMillis) {
+        if (lastSequence > since) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        // an append between the check above and the add may not have seen us
+        if (lastSequence > since) {
+            waiter.complete(null);
+        }
+        ScheduledFuture<?> timeout = notifier.schedule(() -> waiter.complete(null), timeoutMillis,
+                TimeUnit.MILLISECONDS);
+        waiter.whenComplete((ignored, e) -> {
+            waiters.remove(waiter);
+            timeout.cancel(false);
+        });
+        return waiter;
+    }
+
+    @Override
+    public void close() {
+        wakeWaiters();
+        notifier.shutdown();
+        log.close();
+    }
+
+    private void wakeWaiters() {
+        for (CompletableFuture<Void> waiter; (waiter = waiters.poll()) != null;) {
+            waiter.complete(null);
+        }
+    }
+
+    private void record(long sequence, long position) {
+        int index = (int) (sequence - firstSequence);
+        if (index == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[index] = position;
+        lastSequence = sequence;
+    }
+
+    /**
+     * Deletes the sealed segments beyond the newest retainSegments and drops
+     * the positions of their events.
+     */
+    private void prune() {
+        List<Integer> sealed = log.sealedSegments();
+        int excess = sealed.size() + 1 - retainSegments;
+        if (excess <= 0) {
+            return;
+        }
+        int newestDeleted = sealed.get(excess - 1);
+        for (int segment : sealed.subList(0, excess)) {
+            log.deleteSegment(segment);
+        }
+        int count = (int) (lastSequence - firstSequence + 1);
+        int dropped = 0;
+        while (dropped < count && SegmentLog.segmentOf(positions[dropped]) <= newestDeleted) {
+            dropped++;
+        }
+        if (dropped > 0) {
+            positions = Arrays.copyOfRange(positions, dropped, Math.max(count, dropped + 1024));
+            firstSequence += dropped;
+            pruned.add(dropped);
+        }
+    }
+
+    /**
+     * @return the sequence of an event as returned by {@link #read}
+     */
+    public static long sequenceOf(byte[] payload) {
+        // events start with {"sequence":N, as written by append
+        for (int i = 0; i < SEQUENCE_FIELD.length; i++) {
+            if (i >= payload.length || payload[i] != SEQUENCE_FIELD[i]) {
+                throw new IllegalStateException("Change log event does not start with its sequence");
+            }
+        }
+        long sequence = 0;
+        for (int i = SEQUENCE_FIELD.length; i < payload.length && payload[i] >= '0' && payload[i] <= '9'; i++) {
+            sequence = sequence * 10 + (payload[i] - '0');
+        }
+        return sequence;
+    }
+}
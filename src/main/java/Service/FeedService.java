@@ -0,0 +1,620 @@
+package Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import DAO.Exception;
+import DAO.FollowDAO;
+import DAO.UnitOfWork;
+import Model.Message;
+import Util.Config;
+import Util.IntSet;
+import Util.LatencyHistogram;
+import Util.Metrics;
+
+/**
+ * Home feeds: the newest messages of the accounts someone follows.
+ *
+ * The follow graph is held in memory in both directions. Each new message is
+ * fanned out to its author's followers' inboxes, which are bounded rings of
+ * the newest feed.inboxSize messages, so a feed read is a copy out of the
+ * reader's inbox. Fan-out runs on single-threaded lanes chosen by author, so
+ * a message's create, update and delete reach the inboxes in order, and
+ * never on the request thread. A full lane drops the work and evicts the
+ * followers' inboxes instead.
+ *
+ * Accounts with more than feed.fanoutThreshold followers are not fanned out:
+ * their followers' reads merge in their newest messages from
+ * {@link MessageService}'s timeline rings instead (fan-out on read).
+ *
+ * Inboxes are a cache of at most feed.maxInboxes accounts. A missing inbox
+ * is built on read from the followees' recent messages. A delivery to the
+ * account while it is being built marks the build, which is then served but
+ * not cached, so the delivery is not lost. Messages written by other nodes only evict inboxes, through
+ * {@link InvalidationBus}. Follows and unfollows are published to
+ * {@link FollowListener}s, the bus among them, by follower; a node hearing
+ * that another node changed an account's follows reloads that account's
+ * edges from the store, and one that lost invalidations reloads the whole
+ * graph.
+ */
+public class FeedService implements MessageListener, InvalidationListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FeedService.class);
+
+    private final MessageService messageService;
+    private final FollowDAO followDAO;
+    private final List<FollowListener> listeners = new CopyOnWriteArrayList<>();
+    private final int inboxSize;
+    private final int fanoutThreshold;
+
+    // followee -> followers and follower -> followees
+    private final Map<Integer, IntSet> followers = new HashMap<>();
+    private final Map<Integer, IntSet> followees = new HashMap<>();
+    private final IntSet celebrities = new IntSet();
+    private final ReadWriteLock graphLock = new ReentrantReadWriteLock();
+    private long edges;
+
+    private final Map<Integer, Inbox> inboxes;
+    // accounts whose inbox is being built, guarded by inboxes
+    private final Map<Integer, PendingBuild> pendingBuilds = new HashMap<>();
+    private final ThreadPoolExecutor[] lanes;
+
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LongAdder deliveries = Metrics.counter("feed.fanout.deliveries");
+    private final LongAdder rejected = Metrics.counter("feed.fanout.rejected");
+    private final LongAdder builds = Metrics.counter("feed.inbox.builds");
+    private final LongAdder uncachedBuilds = Metrics.counter("feed.inbox.uncachedBuilds");
+
+    public FeedService(MessageService messageService) {
+        this(messageService, new FollowDAO(),
+                Config.getInt("feed.inboxSize", 200),
+                Config.getInt("feed.maxInboxes", 100_000),
+                Config.getInt("feed.fanoutThreshold", 10_000),
+                Config.getInt("feed.fanoutThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Config.getInt("feed.fanoutQueue", 10_000));
+    }
+
+    public FeedService(MessageService messageService, FollowDAO followDAO, int inboxSize, int maxInboxes,
+            int fanoutThreshold, int fanoutThreads, int fanoutQueue) {
+        this.messageService = messageService;
+        this.followDAO = followDAO;
+        this.inboxSize = inboxSize;
+        this.fanoutThreshold = fanoutThreshold;
+        this.inboxes = new LinkedHashMap<Integer, Inbox>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Inbox> eldest) {
+                return size() > maxInboxes;
+            }
+        };
+        this.lanes = new ThreadPoolExecutor[fanoutThreads];
+        AtomicInteger threadCount = new AtomicInteger();
+        for (int i = 0; i < fanoutThreads; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(fanoutQueue), r -> {
+                        Thread thread = new Thread(r, "feed-fanout-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        followDAO.forEachFollow(this::addEdge);
+        LOGGER.info("Loaded {} follows, {} accounts above the fan-out threshold", edges, celebrities.size());
+
+        messageService.addListener(this);
+        Metrics.gauge("feed.follows", () -> edges);
+        Metrics.gauge("feed.inboxes", this::inboxCount);
+        Metrics.gauge("feed.fanout.queued", this::queued);
+        Metrics.gauge("feed.read.p50_us", () -> readLatency.getValueAtPercentile(50));
+        Metrics.gauge("feed.read.p99_us", () -> readLatency.getValueAtPercentile(99));
+        Metrics.gauge("feed.read.max_us", readLatency::getMax);
+    }
+
+    public void addListener(FollowListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return false if the follow already existed
+     */
+    public boolean follow(int followerId, int followeeId) {
+        if (followerId == followeeId) {
+            throw new ExceptionService("An account cannot follow itself");
+        }
+        try {
+            return UnitOfWork.inTransaction(() -> {
+                boolean added = followDAO.follow(followerId, followeeId);
+                UnitOfWork.afterCommit(() -> {
+                    graphLock.writeLock().lock();
+                    try {
+                        addEdge(followerId, followeeId);
+                    } finally {
+                        graphLock.writeLock().unlock();
+                    }
+                    invalidate(followerId);
+                    listeners.forEach(listener -> listener.followsChanged(followerId));
+                });
+                return added;
+            });
+        } catch (Exception e) {
+            throw new ExceptionService("Exception occurred while following", e);
+        }
+    }
+
+    /**
+     * @return false if there was no such follow
+     */
+    public boolean unfollow(int followerId, int followeeId) {
+        try {
+            return UnitOfWork.inTransaction(() -> {
+                boolean removed = followDAO.unfollow(followerId, followeeId);
+                UnitOfWork.afterCommit(() -> {
+                    removeEdge(followerId, followeeId);
+                    listeners.forEach(listener -> listener.followsChanged(followerId));
+                });
+                return removed;
+            });
+        } catch (Exception e) {
+            throw new ExceptionService("Exception occurred while unfollowing", e);
+        }
+    }
+
+    private void removeEdge(int followerId, int followeeId) {
+        int[] affected;
+        graphLock.writeLock().lock();
+        try {
+            affected = unlink(followerId, followeeId);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        invalidate(followerId);
+        for (int follower : affected) {
+            invalidate(follower);
+        }
+    }
+
+    /**
+     * Removes the edge with the graph lock held.
+     *
+     * @return the followers whose inboxes must be rebuilt because the
+     *         followee dropped below the fan-out threshold
+     */
+    private int[] unlink(int followerId, int followeeId) {
+        IntSet followeeSet = followees.get(followerId);
+        IntSet followerSet = followers.get(followeeId);
+        if (followeeSet != null && followeeSet.remove(followeeId)) {
+            followerSet.remove(followerId);
+            edges--;
+            if (followerSet.size() == fanoutThreshold && celebrities.remove(followeeId)) {
+                // its messages were never fanned out, so no inbox has them
+                return followerSet.toArray();
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * @return the newest limit messages posted by the accounts the account
+     *         follows, newest first
+     */
+    public List<Message> getFeed(int accountId, int limit) {
+        long start = System.nanoTime();
+        limit = Math.min(limit, inboxSize);
+        List<Message> feed;
+        feed = inbox(accountId).newest(limit);
+
+        int[] followedCelebrities = followedCelebrities(accountId);
+        if (followedCelebrities.length > 0) {
+            List<Message> merged = new ArrayList<>(feed);
+            for (int celebrity : followedCelebrities) {
+                merged.addAll(messageService.getRecentMessagesByAccountId(celebrity, Integer.MAX_VALUE, limit));
+            }
+            merged.sort((a, b) -> Integer.compare(b.getMessage_id(), a.getMessage_id()));
+            feed = new ArrayList<>(limit);
+            int previous = -1;
+            for (Message message : merged) {
+                // an account that crossed the threshold may still sit in inboxes
+                if (message.getMessage_id() != previous) {
+                    feed.add(message);
+                    previous = message.getMessage_id();
+                }
+                if (feed.size() == limit) {
+                    break;
+                }
+            }
+        }
+        readLatency.record((System.nanoTime() - start) / 1000);
+        return feed;
+    }
+
+    @Override
+    public void messageCreated(Message message) {
+        Message shared = copy(message);
+        submit(message.getPosted_by(), () -> {
+            int[] targets = followersOf(shared.getPosted_by(), true);
+            for (int follower : targets) {
+                Inbox inbox = inboxForWrite(follower);
+                if (inbox != null) {
+                    inbox.add(shared);
+                    deliveries.increment();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void messageUpdated(Message message) {
+        Message shared = copy(message);
+        submit(message.getPosted_by(), () -> {
+            for (int follower : followersOf(shared.getPosted_by(), false)) {
+                Inbox inbox = inboxForWrite(follower);
+                if (inbox != null) {
+                    inbox.replace(shared);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void messageDeleted(Message message) {
+        int messageId = message.getMessage_id();
+        submit(message.getPosted_by(), () -> {
+            for (int follower : followersOf(message.getPosted_by(), false)) {
+                Inbox inbox = inboxForWrite(follower);
+                if (inbox != null) {
+                    inbox.remove(messageId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Another node wrote the message, so its followers' inboxes here miss it.
+     */
+    @Override
+    public void messageInvalidated(int messageId, int accountId) {
+        if (accountId <= 0) {
+            allInvalidated();
+            return;
+        }
+        for (int follower : followersOf(accountId, false)) {
+            invalidate(follower);
+        }
+    }
+
+    /**
+     * Another node changed whom the account follows, so its edges here are
+     * re-read from the store.
+     */
+    @Override
+    public void followsInvalidated(int followerId) {
+        IntSet stored = new IntSet();
+        UnitOfWork.readPrimary(() -> followDAO.getFolloweeIds(followerId)).forEach(stored::add);
+        List<Integer> affected = new ArrayList<>();
+        graphLock.writeLock().lock();
+        try {
+            IntSet current = followees.get(followerId);
+            for (int followee : current == null ? new int[0] : current.toArray()) {
+                if (!stored.contains(followee)) {
+                    for (int follower : unlink(followerId, followee)) {
+                        affected.add(follower);
+                    }
+                }
+            }
+            for (int followee : stored.toArray()) {
+                addEdge(followerId, followee);
+            }
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        invalidate(followerId);
+        affected.forEach(this::invalidate);
+    }
+
+    @Override
+    public void allInvalidated() {
+        graphLock.writeLock().lock();
+        try {
+            followers.clear();
+            followees.clear();
+            for (int celebrity : celebrities.toArray()) {
+                celebrities.remove(celebrity);
+            }
+            edges = 0;
+            UnitOfWork.readPrimary(() -> {
+                followDAO.forEachFollow(this::addEdge);
+                return null;
+            });
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+        synchronized (inboxes) {
+            pendingBuilds.values().forEach(pending -> pending.raced = true);
+            inboxes.clear();
+        }
+    }
+
+    public void close() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Waits until every fan-out submitted so far has been applied.
+     */
+    public void awaitFanout() throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            try {
+                lane.submit(() -> {
+                }).get();
+            } catch (ExecutionException e) {
+                throw new ExceptionService(e.getCause());
+            }
+        }
+    }
+
+    private void submit(int authorId, Runnable task) {
+        try {
+            lanes[Math.floorMod(authorId, lanes.length)].execute(task);
+        } catch (RejectedExecutionException e) {
+            // the delivery is lost, so the inboxes it was meant for go stale;
+            // drop them and let the next read rebuild them from the store
+            rejected.increment();
+            for (int follower : followersOf(authorId, false)) {
+                invalidate(follower);
+            }
+        }
+    }
+
+    private boolean addEdge(int followerId, int followeeId) {
+        if (!followees.computeIfAbsent(followerId, id -> new IntSet()).add(followeeId)) {
+            return false;
+        }
+        IntSet followerSet = followers.computeIfAbsent(followeeId, id -> new IntSet());
+        followerSet.add(followerId);
+        edges++;
+        if (followerSet.size() > fanoutThreshold) {
+            celebrities.add(followeeId);
+        }
+        return true;
+    }
+
+    /**
+     * @param skipCelebrities return nothing for accounts above the threshold
+     */
+    private int[] followersOf(int accountId, boolean skipCelebrities) {
+        graphLock.readLock().lock();
+        try {
+            if (skipCelebrities && celebrities.contains(accountId)) {
+                return new int[0];
+            }
+            IntSet set = followers.get(accountId);
+            return set == null ? new int[0] : set.toArray();
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    private int[] followedCelebrities(int accountId) {
+        graphLock.readLock().lock();
+        try {
+            IntSet set = followees.get(accountId);
+            if (set == null || celebrities.size() == 0) {
+                return new int[0];
+            }
+            IntSet result = new IntSet();
+            for (int i = 0; i < celebrities.size(); i++) {
+                if (set.contains(celebrities.get(i))) {
+                    result.add(celebrities.get(i));
+                }
+            }
+            return result.toArray();
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds of one account's inbox running now, and whether a delivery or
+     * invalidation for the account happened since the first of them began.
+     */
+    private static final class PendingBuild {
+        int builders;
+        boolean raced;
+    }
+
+    private Inbox inboxForWrite(int accountId) {
+        synchronized (inboxes) {
+            markRaced(accountId);
+            return inboxes.get(accountId);
+        }
+    }
+
+    private void invalidate(int accountId) {
+        synchronized (inboxes) {
+            markRaced(accountId);
+            inboxes.remove(accountId);
+        }
+    }
+
+    private void markRaced(int accountId) {
+        PendingBuild pending = pendingBuilds.get(accountId);
+        if (pending != null) {
+            pending.raced = true;
+        }
+    }
+
+    /**
+     * @return the account's inbox, built from the store if missing; a build
+     *         that a delivery raced is returned without being cached
+     */
+    private Inbox inbox(int accountId) {
+        PendingBuild pending;
+        synchronized (inboxes) {
+            Inbox inbox = inboxes.get(accountId);
+            if (inbox != null) {
+                return inbox;
+            }
+            pending = pendingBuilds.computeIfAbsent(accountId, id -> new PendingBuild());
+            pending.builders++;
+        }
+        Inbox built = null;
+        try {
+            built = build(accountId);
+        } finally {
+            synchronized (inboxes) {
+                if (--pending.builders == 0) {
+                    pendingBuilds.remove(accountId);
+                }
+                if (built != null && !pending.raced) {
+                    Inbox raced = inboxes.get(accountId);
+                    if (raced != null) {
+                        built = raced;
+                    } else {
+                        inboxes.put(accountId, built);
+                    }
+                } else if (built != null) {
+                    uncachedBuilds.increment();
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Fan-out on read: the newest messages of every followee that is fanned
+     * out on write, read in one read-only transaction on the primary: a
+     * replica may lack a delivery whose invalidation already happened.
+     */
+    private Inbox build(int accountId) {
+        builds.increment();
+        int[] sources;
+        graphLock.readLock().lock();
+        try {
+            IntSet set = followees.get(accountId);
+            sources = set == null ? new int[0] : set.toArray();
+        } finally {
+            graphLock.readLock().unlock();
+        }
+        Inbox inbox = new Inbox(inboxSize);
+        return UnitOfWork.readPrimary(() -> {
+            for (int followee : sources) {
+                if (!isCelebrity(followee)) {
+                    for (Message message : messageService.getRecentMessagesByAccountId(followee, Integer.MAX_VALUE,
+                            inboxSize)) {
+                        inbox.add(message);
+                    }
+                }
+            }
+            return inbox;
+        });
+    }
+
+    private boolean isCelebrity(int accountId) {
+        graphLock.readLock().lock();
+        try {
+            return celebrities.contains(accountId);
+        } finally {
+            graphLock.readLock().unlock();
+        }
+    }
+
+    private long inboxCount() {
+        synchronized (inboxes) {
+            return inboxes.size();
+        }
+    }
+
+    private long queued() {
+        long queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    private static Message copy(Message message) {
+        return new Message(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                message.getTime_posted_epoch());
+    }
+
+    /**
+     * The newest messages delivered to one account, sorted by message_id.
+     * Messages are shared between inboxes, never mutated once delivered.
+     */
+    private static final class Inbox {
+        final int[] ids;
+        final Message[] messages;
+        int size;
+
+        Inbox(int capacity) {
+            ids = new int[capacity];
+            messages = new Message[capacity];
+        }
+
+        synchronized void add(Message message) {
+            int id = message.getMessage_id();
+            int index = java.util.Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == ids.length) {
+                if (index == 0) {
+                    // older than everything kept
+                    return;
+                }
+                // drop the oldest
+                System.arraycopy(ids, 1, ids, 0, index - 1);
+                System.arraycopy(messages, 1, messages, 0, index - 1);
+                index--;
+            } else {
+                System.arraycopy(ids, index, ids, index + 1, size - index);
+                System.arraycopy(messages, index, messages, index + 1, size - index);
+                size++;
+            }
+            ids[index] = id;
+            messages[index] = message;
+        }
+
+        synchronized void replace(Message message) {
+            int index = java.util.Arrays.binarySearch(ids, 0, size, message.getMessage_id());
+            if (index >= 0) {
+                messages[index] = message;
+            }
+        }
+
+        synchronized void remove(int id) {
+            int index = java.util.Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+                size--;
+                messages[size] = null;
+            }
+        }
+
+        synchronized List<Message> newest(int limit) {
+            List<Message> page = new ArrayList<>(Math.min(limit, size));
+            for (int i = size - 1; i >= 0 && page.size() < limit; i--) {
+                page.add(messages[i]);
+            }
+            return page;
+        }
+    }
+}
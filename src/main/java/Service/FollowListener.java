@@ -0,0 +1,15 @@
+package Service;
+
+/**
+ * Notified by {@link FeedService} after a follow or unfollow has committed.
+ * Called on the request thread, so implementations should hand slow work
+ * off.
+ */
+public interface FollowListener {
+
+    /**
+     * The accounts the follower follows have changed.
+     */
+    default void followsChanged(int followerId) {
+    }
+}
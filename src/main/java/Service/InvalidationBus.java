@@ -0,0 +1,571 @@
+package Service;
+
+import java.io.Closeable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.AccountSummary;
+import Model.Message;
+import Util.Config;
+import Util.LatencyHistogram;
+import Util.LoopbackTransport;
+import Util.Metrics;
+import Util.PacketTransport;
+import Util.UdpTransport;
+
+/**
+ * Keeps the in-process caches of several API nodes sharing one store
+ * coherent. Each node publishes what its own writes changed (a message id
+ * with its poster, an account id, a username, a follower whose follows
+ * changed) and hands what other nodes publish to its
+ * {@link InvalidationListener}s.
+ *
+ * Invalidations are queued after commit and sent in batches every
+ * invalidation.batchMillis, as packets of
+ *
+ * <pre>
+ *   | int magic | long node | long sequence | long oldest queued millis | short count | entries |
+ * </pre>
+ *
+ * where an entry is a kind byte followed by two ints (message), one int
+ * (account or follows) or a short length and UTF-8 bytes (username). Sequences count
+ * each node's packets from 1. A receiver that sees a node's sequence skip,
+ * or a first packet past 1, has lost invalidations and tells its listeners
+ * to drop everything instead. An idle node sends an empty packet carrying
+ * its last sequence every invalidation.heartbeatMillis, so a lost final
+ * packet is noticed too; a sender whose queue passes invalidation.maxPending
+ * drops the excess and skips a sequence on purpose.
+ *
+ * The receiving thread only checks sequences. Listeners run on one apply
+ * thread, in packet order, behind a queue of invalidation.applyQueue
+ * packets, so a slow listener does not leave packets to pile up in the
+ * socket. Drops of everything are coalesced: however many gaps arrive while
+ * one is waiting, listeners hear allInvalidated once. A full queue, or a
+ * listener throwing partway through a packet, is handled like a gap.
+ *
+ * The UDP transport only accepts packets from invalidation.peers. A node not
+ * heard from for invalidation.nodeExpiryMillis is forgotten; if it speaks
+ * again its sequence counts as a gap.
+ *
+ * The lag from an invalidation being queued to its packet being applied is
+ * recorded in milliseconds as invalidation.lag.*; it is measured on two
+ * wall clocks, so it includes their skew.
+ *
+ * Tunables: invalidation.enabled, invalidation.transport ("udp" or
+ * "loopback"), invalidation.port, invalidation.peers (host:port,...),
+ * invalidation.batchMillis, invalidation.heartbeatMillis,
+ * invalidation.maxPending, invalidation.applyQueue and
+ * invalidation.nodeExpiryMillis.
+ */
+public class InvalidationBus implements MessageListener, AccountListener, FollowListener, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationBus.class);
+    // "INV1"
+    private static final int MAGIC = 0x494e5631;
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 8 + 2;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final byte MESSAGE = 1;
+    private static final byte ACCOUNT = 2;
+    private static final byte USERNAME = 3;
+    private static final byte FOLLOWS = 4;
+
+    private final PacketTransport transport;
+    private final long nodeId;
+    private final long heartbeatMillis;
+    private final int maxPending;
+    private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService sender;
+    private final ThreadPoolExecutor applier;
+    // set while a drop of everything waits for the apply thread
+    private final AtomicBoolean allPending = new AtomicBoolean();
+
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    // guarded by sendLock
+    private final Object sendLock = new Object();
+    private final byte[] packet;
+    private long sequence;
+    private long lastSentMillis;
+    // last sequence accepted from each node, guarded by receiveLock
+    private final Object receiveLock = new Object();
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final long nodeExpiryMillis;
+    private long lastExpiryMillis = System.currentTimeMillis();
+
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LongAdder published = Metrics.counter("invalidation.published");
+    private final LongAdder packetsSent = Metrics.counter("invalidation.packets.sent");
+    private final LongAdder packetsReceived = Metrics.counter("invalidation.packets.received");
+    private final LongAdder applied = Metrics.counter("invalidation.applied");
+    private final LongAdder gaps = Metrics.counter("invalidation.gaps");
+    private final LongAdder overflows = Metrics.counter("invalidation.overflows");
+    private final LongAdder malformed = Metrics.counter("invalidation.malformed");
+    private final LongAdder listenerFailures = Metrics.counter("invalidation.listenerFailures");
+
+    private static final class Node {
+        long sequence;
+        long seenMillis;
+
+        Node(long sequence, long seenMillis) {
+            this.sequence = sequence;
+            this.seenMillis = seenMillis;
+        }
+    }
+
+    /**
+     * @param batchMillis how often queued invalidations are sent; 0 sends
+     *                    only on {@link #flush()}
+     */
+    public InvalidationBus(PacketTransport transport, long nodeId, long batchMillis, long heartbeatMillis,
+            int maxPending) {
+        this(transport, nodeId, batchMillis, heartbeatMillis, maxPending, 10_000, 60_000);
+    }
+
+    public InvalidationBus(PacketTransport transport, long nodeId, long batchMillis, long heartbeatMillis,
+            int maxPending, int applyQueue, long nodeExpiryMillis) {
+        this.transport = transport;
+        this.nodeId = nodeId;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxPending = maxPending;
+        this.nodeExpiryMillis = nodeExpiryMillis;
+        this.packet = new byte[transport.maxPacketBytes()];
+        applier = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(applyQueue),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "invalidation-apply");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        transport.start(this::receive);
+        if (batchMillis > 0) {
+            sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "invalidation-sender");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sender.scheduleWithFixedDelay(this::flushQuietly, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+        } else {
+            sender = null;
+        }
+        Metrics.gauge("invalidation.pending", pendingCount::get);
+        Metrics.gauge("invalidation.applyQueued", () -> applier.getQueue().size());
+        Metrics.gauge("invalidation.lag.p50_ms", () -> lag.getValueAtPercentile(50));
+        Metrics.gauge("invalidation.lag.p99_ms", () -> lag.getValueAtPercentile(99));
+        Metrics.gauge("invalidation.lag.max_ms", lag::getMax);
+    }
+
+    /**
+     * @return a bus on the configured transport, or null when
+     *         invalidation.enabled is false
+     */
+    public static InvalidationBus fromConfig() {
+        if (!Config.getBoolean("invalidation.enabled", false)) {
+            return null;
+        }
+        String kind = Config.getString("invalidation.transport", "udp");
+        PacketTransport transport = "loopback".equals(kind)
+                ? new LoopbackTransport(Config.getString("invalidation.group", "default"))
+                : new UdpTransport(Config.getInt("invalidation.port", 7070),
+                        UdpTransport.parsePeers(Config.getString("invalidation.peers", "")));
+        long nodeId = ThreadLocalRandom.current().nextLong();
+        LOGGER.info("Publishing invalidations over {} as node {}", kind, Long.toHexString(nodeId));
+        return new InvalidationBus(transport, nodeId,
+                Config.getLong("invalidation.batchMillis", 5),
+                Config.getLong("invalidation.heartbeatMillis", 1000),
+                Config.getInt("invalidation.maxPending", 100_000),
+                Config.getInt("invalidation.applyQueue", 10_000),
+                Config.getLong("invalidation.nodeExpiryMillis", 60_000));
+    }
+
+    public void addListener(InvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Waits until every packet received so far has been applied.
+     */
+    public void awaitApplied() throws InterruptedException {
+        try {
+            applier.submit(() -> {
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the lag, in milliseconds, of every packet applied so far
+     */
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    @Override
+    public void messageCreated(Message message) {
+        publish(Entry.message(message));
+    }
+
+    @Override
+    public void messageUpdated(Message message) {
+        publish(Entry.message(message));
+    }
+
+    @Override
+    public void messageDeleted(Message message) {
+        publish(Entry.message(message));
+    }
+
+    @Override
+    public void accountCreated(AccountSummary account) {
+        publish(Entry.username(account.getUsername()));
+        publish(Entry.account(account.getAccount_id()));
+    }
+
+    @Override
+    public void accountUpdated(AccountSummary before, AccountSummary after) {
+        if (!before.getUsername().equals(after.getUsername())) {
+            publish(Entry.username(before.getUsername()));
+        }
+        publish(Entry.username(after.getUsername()));
+        publish(Entry.account(after.getAccount_id()));
+    }
+
+    @Override
+    public void accountDeleted(AccountSummary account) {
+        publish(Entry.username(account.getUsername()));
+        publish(Entry.account(account.getAccount_id()));
+    }
+
+    @Override
+    public void followsChanged(int followerId) {
+        publish(Entry.follows(followerId));
+    }
+
+    private void publish(Entry entry) {
+        if (entry.bytes() > packet.length - HEADER_BYTES) {
+            lose();
+            return;
+        }
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            lose();
+            return;
+        }
+        pending.add(entry);
+        published.increment();
+    }
+
+    // receivers can only learn of a lost invalidation through the sequence
+    private void lose() {
+        overflows.increment();
+        overflowed.set(true);
+    }
+
+    /**
+     * Sends everything queued, or a heartbeat if nothing was sent for
+     * invalidation.heartbeatMillis.
+     */
+    public void flush() {
+        synchronized (sendLock) {
+            if (overflowed.getAndSet(false)) {
+                // receivers see the skipped sequence as a gap and drop everything
+                sequence++;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            int count = 0;
+            long oldest = 0;
+            for (Entry entry; (entry = pending.poll()) != null;) {
+                pendingCount.decrementAndGet();
+                if (count > 0 && (buffer.remaining() < entry.bytes() || count == MAX_ENTRIES)) {
+                    send(buffer, count, oldest);
+                    count = 0;
+                }
+                if (count == 0) {
+                    buffer.clear().position(HEADER_BYTES);
+                    oldest = entry.queuedMillis;
+                }
+                entry.writeTo(buffer);
+                count++;
+            }
+            long now = System.currentTimeMillis();
+            if (count > 0) {
+                send(buffer, count, oldest);
+            } else if (now - lastSentMillis >= heartbeatMillis) {
+                buffer.clear().position(HEADER_BYTES);
+                send(buffer, 0, now);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Sending invalidations failed", e);
+        }
+    }
+
+    // a heartbeat (count 0) repeats the last sequence instead of taking one
+    private void send(ByteBuffer buffer, int count, long oldest) {
+        if (count > 0) {
+            sequence++;
+        }
+        buffer.putInt(0, MAGIC)
+                .putLong(4, nodeId)
+                .putLong(12, sequence)
+                .putLong(20, oldest)
+                .putShort(28, (short) count);
+        transport.send(packet, buffer.position());
+        packetsSent.increment();
+        lastSentMillis = System.currentTimeMillis();
+    }
+
+    private void receive(ByteBuffer buffer) {
+        long node;
+        long received;
+        long oldest;
+        List<Entry> entries;
+        try {
+            if (buffer.getInt() != MAGIC) {
+                malformed.increment();
+                return;
+            }
+            node = buffer.getLong();
+            if (node == nodeId) {
+                return;
+            }
+            received = buffer.getLong();
+            oldest = buffer.getLong();
+            int count = buffer.getShort() & 0xffff;
+            entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(Entry.readFrom(buffer));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            malformed.increment();
+            return;
+        }
+        packetsReceived.increment();
+
+        synchronized (receiveLock) {
+            long now = System.currentTimeMillis();
+            expireNodes(now);
+            Node last = nodes.get(node);
+            long expected = last == null ? 1 : last.sequence + 1;
+            if (last == null) {
+                last = new Node(0, now);
+                nodes.put(node, last);
+            }
+            last.seenMillis = now;
+            if (entries.isEmpty()) {
+                if (received >= expected) {
+                    last.sequence = received;
+                    invalidateAll(node, expected, received + 1);
+                } else if (expected == 1) {
+                    last.sequence = received;
+                }
+                return;
+            }
+            if (received < expected) {
+                // a duplicate, or late after a gap that already dropped everything
+                return;
+            }
+            last.sequence = received;
+            if (received > expected) {
+                // everything is re-read, which covers this packet too
+                invalidateAll(node, expected, received);
+                return;
+            }
+            applyLater(() -> apply(entries, oldest));
+        }
+    }
+
+    private void expireNodes(long now) {
+        if (now - lastExpiryMillis < nodeExpiryMillis / 2) {
+            return;
+        }
+        lastExpiryMillis = now;
+        nodes.values().removeIf(node -> now - node.seenMillis > nodeExpiryMillis);
+    }
+
+    private void invalidateAll(long node, long expected, long received) {
+        gaps.increment();
+        LOGGER.warn("Lost invalidations {} to {} from node {}; dropping every cache", expected, received - 1,
+                Long.toHexString(node));
+        allPending.set(true);
+        applyLater(() -> {
+        });
+    }
+
+    /**
+     * Queues work for the apply thread, which afterwards drops everything if
+     * that is pending. When the queue is full the work is lost, and so
+     * everything is dropped once the queue drains.
+     */
+    private void applyLater(Runnable work) {
+        try {
+            applier.execute(() -> {
+                if (!allPending.get()) {
+                    work.run();
+                }
+                if (allPending.getAndSet(false)) {
+                    for (InvalidationListener listener : listeners) {
+                        try {
+                            listener.allInvalidated();
+                        } catch (RuntimeException e) {
+                            listenerFailures.increment();
+                            LOGGER.error("Invalidation listener {} failed to drop everything", listener, e);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (!applier.isShutdown()) {
+                gaps.increment();
+                allPending.set(true);
+            }
+        }
+    }
+
+    private void apply(List<Entry> entries, long oldest) {
+        for (Entry entry : entries) {
+            try {
+                entry.applyTo(listeners);
+            } catch (RuntimeException e) {
+                // the rest of the packet is not applied, so neither is this
+                listenerFailures.increment();
+                gaps.increment();
+                LOGGER.error("Applying an invalidation failed; dropping every cache", e);
+                allPending.set(true);
+                return;
+            }
+        }
+        applied.add(entries.size());
+        lag.record(System.currentTimeMillis() - oldest);
+    }
+
+    @Override
+    public void close() {
+        if (sender != null) {
+            sender.shutdown();
+        }
+        flushQuietly();
+        transport.close();
+        applier.shutdown();
+    }
+
+    private static final class Entry {
+        final byte kind;
+        final int id;
+        final int accountId;
+        final byte[] username;
+        final long queuedMillis = System.currentTimeMillis();
+
+        Entry(byte kind, int id, int accountId, byte[] username) {
+            this.kind = kind;
+            this.id = id;
+            this.accountId = accountId;
+            this.username = username;
+        }
+
+        static Entry message(Message message) {
+            return new Entry(MESSAGE, message.getMessage_id(), message.getPosted_by(), null);
+        }
+
+        static Entry account(int accountId) {
+            return new Entry(ACCOUNT, accountId, 0, null);
+        }
+
+        static Entry follows(int followerId) {
+            return new Entry(FOLLOWS, followerId, 0, null);
+        }
+
+        static Entry username(String username) {
+            return new Entry(USERNAME, 0, 0, username.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int bytes() {
+            switch (kind) {
+                case MESSAGE:
+                    return 1 + 4 + 4;
+                case ACCOUNT:
+                case FOLLOWS:
+                    return 1 + 4;
+                default:
+                    return 1 + 2 + username.length;
+            }
+        }
+
+        void writeTo(ByteBuffer buffer) {
+            buffer.put(kind);
+            switch (kind) {
+                case MESSAGE:
+                    buffer.putInt(id).putInt(accountId);
+                    break;
+                case ACCOUNT:
+                case FOLLOWS:
+                    buffer.putInt(id);
+                    break;
+                default:
+                    buffer.putShort((short) username.length).put(username);
+            }
+        }
+
+        static Entry readFrom(ByteBuffer buffer) {
+            byte kind = buffer.get();
+            switch (kind) {
+                case MESSAGE:
+                    return new Entry(kind, buffer.getInt(), buffer.getInt(), null);
+                case ACCOUNT:
+                case FOLLOWS:
+                    return new Entry(kind, buffer.getInt(), 0, null);
+                case USERNAME:
+                    byte[] username = new byte[buffer.getShort() & 0xffff];
+                    buffer.get(username);
+                    return new Entry(kind, 0, 0, username);
+                default:
+                    throw new IllegalArgumentException("Unknown invalidation kind " + kind);
+            }
+        }
+
+        void applyTo(List<InvalidationListener> listeners) {
+            String name = username == null ? null : new String(username, StandardCharsets.UTF_8);
+            for (InvalidationListener listener : listeners) {
+                switch (kind) {
+                    case MESSAGE:
+                        listener.messageInvalidated(id, accountId);
+                        break;
+                    case ACCOUNT:
+                        listener.accountInvalidated(id);
+                        break;
+                    case FOLLOWS:
+                        listener.followsInvalidated(id);
+                        break;
+                    default:
+                        listener.usernameInvalidated(name);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package Service;
+
+/**
+ * Told by {@link InvalidationBus} what another node changed, so that caches
+ * built from the store can drop or re-read it. Called on the bus's receiving
+ * thread, in the order the other node committed.
+ */
+public interface InvalidationListener {
+
+    default void messageInvalidated(int messageId, int accountId) {
+    }
+
+    default void accountInvalidated(int accountId) {
+    }
+
+    /**
+     * The account holding the username was created, renamed or deleted.
+     */
+    default void usernameInvalidated(String username) {
+    }
+
+    /**
+     * The accounts the follower follows have changed.
+     */
+    default void followsInvalidated(int followerId) {
+    }
+
+    /**
+     * Invalidations were lost, so nothing cached can be trusted.
+     */
+    default void allInvalidated() {
+    }
+}
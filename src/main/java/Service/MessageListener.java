@@ -0,0 +1,37 @@
+package Service;
+
+import Model.Message;
+
+/**
+ * Notified by {@link MessageService} after a message write has reached the
+ * store. Called on the request thread, so implementations should hand slow
+ * work off. Notifications for one message arrive in commit order.
+ *
+ * The versioned variants also pass the row version after the write: 0 for a
+ * new message, one more than the version read for an update or delete. A
+ * store that does not keep versions reports them as if every message were
+ * new. By default they call the unversioned ones.
+ */
+public interface MessageListener {
+
+    default void messageCreated(Message message) {
+    }
+
+    default void messageUpdated(Message message) {
+    }
+
+    default void messageDeleted(Message message) {
+    }
+
+    default void messageCreated(Message message, long version) {
+        messageCreated(message);
+    }
+
+    default void messageUpdated(Message message, long version) {
+        messageUpdated(message);
+    }
+
+    default void messageDeleted(Message message, long version) {
+        messageDeleted(message);
+    }
+}
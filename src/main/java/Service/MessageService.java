@@ -1,39 +1,142 @@
 package Service;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import DAO.DataSourceRouter;
+import DAO.LogMessageDAO;
+import DAO.MessageBase;
 import DAO.MessageDAO;
+import DAO.MessageScanFile;
+import DAO.ShardedMessageDAO;
 import DAO.Exception;
+import DAO.UnitOfWork;
+import DAO.Versioned;
 import Model.Account;
 import Model.Message;
+import Model.MessageStats;
+import Util.Bulkhead;
+import Util.Config;
+import Util.Hashing;
+import Util.MessageJsonWriter;
+import Util.Metrics;
+import Util.SingleFlight;
+import Util.SlidingWindowMap;
+import Util.StripedLock;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 
-public class MessageService {
-    private MessageDAO messageDAO;
+public class MessageService implements InvalidationListener {
+    private MessageBase messageDAO;
+    private final MessageScanFile scanFile;
+    private final TimelineCache timelines;
+    private final StatsService stats;
+    private final List<MessageListener> listeners = new CopyOnWriteArrayList<>();
+    // concurrent identical reads share one DAO call; see canCoalesce
+    private final boolean coalesce = Config.getBoolean("message.coalesce.enabled", true);
+    private final SingleFlight<Integer, Optional<Versioned<Message>>> messageReads = new SingleFlight<>("message.byId");
+    private final SingleFlight<Integer, List<Message>> accountReads = new SingleFlight<>("message.byAccount");
+    // 0 stripes leaves concurrent updates of a message to the version check
+    private final int lockStripes = Config.getInt("message.update.lockStripes", 256);
+    private final StripedLock updateLocks = lockStripes > 0 ? new StripedLock(lockStripes) : null;
+    private final LongAdder versionConflicts = Metrics.counter("message.update.versionConflicts");
+    // recent creates by dedup key, holding PENDING until the insert commits
+    // and then the message id; null when message.dedup.enabled is false
+    private final SlidingWindowMap recentPosts = Config.getBoolean("message.dedup.enabled", true)
+            ? new SlidingWindowMap(Config.getLong("message.dedup.windowSeconds", 60) * 1000, DEDUP_SLOTS,
+                    Config.getInt("message.dedup.maxEntries", 1_000_000), NOT_POSTED)
+            : null;
+    private final boolean dedupContent = Config.getBoolean("message.dedup.content", true);
+    private final LongAdder duplicatePosts = Metrics.counter("message.dedup.hits");
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageService.class);
     private static final String DB_ACCESS_ERROR_MSG = "Error accessing the database";
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+    private static final int DEDUP_SLOTS = 4;
+    private static final int NOT_POSTED = -1;
+    private static final int PENDING = 0;
+    // message reads for the async variants, kept apart from account lookups
+    private static final Bulkhead READS = Bulkhead.fromConfig("messages",
+            Math.max(2, Runtime.getRuntime().availableProcessors()), 256);
 
     public MessageService() {
-        messageDAO = new MessageDAO();
+        this(createMessageStore());
     }
 
-    public MessageService(MessageDAO messageDao) {
+    public MessageService(MessageBase messageDao) {
         this.messageDAO = messageDao;
+        this.scanFile = Config.getBoolean("message.scanfile.enabled", false)
+                ? MessageScanFile.fromConfig(messageDao)
+                : null;
+        this.timelines = Config.getBoolean("timeline.enabled", true)
+                ? TimelineCache.fromConfig(messageDao)
+                : null;
+        this.stats = Config.getBoolean("stats.enabled", true)
+                ? StatsService.fromConfig(messageDao)
+                : null;
+        if (stats != null) {
+            listeners.add(stats);
+        }
+    }
+
+    /**
+     * Picks the message store named by message.store: "jdbc" (default) for the
+     * H2 message table, "log" for the append-only {@link LogMessageDAO} or
+     * "sharded" for message tables in several H2 databases
+     * ({@link ShardedMessageDAO}).
+     */
+    private static MessageBase createMessageStore() {
+        String store = Config.getString("message.store", "jdbc");
+        LOGGER.info("Using {} message store", store);
+        if ("log".equals(store)) {
+            return LogMessageDAO.fromConfig();
+        }
+        if ("sharded".equals(store)) {
+            return ShardedMessageDAO.fromConfig();
+        }
+        return new MessageDAO();
+    }
+
+    public void addListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void close() {
+        messageDAO.close();
     }
 
     public Optional<Message> getMessageById(int id) {
         LOGGER.info("Fetching message with ID: {} ", id);
+        Optional<Versioned<Message>> message = canCoalesce()
+                ? messageReads.run(id, () -> fetchVersionedMessage(id))
+                : fetchVersionedMessage(id);
+        return Optional.of(found(message).getValue());
+    }
+
+    private Versioned<Message> found(Optional<Versioned<Message>> message) {
+        if (!message.isPresent()) {
+            throw new ExceptionService("Message not found");
+        }
+        LOGGER.info("Fetched message: {}", message.get().getValue());
+        return message.get();
+    }
+
+    private Optional<Versioned<Message>> fetchVersionedMessage(int id) {
         try {
-            Optional<Message> message = messageDAO.getById(id);
-            if (!message.isPresent()) {
-                throw new ExceptionService("Message not found");
-            }
-            LOGGER.info("Fetched message: {}", message.orElse(null));
-            return message;
+            return messageDAO.getVersionedById(id);
         } catch (Exception e) {
             throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
         }
@@ -50,10 +153,128 @@ public class MessageService {
         }
     }
 
+    /*
+     * The async variants run the blocking call on the messages bulkhead. A
+     * full bulkhead fails the future with a RejectedExecutionException;
+     * anything the blocking call throws fails it the same way. Reads by id
+     * and by account join an identical read in flight before queueing.
+     */
+
+    /**
+     * @return the message with its version, for an ETag
+     */
+    public CompletableFuture<Versioned<Message>> getMessageByIdAsync(int id) {
+        LOGGER.info("Fetching message with ID: {} ", id);
+        Supplier<CompletableFuture<Optional<Versioned<Message>>>> fetch = () -> READS
+                .supply(DataSourceRouter.withRequester(() -> fetchVersionedMessage(id)));
+        return (canCoalesce() ? messageReads.runAsync(id, fetch) : fetch.get()).thenApply(this::found);
+    }
+
+    public CompletableFuture<List<Message>> getAllMessagesAsync() {
+        return READS.supply(DataSourceRouter.withRequester(this::getAllMessages));
+    }
+
+    public CompletableFuture<List<Message>> getMessagesByAccountIdAsync(int accountId) {
+        LOGGER.info("Fetching messages posted by ID account: {}", accountId);
+        Supplier<CompletableFuture<List<Message>>> fetch = () -> READS
+                .supply(DataSourceRouter.withRequester(() -> fetchMessagesByAccountId(accountId)));
+        return canCoalesce() ? accountReads.runAsync(accountId, fetch) : fetch.get();
+    }
+
+    public CompletableFuture<List<Message>> getRecentMessagesByAccountIdAsync(int accountId, int beforeId,
+            int limit) {
+        return READS.supply(DataSourceRouter
+                .withRequester(() -> getRecentMessagesByAccountId(accountId, beforeId, limit)));
+    }
+
+    /**
+     * @return whether message versions are real, and so fit for entity tags
+     */
+    public boolean keepsVersions() {
+        return messageDAO.keepsVersions();
+    }
+
+    public boolean isScanFileEnabled() {
+        return scanFile != null;
+    }
+
+    /**
+     * Streams every message as a JSON array from the memory-mapped scan file,
+     * without materialising Message objects. A failed scan leaves the array
+     * unended.
+     *
+     * @return the number of messages written
+     */
+    public long writeAllMessagesJson(OutputStream out) {
+        LOGGER.info("Streaming all messages from the scan file");
+        try {
+            MessageJsonWriter writer = new MessageJsonWriter(out);
+            scanFile.scan(0, writer::write);
+            // only a complete scan ends the array
+            writer.close();
+            LOGGER.info("Streamed {} messages", writer.getCount());
+            return writer.getCount();
+        } catch (IOException | Exception e) {
+            throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+        }
+    }
+
+    /**
+     * Streams the messages with from <= time_posted_epoch < to as a JSON
+     * array in time order, optionally only those posted by postedBy (0 for
+     * every account). A failed scan leaves the array unended.
+     *
+     * @return the number of messages written
+     */
+    public long writeMessagesInRangeJson(long from, long to, int postedBy, OutputStream out) {
+        LOGGER.info("Streaming messages posted from {} to {} by {}", from, to, postedBy);
+        try {
+            MessageJsonWriter writer = new MessageJsonWriter(out);
+            messageDAO.forEachMessageInRange(from, to, postedBy, message -> {
+                try {
+                    writer.write(message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            // only a complete scan ends the array
+            writer.close();
+            LOGGER.info("Streamed {} messages", writer.getCount());
+            return writer.getCount();
+        } catch (IOException | UncheckedIOException | Exception e) {
+            throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+        }
+    }
+
     public List<Message> getMessagesByAccountId(int accountId) {
         LOGGER.info("Fetching messages posted by ID account: {}", accountId);
+        List<Message> messages = canCoalesce()
+                ? accountReads.run(accountId, () -> fetchMessagesByAccountId(accountId))
+                : fetchMessagesByAccountId(accountId);
+        LOGGER.info("Fetched {} messages", messages.size());
+        return messages;
+    }
+
+    private List<Message> fetchMessagesByAccountId(int accountId) {
         try {
-            List<Message> messages = messageDAO.getMessagesByAccountId(accountId);
+            return messageDAO.getMessagesByAccountId(accountId);
+        } catch (Exception e) {
+            throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+        }
+    }
+
+    /**
+     * Up to limit of the account's messages with a message_id below beforeId,
+     * newest first. Served from the account's timeline ring when it holds
+     * enough history, otherwise from the store.
+     */
+    public List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+        LOGGER.info("Fetching {} recent messages posted by account {} before {}", limit, accountId, beforeId);
+        try {
+            List<Message> messages = timelines == null ? null : timelines.getRecent(accountId, beforeId, limit);
+            if (messages == null) {
+                messages = messageDAO.getRecentMessagesByAccountId(accountId, beforeId, limit);
+            }
             LOGGER.info("Fetched {} messages", messages.size());
             return messages;
         } catch (Exception e) {
@@ -61,7 +282,38 @@ public class MessageService {
         }
     }
 
+    /**
+     * Counters maintained on create and delete; never reads the store.
+     */
+    public MessageStats getAccountStats(int accountId) {
+        requireStats();
+        return stats.getAccountStats(accountId);
+    }
+
+    public MessageStats getGlobalStats() {
+        requireStats();
+        return stats.getGlobalStats();
+    }
+
+    private void requireStats() {
+        if (stats == null) {
+            throw new ExceptionService("Statistics are disabled");
+        }
+    }
+
     public Message createMessage(Message message, Optional<Account> account) {
+        return createMessage(message, account, null);
+    }
+
+    /**
+     * Creates the message unless the same post was created recently, in which
+     * case the original is returned. A post is the same if it carries the same
+     * idempotency key from the same account, or, without a key and with
+     * message.dedup.content, if it has the same poster, text and time. A
+     * duplicate of a post still being created gets 409; reusing a key for a
+     * message with another time gets 422.
+     */
+    public Message createMessage(Message message, Optional<Account> account, String idempotencyKey) {
         LOGGER.info("Creating message: {}", message);
 
         if (!account.isPresent()) {
@@ -71,53 +323,318 @@ public class MessageService {
         validateMessage(message);
 
         checkAccountPermission(account.get(), message.getPosted_by());
+        long dedupKey = dedupKey(message, idempotencyKey);
+        if (dedupKey != 0) {
+            Optional<Message> original = claimPost(dedupKey, message, idempotencyKey != null);
+            if (original.isPresent()) {
+                duplicatePosts.increment();
+                LOGGER.info("Returning message {} for a repeated post", original.get().getMessage_id());
+                return original.get();
+            }
+        }
         try {
-
-            Message createdMessage = messageDAO.insert(message);
+            // a unit of its own unless the caller's, so that replicated writes publish on commit
+            Message createdMessage = UnitOfWork.inTransaction(() -> {
+                Message created = messageDAO.insert(message);
+                UnitOfWork.afterCommit(() -> {
+                    if (dedupKey != 0) {
+                        recentPosts.replace(dedupKey, PENDING, created.getMessage_id());
+                    }
+                    forgetReads(created);
+                    if (scanFile != null) {
+                        scanFile.append(created);
+                    }
+                    if (timelines != null) {
+                        timelines.onCreate(created);
+                    }
+                    for (MessageListener listener : listeners) {
+                        listener.messageCreated(created, 0);
+                    }
+                });
+                return created;
+            });
             LOGGER.info("Created message: {}", createdMessage);
             return createdMessage;
         } catch (Exception e) {
+            if (dedupKey != 0) {
+                recentPosts.remove(dedupKey, PENDING);
+            }
             throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
         }
     }
 
+    /**
+     * @return the hash identifying repeats of the post, or 0 if repeats are
+     *         not looked for
+     */
+    private long dedupKey(Message message, String idempotencyKey) {
+        long hash;
+        if (recentPosts == null) {
+            return 0;
+        } else if (idempotencyKey != null) {
+            hash = Hashing.hash64("key\0" + message.getPosted_by() + "\0" + idempotencyKey);
+        } else if (dedupContent) {
+            hash = Hashing.hash64("post\0" + message.getPosted_by() + "\0" + message.getTime_posted_epoch()
+                    + "\0" + message.getMessage_text());
+        } else {
+            return 0;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Marks the post as being created, or finds the message an earlier post
+     * with the same key created. The mark is dropped if the creating unit of
+     * work rolls back; it expires with the window either way.
+     */
+    private Optional<Message> claimPost(long dedupKey, Message message, boolean keyed) {
+        while (true) {
+            int present = recentPosts.putIfAbsent(dedupKey, PENDING);
+            if (present == NOT_POSTED) {
+                UnitOfWork.afterRollback(() -> recentPosts.remove(dedupKey, PENDING));
+                return Optional.empty();
+            }
+            if (present == PENDING) {
+                throw new ConflictResponse("The same message is already being posted");
+            }
+            Optional<Message> original;
+            try {
+                original = messageDAO.getById(present);
+            } catch (Exception e) {
+                throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+            }
+            // the text may have been edited since; the poster and time cannot be
+            boolean samePoster = original.isPresent() && original.get().getPosted_by() == message.getPosted_by();
+            boolean sameTime = samePoster && original.get().getTime_posted_epoch() == message.getTime_posted_epoch();
+            if (sameTime && (keyed || original.get().getMessage_text().equals(message.getMessage_text()))) {
+                return original;
+            }
+            if (keyed && samePoster) {
+                throw new HttpResponseException(HttpStatus.UNPROCESSABLE_CONTENT.getCode(),
+                        "The Idempotency-Key was used for a different message");
+            }
+            // the original was deleted, or the hashes collided: post anew
+            if (recentPosts.replace(dedupKey, present, PENDING)) {
+                UnitOfWork.afterRollback(() -> recentPosts.remove(dedupKey, PENDING));
+                return Optional.empty();
+            }
+        }
+    }
+
     public Message updateMessage(Message message) {
-        LOGGER.info("Updating message: {}", message.getMessage_id());
+        return updateMessage(message, Optional.empty());
+    }
 
-        Optional<Message> retrievedMessage = this.getMessageById(message.getMessage_id());
+    /**
+     * Updates the message text. When the caller is known (e.g. resolved from a
+     * session token) only the account that posted the message may change it.
+     * The read and the write share one transaction.
+     */
+    public Message updateMessage(Message message, Optional<Account> caller) {
+        return updateMessage(message, caller, version -> true).getValue();
+    }
 
-        if (!retrievedMessage.isPresent()) {
-            throw new ExceptionService("Message not found");
+    /**
+     * As above, and only if ifMatch accepts the message's current version
+     * (the client's If-Match); otherwise 412. Updates of one message queue on
+     * a striped lock, so concurrent writers to a hot message take turns here
+     * instead of conflicting in the database. The write is still conditional
+     * on the version read, which protects against other processes: on a
+     * conflict the update is retried from a fresh read, and fails with 412
+     * if ifMatch no longer accepts it, or with 409 if the message is still
+     * changing after the last attempt.
+     *
+     * @return the updated message and its new version
+     */
+    public Versioned<Message> updateMessage(Message message, Optional<Account> caller, LongPredicate ifMatch) {
+        LOGGER.info("Updating message: {}", message.getMessage_id());
+        Runnable unlock = lockMessage(message.getMessage_id());
+        try {
+            for (int attempt = 1;; attempt++) {
+                Versioned<Message> updated = tryUpdate(message, caller, ifMatch);
+                if (updated != null) {
+                    return updated;
+                }
+                versionConflicts.increment();
+                if (attempt == MAX_UPDATE_ATTEMPTS) {
+                    throw new HttpResponseException(HttpStatus.CONFLICT.getCode(),
+                            "Message " + message.getMessage_id() + " kept changing");
+                }
+            }
+        } finally {
+            unlock.run();
         }
+    }
 
-        retrievedMessage.get().setMessage_text(message.getMessage_text());
-
-        validateMessage(retrievedMessage.get());
+    /**
+     * Takes the message's stripe lock, which orders the writes to one
+     * message and their listener calls. Inside a unit of work the lock is
+     * held until the unit has ended, since the listeners run after its
+     * commit.
+     *
+     * @return releases the lock, or does nothing when the unit will
+     */
+    private Runnable lockMessage(int messageId) {
+        if (updateLocks == null) {
+            return () -> {
+            };
+        }
+        ReentrantLock lock = updateLocks.forKey(messageId);
+        lock.lock();
+        if (!UnitOfWork.isActive()) {
+            return lock::unlock;
+        }
+        UnitOfWork.afterCompletion(lock::unlock);
+        return () -> {
+        };
+    }
 
+    /**
+     * @return null if the message changed between the read and the write
+     */
+    private Versioned<Message> tryUpdate(Message message, Optional<Account> caller, LongPredicate ifMatch) {
         try {
+            return UnitOfWork.inTransaction(() -> {
+                Optional<Versioned<Message>> retrievedMessage = fetchVersionedMessage(message.getMessage_id());
+
+                if (!retrievedMessage.isPresent()) {
+                    throw new ExceptionService("Message not found");
+                }
+                Message retrieved = retrievedMessage.get().getValue();
+                long version = retrievedMessage.get().getVersion();
 
-            messageDAO.update(retrievedMessage.get());
-            LOGGER.info("Updated message: {}", message);
-            return retrievedMessage.get();
+                if (caller.isPresent()) {
+                    checkAccountPermission(caller.get(), retrieved.getPosted_by());
+                }
+                if (!ifMatch.test(version)) {
+                    throw new HttpResponseException(HttpStatus.PRECONDITION_FAILED.getCode(),
+                            "Message " + retrieved.getMessage_id() + " has changed");
+                }
+
+                retrieved.setMessage_text(message.getMessage_text());
+
+                validateMessage(retrieved);
+
+                try {
+
+                    if (!messageDAO.update(retrieved, version)) {
+                        return null;
+                    }
+                    UnitOfWork.afterCommit(() -> {
+                        forgetReads(retrieved);
+                        if (scanFile != null) {
+                            scanFile.update(retrieved);
+                        }
+                        if (timelines != null) {
+                            timelines.onUpdate(retrieved);
+                        }
+                        for (MessageListener listener : listeners) {
+                            listener.messageUpdated(retrieved, version + 1);
+                        }
+                    });
+                    LOGGER.info("Updated message: {}", message);
+                    return new Versioned<>(retrieved, version + 1);
+                } catch (Exception e) {
+                    throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+                }
+            });
         } catch (Exception e) {
+            // the commit failed
             throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
         }
     }
 
+    /**
+     * Deletes the message under the same stripe lock as updates, so that the
+     * listeners hear of an update and a delete of one message in the order
+     * they committed.
+     */
     public void deleteMessage(Message message) {
         LOGGER.info("Deleting message: {}", message);
+        Runnable unlock = lockMessage(message.getMessage_id());
         try {
-            boolean hasDeletedMessage = messageDAO.delete(message);
-            if (hasDeletedMessage) {
-                LOGGER.info("Deleted message {}", message);
-            } else {
-                throw new NotFoundResponse("Message to delete not found");
-            }
+            UnitOfWork.inTransaction(() -> {
+                Optional<Versioned<Message>> current = listeners.isEmpty() ? Optional.empty()
+                        : messageDAO.getVersionedById(message.getMessage_id());
+                long version = current.map(Versioned::getVersion).orElse(-1L) + 1;
+                if (!messageDAO.delete(message)) {
+                    throw new NotFoundResponse("Message to delete not found");
+                }
+                UnitOfWork.afterCommit(() -> {
+                    forgetReads(message);
+                    if (scanFile != null) {
+                        scanFile.delete(message.getMessage_id());
+                    }
+                    if (timelines != null) {
+                        timelines.onDelete(message);
+                    }
+                    for (MessageListener listener : listeners) {
+                        listener.messageDeleted(message, version);
+                    }
+                });
+            });
+            LOGGER.info("Deleted message {}", message);
         } catch (Exception e) {
             throw new ExceptionService(DB_ACCESS_ERROR_MSG, e);
+        } finally {
+            unlock.run();
         }
     }
 
+    /**
+     * Reads may join another caller's flight only outside a unit of work,
+     * whose uncommitted writes the flight would not see and whose callers
+     * modify what they read, and only when the requester's own writes have
+     * reached every replica.
+     */
+    private boolean canCoalesce() {
+        if (!coalesce || UnitOfWork.isActive()) {
+            return false;
+        }
+        UnitOfWork.ConnectionSource source = UnitOfWork.getConnectionSource();
+        return !(source instanceof DataSourceRouter) || ((DataSourceRouter) source).requesterCaughtUp();
+    }
+
+    /**
+     * Another node wrote the message: forget its reads and its author's
+     * timeline here, and bring its scan file record up to date.
+     */
+    @Override
+    public void messageInvalidated(int messageId, int accountId) {
+        messageReads.forget(messageId);
+        accountInvalidated(accountId);
+        if (scanFile != null) {
+            scanFile.refresh(messageId);
+        }
+    }
+
+    @Override
+    public void accountInvalidated(int accountId) {
+        accountReads.forget(accountId);
+        if (timelines != null) {
+            timelines.invalidate(accountId);
+        }
+    }
+
+    @Override
+    public void allInvalidated() {
+        if (timelines != null) {
+            timelines.clear();
+        }
+        if (scanFile != null) {
+            scanFile.markStale();
+        }
+    }
+
+    /**
+     * Called after a write commits so later reads of the message and of its
+     * author's messages do not join a flight that started before it.
+     */
+    private void forgetReads(Message message) {
+        messageReads.forget(message.getMessage_id());
+        accountReads.forget(message.getPosted_by());
+    }
+
     private void validateMessage(Message message) {
         LOGGER.info("Validating message: {}", message);
         if (message.getMessage_text() == null || message.getMessage_text().trim().isEmpty()) {
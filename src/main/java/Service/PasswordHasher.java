@@ -0,0 +1,169 @@
+package Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Util.Config;
+
+/**
+ * PBKDF2 password hashing executed on a dedicated, size-capped executor so a
+ * burst of logins or registrations cannot occupy every request thread's CPU.
+ * When the executor queue is full work is rejected immediately instead of
+ * piling up behind the slow hash.
+ *
+ * Hashes are stored as {@code pbkdf2$<iterations>$<salt>$<hash>}. Any stored
+ * value without that prefix is treated as a legacy plaintext password, and
+ * {@link #needsRehash(String)} reports both legacy values and hashes whose
+ * iteration count differs from the current one.
+ *
+ * Tunables: password.hash.threads, password.hash.queue, password.hash.iterations
+ * (fixed cost) or password.hash.targetMillis (cost calibrated at startup).
+ */
+public class PasswordHasher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PasswordHasher.class);
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final int MIN_ITERATIONS = 1_000;
+    private static final int CALIBRATION_ITERATIONS = 20_000;
+
+    private static volatile PasswordHasher defaultInstance;
+
+    private final ThreadPoolExecutor executor;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    public PasswordHasher(int threads, int queueCapacity, int iterations) {
+        this.iterations = iterations;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "password-hasher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * The process-wide hasher. Calibration runs once, the first time it is
+     * requested, so every service instance shares the same executor and cost.
+     */
+    public static PasswordHasher getDefault() {
+        if (defaultInstance == null) {
+            synchronized (PasswordHasher.class) {
+                if (defaultInstance == null) {
+                    int threads = Config.getInt("password.hash.threads",
+                            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+                    int queue = Config.getInt("password.hash.queue", 64);
+                    int iterations = Config.getInt("password.hash.iterations", 0);
+                    if (iterations <= 0) {
+                        iterations = calibrate(Config.getLong("password.hash.targetMillis", 50));
+                    }
+                    LOGGER.info("Password hashing with {} iterations on {} threads (queue {})",
+                            iterations, threads, queue);
+                    defaultInstance = new PasswordHasher(threads, queue, iterations);
+                }
+            }
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Picks the iteration count that makes one hash take roughly targetMillis
+     * on this machine.
+     */
+    static int calibrate(long targetMillis) {
+        byte[] salt = new byte[SALT_BYTES];
+        char[] sample = "calibration-password".toCharArray();
+        // the first round only warms up the JIT
+        derive(sample, salt, CALIBRATION_ITERATIONS);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            derive(sample, salt, CALIBRATION_ITERATIONS);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double nanosPerIteration = (double) best / CALIBRATION_ITERATIONS;
+        long iterations = (long) (TimeUnit.MILLISECONDS.toNanos(targetMillis) / nanosPerIteration);
+        return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, iterations));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            byte[] hash = derive(password.toCharArray(), salt, iterations);
+            Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+            return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+        });
+    }
+
+    public CompletableFuture<Boolean> verify(String password, String stored) {
+        if (password == null || stored == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!stored.startsWith(PREFIX)) {
+            return CompletableFuture.completedFuture(MessageDigest.isEqual(
+                    password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8)));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return submit(() -> {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            byte[] actual = derive(password.toCharArray(), decoder.decode(parts[2]), Integer.parseInt(parts[1]));
+            return MessageDigest.isEqual(expected, actual);
+        });
+    }
+
+    public boolean needsRehash(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return true;
+        }
+        int end = stored.indexOf('$', PREFIX.length());
+        return end < 0 || !stored.substring(PREFIX.length(), end).equals(Integer.toString(iterations));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        try {
+            KeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new ExceptionService("Password hashing failed", e);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package Service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import DAO.MessageBase;
+import Model.Message;
+import Model.MessageStats;
+import Util.Config;
+import Util.Metrics;
+
+/**
+ * Message counts, first and last post times and posts per time bucket, for
+ * every account and overall, kept up to date by {@link MessageService} on
+ * create and delete so that reading them never touches the store.
+ *
+ * Counts are LongAdders, so concurrent creates do not contend. Buckets are
+ * rings of the most recent stats.accountBuckets (per account) or
+ * stats.globalBuckets (overall) buckets of stats.bucketSeconds each, keyed by
+ * time_posted_epoch; a bucket for a newer period replaces the slot's old one.
+ * Times ahead of the server clock count in the current bucket, so one post
+ * dated in the future cannot rotate the whole window away. First and last
+ * post times only move outwards on create; deleting the message at either
+ * end re-reads that end from the store's time index.
+ *
+ * Everything is rebuilt from one pass over the store when the service is
+ * created, and again in the background when a delete names an account with
+ * no counters. A recount starts collecting changes before its scan, builds
+ * new counters from the scan, replays the collected creates and deletes and
+ * swaps the counters in by reference. The replay goes by message id against
+ * the ids the scan counted, so a change the scan already saw is not counted
+ * again and a delete of a message it never saw takes nothing away.
+ */
+public class StatsService implements MessageListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatsService.class);
+
+    private final MessageBase messageDAO;
+    private final long bucketSeconds;
+    private final int accountBuckets;
+    private final int globalBuckets;
+    // held shared to change the counters and exclusively to swap them
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ExecutorService reconciler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stats-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean reconcileQueued = new AtomicBoolean();
+    private volatile Counters global;
+    private volatile Map<Integer, Counters> accounts = new ConcurrentHashMap<>();
+    // changes made while a recount runs, null otherwise
+    private volatile Queue<Change> pending;
+
+    public StatsService(MessageBase messageDAO, long bucketSeconds, int accountBuckets, int globalBuckets) {
+        this.messageDAO = messageDAO;
+        this.bucketSeconds = bucketSeconds;
+        this.accountBuckets = accountBuckets;
+        this.globalBuckets = globalBuckets;
+        this.global = new Counters(0, globalBuckets);
+        reconcile();
+        Metrics.gauge("stats.accounts", () -> accounts.size());
+    }
+
+    public static StatsService fromConfig(MessageBase messageDAO) {
+        return new StatsService(messageDAO,
+                Config.getLong("stats.bucketSeconds", 3600),
+                Config.getInt("stats.accountBuckets", 24),
+                Config.getInt("stats.globalBuckets", 168));
+    }
+
+    /**
+     * @return the account's statistics, all zero if it has no messages
+     */
+    public MessageStats getAccountStats(int accountId) {
+        Counters counters = accounts.get(accountId);
+        return counters == null ? new MessageStats(0, null, null, bucketSeconds, new TreeMap<>())
+                : counters.snapshot();
+    }
+
+    public MessageStats getGlobalStats() {
+        return global.snapshot();
+    }
+
+    @Override
+    public void messageCreated(Message message) {
+        swapLock.readLock().lock();
+        try {
+            add(global, accounts, message);
+            Queue<Change> changes = pending;
+            if (changes != null) {
+                changes.add(new Change(message, true));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void messageDeleted(Message message) {
+        long time = message.getTime_posted_epoch();
+        Counters overall;
+        Counters counters;
+        swapLock.readLock().lock();
+        try {
+            overall = global;
+            counters = accounts.get(message.getPosted_by());
+            if (counters == null) {
+                // the poster is unknown, so recount everything
+                reconcileLater();
+                return;
+            }
+            overall.remove(time);
+            counters.remove(time);
+            Queue<Change> changes = pending;
+            if (changes != null) {
+                changes.add(new Change(message, false));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        overall.refreshBounds(time);
+        counters.refreshBounds(time);
+    }
+
+    private void add(Counters overall, Map<Integer, Counters> byAccount, Message message) {
+        overall.add(message.getTime_posted_epoch());
+        byAccount.computeIfAbsent(message.getPosted_by(), id -> new Counters(id, accountBuckets))
+                .add(message.getTime_posted_epoch());
+    }
+
+    private void reconcileLater() {
+        if (reconcileQueued.compareAndSet(false, true)) {
+            reconciler.execute(() -> {
+                reconcileQueued.set(false);
+                try {
+                    reconcile();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unable to recount message statistics", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Recounts from the store.
+     */
+    public synchronized void reconcile() {
+        long start = System.nanoTime();
+        pending = new ConcurrentLinkedQueue<>();
+        Counters fresh = new Counters(0, globalBuckets);
+        Map<Integer, Counters> freshAccounts = new ConcurrentHashMap<>();
+        // ids of the messages the fresh counters include
+        BitSet counted = new BitSet();
+        try {
+            messageDAO.forEachMessage(message -> {
+                add(fresh, freshAccounts, message);
+                counted.set(message.getMessage_id());
+            });
+        } catch (RuntimeException e) {
+            pending = null;
+            throw e;
+        }
+        List<Message> deleted = new ArrayList<>();
+        int replayed = 0;
+        swapLock.writeLock().lock();
+        try {
+            for (Change change : pending) {
+                int id = change.message.getMessage_id();
+                if (change.created) {
+                    if (!counted.get(id)) {
+                        add(fresh, freshAccounts, change.message);
+                        counted.set(id);
+                    }
+                } else if (counted.get(id)) {
+                    counted.clear(id);
+                    fresh.remove(change.message.getTime_posted_epoch());
+                    freshAccounts.get(change.message.getPosted_by()).remove(change.message.getTime_posted_epoch());
+                    deleted.add(change.message);
+                }
+                replayed++;
+            }
+            global = fresh;
+            accounts = freshAccounts;
+            pending = null;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        // the scan may have taken an end from a message deleted since
+        for (Message message : deleted) {
+            fresh.refreshBounds(message.getTime_posted_epoch());
+            freshAccounts.get(message.getPosted_by()).refreshBounds(message.getTime_posted_epoch());
+        }
+        LOGGER.info("Counted {} messages from {} accounts in {} ms, replaying {} changes", fresh.count.sum(),
+                freshAccounts.size(), (System.nanoTime() - start) / 1_000_000, replayed);
+    }
+
+    private static final class Change {
+        final Message message;
+        final boolean created;
+
+        Change(Message message, boolean created) {
+            this.message = message;
+            this.created = created;
+        }
+    }
+
+    private static final class Bucket {
+        final long index;
+        final LongAdder count = new LongAdder();
+
+        Bucket(long index) {
+            this.index = index;
+        }
+    }
+
+    private final class Counters {
+        final int accountId;
+        final LongAdder count = new LongAdder();
+        final AtomicReferenceArray<Bucket> buckets;
+        // guarded by this
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        // the outermost times added since the ends were last read from the store
+        long addedFirst = Long.MAX_VALUE;
+        long addedLast = Long.MIN_VALUE;
+
+        Counters(int accountId, int bucketCount) {
+            this.accountId = accountId;
+            this.buckets = new AtomicReferenceArray<>(bucketCount);
+        }
+
+        void add(long time) {
+            count.increment();
+            addToBucket(time, 1);
+            synchronized (this) {
+                first = Math.min(first, time);
+                last = Math.max(last, time);
+                addedFirst = Math.min(addedFirst, time);
+                addedLast = Math.max(addedLast, time);
+            }
+        }
+
+        void remove(long time) {
+            count.decrement();
+            addToBucket(time, -1);
+        }
+
+        /**
+         * Re-reads the ends from the store if the removed time was one of
+         * them, without holding the monitor during the query.
+         */
+        void refreshBounds(long removedTime) {
+            synchronized (this) {
+                if (removedTime != first && removedTime != last) {
+                    return;
+                }
+                addedFirst = Long.MAX_VALUE;
+                addedLast = Long.MIN_VALUE;
+            }
+            long[] bounds = messageDAO.getPostTimeBounds(accountId);
+            synchronized (this) {
+                first = Math.min(bounds == null ? Long.MAX_VALUE : bounds[0], addedFirst);
+                last = Math.max(bounds == null ? Long.MIN_VALUE : bounds[1], addedLast);
+            }
+        }
+
+        private void addToBucket(long time, int delta) {
+            // a post dated in the future counts now rather than rotating the ring ahead
+            long index = Math.floorDiv(Math.min(time, System.currentTimeMillis() / 1000), bucketSeconds);
+            int slot = (int) Math.floorMod(index, (long) buckets.length());
+            while (true) {
+                Bucket bucket = buckets.get(slot);
+                if (bucket != null && bucket.index == index) {
+                    bucket.count.add(delta);
+                    return;
+                }
+                if (delta < 0 || (bucket != null && bucket.index > index)) {
+                    // the period has already rolled out of the ring
+                    return;
+                }
+                buckets.compareAndSet(slot, bucket, new Bucket(index));
+            }
+        }
+
+        MessageStats snapshot() {
+            long newest = Long.MIN_VALUE;
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                if (bucket != null) {
+                    newest = Math.max(newest, bucket.index);
+                }
+            }
+            Map<Long, Long> counts = new TreeMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                long sum = bucket == null ? 0 : bucket.count.sum();
+                if (sum > 0 && bucket.index > newest - buckets.length()) {
+                    counts.put(bucket.index * bucketSeconds, sum);
+                }
+            }
+            long total = count.sum();
+            synchronized (this) {
+                return new MessageStats(total, total > 0 ? first : null, total > 0 ? last : null, bucketSeconds,
+                        counts);
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import DAO.MessageBase;
+import DAO.UnitOfWork;
+import Model.Message;
+import Util.Config;
+import Util.Metrics;
+
+/**
+ * In-memory rings of each account's most recent messages, so the common
+ * "latest N" timeline query is answered without the database.
+ *
+ * A ring stores up to capacity messages in parallel primitive arrays (ids and
+ * times) plus the texts, and is loaded from the store the first time the
+ * account is asked for. MessageService keeps loaded rings current on create,
+ * update and delete. A page that reaches past what the ring holds returns
+ * null, and the caller goes to the store instead.
+ *
+ * Memory is bounded: at most timeline.maxAccounts rings (least recently used
+ * evicted) of timeline.capacity slots each. The estimated heap held by the
+ * rings and the per-account bound are reported through {@link Metrics}.
+ *
+ * Loads race with writes, so every write bumps a per-stripe version before it
+ * looks for the ring, and a load only installs its ring if the version of the
+ * account's stripe did not move while it read the store.
+ */
+public class TimelineCache {
+
+    private static final int STRIPES = 64;
+    // array header plus fields of a String and its byte[], for the estimate
+    private static final int STRING_OVERHEAD = 40;
+    // int id, long time and a compressed reference to the text per slot
+    private static final int SLOT_BYTES = 16;
+    private static final int RING_OVERHEAD = 3 * 16 + 32;
+
+    private final MessageBase messageDAO;
+    private final int capacity;
+    private final int maxAccounts;
+    private final Map<Integer, Ring> rings;
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = Metrics.counter("timeline.hits");
+    private final LongAdder misses = Metrics.counter("timeline.misses");
+    private final LongAdder loads = Metrics.counter("timeline.loads");
+
+    public TimelineCache(MessageBase messageDAO, int capacity, int maxAccounts) {
+        this.messageDAO = messageDAO;
+        this.capacity = capacity;
+        this.maxAccounts = maxAccounts;
+        this.rings = new LinkedHashMap<Integer, Ring>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Ring> eldest) {
+                return size() > TimelineCache.this.maxAccounts;
+            }
+        };
+        Metrics.gauge("timeline.accounts", this::size);
+        Metrics.gauge("timeline.bytes", this::getBytes);
+        Metrics.gauge("timeline.capacity", () -> capacity);
+        Metrics.gauge("timeline.maxBytesPerAccount", this::maxBytesPerAccount);
+    }
+
+    public static TimelineCache fromConfig(MessageBase messageDAO) {
+        return new TimelineCache(messageDAO,
+                Config.getInt("timeline.capacity", 64),
+                Config.getInt("timeline.maxAccounts", 10_000));
+    }
+
+    /**
+     * @return up to limit messages below beforeId, newest first, or null if
+     *         the ring does not hold enough history for the page
+     */
+    public List<Message> getRecent(int accountId, int beforeId, int limit) {
+        Ring ring = ring(accountId);
+        List<Message> page = ring == null ? null : ring.page(accountId, beforeId, limit);
+        (page == null ? misses : hits).increment();
+        return page;
+    }
+
+    public void onCreate(Message message) {
+        Ring ring = ringForWrite(message.getPosted_by());
+        if (ring != null) {
+            ring.append(message.getMessage_id(), message.getTime_posted_epoch(), message.getMessage_text());
+        }
+    }
+
+    public void onUpdate(Message message) {
+        Ring ring = ringForWrite(message.getPosted_by());
+        if (ring != null) {
+            ring.replace(message.getMessage_id(), message.getMessage_text());
+        }
+    }
+
+    public void onDelete(Message message) {
+        if (message.getPosted_by() <= 0) {
+            // the poster is unknown, so no ring can be trusted
+            clear();
+            return;
+        }
+        Ring ring = ringForWrite(message.getPosted_by());
+        if (ring != null) {
+            ring.remove(message.getMessage_id());
+        }
+    }
+
+    /**
+     * Drops the account's ring, for a write this cache did not see; the next
+     * read loads it again. An unknown account drops every ring.
+     */
+    public void invalidate(int accountId) {
+        if (accountId <= 0) {
+            clear();
+            return;
+        }
+        synchronized (rings) {
+            versions.incrementAndGet(accountId & (STRIPES - 1));
+            rings.remove(accountId);
+        }
+    }
+
+    public void clear() {
+        synchronized (rings) {
+            for (int i = 0; i < STRIPES; i++) {
+                versions.incrementAndGet(i);
+            }
+            rings.clear();
+        }
+    }
+
+    public long size() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    /**
+     * Estimated heap held by all rings, summed on demand.
+     */
+    public long getBytes() {
+        List<Ring> snapshot;
+        synchronized (rings) {
+            snapshot = new ArrayList<>(rings.values());
+        }
+        long total = 0;
+        for (Ring ring : snapshot) {
+            total += ring.bytes();
+        }
+        return total;
+    }
+
+    /**
+     * Upper bound on one account's share, with every slot holding a
+     * maximum-length message of two-byte characters.
+     */
+    public long maxBytesPerAccount() {
+        return RING_OVERHEAD + (long) capacity * (SLOT_BYTES + STRING_OVERHEAD + 2 * 254);
+    }
+
+    private Ring ringForWrite(int accountId) {
+        int stripe = accountId & (STRIPES - 1);
+        synchronized (rings) {
+            versions.incrementAndGet(stripe);
+            return rings.get(accountId);
+        }
+    }
+
+    private Ring ring(int accountId) {
+        int stripe = accountId & (STRIPES - 1);
+        long version;
+        synchronized (rings) {
+            Ring ring = rings.get(accountId);
+            if (ring != null) {
+                return ring;
+            }
+            version = versions.get(stripe);
+        }
+        // one more than the capacity tells whether the ring holds everything;
+        // from the primary, as a replica may lack writes already applied here
+        List<Message> newest = UnitOfWork.readPrimary(
+                () -> messageDAO.getRecentMessagesByAccountId(accountId, Integer.MAX_VALUE, capacity + 1));
+        loads.increment();
+        Ring loaded = new Ring(capacity);
+        for (int i = Math.min(newest.size(), capacity) - 1; i >= 0; i--) {
+            Message message = newest.get(i);
+            loaded.append(message.getMessage_id(), message.getTime_posted_epoch(), message.getMessage_text());
+        }
+        loaded.complete = newest.size() <= capacity;
+        synchronized (rings) {
+            if (versions.get(stripe) != version) {
+                // a write to this stripe may be missing from what was read
+                return null;
+            }
+            Ring raced = rings.get(accountId);
+            if (raced != null) {
+                return raced;
+            }
+            rings.put(accountId, loaded);
+            return loaded;
+        }
+    }
+
+    private static long estimate(String text) {
+        return text == null ? 0 : STRING_OVERHEAD + 2L * text.length();
+    }
+
+    /**
+     * Fixed-size ring, oldest to newest from (head - size) to head - 1.
+     */
+    private static final class Ring {
+        final int[] ids;
+        final long[] times;
+        final String[] texts;
+        int head;
+        int size;
+        // true while the ring holds every message the account has
+        boolean complete = true;
+        long textBytes;
+
+        Ring(int capacity) {
+            ids = new int[capacity];
+            times = new long[capacity];
+            texts = new String[capacity];
+        }
+
+        synchronized long bytes() {
+            return RING_OVERHEAD + (long) ids.length * SLOT_BYTES + textBytes;
+        }
+
+        private int slot(int age) {
+            // age 0 is the newest entry
+            int index = head - 1 - age;
+            return index < 0 ? index + ids.length : index;
+        }
+
+        private int find(int id) {
+            for (int age = 0; age < size; age++) {
+                if (ids[slot(age)] == id) {
+                    return age;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Inserts the message in id order. Usually it is the newest, but
+         * commits can finish out of id order and other nodes allocate ids
+         * from their own blocks.
+         */
+        synchronized void append(int id, long time, String text) {
+            int newer = 0;
+            while (newer < size && ids[slot(newer)] > id) {
+                newer++;
+            }
+            if (newer < size && ids[slot(newer)] == id) {
+                // already here (a load saw it first)
+                return;
+            }
+            if (size == ids.length) {
+                complete = false;
+                if (newer == size) {
+                    // older than everything the ring keeps
+                    return;
+                }
+                // drop the oldest, which sits in the slot the head moves over
+                textBytes -= estimate(texts[head]);
+                size--;
+            }
+            head = head + 1 == ids.length ? 0 : head + 1;
+            size++;
+            // move the newer entries one slot towards the head
+            for (int age = 0; age < newer; age++) {
+                int to = slot(age);
+                int from = slot(age + 1);
+                ids[to] = ids[from];
+                times[to] = times[from];
+                texts[to] = texts[from];
+            }
+            int slot = slot(newer);
+            ids[slot] = id;
+            times[slot] = time;
+            texts[slot] = text;
+            textBytes += estimate(text);
+        }
+
+        synchronized void replace(int id, String text) {
+            int age = find(id);
+            if (age < 0) {
+                return;
+            }
+            int slot = slot(age);
+            long delta = estimate(text) - estimate(texts[slot]);
+            texts[slot] = text;
+            textBytes += delta;
+        }
+
+        synchronized void remove(int id) {
+            int age = find(id);
+            if (age < 0) {
+                return;
+            }
+            long delta = -estimate(texts[slot(age)]);
+            // shift the newer entries one slot towards the oldest
+            for (int a = age; a > 0; a--) {
+                int to = slot(a);
+                int from = slot(a - 1);
+                ids[to] = ids[from];
+                times[to] = times[from];
+                texts[to] = texts[from];
+            }
+            head = head == 0 ? ids.length - 1 : head - 1;
+            texts[head] = null;
+            size--;
+            textBytes += delta;
+        }
+
+        synchronized List<Message> page(int accountId, int beforeId, int limit) {
+            List<Message> page = new ArrayList<>(Math.min(limit, size));
+            for (int age = 0; age < size && page.size() < limit; age++) {
+                int slot = slot(age);
+                if (ids[slot] < beforeId) {
+                    page.add(new Message(ids[slot], accountId, texts[slot], times[slot]));
+                }
+            }
+            return page.size() == limit || complete ? page : null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Optional;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Model.Account;
+import Util.Config;
+
+/**
+ * Issues and verifies compact, self-contained session tokens so authenticated
+ * endpoints can resolve the caller without a database round trip.
+ *
+ * A token is {@code base64url(payload) + "." + base64url(hmac)} where the
+ * payload holds the account id, the expiry (epoch seconds) and the username.
+ * The HMAC-SHA256 key comes from {@code auth.token.secret} (base64) so that
+ * several nodes can share it; when unset a random per-process key is used.
+ */
+public class TokenService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TokenService.class);
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    // Mac instances are not thread safe, so each request thread keeps its own
+    private final ThreadLocal<Mac> macs;
+
+    public TokenService() {
+        this(loadSecret(), Config.getLong("auth.token.ttlSeconds", 3600));
+    }
+
+    public TokenService(byte[] secret, long ttlSeconds) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlSeconds = ttlSeconds;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    public String issueToken(Account account) {
+        byte[] username = account.getUsername().getBytes(StandardCharsets.UTF_8);
+        long expiresAt = System.currentTimeMillis() / 1000 + ttlSeconds;
+        byte[] payload = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + username.length)
+                .putInt(account.getAccount_id())
+                .putLong(expiresAt)
+                .put(username)
+                .array();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * @return the account named by the token, without its password, or empty
+     *         if the token is malformed, forged or expired
+     */
+    public Optional<Account> verifyToken(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot == token.length() - 1) {
+            return Optional.empty();
+        }
+        try {
+            byte[] payload = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            if (payload.length < Integer.BYTES + Long.BYTES
+                    || !MessageDigest.isEqual(signature, sign(payload))) {
+                LOGGER.info("Rejected token with invalid signature");
+                return Optional.empty();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int accountId = buffer.getInt();
+            long expiresAt = buffer.getLong();
+            if (expiresAt < System.currentTimeMillis() / 1000) {
+                LOGGER.info("Rejected expired token for account {}", accountId);
+                return Optional.empty();
+            }
+            String username = new String(payload, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+            return Optional.of(new Account(accountId, username, null));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new ExceptionService("Unable to initialise token signing", e);
+        }
+    }
+
+    private static byte[] loadSecret() {
+        String configured = Config.getString("auth.token.secret", null);
+        if (configured != null) {
+            return Base64.getDecoder().decode(configured);
+        }
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+}
@@ -0,0 +1,172 @@
+package Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import DAO.AccountDAO;
+import Util.BloomFilter;
+import Util.Config;
+import Util.Metrics;
+
+/**
+ * Bloom filter of every username in the account table, so that logins and
+ * registrations for names that do not exist are answered without a query.
+ * A false answer from {@link #mightExist} is definite; true still has to be
+ * confirmed by the database.
+ *
+ * The filter is built by scanning the table when the service starts and
+ * AccountService adds each new username twice: before the insert, so the
+ * name is known as soon as it can be committed, and again after commit, so a
+ * rebuild that scanned before the commit still receives it. A rebuild routes
+ * adds to both the old and the new filter until it swaps them.
+ *
+ * Deleted names cannot be removed and stay as false positives. The filter is
+ * rebuilt in the background when deletes pass a quarter of the names or when
+ * more names were added than it was sized for. If a scan fails, the filter
+ * answers true for every name until a later rebuild succeeds.
+ *
+ * Only this process's writes are seen, plus those of other nodes when an
+ * {@link InvalidationBus} hands them to AccountService: accounts inserted
+ * directly into the database are missed until the next rebuild or restart.
+ * A miss would then turn away an account another node created, so with
+ * cluster.nodes above 1 the filter is only used when invalidation.enabled is
+ * set too. Tunables: account.filter.enabled, account.filter.expected and
+ * account.filter.falsePositiveRate.
+ */
+public class UsernameFilter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UsernameFilter.class);
+
+    private final AccountDAO accountDao;
+    private final long expected;
+    private final double falsePositiveRate;
+    private volatile BloomFilter filter;
+    private volatile BloomFilter building;
+    private volatile long capacity;
+    private final AtomicLong names = new AtomicLong();
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final LongAdder negatives = Metrics.counter("account.filter.negatives");
+    private final LongAdder falsePositives = Metrics.counter("account.filter.falsePositives");
+
+    public UsernameFilter(AccountDAO accountDao, long expected, double falsePositiveRate) {
+        this.accountDao = accountDao;
+        this.expected = expected;
+        this.falsePositiveRate = falsePositiveRate;
+        Metrics.gauge("account.filter.bytes", () -> {
+            BloomFilter current = filter;
+            return current == null ? 0 : current.sizeInBytes();
+        });
+        Metrics.gauge("account.filter.names", names::get);
+    }
+
+    /**
+     * @return a loaded filter, or null when account.filter.enabled is false
+     *         or other nodes write accounts this one does not hear about
+     */
+    public static UsernameFilter fromConfig(AccountDAO accountDao) {
+        if (!Config.getBoolean("account.filter.enabled", true)) {
+            return null;
+        }
+        if (Config.getInt("cluster.nodes", 1) > 1 && !Config.getBoolean("invalidation.enabled", false)) {
+            LOGGER.info("Other nodes' accounts are not invalidated here; usernames are looked up in the database");
+            return null;
+        }
+        UsernameFilter usernames = new UsernameFilter(accountDao,
+                Config.getLong("account.filter.expected", 1_000_000),
+                Double.parseDouble(Config.getString("account.filter.falsePositiveRate", "0.01")));
+        usernames.rebuild();
+        return usernames;
+    }
+
+    /**
+     * @return false if no account has the username
+     */
+    public boolean mightExist(String username) {
+        BloomFilter current = filter;
+        if (current == null || current.mightContain(username)) {
+            return true;
+        }
+        negatives.increment();
+        return false;
+    }
+
+    public void add(String username) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(username);
+        }
+        BloomFilter next = building;
+        if (next != null) {
+            next.add(username);
+        }
+        if (names.incrementAndGet() > capacity) {
+            rebuildInBackground();
+        }
+    }
+
+    public void removed() {
+        if (removed.incrementAndGet() > names.get() / 4) {
+            rebuildInBackground();
+        }
+    }
+
+    /**
+     * Records that the filter let through a name the database did not have.
+     */
+    public void falsePositive() {
+        falsePositives.increment();
+    }
+
+    /**
+     * Scans the account table into a new filter and swaps it in. Sized for
+     * twice the names last seen, or account.filter.expected if larger; a
+     * scan that finds more names than that is run again at the new size.
+     */
+    public synchronized void rebuild() {
+        try {
+            long size = Math.max(expected, 2 * names.get());
+            long count;
+            while (true) {
+                BloomFilter next = BloomFilter.create(size, falsePositiveRate);
+                building = next;
+                AtomicLong scanned = new AtomicLong();
+                accountDao.forEachUsername((username, id) -> {
+                    next.add(username);
+                    scanned.incrementAndGet();
+                });
+                count = scanned.get();
+                if (count <= size) {
+                    filter = next;
+                    break;
+                }
+                size = 2 * count;
+            }
+            capacity = size;
+            names.set(count);
+            removed.set(0);
+            LOGGER.info("Loaded {} usernames into a {} byte filter", count, filter.sizeInBytes());
+        } catch (RuntimeException e) {
+            filter = null;
+            LOGGER.warn("Loading usernames failed; every name will be looked up", e);
+        } finally {
+            building = null;
+        }
+    }
+
+    private void rebuildInBackground() {
+        if (rebuilding.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    rebuild();
+                } finally {
+                    rebuilding.set(false);
+                }
+            });
+        }
+    }
+}
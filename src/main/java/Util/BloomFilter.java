@@ -0,0 +1,97 @@
+package Util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over strings in a single array of longs. {@link #mightContain}
+ * never answers false for a string that was added; it answers true for a
+ * string that was not with about the false positive rate the filter was
+ * sized for, as long as no more than the expected number of strings are
+ * added.
+ *
+ * The k bit positions are derived from one 64-bit hash of the string
+ * (h1 + i * h2, Kirsch and Mitzenmacher). Bits are set with compare-and-set,
+ * so adds and lookups may run concurrently without a lock. Strings cannot be
+ * removed.
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+
+    private BloomFilter(long bits, int hashes) {
+        long words = (bits + 63) >>> 6;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter of " + bits + " bits is too large");
+        }
+        this.words = new AtomicLongArray((int) words);
+        this.bits = words << 6;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Sizes a filter for the expected number of strings: m = -n ln p / (ln 2)^2
+     * bits and k = m / n ln 2 hashes.
+     */
+    public static BloomFilter create(long expected, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        long n = Math.max(1, expected);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        return new BloomFilter(Math.max(64, bits), hashes);
+    }
+
+    public void add(String value) {
+        long hash = Hashing.hash64(value);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = Hashing.hash64(value);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitCount() {
+        return bits;
+    }
+
+    public int hashCount() {
+        return hashes;
+    }
+
+    /**
+     * @return the bytes held by the bit array
+     */
+    public long sizeInBytes() {
+        return bits / 8;
+    }
+
+    /**
+     * @return the false positive rate expected with the given number of
+     *         strings added, (1 - e^(-kn/m))^k
+     */
+    public double expectedFalsePositiveRate(long added) {
+        return Math.pow(1 - Math.exp(-hashes * (double) added / bits), hashes);
+    }
+}
@@ -0,0 +1,568 @@
+package Util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import DAO.BulkDAO;
+import DAO.IdAllocator;
+import Model.Account;
+import Model.Message;
+
+/**
+ * Offline bulk import and export of accounts and messages, for moving
+ * history in or out without replaying it through the API. Commands are run
+ * in the order given, each followed by its file:
+ *
+ * <pre>
+ *   import-accounts FILE   account_id (optional), username, password
+ *   import-messages FILE   message_id (optional), posted_by, message_text,
+ *                          time_posted_epoch
+ *   export-accounts FILE
+ *   export-messages FILE
+ * </pre>
+ *
+ * For example:
+ *
+ * <pre>
+ *   mvn compile exec:java -Dexec.mainClass=Util.BulkTool \
+ *       -Dexec.args="import-accounts accounts.csv import-messages messages.jsonl"
+ * </pre>
+ *
+ * Files are CSV with a header row or JSON lines, by extension
+ * ({@link RecordFormat}). One thread reads records, bulk.threads threads
+ * parse and validate them in chunks of bulk.batchSize, and the calling
+ * thread inserts each chunk, in file order, as one JDBC batch and commit
+ * through {@link BulkDAO}. A message file estimated (at ~64 bytes a record)
+ * to hold at least bulk.deferIndexesPercent percent of the table's rows has
+ * its indexes and posted_by check deferred to the end; a smaller one is
+ * checked and indexed row by row rather than paying for a pass over the
+ * whole table. Progress is logged every bulk.progressSeconds.
+ *
+ * Rows get the checks the API would make (non-blank usernames and texts,
+ * texts of at most 254 characters, unique usernames, posters that exist);
+ * a row that fails one is logged with its record number and skipped, and
+ * the tool exits with status 1. Ids are kept when a file has them, so
+ * messages can refer to imported accounts, and must then be on every row
+ * and above the table's current ids, which the id allocator and the
+ * table's identity column then skip; otherwise ids are allocated. Passwords
+ * are stored as given: an exported hash keeps working, and a plain password
+ * is treated as a legacy one and hashed at the account's first login.
+ * Exports include the password hashes.
+ *
+ * Messages are read and written in the H2 message table, so the message
+ * commands refuse to run unless message.store is "jdbc"; the log and
+ * sharded stores would never see the imported rows.
+ *
+ * The server must not be running. Nothing is published to the change log or
+ * to other nodes, so restart any running nodes afterwards.
+ */
+public class BulkTool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkTool.class);
+
+    static final String[] ACCOUNT_COLUMNS = { "account_id", "username", "password" };
+    static final String[] MESSAGE_COLUMNS = { "message_id", "posted_by", "message_text", "time_posted_epoch" };
+    private static final int MAX_TEXT_LENGTH = 254;
+    private static final int MAX_USERNAME_LENGTH = 255;
+    private static final int LOGGED_REJECTIONS = 20;
+    private static final int ESTIMATED_RECORD_BYTES = 64;
+    private static final LongAdder DEFERRED_LOADS = Metrics.counter("bulk.messages.deferredLoads");
+
+    private final int threads = Config.getInt("bulk.threads", Runtime.getRuntime().availableProcessors());
+    private final int batchSize = Config.getInt("bulk.batchSize", 10_000);
+    private final long progressSeconds = Config.getLong("bulk.progressSeconds", 5);
+    private final int deferIndexesPercent = Config.getInt("bulk.deferIndexesPercent", 10);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "Expected pairs of import-accounts, import-messages, export-accounts or export-messages and a file");
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            if (args[i].endsWith("-messages")) {
+                // before any command runs, rather than after the accounts
+                requireJdbcMessageStore();
+            }
+        }
+        BulkTool tool = new BulkTool();
+        long rejected = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            Path file = Paths.get(args[i + 1]);
+            Result result;
+            switch (args[i]) {
+                case "import-accounts":
+                    result = tool.importAccounts(file);
+                    break;
+                case "import-messages":
+                    result = tool.importMessages(file);
+                    break;
+                case "export-accounts":
+                    result = tool.exportAccounts(file);
+                    break;
+                case "export-messages":
+                    result = tool.exportMessages(file);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command " + args[i]);
+            }
+            rejected += result.rejected;
+        }
+        if (rejected > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * What a command did: rows written, rows skipped and how long it took.
+     */
+    public static final class Result {
+        public final long written;
+        public final long rejected;
+        public final long nanos;
+
+        Result(long written, long rejected, long nanos) {
+            this.written = written;
+            this.rejected = rejected;
+            this.nanos = nanos;
+        }
+
+        public double perSecond() {
+            return written / Math.max(1e-9, nanos / 1e9);
+        }
+    }
+
+    public Result importAccounts(Path file) throws IOException {
+        try (BulkDAO dao = new BulkDAO()) {
+            Set<String> usernames = dao.usernames();
+            Ids ids = new Ids("account", "account_id", dao.maxId("account", "account_id"), batchSize);
+            return finishing(() -> load(file, "accounts", ACCOUNT_COLUMNS, values -> {
+                int id = optionalInt(values[0], "account_id");
+                String username = required(values[1], "username");
+                String password = required(values[2], "password");
+                if (username.trim().isEmpty()) {
+                    throw new IllegalArgumentException("username is blank");
+                }
+                if (username.length() > MAX_USERNAME_LENGTH || password.length() > MAX_USERNAME_LENGTH) {
+                    throw new IllegalArgumentException("username or password is longer than 255 characters");
+                }
+                return new Account(id, username, password);
+            }, (accounts, records, rejections) -> {
+                List<Account> accepted = new ArrayList<>(accounts.size());
+                for (int i = 0; i < accounts.size(); i++) {
+                    Account account = accounts.get(i);
+                    String problem = ids.check(account.getAccount_id());
+                    if (problem == null && !usernames.add(account.getUsername())) {
+                        problem = "username " + account.getUsername() + " already exists";
+                    }
+                    if (problem != null) {
+                        rejections.add("record " + records[i] + ": " + problem);
+                        continue;
+                    }
+                    accepted.add(new Account(ids.assign(account.getAccount_id()), account.getUsername(),
+                            account.getPassword()));
+                }
+                dao.insertAccounts(accepted);
+                return accepted.size();
+            }), ids::reserveGiven);
+        }
+    }
+
+    public Result importMessages(Path file) throws IOException {
+        requireJdbcMessageStore();
+        try (BulkDAO dao = new BulkDAO()) {
+            IntSet accounts = dao.accountIds();
+            Ids ids = new Ids("message", "message_id", dao.maxId("message", "message_id"), batchSize);
+            // an interrupted load left the indexes and the check off, so finish it either way
+            long estimated = (Files.size(file) + ESTIMATED_RECORD_BYTES - 1) / ESTIMATED_RECORD_BYTES;
+            boolean deferred = dao.messageLoadInterrupted()
+                    || estimated * 100 >= dao.count("message") * deferIndexesPercent;
+            if (deferred) {
+                DEFERRED_LOADS.increment();
+                dao.beginMessageLoad();
+            }
+            return finishing(() -> load(file, "messages", MESSAGE_COLUMNS, values -> {
+                int id = optionalInt(values[0], "message_id");
+                int postedBy = Integer.parseInt(required(values[1], "posted_by"));
+                String text = required(values[2], "message_text");
+                long time = Long.parseLong(required(values[3], "time_posted_epoch"));
+                if (text.trim().isEmpty() || text.length() > MAX_TEXT_LENGTH) {
+                    throw new IllegalArgumentException("message_text is blank or longer than 254 characters");
+                }
+                // read only, so the parsing threads may share it
+                if (!accounts.contains(postedBy)) {
+                    throw new IllegalArgumentException("account " + postedBy + " does not exist");
+                }
+                return new Message(id, postedBy, text, time);
+            }, (messages, records, rejections) -> {
+                List<Message> accepted = new ArrayList<>(messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    Message message = messages.get(i);
+                    String problem = ids.check(message.getMessage_id());
+                    if (problem != null) {
+                        rejections.add("record " + records[i] + ": " + problem);
+                        continue;
+                    }
+                    accepted.add(new Message(ids.assign(message.getMessage_id()), message.getPosted_by(),
+                            message.getMessage_text(), message.getTime_posted_epoch()));
+                }
+                dao.insertMessages(accepted);
+                return accepted.size();
+            }), () -> {
+                if (deferred) {
+                    dao.finishMessageLoad();
+                }
+                ids.reserveGiven();
+            });
+        }
+    }
+
+    public Result exportAccounts(Path file) throws IOException {
+        try (BulkDAO dao = new BulkDAO()) {
+            return dump(file, "accounts", ACCOUNT_COLUMNS, (format, out) -> dao.forEachAccount(account -> format
+                    .append(out.next(), ACCOUNT_COLUMNS, new Object[] { account.getAccount_id(),
+                            account.getUsername(), account.getPassword() })));
+        }
+    }
+
+    public Result exportMessages(Path file) throws IOException {
+        requireJdbcMessageStore();
+        try (BulkDAO dao = new BulkDAO()) {
+            return dump(file, "messages", MESSAGE_COLUMNS, (format, out) -> dao.forEachMessage(message -> format
+                    .append(out.next(), MESSAGE_COLUMNS, new Object[] { message.getMessage_id(),
+                            message.getPosted_by(), message.getMessage_text(), message.getTime_posted_epoch() })));
+        }
+    }
+
+    private interface Import {
+        Result run() throws IOException;
+    }
+
+    /**
+     * Runs the cleanup after the import whether or not it succeeds; when
+     * both fail, the cleanup's failure is attached to the import's.
+     */
+    private static Result finishing(Import load, Runnable cleanup) throws IOException {
+        Result result;
+        try {
+            result = load.run();
+        } catch (IOException | RuntimeException e) {
+            try {
+                cleanup.run();
+            } catch (RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        cleanup.run();
+        return result;
+    }
+
+    /**
+     * Checks rows inserted by the calling thread for the file's id mode
+     * (every row has an id or none has) and hands out ids.
+     */
+    private static final class Ids {
+        private static final int UNKNOWN = 0;
+        private static final int GIVEN = 1;
+        private static final int ALLOCATED = 2;
+
+        private final String table;
+        private final String column;
+        private final int maxExisting;
+        private final IdAllocator allocator;
+        private final BitSet seen = new BitSet();
+        private int mode = UNKNOWN;
+
+        Ids(String table, String column, int maxExisting, int blockSize) {
+            this.table = table;
+            this.column = column;
+            this.maxExisting = maxExisting;
+            this.allocator = new IdAllocator(table, column, blockSize);
+        }
+
+        /**
+         * @return why the row's id cannot be used, or null
+         */
+        String check(int id) {
+            if (mode == UNKNOWN) {
+                mode = id > 0 ? GIVEN : ALLOCATED;
+            }
+            if ((mode == GIVEN) != (id > 0)) {
+                return "ids must be given on every row or on none";
+            }
+            if (id > 0 && id <= maxExisting) {
+                return "id " + id + " is not above the existing ids";
+            }
+            if (id > 0 && seen.get(id)) {
+                return "id " + id + " appears twice";
+            }
+            return null;
+        }
+
+        int assign(int id) {
+            if (id > 0) {
+                seen.set(id);
+                return id;
+            }
+            return allocator.next();
+        }
+
+        /**
+         * Moves the id allocator and the identity column past the ids the
+         * file gave, which neither sees being inserted.
+         */
+        void reserveGiven() {
+            if (!seen.isEmpty()) {
+                IdAllocator.reserveThrough(table, column, seen.length() - 1);
+            }
+        }
+    }
+
+    private interface Sink<T> {
+        /**
+         * Inserts what it accepts of the rows, adding a reason for each row
+         * it skips.
+         *
+         * @return the rows inserted
+         */
+        int write(List<T> rows, long[] records, List<String> rejections);
+    }
+
+    private static final class Chunk<T> {
+        final List<T> rows = new ArrayList<>();
+        final long[] records;
+        final List<String> rejections = new ArrayList<>();
+
+        Chunk(int capacity) {
+            records = new long[capacity];
+        }
+    }
+
+    private <T> Result load(Path file, String entity, String[] columns, Function<String[], T> toRow, Sink<T> sink)
+            throws IOException {
+        RecordFormat format = RecordFormat.forPath(file.toString());
+        long start = System.nanoTime();
+        AtomicLong written = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, daemon("bulk-parser"));
+        // bounds the chunks read ahead of the inserts
+        BlockingQueue<CompletableFuture<Chunk<T>>> parsed = new ArrayBlockingQueue<>(2 * threads);
+        CompletableFuture<Chunk<T>> end = CompletableFuture.completedFuture(null);
+        ScheduledExecutorService progress = progress(entity, "imported", written, rejected);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = format == RecordFormat.CSV ? format.readRecord(reader) : null;
+            RecordFormat.Parser parser = format.parser(columns, header == null ? "" : header);
+            Thread reading = new Thread(() -> {
+                long record = 0;
+                try {
+                    while (true) {
+                        List<String> records = new ArrayList<>(batchSize);
+                        String line;
+                        while (records.size() < batchSize && (line = format.readRecord(reader)) != null) {
+                            records.add(line);
+                        }
+                        if (records.isEmpty()) {
+                            break;
+                        }
+                        long first = record + 1;
+                        record += records.size();
+                        parsed.put(CompletableFuture.supplyAsync(() -> parse(records, first, parser, toRow), parsers));
+                    }
+                    parsed.put(end);
+                } catch (IOException e) {
+                    putQuietly(parsed, CompletableFuture.failedFuture(new UncheckedIOException(e)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "bulk-reader");
+            reading.setDaemon(true);
+            reading.start();
+
+            AtomicInteger logged = new AtomicInteger();
+            for (Chunk<T> chunk; (chunk = take(parsed).join()) != null;) {
+                written.addAndGet(sink.write(chunk.rows, chunk.records, chunk.rejections));
+                rejected.addAndGet(chunk.rejections.size());
+                for (String rejection : chunk.rejections) {
+                    if (logged.incrementAndGet() <= LOGGED_REJECTIONS) {
+                        LOGGER.warn("Skipped {} {}", entity, rejection);
+                    }
+                }
+            }
+        } finally {
+            progress.shutdownNow();
+            parsers.shutdownNow();
+        }
+        Result result = new Result(written.get(), rejected.get(), System.nanoTime() - start);
+        LOGGER.info("Imported {} {} from {} in {} ms ({} per second), skipped {}", result.written, entity, file,
+                result.nanos / 1_000_000, (long) result.perSecond(), result.rejected);
+        return result;
+    }
+
+    private <T> Chunk<T> parse(List<String> records, long first, RecordFormat.Parser parser,
+            Function<String[], T> toRow) {
+        Chunk<T> chunk = new Chunk<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                T row = toRow.apply(parser.parse(records.get(i)));
+                chunk.records[chunk.rows.size()] = first + i;
+                chunk.rows.add(row);
+            } catch (IllegalArgumentException e) {
+                chunk.rejections.add("record " + (first + i) + ": " + e.getMessage());
+            }
+        }
+        return chunk;
+    }
+
+    private interface Dumper {
+        void dump(RecordFormat format, Lines out);
+    }
+
+    /**
+     * Hands out a cleared builder per record and writes the previous one.
+     */
+    private static final class Lines {
+        private final Writer writer;
+        private final StringBuilder line = new StringBuilder(256);
+        private final AtomicLong written;
+        private boolean pending;
+
+        Lines(Writer writer, AtomicLong written) {
+            this.writer = writer;
+            this.written = written;
+        }
+
+        StringBuilder next() {
+            flush();
+            pending = true;
+            return line;
+        }
+
+        void flush() {
+            if (pending) {
+                try {
+                    writer.append(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                written.incrementAndGet();
+                pending = false;
+            }
+            line.setLength(0);
+        }
+    }
+
+    private Result dump(Path file, String entity, String[] columns, Dumper dumper) throws IOException {
+        RecordFormat format = RecordFormat.forPath(file.toString());
+        long start = System.nanoTime();
+        AtomicLong written = new AtomicLong();
+        ScheduledExecutorService progress = progress(entity, "exported", written, new AtomicLong());
+        try (BufferedWriter writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8),
+                1 << 16)) {
+            writer.write(format.header(columns));
+            Lines lines = new Lines(writer, written);
+            dumper.dump(format, lines);
+            lines.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            progress.shutdownNow();
+        }
+        Result result = new Result(written.get(), 0, System.nanoTime() - start);
+        LOGGER.info("Exported {} {} to {} in {} ms ({} per second)", result.written, entity, file,
+                result.nanos / 1_000_000, (long) result.perSecond());
+        return result;
+    }
+
+    private ScheduledExecutorService progress(String entity, String verb, AtomicLong written, AtomicLong rejected) {
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(daemon("bulk-progress"));
+        long start = System.nanoTime();
+        long[] last = { 0, start };
+        progress.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long count = written.get();
+            LOGGER.info("{} {} {} ({} per second lately, {} overall), skipped {}", verb, count, entity,
+                    (count - last[0]) * 1_000_000_000L / Math.max(1, now - last[1]),
+                    count * 1_000_000_000L / Math.max(1, now - start), rejected.get());
+            last[0] = count;
+            last[1] = now;
+        }, progressSeconds, progressSeconds, TimeUnit.SECONDS);
+        return progress;
+    }
+
+    private static void requireJdbcMessageStore() {
+        String store = Config.getString("message.store", "jdbc");
+        if (!"jdbc".equals(store)) {
+            throw new IllegalStateException("Messages can only be imported and exported with message.store=jdbc, not "
+                    + store);
+        }
+    }
+
+    private static String required(String value, String column) {
+        if (value == null) {
+            throw new IllegalArgumentException(column + " is missing");
+        }
+        return value;
+    }
+
+    // 0 for a missing id, which is never a valid one
+    private static int optionalInt(String value, String column) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        int id = Integer.parseInt(value);
+        if (id <= 0) {
+            throw new IllegalArgumentException(column + " must be positive");
+        }
+        return id;
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing", e);
+        }
+    }
+
+    private static <T> void putQuietly(BlockingQueue<T> queue, T value) {
+        try {
+            queue.put(value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
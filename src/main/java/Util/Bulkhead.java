@@ -0,0 +1,64 @@
+package Util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of threads with a bounded queue reserved for one kind of
+ * blocking work, so a burst of it can use up its own threads and queue but
+ * never another kind's. Work that finds the queue full fails at once with a
+ * {@link RejectedExecutionException} instead of waiting.
+ *
+ * Tunables: bulkhead.NAME.threads and bulkhead.NAME.queue. Metrics:
+ * bulkhead.NAME.active, bulkhead.NAME.queued and bulkhead.NAME.rejected.
+ */
+public final class Bulkhead {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected;
+
+    public Bulkhead(String name, int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "bulkhead-" + name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.rejected = Metrics.counter("bulkhead." + name + ".rejected");
+        Metrics.gauge("bulkhead." + name + ".active", executor::getActiveCount);
+        Metrics.gauge("bulkhead." + name + ".queued", () -> executor.getQueue().size());
+    }
+
+    public static Bulkhead fromConfig(String name, int threads, int queueCapacity) {
+        return new Bulkhead(name,
+                Config.getInt("bulkhead." + name + ".threads", threads),
+                Config.getInt("bulkhead." + name + ".queue", queueCapacity));
+    }
+
+    /**
+     * Runs the work on one of the bulkhead's threads. Dependent stages added
+     * without an executor run on that thread too.
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(work.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,42 @@
+package Util;
+
+/**
+ * Small helper for reading tunables. A value is looked up as a JVM system
+ * property first (e.g. -Dauth.token.ttlSeconds=600) and then as an
+ * environment variable with dots replaced by underscores and upper-cased
+ * (e.g. AUTH_TOKEN_TTLSECONDS=600). Missing or malformed values fall back to
+ * the supplied default.
+ */
+public final class Config {
+
+    private Config() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.replace('.', '_').toUpperCase());
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, Boolean.toString(defaultValue)));
+    }
+}
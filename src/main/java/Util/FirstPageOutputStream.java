@@ -0,0 +1,71 @@
+package Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Holds back the start of a streamed response until it grows past
+ * firstPageBytes or is flushed, so a response that fails early can still be
+ * answered with an error status instead of a partial body. Once anything has
+ * been passed on, writes and flushes go straight through.
+ */
+public class FirstPageOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final int firstPageBytes;
+    private ByteArrayOutputStream firstPage = new ByteArrayOutputStream();
+
+    public FirstPageOutputStream(OutputStream out, int firstPageBytes) {
+        this.out = out;
+        this.firstPageBytes = firstPageBytes;
+    }
+
+    /**
+     * @return whether any bytes have reached the underlying stream
+     */
+    public boolean isCommitted() {
+        return firstPage == null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (firstPage == null) {
+            out.write(b, off, len);
+            return;
+        }
+        firstPage.write(b, off, len);
+        if (firstPage.size() > firstPageBytes) {
+            commit();
+        }
+    }
+
+    /**
+     * Passes on the first page; called when the response is complete.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (firstPage != null) {
+            commit();
+        }
+        out.flush();
+    }
+
+    /**
+     * Leaves the underlying stream open, as servlet containers close it.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void commit() throws IOException {
+        ByteArrayOutputStream page = firstPage;
+        firstPage = null;
+        page.writeTo(out);
+    }
+}
@@ -0,0 +1,61 @@
+package Util;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of ints in a single growable array: 4 bytes per member and
+ * binary-search lookups, for adjacency lists such as the follow graph. Not
+ * thread-safe; callers synchronize.
+ */
+public class IntSet {
+
+    private int[] values = new int[4];
+    private int size;
+
+    /**
+     * @return false if the value was already present
+     */
+    public boolean add(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return false if the value was not present
+     */
+    public boolean remove(int value) {
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,623 @@
+package Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import DAO.IdAllocator;
+import Service.PasswordHasher;
+import io.javalin.Javalin;
+
+/**
+ * Open-loop HTTP load generator for the API's eight routes.
+ *
+ * Requests are issued on a fixed schedule (constant or Poisson arrivals at
+ * load.rate per second) no matter how fast the server answers, and each
+ * latency is measured from the request's intended start time rather than from
+ * when it was actually sent. A stalled server therefore shows up as a long
+ * tail instead of silently lowering the offered load (coordinated omission).
+ * When load.maxInFlight requests are outstanding the scheduler waits, but the
+ * waiting time still counts against the delayed requests.
+ *
+ * Commands are run in the order given:
+ *
+ * <pre>
+ *   seed   bulk-insert load.seed.accounts accounts and load.seed.messages
+ *          messages over JDBC (the server must not hold the H2 file)
+ *   run    drive load.url, or an in-process server when load.embedded=true,
+ *          and print a JSON report of throughput, status codes and HDR
+ *          latency percentiles (microseconds) per route
+ * </pre>
+ *
+ * For example:
+ *
+ * <pre>
+ *   mvn compile exec:java -Dexec.mainClass=Util.LoadGenerator -Dexec.args="seed run" \
+ *       -Dload.embedded=true -Dload.rate=2000 -Dratelimit.enabled=false
+ * </pre>
+ *
+ * Reads pick message and account ids uniformly unless load.zipf is set to
+ * a Zipf exponent (e.g. 1.1), which makes the lowest ids the hottest keys.
+ * An embedded run also reports how far each of the server's metrics moved,
+ * e.g. statements issued against requests answered.
+ *
+ * load.mix weights the routes, e.g. "read_one=60,create=20,update=10,login=10";
+ * the keys are register, login, create, read_all, read_one, read_account,
+ * read_recent (the newest 50 of an account's messages), update and delete. Message writes are rate limited by the server unless
+ * ratelimit.enabled=false, which shows up as 429s in the report.
+ */
+public class LoadGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+    static final String USERNAME_PREFIX = "loaduser";
+    static final String PASSWORD = "loadpassword";
+    private static final String DEFAULT_MIX =
+            "register=2,login=3,create=20,read_all=1,read_one=40,read_account=20,update=10,delete=4";
+    private static final int SEED_BATCH = 10_000;
+    private static final int CREATED_CAPACITY = 65_536;
+
+    enum Route {
+        REGISTER, LOGIN, CREATE, READ_ALL, READ_ONE, READ_ACCOUNT, READ_RECENT, UPDATE, DELETE;
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final class Session {
+        final int accountId;
+        final String token;
+
+        Session(int accountId, String token) {
+            this.accountId = accountId;
+            this.token = token;
+        }
+    }
+
+    private static final class RouteStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String baseUrl;
+    private final int[] cumulativeWeights = new int[Route.values().length];
+    private final double rate;
+    private final boolean poisson;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final int maxInFlight;
+    private final int sessionCount;
+    private final int seededAccounts;
+    private final Duration timeout;
+    private final double zipfExponent;
+    private final HttpClient client;
+    private final Map<Route, RouteStats> stats = new LinkedHashMap<>();
+    private final List<Session> sessions = new ArrayList<>();
+    // (session index << 32 | message id) of messages created during the run
+    private final ArrayBlockingQueue<Long> created = new ArrayBlockingQueue<>(CREATED_CAPACITY);
+    private final AtomicInteger highestMessageId;
+    private final AtomicInteger registered = new AtomicInteger();
+    // numbers each post, so the server does not take two in one second for a
+    // retry of the same message
+    private final AtomicInteger posts = new AtomicInteger();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * @param seededAccounts number of loaduserN accounts to log in as; 0 logs
+     *                       in as the generator's own sessions
+     * @param knownMessages  highest message id expected to exist, the range
+     *                       for random reads before any message is created
+     */
+    public LoadGenerator(String baseUrl, Map<String, Integer> mix, double rate, boolean poisson,
+            long warmupMillis, long durationMillis, int maxInFlight, int sessionCount,
+            int seededAccounts, int knownMessages, long timeoutMillis) {
+        this(baseUrl, mix, rate, poisson, warmupMillis, durationMillis, maxInFlight, sessionCount,
+                seededAccounts, knownMessages, timeoutMillis, 0);
+    }
+
+    /**
+     * @param zipfExponent skew of the ids reads pick, 0 for uniform
+     */
+    public LoadGenerator(String baseUrl, Map<String, Integer> mix, double rate, boolean poisson,
+            long warmupMillis, long durationMillis, int maxInFlight, int sessionCount,
+            int seededAccounts, int knownMessages, long timeoutMillis, double zipfExponent) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.rate = rate;
+        this.poisson = poisson;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+        this.maxInFlight = maxInFlight;
+        this.sessionCount = Math.max(1, sessionCount);
+        this.seededAccounts = seededAccounts;
+        this.highestMessageId = new AtomicInteger(Math.max(1, knownMessages));
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.zipfExponent = zipfExponent;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+
+        int total = 0;
+        for (Route route : Route.values()) {
+            Integer weight = mix.get(route.key());
+            total += weight == null ? 0 : Math.max(0, weight);
+            cumulativeWeights[route.ordinal()] = total;
+            stats.put(route, new RouteStats());
+        }
+        for (String key : mix.keySet()) {
+            if (stats.keySet().stream().noneMatch(route -> route.key().equals(key))) {
+                throw new IllegalArgumentException("Unknown route in load mix: " + key);
+            }
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("load mix has no positive weights: " + mix);
+        }
+    }
+
+    public static LoadGenerator fromConfig(String baseUrl, int seededAccounts, int knownMessages) {
+        return new LoadGenerator(baseUrl,
+                parseMix(Config.getString("load.mix", DEFAULT_MIX)),
+                Config.getInt("load.rate", 200),
+                "poisson".equalsIgnoreCase(Config.getString("load.arrivals", "poisson")),
+                Config.getLong("load.warmupSeconds", 5) * 1000,
+                Config.getLong("load.durationSeconds", 30) * 1000,
+                Config.getInt("load.maxInFlight", 1024),
+                Config.getInt("load.sessions", 16),
+                seededAccounts, knownMessages,
+                Config.getLong("load.timeoutSeconds", 30) * 1000,
+                Double.parseDouble(Config.getString("load.zipf", "0")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accounts = Config.getInt("load.accounts", 0);
+        int messages = Config.getInt("load.messages", 0);
+        for (String command : args.length == 0 ? new String[] { "run" } : args) {
+            if (command.equals("seed")) {
+                accounts = Config.getInt("load.seed.accounts", 100_000);
+                messages = Config.getInt("load.seed.messages", 1_000_000);
+                seed(accounts, messages);
+            } else if (command.equals("run")) {
+                run(accounts, messages);
+            } else {
+                throw new IllegalArgumentException("Unknown command " + command + ", expected seed or run");
+            }
+        }
+    }
+
+    private static void run(int accounts, int messages) throws Exception {
+        Javalin app = null;
+        // held open, as Startup does, so H2 does not close and reopen the
+        // database each time the embedded server's last connection closes
+        Connection keepOpen = null;
+        String url = Config.getString("load.url", "http://localhost:8080");
+        if (Config.getBoolean("load.embedded", false)) {
+            keepOpen = ConnectionUtil.getConnection();
+            app = new SocialMediaController().startAPI().start(0);
+            url = "http://localhost:" + app.port();
+        }
+        try {
+            Map<String, Long> before = Metrics.snapshot();
+            Map<String, Object> report = fromConfig(url, accounts, messages).run();
+            if (app != null) {
+                Map<String, Long> moved = new TreeMap<>();
+                Metrics.snapshot().forEach((name, value) -> {
+                    long delta = value - before.getOrDefault(name, 0L);
+                    if (delta != 0) {
+                        moved.put(name, delta);
+                    }
+                });
+                report.put("server_metrics", moved);
+            }
+            String output = Config.getString("load.output", "");
+            if (output.isEmpty()) {
+                System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+            } else {
+                new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(output), report);
+                LOGGER.info("Wrote load report to {}", output);
+            }
+        } finally {
+            if (app != null) {
+                app.stop();
+            }
+            if (keepOpen != null) {
+                keepOpen.close();
+            }
+        }
+    }
+
+    static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Malformed load mix entry: " + entry);
+            }
+            weights.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Tops the database up to the given number of loaduserN accounts and
+     * messages using batched JDBC inserts. Every seeded account shares one
+     * PBKDF2 hash of {@link #PASSWORD}, so seeding does not pay a hash per row.
+     * Ids come from {@link IdAllocator}, as the server's own inserts do, so a
+     * database the server has written to can be topped up.
+     */
+    public static void seed(int accounts, int messages) throws SQLException {
+        String hash = PasswordHasher.getDefault().hash(PASSWORD).join();
+        Connection conn = ConnectionUtil.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            int existingAccounts = count(conn,
+                    "SELECT COUNT(*) FROM account WHERE username LIKE '" + USERNAME_PREFIX + "%'");
+            IdAllocator accountAllocator = new IdAllocator("account", "account_id", SEED_BATCH);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO account (account_id, username, password) VALUES (?, ?, ?)")) {
+                for (int i = existingAccounts + 1; i <= accounts; i++) {
+                    ps.setInt(1, accountAllocator.next());
+                    ps.setString(2, USERNAME_PREFIX + i);
+                    ps.setString(3, hash);
+                    ps.addBatch();
+                    if (i % SEED_BATCH == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                        LOGGER.info("Seeded {} of {} accounts", i, accounts);
+                    }
+                }
+                ps.executeBatch();
+                conn.commit();
+            }
+
+            // allocated ids leave gaps, so posters are picked from the ids themselves
+            IntSet accountIds = new IntSet();
+            try (Statement statement = conn.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT account_id FROM account ORDER BY account_id")) {
+                while (rs.next()) {
+                    accountIds.add(rs.getInt(1));
+                }
+            }
+            int existingMessages = count(conn, "SELECT COUNT(*) FROM message");
+            SplittableRandom random = new SplittableRandom(42);
+            long now = System.currentTimeMillis() / 1000;
+            IdAllocator messageAllocator = new IdAllocator("message", "message_id", SEED_BATCH);
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO message "
+                    + "(message_id, posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?, ?)")) {
+                for (int i = existingMessages + 1; i <= messages; i++) {
+                    ps.setInt(1, messageAllocator.next());
+                    ps.setInt(2, accountIds.get(random.nextInt(accountIds.size())));
+                    ps.setString(3, "seeded message " + i);
+                    ps.setLong(4, now - messages + i);
+                    ps.addBatch();
+                    if (i % SEED_BATCH == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                        if (i % (SEED_BATCH * 10) == 0) {
+                            LOGGER.info("Seeded {} of {} messages", i, messages);
+                        }
+                    }
+                }
+                ps.executeBatch();
+                conn.commit();
+            }
+            LOGGER.info("Database holds {} load accounts and {} messages",
+                    Math.max(existingAccounts, accounts), Math.max(existingMessages, messages));
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static int count(Connection conn, String sql) throws SQLException {
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Logs in the generator's sessions, drives the configured mix for the
+     * warm-up and measurement periods and returns the report.
+     */
+    public Map<String, Object> run() throws IOException, InterruptedException {
+        openSessions();
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        SplittableRandom random = new SplittableRandom();
+        long meanGapNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long intended = start;
+        long issued = 0;
+        while (intended < end) {
+            long now = System.nanoTime();
+            if (intended > now) {
+                LockSupport.parkNanos(intended - now);
+                continue;
+            }
+            inFlight.acquire();
+            issue(pickRoute(random), random, intended, intended >= measureFrom, inFlight);
+            if (intended >= measureFrom) {
+                issued++;
+            }
+            intended += poisson ? (long) (-Math.log(1.0 - random.nextDouble()) * meanGapNanos) : meanGapNanos;
+        }
+        if (!inFlight.tryAcquire(maxInFlight, timeout.toMillis() + 1000, TimeUnit.MILLISECONDS)) {
+            LOGGER.warn("{} requests still outstanding at the end of the run", maxInFlight - inFlight.availablePermits());
+        }
+        return report(issued, System.nanoTime() - measureFrom);
+    }
+
+    private void openSessions() throws IOException, InterruptedException {
+        for (int i = 0; i < sessionCount; i++) {
+            String username = "load-" + runId + "-s" + i;
+            String body = credentials(username);
+            send(HttpRequest.newBuilder(URI.create(baseUrl + "/register")), "POST", body);
+            HttpResponse<String> login = send(HttpRequest.newBuilder(URI.create(baseUrl + "/login")), "POST", body);
+            if (login.statusCode() != 200) {
+                throw new IllegalStateException("Could not log in load session " + username
+                        + ": HTTP " + login.statusCode());
+            }
+            int accountId = mapper.readTree(login.body()).path("account_id").asInt();
+            sessions.add(new Session(accountId, login.headers().firstValue("X-Auth-Token").orElse(null)));
+        }
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder builder, String method, String body)
+            throws IOException, InterruptedException {
+        return client.send(builder.timeout(timeout).header("Content-Type", "application/json")
+                .method(method, HttpRequest.BodyPublishers.ofString(body)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Route pickRoute(SplittableRandom random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (Route route : Route.values()) {
+            if (pick < cumulativeWeights[route.ordinal()]) {
+                return route;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return an id in [1, n], uniform or Zipf distributed with rank 1 the
+     *         most popular
+     */
+    private int pickKey(SplittableRandom random, int n) {
+        if (zipfExponent <= 0) {
+            return 1 + random.nextInt(n);
+        }
+        return zipf(random, n, zipfExponent);
+    }
+
+    /**
+     * Rejection-inversion sampling (Hormann and Derflinger), which needs no
+     * table, so n may grow between calls as the run creates messages.
+     */
+    public static int zipf(SplittableRandom random, int n, double exponent) {
+        double hIntegralX1 = zipfHIntegral(1.5, exponent) - 1;
+        double hIntegralN = zipfHIntegral(n + 0.5, exponent);
+        double s = 2 - zipfHIntegralInverse(zipfHIntegral(2.5, exponent) - zipfH(2, exponent), exponent);
+        while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = zipfHIntegralInverse(u, exponent);
+            int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+            if (k - x <= s || u >= zipfHIntegral(k + 0.5, exponent) - zipfH(k, exponent)) {
+                return k;
+            }
+        }
+    }
+
+    private static double zipfH(double x, double exponent) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    // (x^(1 - exponent) - 1) / (1 - exponent), log(x) at exponent 1
+    private static double zipfHIntegral(double x, double exponent) {
+        double logX = Math.log(x);
+        return expm1OverX((1 - exponent) * logX) * logX;
+    }
+
+    private static double zipfHIntegralInverse(double x, double exponent) {
+        double t = Math.max(-1, x * (1 - exponent));
+        return Math.exp(log1pOverX(t) * x);
+    }
+
+    private static double expm1OverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+
+    private static double log1pOverX(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    private void issue(Route route, SplittableRandom random, long intended, boolean measured, Semaphore inFlight) {
+        int sessionIndex = random.nextInt(sessions.size());
+        Session session = sessions.get(sessionIndex);
+        HttpRequest.Builder request = HttpRequest.newBuilder().timeout(timeout);
+        Long createdMessage = null;
+        switch (route) {
+            case REGISTER:
+                request.uri(URI.create(baseUrl + "/register")).POST(HttpRequest.BodyPublishers.ofString(
+                        credentials("load-" + runId + "-r" + registered.incrementAndGet())));
+                break;
+            case LOGIN:
+                String username = seededAccounts > 0
+                        ? USERNAME_PREFIX + (1 + random.nextInt(seededAccounts))
+                        : "load-" + runId + "-s" + sessionIndex;
+                request.uri(URI.create(baseUrl + "/login"))
+                        .POST(HttpRequest.BodyPublishers.ofString(credentials(username)));
+                break;
+            case CREATE:
+                request.uri(URI.create(baseUrl + "/messages")).POST(HttpRequest.BodyPublishers.ofString(
+                        "{\"posted_by\":" + session.accountId + ",\"message_text\":\"load message "
+                                + posts.incrementAndGet() + "\","
+                                + "\"time_posted_epoch\":" + System.currentTimeMillis() / 1000 + "}"));
+                break;
+            case READ_ALL:
+                request.uri(URI.create(baseUrl + "/messages")).GET();
+                break;
+            case READ_ONE:
+                request.uri(URI.create(baseUrl + "/messages/" + pickKey(random, highestMessageId.get())))
+                        .GET();
+                break;
+            case READ_ACCOUNT:
+            case READ_RECENT:
+                int accounts = Math.max(seededAccounts + 1, sessions.get(sessions.size() - 1).accountId);
+                request.uri(URI.create(baseUrl + "/accounts/" + pickKey(random, accounts) + "/messages"
+                        + (route == Route.READ_RECENT ? "?limit=50" : ""))).GET();
+                break;
+            case UPDATE:
+            case DELETE:
+                // prefer messages this run created, so writes are authorised
+                // and deletes do not eat into the seeded data
+                createdMessage = created.poll();
+                int messageId = 1 + random.nextInt(highestMessageId.get());
+                if (createdMessage != null) {
+                    session = sessions.get((int) (createdMessage >>> 32));
+                    messageId = (int) (long) createdMessage;
+                }
+                request.uri(URI.create(baseUrl + "/messages/" + messageId));
+                if (route == Route.UPDATE) {
+                    request.method("PATCH", HttpRequest.BodyPublishers.ofString(
+                            "{\"message_text\":\"edited load message\"}"));
+                } else {
+                    request.DELETE();
+                }
+                break;
+            default:
+                throw new IllegalStateException(route.toString());
+        }
+        if (session.token != null) {
+            request.header("Authorization", "Bearer " + session.token);
+        }
+        request.header("Content-Type", "application/json");
+
+        Long message = createdMessage;
+        RouteStats routeStats = stats.get(route);
+        HttpResponse.BodyHandler<String> handler = route == Route.CREATE
+                ? HttpResponse.BodyHandlers.ofString()
+                : responseInfo -> HttpResponse.BodySubscribers.replacing(null);
+        client.sendAsync(request.build(), handler).whenComplete((response, error) -> {
+            try {
+                long latencyMicros = (System.nanoTime() - intended) / 1000;
+                if (error != null) {
+                    if (measured) {
+                        routeStats.errors.increment();
+                    }
+                    return;
+                }
+                if (measured) {
+                    routeStats.latency.record(latencyMicros);
+                    routeStats.statuses.computeIfAbsent(response.statusCode(), status -> new LongAdder())
+                            .increment();
+                }
+                if (route == Route.CREATE && response.statusCode() == 200) {
+                    int id = mapper.readTree(response.body()).path("message_id").asInt();
+                    highestMessageId.accumulateAndGet(id, Math::max);
+                    created.offer(((long) sessionIndex << 32) | id);
+                } else if (route == Route.UPDATE && message != null) {
+                    created.offer(message);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Could not read {} response", route.key(), e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private String credentials(String username) {
+        return "{\"username\":\"" + username + "\",\"password\":\"" + PASSWORD + "\"}";
+    }
+
+    private Map<String, Object> report(long issued, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        long completed = 0;
+        long errors = 0;
+        Map<String, Object> routes = new LinkedHashMap<>();
+        for (Map.Entry<Route, RouteStats> entry : stats.entrySet()) {
+            RouteStats routeStats = entry.getValue();
+            int ordinal = entry.getKey().ordinal();
+            if (cumulativeWeights[ordinal] == (ordinal == 0 ? 0 : cumulativeWeights[ordinal - 1])) {
+                continue;
+            }
+            Map<String, Object> route = new LinkedHashMap<>();
+            Map<String, Long> statuses = new TreeMap<>();
+            routeStats.statuses.forEach((status, count) -> statuses.put(status.toString(), count.sum()));
+            route.put("count", routeStats.latency.getCount());
+            route.put("throughput", round(routeStats.latency.getCount() / seconds));
+            route.put("errors", routeStats.errors.sum());
+            route.put("status", statuses);
+            route.put("latency_us", percentiles(routeStats.latency));
+            routes.put(entry.getKey().key(), route);
+            completed += routeStats.latency.getCount();
+            errors += routeStats.errors.sum();
+        }
+        for (RouteStats routeStats : stats.values()) {
+            all.add(routeStats.latency);
+        }
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("offered_rate", rate);
+        total.put("issued", issued);
+        total.put("completed", completed);
+        total.put("errors", errors);
+        total.put("throughput", round(completed / seconds));
+        total.put("seconds", round(seconds));
+        total.put("latency_us", percentiles(all));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("url", baseUrl);
+        report.put("arrivals", poisson ? "poisson" : "constant");
+        report.put("keys", zipfExponent > 0 ? "zipf " + zipfExponent : "uniform");
+        report.put("total", total);
+        report.put("routes", routes);
+        return report;
+    }
+
+    private static Map<String, Object> percentiles(LatencyHistogram histogram) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("min", histogram.getMin());
+        values.put("mean", round(histogram.getMean()));
+        values.put("p50", histogram.getValueAtPercentile(50));
+        values.put("p90", histogram.getValueAtPercentile(90));
+        values.put("p99", histogram.getValueAtPercentile(99));
+        values.put("p99.9", histogram.getValueAtPercentile(99.9));
+        values.put("p99.99", histogram.getValueAtPercentile(99.99));
+        values.put("max", histogram.getMax());
+        return values;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
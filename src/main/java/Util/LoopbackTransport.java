@@ -0,0 +1,70 @@
+package Util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Transport between the nodes of one JVM that joined the same group, for
+ * tests and single-host experiments. A packet is handed to every other
+ * member on the sending thread before {@link #send} returns, so delivery is
+ * immediate and ordered; {@link #dropNext} simulates loss.
+ */
+public class LoopbackTransport implements PacketTransport {
+
+    private static final int MAX_PACKET_BYTES = 1400;
+    private static final Map<String, List<LoopbackTransport>> GROUPS = new ConcurrentHashMap<>();
+
+    private final String group;
+    private final AtomicInteger dropping = new AtomicInteger();
+    private volatile Consumer<ByteBuffer> receiver;
+
+    public LoopbackTransport(String group) {
+        this.group = group;
+        GROUPS.computeIfAbsent(group, name -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    @Override
+    public int maxPacketBytes() {
+        return MAX_PACKET_BYTES;
+    }
+
+    @Override
+    public void start(Consumer<ByteBuffer> receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Loses the next packets this member sends.
+     */
+    public void dropNext(int packets) {
+        dropping.addAndGet(packets);
+    }
+
+    @Override
+    public void send(byte[] packet, int length) {
+        if (dropping.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            return;
+        }
+        for (LoopbackTransport member : GROUPS.getOrDefault(group, List.of())) {
+            Consumer<ByteBuffer> memberReceiver = member.receiver;
+            if (member != this && memberReceiver != null) {
+                memberReceiver.accept(ByteBuffer.wrap(Arrays.copyOf(packet, length)));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver = null;
+        List<LoopbackTransport> members = GROUPS.get(group);
+        if (members != null) {
+            members.remove(this);
+        }
+    }
+}
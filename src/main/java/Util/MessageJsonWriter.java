@@ -0,0 +1,64 @@
+package Util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import Model.Message;
+
+/**
+ * Streams a JSON array of messages straight to an output stream, in the same
+ * shape Jackson produces for {@link Message}, without first collecting the
+ * messages into a List. Text can be passed as UTF-8 bytes so that binary
+ * readers never have to create a String.
+ */
+public class MessageJsonWriter implements Closeable {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final JsonGenerator generator;
+    private long count;
+
+    public MessageJsonWriter(OutputStream out) throws IOException {
+        this.generator = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        this.generator.writeStartArray();
+    }
+
+    public void write(Message message) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("message_id", message.getMessage_id());
+        generator.writeNumberField("posted_by", message.getPosted_by());
+        generator.writeStringField("message_text", message.getMessage_text());
+        generator.writeNumberField("time_posted_epoch", message.getTime_posted_epoch());
+        generator.writeEndObject();
+        count++;
+    }
+
+    public void write(int messageId, int postedBy, long timePostedEpoch, byte[] text, int offset, int length)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("message_id", messageId);
+        generator.writeNumberField("posted_by", postedBy);
+        generator.writeFieldName("message_text");
+        generator.writeUTF8String(text, offset, length);
+        generator.writeNumberField("time_posted_epoch", timePostedEpoch);
+        generator.writeEndObject();
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Ends the array and flushes, leaving the underlying stream open.
+     */
+    @Override
+    public void close() throws IOException {
+        generator.writeEndArray();
+        generator.flush();
+    }
+}
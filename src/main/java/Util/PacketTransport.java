@@ -0,0 +1,29 @@
+package Util;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Best-effort delivery of small packets to the other nodes of a deployment.
+ * Packets may be lost, duplicated or reordered; callers that care number
+ * them. A packet is at most {@link #maxPacketBytes()} long.
+ */
+public interface PacketTransport extends Closeable {
+
+    int maxPacketBytes();
+
+    /**
+     * Starts handing received packets to the receiver, one at a time.
+     */
+    void start(Consumer<ByteBuffer> receiver);
+
+    /**
+     * Sends the first length bytes of the packet to every other node. Failures
+     * are logged, not thrown: the packet is simply lost.
+     */
+    void send(byte[] packet, int length);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,235 @@
+package Util;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Map from strings to non-negative ints as a radix tree (a trie whose chains
+ * of single-child nodes are merged into one edge), for prefix searches such
+ * as username autocomplete.
+ *
+ * Nodes are immutable. A write copies the nodes on the path to its key and
+ * publishes the new root through a volatile field, so readers never lock and
+ * always see a complete tree; writers are serialized on the tree. Children
+ * are kept sorted by the first char of their edge, so a prefix search visits
+ * keys in String order and can stop after the first few.
+ */
+public final class RadixTree {
+
+    private static final int NONE = -1;
+    private static final char[] NO_CHARS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+
+    private volatile Node root = new Node("", NONE, NO_CHARS, NO_NODES);
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value stored for the key, or -1 if there is none
+     */
+    public int get(String key) {
+        Node node = root;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node child = node.child(key.charAt(pos));
+            if (child == null || !key.startsWith(child.edge, pos)) {
+                return NONE;
+            }
+            pos += child.edge.length();
+            node = child;
+        }
+        return node.value;
+    }
+
+    public synchronized void put(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Values must not be negative");
+        }
+        if (get(key) == NONE) {
+            size++;
+        }
+        root = put(root, key, 0, value);
+    }
+
+    /**
+     * @return false if the key was not present
+     */
+    public synchronized boolean remove(String key) {
+        if (get(key) == NONE) {
+            return false;
+        }
+        Node removed = remove(root, key, 0);
+        root = removed == null ? new Node("", NONE, NO_CHARS, NO_NODES) : removed;
+        size--;
+        return true;
+    }
+
+    /**
+     * Replaces every entry with the keys and values the source hands to its
+     * consumer. Readers see the old entries until the new ones are complete;
+     * writers wait.
+     */
+    public synchronized void replaceAll(Consumer<ObjIntConsumer<String>> source) {
+        RadixTree fresh = new RadixTree();
+        source.accept(fresh::put);
+        root = fresh.root;
+        size = fresh.size;
+    }
+
+    /**
+     * Hands the keys starting with the prefix, and their values, to the
+     * consumer in String order until limit keys have been visited.
+     *
+     * @return the number of keys visited
+     */
+    public int visitPrefix(String prefix, int limit, ObjIntConsumer<String> consumer) {
+        Node node = root;
+        StringBuilder path = new StringBuilder(prefix.length() + 16);
+        int pos = 0;
+        while (pos < prefix.length()) {
+            Node child = node.child(prefix.charAt(pos));
+            if (child == null) {
+                return 0;
+            }
+            int common = commonPrefix(child.edge, prefix, pos);
+            if (pos + common < prefix.length() && common < child.edge.length()) {
+                return 0;
+            }
+            path.append(child.edge);
+            pos += child.edge.length();
+            node = child;
+        }
+        return visit(node, path, limit, consumer, 0);
+    }
+
+    private static int visit(Node node, StringBuilder path, int limit, ObjIntConsumer<String> consumer,
+            int visited) {
+        if (visited >= limit) {
+            return visited;
+        }
+        if (node.value != NONE) {
+            consumer.accept(path.toString(), node.value);
+            visited++;
+        }
+        for (Node child : node.children) {
+            if (visited >= limit) {
+                break;
+            }
+            int length = path.length();
+            path.append(child.edge);
+            visited = visit(child, path, limit, consumer, visited);
+            path.setLength(length);
+        }
+        return visited;
+    }
+
+    // node's edge has been matched up to pos
+    private static Node put(Node node, String key, int pos, int value) {
+        if (pos == key.length()) {
+            return new Node(node.edge, value, node.chars, node.children);
+        }
+        char c = key.charAt(pos);
+        int index = Arrays.binarySearch(node.chars, c);
+        if (index < 0) {
+            Node leaf = new Node(key.substring(pos), value, NO_CHARS, NO_NODES);
+            return node.withChildAdded(-index - 1, c, leaf);
+        }
+        Node child = node.children[index];
+        int common = commonPrefix(child.edge, key, pos);
+        if (common < child.edge.length()) {
+            // split the edge where the key leaves it
+            Node tail = new Node(child.edge.substring(common), child.value, child.chars, child.children);
+            child = new Node(child.edge.substring(0, common), NONE,
+                    new char[] { tail.edge.charAt(0) }, new Node[] { tail });
+        }
+        return node.withChild(index, put(child, key, pos + common, value));
+    }
+
+    // the key is present below node; returns null if node is left empty
+    private static Node remove(Node node, String key, int pos) {
+        if (pos == key.length()) {
+            return compact(new Node(node.edge, NONE, node.chars, node.children));
+        }
+        int index = Arrays.binarySearch(node.chars, key.charAt(pos));
+        Node child = remove(node.children[index], key, pos + node.children[index].edge.length());
+        Node updated = child == null ? node.withChildRemoved(index) : node.withChild(index, child);
+        return compact(updated);
+    }
+
+    // drops a valueless node without children and merges one with a single
+    // child into it; the root keeps its empty edge
+    private static Node compact(Node node) {
+        if (node.value != NONE || node.edge.isEmpty()) {
+            return node;
+        }
+        if (node.children.length == 0) {
+            return null;
+        }
+        if (node.children.length == 1) {
+            Node child = node.children[0];
+            return new Node(node.edge + child.edge, child.value, child.chars, child.children);
+        }
+        return node;
+    }
+
+    private static int commonPrefix(String edge, String key, int pos) {
+        int max = Math.min(edge.length(), key.length() - pos);
+        int i = 0;
+        while (i < max && edge.charAt(i) == key.charAt(pos + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final class Node {
+        final String edge;
+        final int value;
+        // first char of each child's edge, sorted, parallel to children
+        final char[] chars;
+        final Node[] children;
+
+        Node(String edge, int value, char[] chars, Node[] children) {
+            this.edge = edge;
+            this.value = value;
+            this.chars = chars;
+            this.children = children;
+        }
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(chars, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node withChild(int index, Node child) {
+            Node[] copy = children.clone();
+            copy[index] = child;
+            return new Node(edge, value, chars, copy);
+        }
+
+        Node withChildAdded(int index, char c, Node child) {
+            char[] newChars = new char[chars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChars[index] = c;
+            newChildren[index] = child;
+            System.arraycopy(chars, index, newChars, index + 1, chars.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            return new Node(edge, value, newChars, newChildren);
+        }
+
+        Node withChildRemoved(int index) {
+            char[] newChars = new char[chars.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(chars, 0, newChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(chars, index + 1, newChars, index, chars.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            return new Node(edge, value, newChars, newChildren);
+        }
+    }
+}
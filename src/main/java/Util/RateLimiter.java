@@ -0,0 +1,118 @@
+package Util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A table of token buckets keyed by a long (an account id, a hashed client
+ * address, ...). Each bucket is a single AtomicLong updated with CAS, packing
+ * the time of the last refill and the remaining tokens:
+ *
+ * <pre>
+ *   | 40 bits: millis since limiter start | 24 bits: milli-tokens |
+ * </pre>
+ *
+ * Tokens are kept in thousandths so a refill of {@code rate} tokens/second is
+ * simply {@code elapsedMillis * rate} milli-tokens, which caps the burst size
+ * at 16777 tokens.
+ *
+ * The table is bounded: once it grows past maxBuckets, buckets that have been
+ * idle long enough to refill completely are dropped. Such a bucket is
+ * indistinguishable from a fresh one, so eviction never changes a decision.
+ */
+public class RateLimiter {
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE_TOKEN = 1000;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final long ratePerSecond;
+    private final long capacity;
+    private final int maxBuckets;
+    private final long idleMillis;
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<Long, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long lastSweep;
+
+    public RateLimiter(int ratePerSecond, int burst, int maxBuckets) {
+        if (ratePerSecond <= 0 || burst <= 0 || burst * ONE_TOKEN > TOKEN_MASK) {
+            throw new IllegalArgumentException("rate must be positive and burst between 1 and " + TOKEN_MASK / ONE_TOKEN);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = burst * ONE_TOKEN;
+        this.maxBuckets = maxBuckets;
+        this.idleMillis = capacity / ratePerSecond + 1;
+    }
+
+    /**
+     * Reads the limit for a route from configuration, e.g.
+     * ratelimit.post_messages.account.rate / .burst
+     */
+    public static RateLimiter fromConfig(String prefix, int defaultRate, int defaultBurst) {
+        return new RateLimiter(
+                Config.getInt(prefix + ".rate", defaultRate),
+                Config.getInt(prefix + ".burst", defaultBurst),
+                Config.getInt("ratelimit.maxBuckets", 100_000));
+    }
+
+    /**
+     * Takes one token from the bucket for key.
+     *
+     * @return 0 if the call is allowed, otherwise the number of milliseconds
+     *         until a token becomes available
+     */
+    public long tryAcquire(long key) {
+        long now = System.currentTimeMillis() - startMillis;
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(pack(now, capacity)));
+            if (buckets.size() > maxBuckets) {
+                evictIdle(now);
+            }
+        }
+        while (true) {
+            long state = bucket.get();
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            if (now > last) {
+                tokens = Math.min(capacity, tokens + (now - last) * ratePerSecond);
+                last = now;
+            }
+            if (tokens < ONE_TOKEN) {
+                return (ONE_TOKEN - tokens + ratePerSecond - 1) / ratePerSecond;
+            }
+            if (bucket.compareAndSet(state, pack(last, tokens - ONE_TOKEN))) {
+                return 0;
+            }
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private void evictIdle(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastSweep = now;
+            Iterator<AtomicLong> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                if (now - (it.next().get() >>> TOKEN_BITS) >= idleMillis) {
+                    it.remove();
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private static long pack(long millis, long tokens) {
+        return (millis << TOKEN_BITS) | tokens;
+    }
+}
@@ -0,0 +1,236 @@
+package Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Line formats for bulk files of flat records, chosen by file extension:
+ * CSV (RFC 4180, a header row naming the columns, fields quoted when they
+ * hold a comma, quote or line break) or JSON lines (one object per line,
+ * with the same field names as the API's JSON).
+ *
+ * Reading is split in two so that parsing can run on other threads than
+ * the one reading the file: {@link #readRecord} only finds where a record
+ * ends, and a {@link Parser} turns records into column values.
+ */
+public enum RecordFormat {
+    CSV, JSON_LINES;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * @return CSV for .csv, JSON lines for .jsonl, .ndjson or .json
+     */
+    public static RecordFormat forPath(String path) {
+        String lower = path.toLowerCase();
+        if (lower.endsWith(".csv")) {
+            return CSV;
+        }
+        if (lower.endsWith(".jsonl") || lower.endsWith(".ndjson") || lower.endsWith(".json")) {
+            return JSON_LINES;
+        }
+        throw new IllegalArgumentException("Cannot tell the format of " + path + "; use .csv or .jsonl");
+    }
+
+    /**
+     * Reads the next record, which for CSV may span lines inside a quoted
+     * field. Blank lines are skipped.
+     *
+     * @return the record, or null at the end of the input
+     */
+    public String readRecord(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && line.isEmpty());
+        if (line == null || this != CSV || quotes(line) % 2 == 0) {
+            return line;
+        }
+        StringBuilder record = new StringBuilder(line);
+        int quotes = quotes(line);
+        while (quotes % 2 != 0 && (line = reader.readLine()) != null) {
+            record.append('\n').append(line);
+            quotes += quotes(line);
+        }
+        return record.toString();
+    }
+
+    /**
+     * @param header the file's first record for CSV, ignored for JSON lines
+     * @return a parser picking the given columns out of each record; columns
+     *         a record lacks come back null. Thread safe.
+     */
+    public Parser parser(String[] columns, String header) {
+        if (this == JSON_LINES) {
+            return record -> parseJson(record, columns);
+        }
+        String[] names = splitCsv(header);
+        int[] positions = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            positions[i] = -1;
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].trim().equalsIgnoreCase(columns[i])) {
+                    positions[i] = j;
+                }
+            }
+        }
+        return record -> {
+            String[] fields = splitCsv(record);
+            String[] values = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if (positions[i] >= 0 && positions[i] < fields.length) {
+                    values[i] = fields[positions[i]];
+                }
+            }
+            return values;
+        };
+    }
+
+    /**
+     * @return the header row for CSV, nothing for JSON lines
+     */
+    public String header(String[] columns) {
+        return this == CSV ? String.join(",", columns) + "\n" : "";
+    }
+
+    /**
+     * Appends one record, values given in column order, followed by a line
+     * break. Values are numbers (written bare) or strings.
+     */
+    public void append(StringBuilder out, String[] columns, Object[] values) {
+        if (this == JSON_LINES) {
+            out.append('{');
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            if (this == JSON_LINES) {
+                out.append('"').append(columns[i]).append("\":");
+            }
+            Object value = values[i];
+            if (value == null) {
+                out.append(this == JSON_LINES ? "null" : "");
+            } else if (value instanceof Number) {
+                out.append(value);
+            } else if (this == JSON_LINES) {
+                out.append('"');
+                JsonStringEncoder.getInstance().quoteAsString(value.toString(), out);
+                out.append('"');
+            } else {
+                appendCsv(out, value.toString());
+            }
+        }
+        out.append(this == JSON_LINES ? "}\n" : "\n");
+    }
+
+    public interface Parser {
+        /**
+         * @throws IllegalArgumentException if the record is malformed
+         */
+        String[] parse(String record);
+    }
+
+    private static String[] parseJson(String record, String[] columns) {
+        String[] values = new String[columns.length];
+        try (JsonParser parser = JSON.createParser(record)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                int column = indexOf(columns, name);
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (column >= 0 && value != JsonToken.VALUE_NULL) {
+                    values[column] = parser.getText();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new IllegalArgumentException("Malformed JSON object");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        return values;
+    }
+
+    private static int indexOf(String[] columns, String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String[] splitCsv(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private static void appendCsv(StringBuilder out, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    private static int quotes(String line) {
+        int count = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
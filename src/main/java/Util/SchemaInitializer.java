@@ -0,0 +1,233 @@
+package Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the database up to SocialMedia.sql on the classpath without
+ * touching existing data, so it is safe to run on every startup. Unlike
+ * {@link ConnectionUtil#resetTestDatabase()} nothing is dropped:
+ *
+ * <ul>
+ * <li>an empty database gets the whole script, seed rows included</li>
+ * <li>otherwise only the script's create table statements for missing
+ * tables run, columns an existing table lacks are added as declared in its
+ * create table, and every create index statement naming an index that
+ * does not exist yet runs</li>
+ * <li>a bulk load recorded in bulk_load as unfinished (the process died
+ * with the table's indexes dropped and its foreign keys unchecked) has its
+ * indexes rebuilt by the step above and its foreign keys turned back on,
+ * verifying every row</li>
+ * <li>an identity column whose next value is not above the table's ids and
+ * the ids reserved in id_block is restarted past them, so an insert that
+ * lets it pick never collides with rows written with explicit ids</li>
+ * </ul>
+ *
+ * A column added to a table is simply declared in its create table; it
+ * needs a default (or to be nullable) for the rows the table already has.
+ */
+public final class SchemaInitializer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaInitializer.class);
+    private static final String SCHEMA_RESOURCE = "/SocialMedia.sql";
+    private static final Pattern CREATE_TABLE = Pattern.compile("^create\\s+table\\s+(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+    // a table element that is a constraint rather than a column
+    private static final Pattern CONSTRAINT = Pattern.compile("^(primary|foreign|unique|check|constraint)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CREATE_INDEX = Pattern.compile("^create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private SchemaInitializer() {
+    }
+
+    /**
+     * @return the number of tables and indexes created
+     */
+    public static int ensureSchema(Connection conn) throws SQLException {
+        Set<String> existing = names(conn,
+                "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC'");
+        Set<String> existingIndexes = names(conn,
+                "SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_SCHEMA = 'PUBLIC'");
+        Set<String> existingColumns = names(conn, "SELECT TABLE_NAME || '.' || COLUMN_NAME "
+                + "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC'");
+
+        List<String> statements = readStatements();
+        Set<String> missing = new HashSet<>();
+        int tables = 0;
+        for (String sql : statements) {
+            Matcher table = CREATE_TABLE.matcher(sql);
+            if (table.find()) {
+                tables++;
+                String name = table.group(1).toLowerCase(Locale.ROOT);
+                if (!existing.contains(name)) {
+                    missing.add(name);
+                }
+            }
+        }
+
+        int created = 0;
+        try (Statement statement = conn.createStatement()) {
+            if (missing.size() == tables) {
+                LOGGER.info("Database is empty, creating the schema from {}", SCHEMA_RESOURCE);
+                for (String sql : statements) {
+                    statement.execute(sql);
+                }
+                return tables;
+            }
+            for (String sql : statements) {
+                Matcher table = CREATE_TABLE.matcher(sql);
+                Matcher index = CREATE_INDEX.matcher(sql);
+                if (table.find()) {
+                    String name = table.group(1).toLowerCase(Locale.ROOT);
+                    if (missing.contains(name)) {
+                        LOGGER.info("Creating missing table {}", table.group(1));
+                        statement.execute(sql);
+                        created++;
+                        continue;
+                    }
+                    for (String column : columns(sql)) {
+                        String columnName = column.split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+                        if (!existingColumns.contains(name + "." + columnName)) {
+                            LOGGER.info("Adding missing column {}.{}", name, columnName);
+                            statement.execute("ALTER TABLE " + name + " ADD COLUMN " + column);
+                        }
+                    }
+                } else if (index.find() && !existingIndexes.contains(index.group(1).toLowerCase(Locale.ROOT))) {
+                    if (!missing.contains(index.group(2).toLowerCase(Locale.ROOT))) {
+                        LOGGER.info("Creating missing index {} on {}", index.group(1), index.group(2));
+                    }
+                    statement.execute(sql);
+                    created++;
+                }
+            }
+            finishInterruptedLoads(conn, statement);
+            advanceIdentities(conn, statement);
+        }
+        return created;
+    }
+
+    private static void finishInterruptedLoads(Connection conn, Statement statement) throws SQLException {
+        for (String table : names(conn, "SELECT name FROM bulk_load")) {
+            LOGGER.warn("A bulk load into {} did not finish, checking its foreign keys", table);
+            statement.execute("ALTER TABLE " + table + " SET REFERENTIAL_INTEGRITY TRUE CHECK");
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM bulk_load WHERE name = ?")) {
+                ps.setString(1, table);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    private static void advanceIdentities(Connection conn, Statement statement) throws SQLException {
+        List<String[]> identities = new ArrayList<>();
+        try (ResultSet rs = statement.executeQuery("SELECT TABLE_NAME, COLUMN_NAME, IDENTITY_BASE "
+                + "FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC' AND IS_IDENTITY = 'YES'")) {
+            while (rs.next()) {
+                identities.add(new String[] { rs.getString(1).toLowerCase(Locale.ROOT),
+                        rs.getString(2).toLowerCase(Locale.ROOT), rs.getString(3) });
+            }
+        }
+        for (String[] identity : identities) {
+            String table = identity[0];
+            String column = identity[1];
+            long next;
+            try (ResultSet rs = statement.executeQuery("SELECT MAX(" + column + ") FROM " + table)) {
+                rs.next();
+                next = rs.getLong(1) + 1;
+            }
+            try (PreparedStatement ps = conn.prepareStatement("SELECT next_id FROM id_block WHERE name = ?")) {
+                ps.setString(1, table + "." + column);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        next = Math.max(next, rs.getLong(1));
+                    }
+                }
+            }
+            if (Long.parseLong(identity[2]) < next) {
+                LOGGER.warn("Identity of {}.{} was behind its ids, restarting it at {}", table, column, next);
+                statement.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + next);
+            }
+        }
+    }
+
+    /**
+     * @return the column definitions of a create table statement, without its
+     *         table constraints
+     */
+    private static List<String> columns(String createTable) {
+        String body = createTable.substring(createTable.indexOf('(') + 1, createTable.lastIndexOf(')'));
+        List<String> columns = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= body.length(); i++) {
+            char c = i < body.length() ? body.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                String element = body.substring(start, i).trim();
+                if (!element.isEmpty() && !CONSTRAINT.matcher(element).find()) {
+                    columns.add(element);
+                }
+                start = i + 1;
+            }
+        }
+        return columns;
+    }
+
+    private static Set<String> names(Connection conn, String sql) throws SQLException {
+        Set<String> names = new HashSet<>();
+        try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                names.add(rs.getString(1).toLowerCase(Locale.ROOT));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The script's statements, split on semicolons.
+     */
+    private static List<String> readStatements() throws SQLException {
+        InputStream in = SchemaInitializer.class.getResourceAsStream(SCHEMA_RESOURCE);
+        if (in == null) {
+            throw new SQLException(SCHEMA_RESOURCE + " is not on the classpath");
+        }
+        StringBuilder script = new StringBuilder();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                script.append(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to read " + SCHEMA_RESOURCE, e);
+        }
+        List<String> statements = new ArrayList<>();
+        for (String statement : script.toString().split(";")) {
+            String trimmed = statement.trim();
+            if (!trimmed.isEmpty()) {
+                statements.add(trimmed);
+            }
+        }
+        return statements;
+    }
+}
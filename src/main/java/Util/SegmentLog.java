@@ -0,0 +1,418 @@
+package Util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of length-prefixed, checksummed records split over
+ * numbered segment files in one directory. Each record is
+ *
+ * <pre>
+ *   | int payload length | int CRC32C of payload | payload bytes |
+ * </pre>
+ *
+ * and is addressed by a long position packing the segment number (high 32
+ * bits) and the byte offset within it (low 32 bits).
+ *
+ * Durability uses group commit: appends only write to the file, and a single
+ * background thread calls fsync for everything written so far, either every
+ * fsyncMillis or as soon as a writer waits in {@link #sync()}. Concurrent
+ * writers waiting for durability therefore share one fsync.
+ *
+ * A failed fsync is final: the kernel may already have dropped the dirty
+ * pages, so a later fsync that succeeds proves nothing about them. Once one
+ * fails, {@link #sync()} and {@link #append} throw for the rest of the log's
+ * life and the store has to be reopened, which replays what reached disk.
+ */
+public class SegmentLog implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLog.class);
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final long fsyncMillis;
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncRequested = syncLock.newCondition();
+    private final Condition synced = syncLock.newCondition();
+    private final Thread syncThread;
+
+    private int activeSegment;
+    private FileChannel active;
+    private long activeSize;
+    private long appendedCount;
+    private volatile long syncedCount;
+    private boolean syncWaiting;
+    private volatile IOException syncFailure;
+    private volatile boolean closed;
+
+    public SegmentLog(Path directory, long maxSegmentBytes, long fsyncMillis) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.fsyncMillis = fsyncMillis;
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(SUFFIX)) {
+                        int number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                        segments.put(number, open(number));
+                    }
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.put(1, open(1));
+            }
+            activeSegment = segments.lastKey();
+            active = segments.get(activeSegment);
+            activeSize = active.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open segment log in " + directory, e);
+        }
+        syncThread = new Thread(this::syncLoop, "segment-log-sync-" + directory.getFileName());
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    public static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    public static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Writes one record and returns its position. The record is visible to
+     * {@link #read(long)} immediately but only durable after {@link #sync()}.
+     */
+    public synchronized long append(byte[] payload) {
+        ensureOpen();
+        ensureSynced();
+        int recordBytes = HEADER_BYTES + payload.length;
+        try {
+            if (activeSize > 0 && activeSize + recordBytes > maxSegmentBytes) {
+                roll();
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            ByteBuffer buffer = ByteBuffer.allocate(recordBytes);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            long offset = activeSize;
+            while (buffer.hasRemaining()) {
+                active.write(buffer, offset + buffer.position());
+            }
+            activeSize += recordBytes;
+            appendedCount++;
+            return position(activeSegment, offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to append to segment log " + directory, e);
+        }
+    }
+
+    /**
+     * Blocks until every record appended before this call is on disk.
+     *
+     * @throws UncheckedIOException if an fsync has failed
+     */
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = appendedCount;
+        }
+        ensureSynced();
+        if (syncedCount >= target) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            while (syncedCount < target) {
+                ensureSynced();
+                ensureOpen();
+                syncWaiting = true;
+                syncRequested.signal();
+                synced.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public byte[] read(long position) {
+        FileChannel channel;
+        synchronized (this) {
+            channel = segments.get(segmentOf(position));
+        }
+        if (channel == null) {
+            throw new IllegalStateException("Segment " + segmentOf(position) + " no longer exists");
+        }
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, offsetOf(position));
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, offsetOf(position) + HEADER_BYTES);
+            CRC32C crc = new CRC32C();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                throw new IllegalStateException("Checksum mismatch at segment " + segmentOf(position)
+                        + " offset " + offsetOf(position));
+            }
+            return payload.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Visits every record from the given position to the end of the log. A
+     * torn or corrupt record ends its segment; in the active segment the
+     * file is truncated there so later appends start from a clean tail.
+     */
+    public synchronized void replay(long fromPosition, RecordVisitor visitor) {
+        for (Map.Entry<Integer, FileChannel> entry : segments.tailMap(segmentOf(fromPosition), true).entrySet()) {
+            int segment = entry.getKey();
+            FileChannel channel = entry.getValue();
+            long offset = segment == segmentOf(fromPosition) ? offsetOf(fromPosition) : 0;
+            try {
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (offset + HEADER_BYTES <= size) {
+                    header.clear();
+                    readFully(channel, header, offset);
+                    header.flip();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    if (length < 0 || offset + HEADER_BYTES + length > size) {
+                        break;
+                    }
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, offset + HEADER_BYTES);
+                    CRC32C crc = new CRC32C();
+                    crc.update(payload.array());
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    visitor.accept(position(segment, offset), payload.array());
+                    offset += HEADER_BYTES + length;
+                }
+                if (offset < size) {
+                    LOGGER.warn("Discarding {} unreadable bytes at the end of segment {} in {}",
+                            size - offset, segment, directory);
+                    if (segment == activeSegment) {
+                        channel.truncate(offset);
+                        activeSize = offset;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to replay segment " + segment + " in " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * @return the position the next record will be written at
+     */
+    public synchronized long endPosition() {
+        return position(activeSegment, activeSize);
+    }
+
+    /**
+     * Closes the active segment and starts a new one, so that everything
+     * written so far lives in sealed segments.
+     */
+    public synchronized void rollOver() {
+        if (activeSize > 0) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the numbers of all segments except the active one
+     */
+    public synchronized List<Integer> sealedSegments() {
+        return new ArrayList<>(segments.headMap(activeSegment, false).keySet());
+    }
+
+    public synchronized void deleteSegment(int segment) {
+        if (segment == activeSegment) {
+            throw new IllegalArgumentException("Cannot delete the active segment");
+        }
+        FileChannel channel = segments.remove(segment);
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(segmentPath(segment));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long sizeBytes() {
+        long total = 0;
+        try {
+            for (FileChannel channel : segments.values()) {
+                total += channel == active ? activeSize : channel.size();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            LOGGER.warn("Closing segment log {} with unsynced records", directory, e);
+        }
+        closed = true;
+        syncLock.lock();
+        try {
+            syncRequested.signal();
+        } finally {
+            syncLock.unlock();
+        }
+        try {
+            syncThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (FileChannel channel : segments.values()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to close segment in {}", directory, e);
+                }
+            }
+        }
+    }
+
+    public interface RecordVisitor {
+        void accept(long position, byte[] payload);
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        activeSegment++;
+        active = open(activeSegment);
+        activeSize = 0;
+        segments.put(activeSegment, active);
+    }
+
+    private void syncLoop() {
+        while (!closed && syncFailure == null) {
+            syncLock.lock();
+            try {
+                if (!syncWaiting) {
+                    syncRequested.await(fsyncMillis, TimeUnit.MILLISECONDS);
+                }
+                syncWaiting = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                syncLock.unlock();
+            }
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = appendedCount;
+                channel = active;
+            }
+            if (target == syncedCount) {
+                continue;
+            }
+            try {
+                // earlier segments were forced when they were rolled
+                channel.force(false);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.error("fsync failed for segment log {}, refusing further writes", directory, e);
+                }
+                syncLock.lock();
+                try {
+                    syncFailure = e;
+                    synced.signalAll();
+                } finally {
+                    syncLock.unlock();
+                }
+                return;
+            }
+            syncLock.lock();
+            try {
+                syncedCount = target;
+                synced.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("%010d%s", segment, SUFFIX));
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Segment log " + directory + " is closed");
+        }
+    }
+
+    private void ensureSynced() {
+        IOException failure = syncFailure;
+        if (failure != null) {
+            throw new UncheckedIOException("fsync failed for segment log " + directory, failure);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package Util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the
+ * work while callers arriving before it finishes wait for and share its
+ * result, or its exception. The key's entry is removed as soon as the work
+ * completes, so nothing is cached beyond the call in flight.
+ *
+ * Callers share the result object itself and must not modify it. A caller
+ * that needs to see a write committed after a flight started must not join
+ * that flight; the writer calls {@link #forget} once it commits.
+ *
+ * Metrics: singleflight.NAME.calls and singleflight.NAME.shared, the calls
+ * that joined another caller's flight instead of running the work.
+ */
+public final class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder calls;
+    private final LongAdder shared;
+
+    public SingleFlight(String name) {
+        this.calls = Metrics.counter("singleflight." + name + ".calls");
+        this.shared = Metrics.counter("singleflight." + name + ".shared");
+    }
+
+    public V run(K key, Supplier<V> work) {
+        return await(runAsync(key, () -> {
+            try {
+                return CompletableFuture.completedFuture(work.get());
+            } catch (RuntimeException | Error e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }));
+    }
+
+    /**
+     * Starts the work, or joins the flight already in progress without
+     * starting it, so queued duplicates do not take an executor's slots.
+     * Each caller gets its own copy of the flight's future.
+     */
+    public CompletableFuture<V> runAsync(K key, Supplier<CompletableFuture<V>> work) {
+        calls.increment();
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            shared.increment();
+            return leader.copy();
+        }
+        CompletableFuture<V> started;
+        try {
+            started = work.get();
+        } catch (RuntimeException | Error e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        started.whenComplete((result, e) -> {
+            flights.remove(key, flight);
+            if (e != null) {
+                flight.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                        ? e.getCause()
+                        : e);
+            } else {
+                flight.complete(result);
+            }
+        });
+        return flight.copy();
+    }
+
+    /**
+     * Lets later callers for the key start a new flight instead of joining
+     * the one in progress, whose result may predate a write.
+     */
+    public void forget(K key) {
+        flights.remove(key);
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package Util;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Map from long keys to int values that forgets each entry between window
+ * and window * slots / (slots - 1) milliseconds after it was put, for
+ * remembering recent requests such as message posts.
+ *
+ * The window is a wheel of slots, each an open-addressing table of flat
+ * long and int arrays covering window / (slots - 1) milliseconds. Puts go to
+ * the newest slot; when its time is up the wheel turns and the oldest slot
+ * is emptied with one fill of its arrays rather than entry by entry, so
+ * expiry is O(1) amortized over the puts that filled it. Lookups probe every
+ * slot, newest first. At most maxEntries are held: a put beyond that turns
+ * the wheel early, so under a burst the window shrinks rather than the
+ * memory growing.
+ *
+ * The key 0 marks an empty cell, so it is stored as 1; callers should pass
+ * well mixed hashes. Thread safe; every method holds the map's lock for a
+ * few array probes.
+ */
+public final class SlidingWindowMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 16;
+
+    private final long spanMillis;
+    private final int maxEntries;
+    private final LongSupplier clock;
+    private final Slot[] slots;
+    private final int missingValue;
+    private int newest;
+    private long newestEnds;
+    private int size;
+    private long turnedEarly;
+
+    public SlidingWindowMap(long windowMillis, int slots, int maxEntries, int missingValue) {
+        this(windowMillis, slots, maxEntries, missingValue, () -> System.nanoTime() / 1_000_000);
+    }
+
+    public SlidingWindowMap(long windowMillis, int slots, int maxEntries, int missingValue, LongSupplier clock) {
+        if (slots < 2) {
+            throw new IllegalArgumentException("A sliding window needs at least two slots");
+        }
+        this.spanMillis = Math.max(1, windowMillis / (slots - 1));
+        this.maxEntries = maxEntries;
+        this.missingValue = missingValue;
+        this.clock = clock;
+        this.slots = new Slot[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.newestEnds = clock.getAsLong() + spanMillis;
+    }
+
+    public synchronized int size() {
+        advance();
+        return size;
+    }
+
+    /**
+     * @return how many times the wheel turned early because maxEntries were
+     *         held
+     */
+    public synchronized long turnedEarly() {
+        return turnedEarly;
+    }
+
+    /**
+     * @return the value of the key, or the missing value if it was never put
+     *         or has expired
+     */
+    public synchronized int get(long key) {
+        advance();
+        key = nonZero(key);
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[Math.floorMod(newest - i, slots.length)];
+            int cell = slot.find(key);
+            if (cell >= 0) {
+                return slot.values[cell];
+            }
+        }
+        return missingValue;
+    }
+
+    /**
+     * Puts the key unless it is present.
+     *
+     * @return the present value, or the missing value if the key was put
+     */
+    public synchronized int putIfAbsent(long key, int value) {
+        int present = get(key);
+        if (present != missingValue) {
+            return present;
+        }
+        insert(nonZero(key), value);
+        return missingValue;
+    }
+
+    /**
+     * Sets the value of the key, keeping its expiry, if its value is still the
+     * expected one.
+     *
+     * @return false if the key was absent or had another value
+     */
+    public synchronized boolean replace(long key, int expected, int value) {
+        advance();
+        key = nonZero(key);
+        for (Slot slot : slots) {
+            int cell = slot.find(key);
+            if (cell >= 0) {
+                if (slot.values[cell] != expected) {
+                    return false;
+                }
+                slot.values[cell] = value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the key if its value is still the expected one.
+     *
+     * @return false if the key was absent or had another value
+     */
+    public synchronized boolean remove(long key, int expected) {
+        advance();
+        key = nonZero(key);
+        for (Slot slot : slots) {
+            int cell = slot.find(key);
+            if (cell >= 0) {
+                if (slot.values[cell] != expected) {
+                    return false;
+                }
+                slot.delete(cell);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insert(long key, int value) {
+        while (size >= maxEntries) {
+            turn();
+            turnedEarly++;
+        }
+        slots[newest].insert(key, value);
+        size++;
+    }
+
+    private void advance() {
+        long now = clock.getAsLong();
+        if (now < newestEnds) {
+            return;
+        }
+        long spans = (now - newestEnds) / spanMillis + 1;
+        for (long i = 0; i < Math.min(spans, slots.length); i++) {
+            turn();
+        }
+        newestEnds += spans * spanMillis;
+    }
+
+    // the oldest slot becomes the newest, emptied
+    private void turn() {
+        newest = (newest + 1) % slots.length;
+        size -= slots[newest].size;
+        slots[newest].clear();
+    }
+
+    private static long nonZero(long key) {
+        return key == 0 ? 1 : key;
+    }
+
+    private static final class Slot {
+        long[] keys = new long[MIN_CAPACITY];
+        int[] values = new int[MIN_CAPACITY];
+        int size;
+        int mask = MIN_CAPACITY - 1;
+
+        int find(long key) {
+            int cell = (int) Hashing.mix(key) & mask;
+            while (keys[cell] != 0) {
+                if (keys[cell] == key) {
+                    return cell;
+                }
+                cell = (cell + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(long key, int value) {
+            if (size + 1 > keys.length * LOAD_FACTOR) {
+                rehash(keys.length << 1);
+            }
+            int cell = (int) Hashing.mix(key) & mask;
+            while (keys[cell] != 0) {
+                cell = (cell + 1) & mask;
+            }
+            keys[cell] = key;
+            values[cell] = value;
+            size++;
+        }
+
+        // backward-shift deletion, so probes never meet tombstones
+        void delete(int cell) {
+            int gap = cell;
+            int next = (gap + 1) & mask;
+            while (keys[next] != 0) {
+                int home = (int) Hashing.mix(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[gap] = 0;
+            size--;
+        }
+
+        // a slot that was mostly empty gives back the arrays a burst grew
+        void clear() {
+            if (size < keys.length / 8 && keys.length > MIN_CAPACITY) {
+                int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size)) << 2);
+                keys = new long[capacity];
+                values = new int[capacity];
+                mask = capacity - 1;
+            } else {
+                Arrays.fill(keys, 0);
+            }
+            size = 0;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package Util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks that keys hash onto, so callers can serialise work
+ * per key without a lock object per key. Keys sharing a stripe also wait for
+ * each other; more stripes make that rarer.
+ */
+public final class StripedLock {
+    private final ReentrantLock[] stripes;
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    public StripedLock(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock forKey(int key) {
+        // murmur3 finalizer, so neighbouring ids land on different stripes
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+}
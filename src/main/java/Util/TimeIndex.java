@@ -0,0 +1,210 @@
+package Util;
+
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Index of ids by a long timestamp, split into fixed-width time buckets. A
+ * bucket keeps its entries sorted by (time, id) in two parallel primitive
+ * arrays, and only non-empty buckets exist, so a range query seeks to its
+ * first bucket, binary-searches the edges and then only visits matching
+ * entries. Entries mostly arrive in time order, which makes inserts appends.
+ *
+ * Not thread safe; callers provide their own locking.
+ */
+public class TimeIndex {
+    private final long bucketWidth;
+    private final NavigableMap<Long, Bucket> buckets = new TreeMap<>();
+    private final IntLongHashMap times = new IntLongHashMap(1024, 0L);
+
+    public TimeIndex(long bucketWidth) {
+        this.bucketWidth = bucketWidth;
+    }
+
+    public int size() {
+        return times.size();
+    }
+
+    public boolean contains(int id) {
+        return times.containsKey(id);
+    }
+
+    /**
+     * @return the id's time; only meaningful if {@link #contains} is true
+     */
+    public long getTime(int id) {
+        return times.get(id);
+    }
+
+    /**
+     * Adds the id, or moves it if it is already indexed under another time.
+     */
+    public void put(int id, long time) {
+        if (times.containsKey(id)) {
+            long previous = times.get(id);
+            if (previous == time) {
+                return;
+            }
+            removeEntry(id, previous);
+        }
+        times.put(id, time);
+        buckets.computeIfAbsent(Math.floorDiv(time, bucketWidth), key -> new Bucket()).add(time, id);
+    }
+
+    public boolean remove(int id) {
+        if (!times.containsKey(id)) {
+            return false;
+        }
+        removeEntry(id, times.remove(id));
+        return true;
+    }
+
+    /**
+     * @return the smallest and largest indexed time, or null when empty
+     */
+    public long[] bounds() {
+        if (buckets.isEmpty()) {
+            return null;
+        }
+        Bucket first = buckets.firstEntry().getValue();
+        Bucket last = buckets.lastEntry().getValue();
+        return new long[] { first.times[0], last.times[last.size - 1] };
+    }
+
+    public void clear() {
+        buckets.clear();
+        times.clear();
+    }
+
+    /**
+     * Number of ids with from <= time < to, counting whole buckets without
+     * visiting their entries.
+     */
+    public long count(long from, long to) {
+        long count = 0;
+        for (Bucket bucket : overlapping(from, to).values()) {
+            count += bucket.lowerBound(to, Integer.MIN_VALUE) - bucket.lowerBound(from, Integer.MIN_VALUE);
+        }
+        return count;
+    }
+
+    /**
+     * Visits the ids with from <= time < to in (time, id) order.
+     */
+    public void forEach(long from, long to, IntConsumer consumer) {
+        for (Bucket bucket : overlapping(from, to).values()) {
+            int end = bucket.lowerBound(to, Integer.MIN_VALUE);
+            for (int i = bucket.lowerBound(from, Integer.MIN_VALUE); i < end; i++) {
+                consumer.accept(bucket.ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Keeps the first n of ids whose time is in [from, to), sorted by
+     * (time, id).
+     *
+     * @return how many were kept
+     */
+    public int filterAndSort(int[] ids, int n, long from, long to) {
+        int kept = 0;
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            int id = ids[i];
+            if (!times.containsKey(id)) {
+                continue;
+            }
+            long time = times.get(id);
+            if (time >= from && time < to) {
+                if (kept > 0 && compare(times.get(ids[kept - 1]), ids[kept - 1], time, id) > 0) {
+                    sorted = false;
+                }
+                ids[kept++] = id;
+            }
+        }
+        if (!sorted) {
+            // rare: ids are assigned in time order unless clients back-date
+            Integer[] boxed = new Integer[kept];
+            for (int i = 0; i < kept; i++) {
+                boxed[i] = ids[i];
+            }
+            Arrays.sort(boxed, (a, b) -> compare(times.get(a), a, times.get(b), b));
+            for (int i = 0; i < kept; i++) {
+                ids[i] = boxed[i];
+            }
+        }
+        return kept;
+    }
+
+    private NavigableMap<Long, Bucket> overlapping(long from, long to) {
+        if (from >= to) {
+            return new TreeMap<>();
+        }
+        return buckets.subMap(Math.floorDiv(from, bucketWidth), true, Math.floorDiv(to - 1, bucketWidth), true);
+    }
+
+    private void removeEntry(int id, long time) {
+        long key = Math.floorDiv(time, bucketWidth);
+        Bucket bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(time, id) && bucket.size == 0) {
+            buckets.remove(key);
+        }
+    }
+
+    private static int compare(long time1, int id1, long time2, int id2) {
+        int byTime = Long.compare(time1, time2);
+        return byTime != 0 ? byTime : Integer.compare(id1, id2);
+    }
+
+    private static final class Bucket {
+        long[] times = new long[8];
+        int[] ids = new int[8];
+        int size;
+
+        /**
+         * @return the first index whose (time, id) is not below the given one
+         */
+        int lowerBound(long time, int id) {
+            if (size == 0 || compare(times[size - 1], ids[size - 1], time, id) < 0) {
+                return size;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(times[mid], ids[mid], time, id) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void add(long time, int id) {
+            int index = lowerBound(time, id);
+            if (size == ids.length) {
+                times = Arrays.copyOf(times, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(times, index, times, index + 1, size - index);
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            times[index] = time;
+            ids[index] = id;
+            size++;
+        }
+
+        boolean remove(long time, int id) {
+            int index = lowerBound(time, id);
+            if (index == size || times[index] != time || ids[index] != id) {
+                return false;
+            }
+            System.arraycopy(times, index + 1, times, index, size - index - 1);
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+}
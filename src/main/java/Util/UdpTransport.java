@@ -0,0 +1,130 @@
+package Util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unicast UDP between a fixed list of peers: every packet is sent to each
+ * peer in turn from one socket, and a daemon thread receives on the same
+ * socket. Packets are kept under a 1500 byte Ethernet MTU so they are never
+ * fragmented. The receive buffer is enlarged so a burst is not dropped while
+ * the receiving thread is busy; what is dropped anyway is the caller's to
+ * detect. Packets from any address and port other than a peer's are dropped
+ * and counted as transport.udp.rejected.
+ */
+public class UdpTransport implements PacketTransport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UdpTransport.class);
+    // 1500 less the IPv6 and UDP headers, rounded down
+    private static final int MAX_PACKET_BYTES = 1400;
+    private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Set<SocketAddress> peerAddresses;
+    private final LongAdder rejected = Metrics.counter("transport.udp.rejected");
+    private Thread receiving;
+
+    /**
+     * Binds the port, or an ephemeral one if it is 0.
+     */
+    public UdpTransport(int port, List<InetSocketAddress> peers) {
+        try {
+            this.socket = new DatagramSocket(port);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+        } catch (SocketException e) {
+            throw new IllegalStateException("Unable to bind UDP port " + port, e);
+        }
+        this.peers = List.copyOf(peers);
+        this.peerAddresses = new HashSet<>(peers);
+        LOGGER.info("UDP transport on port {} sends to {}", socket.getLocalPort(), this.peers);
+    }
+
+    /**
+     * @param peers comma-separated host:port pairs
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            String trimmed = peer.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Peer " + trimmed + " is not host:port");
+            }
+            addresses.add(new InetSocketAddress(trimmed.substring(0, colon),
+                    Integer.parseInt(trimmed.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    public int localPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public int maxPacketBytes() {
+        return MAX_PACKET_BYTES;
+    }
+
+    @Override
+    public synchronized void start(Consumer<ByteBuffer> receiver) {
+        if (receiving != null) {
+            throw new IllegalStateException("Already started");
+        }
+        receiving = new Thread(() -> {
+            byte[] buffer = new byte[MAX_PACKET_BYTES];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    if (!peerAddresses.contains(packet.getSocketAddress())) {
+                        rejected.increment();
+                        continue;
+                    }
+                    receiver.accept(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        LOGGER.warn("Receiving a packet failed", e);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Handling a packet failed", e);
+                }
+            }
+        }, "udp-receiver-" + socket.getLocalPort());
+        receiving.setDaemon(true);
+        receiving.start();
+    }
+
+    @Override
+    public void send(byte[] packet, int length) {
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(packet, length, peer));
+            } catch (IOException e) {
+                LOGGER.warn("Sending a packet to {} failed", peer, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,129 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import DAO.AccountDAO;
+import Model.AccountSummary;
+import Util.ConnectionUtil;
+import Util.RadixTree;
+
+/**
+ * Measures top-10 username prefix searches over a large account table: the
+ * in-memory {@link RadixTree} used by GET /accounts?prefix= against the
+ * range query on the unique username index it falls back to with
+ * account.index.enabled=false.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=AccountSearchBenchmark \
+ *       -Dexec.args="1000000"
+ * </pre>
+ *
+ * Usernames are random lowercase words of 5 to 12 letters; prefixes are the
+ * first one to four letters of random usernames.
+ */
+public class AccountSearchBenchmark {
+
+    private static final int SEARCHES = 20_000;
+    private static final int LIMIT = 10;
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length == 0 ? 1_000_000 : Integer.parseInt(args[0]);
+        String[] usernames = usernames(accounts);
+        ConnectionUtil.resetTestDatabase();
+        // held open so H2 does not close the database between queries
+        Connection keepOpen = ConnectionUtil.getConnection();
+        long seedStart = System.nanoTime();
+        seed(usernames);
+        System.out.printf("seeded %,d accounts in %d ms%n", accounts, (System.nanoTime() - seedStart) / 1_000_000);
+
+        AccountDAO accountDAO = new AccountDAO();
+        System.gc();
+        long heapBefore = usedHeap();
+        RadixTree tree = new RadixTree();
+        long buildStart = System.nanoTime();
+        accountDAO.forEachUsername(tree::put);
+        long built = System.nanoTime() - buildStart;
+        System.gc();
+        System.out.printf("radix tree of %,d names built in %d ms, about %,d bytes of heap%n", tree.size(),
+                built / 1_000_000, usedHeap() - heapBefore);
+
+        SplittableRandom random = new SplittableRandom(46);
+        String[] prefixes = new String[SEARCHES];
+        for (int i = 0; i < SEARCHES; i++) {
+            String username = usernames[random.nextInt(accounts)];
+            prefixes[i] = username.substring(0, 1 + random.nextInt(4));
+        }
+        for (int round = 0; round < 3; round++) {
+            measure("radix tree", prefixes, prefix -> {
+                int[] count = new int[1];
+                tree.visitPrefix(prefix, LIMIT, (username, id) -> count[0]++);
+                return count[0];
+            });
+            measure("jdbc range", prefixes, prefix -> {
+                List<AccountSummary> found = accountDAO.findByUsernamePrefix(prefix, LIMIT);
+                return found.size();
+            });
+        }
+        keepOpen.close();
+    }
+
+    interface Search {
+        int run(String prefix) throws Exception;
+    }
+
+    private static void measure(String name, String[] prefixes, Search search) throws Exception {
+        long results = 0;
+        long start = System.nanoTime();
+        for (String prefix : prefixes) {
+            results += search.run(prefix);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-12s %,8d searches  %,10.1f us/search  %,8d results%n",
+                name, prefixes.length, elapsed / 1e3 / prefixes.length, results);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String[] usernames(int accounts) {
+        SplittableRandom random = new SplittableRandom(45);
+        String[] usernames = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int length = 5 + random.nextInt(8); name.length() < length;) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            // keep names unique without changing their spread
+            usernames[i] = name.append(i).toString();
+        }
+        return usernames;
+    }
+
+    private static void seed(String[] usernames) throws SQLException {
+        Connection conn = ConnectionUtil.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO account (username, password) VALUES (?, 'password')")) {
+                for (int i = 0; i < usernames.length; i++) {
+                    ps.setString(1, usernames[i]);
+                    ps.addBatch();
+                    if (i % 10_000 == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                    }
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+}
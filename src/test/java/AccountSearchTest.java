@@ -0,0 +1,153 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Account;
+import Model.AccountSummary;
+import Service.AccountService;
+import Util.RadixTree;
+
+public class AccountSearchTest {
+
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private void register(String username) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/register")))
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        "{\"username\": \"" + username + "\", \"password\": \"password\"}"))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(200, webClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    private HttpResponse<String> search(String query) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/accounts" + query)))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private List<Map<String, Object>> results(String query) throws Exception {
+        HttpResponse<String> response = search(query);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), new TypeReference<List<Map<String, Object>>>() {
+        });
+    }
+
+    private static List<Object> usernames(List<Map<String, Object>> accounts) {
+        List<Object> usernames = new ArrayList<>();
+        accounts.forEach(account -> usernames.add(account.get("username")));
+        return usernames;
+    }
+
+    @Test
+    public void prefixSearchReturnsMatchesInOrderWithoutPasswords() throws Exception {
+        register("maria");
+        register("mark");
+        register("marco");
+        register("bob");
+
+        List<Map<String, Object>> accounts = results("?prefix=mar");
+        Assert.assertEquals(List.of("marco", "maria", "mark"), usernames(accounts));
+        for (Map<String, Object> account : accounts) {
+            Assert.assertEquals(2, account.size());
+            Assert.assertTrue(account.get("account_id") instanceof Integer);
+            Assert.assertFalse(account.containsKey("password"));
+        }
+        Assert.assertEquals(List.of("marco", "maria"), usernames(results("?prefix=mar&limit=2")));
+        Assert.assertEquals(List.of("testuser1"), usernames(results("?prefix=test")));
+        Assert.assertEquals(List.of(), usernames(results("?prefix=mart")));
+        Assert.assertEquals(List.of("bob", "marco"), usernames(results("?prefix=&limit=2")));
+    }
+
+    /**
+     * An update that leaves out the username keeps the stored one, in the
+     * table and in the index.
+     */
+    @Test
+    public void updatesWithoutAUsernameKeepIt() {
+        AccountService accounts = new AccountService();
+        Assert.assertTrue(accounts.updateAccount(new Account(1, null, "changed")));
+        List<AccountSummary> found = accounts.findAccountsByUsernamePrefix("test", 10);
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals("testuser1", found.get(0).getUsername());
+        Assert.assertTrue(accounts.validateLogin(new Account("testuser1", "changed")).isPresent());
+    }
+
+    @Test
+    public void badQueriesAreRejected() throws Exception {
+        Assert.assertEquals(400, search("").statusCode());
+        Assert.assertEquals(400, search("?prefix=a&limit=0").statusCode());
+        Assert.assertEquals(400, search("?prefix=a&limit=x").statusCode());
+    }
+
+    @Test
+    public void radixTreeMatchesASortedMap() {
+        Random random = new Random(46);
+        RadixTree tree = new RadixTree();
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int length = 1 + random.nextInt(6); key.length() < length;) {
+                key.append((char) ('a' + random.nextInt(4)));
+            }
+            String name = key.toString();
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(name) != null, tree.remove(name));
+            } else {
+                tree.put(name, i);
+                expected.put(name, i);
+            }
+            Assert.assertEquals(expected.size(), tree.size());
+        }
+        for (String prefix : List.of("", "a", "ab", "bca", "dddd", "abcdab")) {
+            List<String> found = new ArrayList<>();
+            tree.visitPrefix(prefix, 25, (key, value) -> {
+                Assert.assertEquals(expected.get(key).intValue(), value);
+                found.add(key);
+            });
+            List<String> wanted = new ArrayList<>();
+            for (String key : expected.tailMap(prefix).keySet()) {
+                if (!key.startsWith(prefix) || wanted.size() == 25) {
+                    break;
+                }
+                wanted.add(key);
+            }
+            Assert.assertEquals(wanted, found);
+        }
+        for (String key : new ArrayList<>(expected.keySet())) {
+            Assert.assertTrue(tree.remove(key));
+        }
+        Assert.assertEquals(0, tree.size());
+        Assert.assertEquals(0, tree.visitPrefix("", 10, (key, value) -> Assert.fail(key)));
+    }
+}
@@ -0,0 +1,121 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Util.Bulkhead;
+
+/**
+ * Reads and logins are answered from futures completed on the bulkheads and
+ * the password hasher rather than on Jetty threads.
+ */
+public class AsyncHandlerTest {
+
+    TestServer server;
+    HttpClient webClient;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder().uri(URI.create(server.url(path))).build();
+    }
+
+    @Test
+    public void concurrentReadsAndLoginsAreAnswered() throws Exception {
+        HttpRequest login = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/login")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"username\": \"testuser1\", " +
+                        "\"password\": \"password\" }"))
+                .header("Content-Type", "application/json")
+                .build();
+        List<CompletableFuture<HttpResponse<String>>> messageReads = new ArrayList<>();
+        List<CompletableFuture<HttpResponse<String>>> accountReads = new ArrayList<>();
+        List<CompletableFuture<HttpResponse<String>>> logins = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            messageReads.add(webClient.sendAsync(get("/messages/1"), HttpResponse.BodyHandlers.ofString()));
+            accountReads.add(webClient.sendAsync(get("/accounts/1/messages"), HttpResponse.BodyHandlers.ofString()));
+            logins.add(webClient.sendAsync(login, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> read : messageReads) {
+            HttpResponse<String> response = read.get();
+            Assert.assertEquals(200, response.statusCode());
+            Assert.assertTrue(response.body().contains("\"message_id\":1"));
+        }
+        for (CompletableFuture<HttpResponse<String>> read : accountReads) {
+            HttpResponse<String> response = read.get();
+            Assert.assertEquals(200, response.statusCode());
+            Assert.assertTrue(response.body().startsWith("["));
+        }
+        for (CompletableFuture<HttpResponse<String>> attempt : logins) {
+            int status = attempt.get().statusCode();
+            Assert.assertTrue("unexpected login status " + status, status == 200 || status == 503);
+        }
+    }
+
+    @Test
+    public void errorsKeepTheirStatus() throws Exception {
+        HttpResponse<String> missing = webClient.send(get("/messages/100"), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, missing.statusCode());
+        Assert.assertEquals("", missing.body());
+
+        HttpResponse<String> badId = webClient.send(get("/accounts/x/messages"), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(400, badId.statusCode());
+
+        HttpRequest wrongPassword = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/login")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"username\": \"testuser1\", " +
+                        "\"password\": \"wrong\" }"))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(401, webClient.send(wrongPassword, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    public void bulkheadRejectsWorkBeyondItsQueue() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> running = bulkhead.supply(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        });
+        CompletableFuture<Integer> queued = bulkhead.supply(() -> 2);
+        CompletableFuture<Integer> rejected = bulkhead.supply(() -> 3);
+
+        try {
+            rejected.get();
+            Assert.fail("expected the full bulkhead to reject the work");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        release.countDown();
+        Assert.assertEquals(1, (int) running.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, (int) queued.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import Util.BulkTool;
+import Util.ConnectionUtil;
+import Util.RecordFormat;
+
+/**
+ * Times BulkTool importing and exporting a generated file of messages, in
+ * each format, posted by a thousand imported accounts.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=BulkImportBenchmark \
+ *       -Dexec.args="5000000" -Dbulk.threads=4
+ * </pre>
+ */
+public class BulkImportBenchmark {
+
+    private static final int ACCOUNTS = 1000;
+    private static final String[] ACCOUNT_COLUMNS = { "account_id", "username", "password" };
+    private static final String[] MESSAGE_COLUMNS = { "message_id", "posted_by", "message_text", "time_posted_epoch" };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ConnectionUtil.resetTestDatabase();
+        // H2 closes the database with its last connection
+        Connection keepOpen = ConnectionUtil.getConnection();
+        Path directory = Files.createTempDirectory("bulk-benchmark");
+        BulkTool tool = new BulkTool();
+
+        Path accounts = directory.resolve("accounts.csv");
+        try (BufferedWriter out = Files.newBufferedWriter(accounts, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder(RecordFormat.CSV.header(ACCOUNT_COLUMNS));
+            for (int i = 0; i < ACCOUNTS; i++) {
+                RecordFormat.CSV.append(line, ACCOUNT_COLUMNS,
+                        new Object[] { 10 + i, "bulkuser" + i, "password" });
+            }
+            out.append(line);
+        }
+        tool.importAccounts(accounts);
+
+        System.out.printf("%-8s %10s %12s %12s %12s%n", "format", "messages", "import/s", "export/s", "file MB");
+        for (RecordFormat format : RecordFormat.values()) {
+            Path file = directory.resolve(format == RecordFormat.CSV ? "messages.csv" : "messages.jsonl");
+            generate(format, file, messages);
+            try (Statement statement = keepOpen.createStatement()) {
+                statement.execute("DELETE FROM message");
+            }
+            BulkTool.Result imported = tool.importMessages(file);
+            BulkTool.Result exported = tool.exportMessages(directory.resolve("export-" + file.getFileName()));
+            System.out.printf("%-8s %,10d %,12.0f %,12.0f %,12d%n", format, imported.written,
+                    imported.perSecond(), exported.perSecond(), Files.size(file) >> 20);
+        }
+        keepOpen.close();
+    }
+
+    private static void generate(RecordFormat format, Path file, int messages) throws Exception {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(format.header(MESSAGE_COLUMNS));
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < messages; i++) {
+                line.setLength(0);
+                format.append(line, MESSAGE_COLUMNS, new Object[] { null, 10 + i % ACCOUNTS,
+                        "benchmark message number " + i + ", with \"quotes\"", 1669947792L + i });
+                out.append(line);
+            }
+        }
+    }
+}
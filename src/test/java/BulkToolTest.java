@@ -0,0 +1,250 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import DAO.BulkDAO;
+import Model.Account;
+import Model.Message;
+import Util.BulkTool;
+import Util.ConnectionUtil;
+import Util.Metrics;
+import Util.SchemaInitializer;
+
+public class BulkToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    BulkTool tool = new BulkTool();
+
+    @Before
+    public void setUp() {
+        TestServer.resetDatabase();
+    }
+
+    private Path write(String name, String... lines) throws Exception {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, List.of(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<Message> messages() {
+        List<Message> messages = new ArrayList<>();
+        try (BulkDAO dao = new BulkDAO()) {
+            dao.forEachMessage(messages::add);
+        }
+        return messages;
+    }
+
+    private static List<Account> accounts() {
+        List<Account> accounts = new ArrayList<>();
+        try (BulkDAO dao = new BulkDAO()) {
+            dao.forEachAccount(accounts::add);
+        }
+        return accounts;
+    }
+
+    private static List<String> messageIndexes() throws Exception {
+        List<String> indexes = new ArrayList<>();
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES "
+                        + "WHERE TABLE_NAME = 'MESSAGE' ORDER BY INDEX_NAME")) {
+            while (rs.next()) {
+                indexes.add(rs.getString(1).toLowerCase());
+            }
+        }
+        return indexes;
+    }
+
+    private static int insertWithIdentity(String sql) throws Exception {
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static long deferredLoads() {
+        return Metrics.snapshot().getOrDefault("bulk.messages.deferredLoads", 0L);
+    }
+
+    @Test
+    public void importsAccountsAndTheirMessages() throws Exception {
+        Path accounts = write("accounts.csv",
+                "account_id,username,password",
+                "10,alice,secret",
+                "11,\"bob, the builder\",secret",
+                "12,testuser1,secret",
+                "13,,secret",
+                "1,carol,secret");
+        BulkTool.Result result = tool.importAccounts(accounts);
+        Assert.assertEquals(2, result.written);
+        Assert.assertEquals(3, result.rejected);
+        Assert.assertEquals(List.of("testuser1", "alice", "bob, the builder"),
+                accounts().stream().map(Account::getUsername).collect(Collectors.toList()));
+
+        Path messages = write("messages.jsonl",
+                "{\"posted_by\":10,\"message_text\":\"hello\",\"time_posted_epoch\":1669947800}",
+                "",
+                "{\"posted_by\":11,\"message_text\":\"quote \\\" and\\nbreak\",\"time_posted_epoch\":1669947801}",
+                "{\"posted_by\":99,\"message_text\":\"nobody\",\"time_posted_epoch\":1669947802}",
+                "{\"posted_by\":10,\"message_text\":\" \",\"time_posted_epoch\":1669947803}",
+                "{\"posted_by\":10,\"message_text\":\"" + "x".repeat(255) + "\",\"time_posted_epoch\":1}",
+                "{\"posted_by\":10,\"message_text\":\"unterminated\"");
+        result = tool.importMessages(messages);
+        Assert.assertEquals(2, result.written);
+        Assert.assertEquals(4, result.rejected);
+
+        List<Message> stored = messages();
+        Assert.assertEquals(3, stored.size());
+        Assert.assertEquals(new Message(stored.get(1).getMessage_id(), 10, "hello", 1669947800), stored.get(1));
+        Assert.assertEquals("quote \" and\nbreak", stored.get(2).getMessage_text());
+        Assert.assertTrue(stored.get(1).getMessage_id() > 1);
+        Assert.assertTrue(messageIndexes().containsAll(List.of("message_time", "message_posted_by_time")));
+    }
+
+    @Test
+    public void exportsWhatItImports() throws Exception {
+        tool.importAccounts(write("accounts.jsonl",
+                "{\"account_id\":5,\"username\":\"dave\",\"password\":\"secret\"}"));
+        tool.importMessages(write("messages.csv",
+                "message_id,posted_by,message_text,time_posted_epoch",
+                "7,5,\"multi",
+                "line, \"\"quoted\"\"\",1669947800",
+                "8,5,plain,1669947801"));
+        List<Message> before = messages();
+        Assert.assertEquals(3, before.size());
+        Assert.assertEquals("multi\nline, \"quoted\"", before.get(1).getMessage_text());
+
+        Path csv = folder.getRoot().toPath().resolve("out.csv");
+        Path jsonl = folder.getRoot().toPath().resolve("out.jsonl");
+        Path accounts = folder.getRoot().toPath().resolve("accounts.csv");
+        Assert.assertEquals(3, tool.exportMessages(csv).written);
+        Assert.assertEquals(3, tool.exportMessages(jsonl).written);
+        Assert.assertEquals(2, tool.exportAccounts(accounts).written);
+
+        TestServer.resetDatabase();
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("DELETE FROM message");
+            statement.execute("DELETE FROM account");
+        }
+        Assert.assertEquals(2, tool.importAccounts(accounts).written);
+        Assert.assertEquals(3, tool.importMessages(csv).written);
+        Assert.assertEquals(before, messages());
+
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("DELETE FROM message");
+        }
+        Assert.assertEquals(3, tool.importMessages(jsonl).written);
+        Assert.assertEquals(before, messages());
+    }
+
+    /**
+     * Rows written afterwards without an id land above the ids a file gave.
+     */
+    @Test
+    public void givenIdsMoveTheIdentity() throws Exception {
+        tool.importAccounts(write("accounts.csv", "account_id,username,password", "40,erin,secret"));
+        tool.importMessages(write("messages.csv", "message_id,posted_by,message_text,time_posted_epoch",
+                "500,40,hello,1669947800"));
+        Assert.assertTrue(insertWithIdentity(
+                "INSERT INTO account (username, password) VALUES ('frank', 'secret')") > 40);
+        Assert.assertTrue(insertWithIdentity("INSERT INTO message (posted_by, message_text, time_posted_epoch) "
+                + "VALUES (40, 'after', 1669947801)") > 500);
+    }
+
+    /**
+     * A file that is small next to the table keeps the indexes and the
+     * posted_by check instead of rebuilding them.
+     */
+    @Test
+    public void smallImportsKeepTheIndexes() throws Exception {
+        long before = deferredLoads();
+        Assert.assertEquals(1, tool.importMessages(write("first.csv",
+                "posted_by,message_text,time_posted_epoch", "1,first,1669947800")).written);
+        Assert.assertEquals(before + 1, deferredLoads());
+
+        List<Message> existing = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            existing.add(new Message(1000 + i, 1, "existing " + i, 1669947800 + i));
+        }
+        try (BulkDAO dao = new BulkDAO()) {
+            dao.insertMessages(existing);
+        }
+        Assert.assertEquals(1, tool.importMessages(write("second.csv",
+                "posted_by,message_text,time_posted_epoch", "1,second,1669950000")).written);
+        Assert.assertEquals(before + 1, deferredLoads());
+        Assert.assertEquals(2003, messages().size());
+    }
+
+    /**
+     * A load that dies with the indexes dropped and the foreign key off is
+     * finished at the next startup, which also moves a lagging identity.
+     */
+    @Test
+    public void startupFinishesInterruptedLoads() throws Exception {
+        try {
+            tool.importMessages(folder.getRoot().toPath().resolve("missing.csv"));
+            Assert.fail();
+        } catch (NoSuchFileException expected) {
+            Assert.assertTrue(messageIndexes().containsAll(List.of("message_time", "message_posted_by_time")));
+        }
+
+        try (BulkDAO dao = new BulkDAO()) {
+            dao.beginMessageLoad();
+            dao.insertMessages(List.of(new Message(50, 1, "explicit", 1669947800)));
+        }
+        Assert.assertFalse(messageIndexes().contains("message_time"));
+        try (Connection conn = ConnectionUtil.getConnection()) {
+            SchemaInitializer.ensureSchema(conn);
+        }
+        Assert.assertTrue(messageIndexes().containsAll(List.of("message_time", "message_posted_by_time")));
+        Assert.assertTrue(insertWithIdentity("INSERT INTO message (posted_by, message_text, time_posted_epoch) "
+                + "VALUES (1, 'after', 1669947801)") > 50);
+        try {
+            insertWithIdentity("INSERT INTO message (posted_by, message_text, time_posted_epoch) "
+                    + "VALUES (99, 'nobody', 1669947802)");
+            Assert.fail();
+        } catch (SQLException expected) {
+            // the foreign key is checked again
+        }
+        try (BulkDAO dao = new BulkDAO()) {
+            Assert.assertFalse(dao.messageLoadInterrupted());
+        }
+    }
+
+    /**
+     * Only the jdbc message store keeps messages in the table the tool
+     * reads and writes.
+     */
+    @Test
+    public void messagesNeedTheJdbcStore() throws Exception {
+        Path messages = write("messages.csv", "posted_by,message_text,time_posted_epoch", "1,ignored,1669947800");
+        System.setProperty("message.store", "log");
+        try {
+            tool.importMessages(messages);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage().contains("message.store"));
+        } finally {
+            System.clearProperty("message.store");
+        }
+        Assert.assertEquals(1, messages().size());
+    }
+}
@@ -0,0 +1,204 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Service.ChangeLog;
+
+public class ChangeLogTest {
+
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        System.setProperty("changes.enabled", "true");
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        System.clearProperty("changes.enabled");
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return webClient.send(request.header("Content-Type", "application/json").build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder changes(String query) {
+        return HttpRequest.newBuilder().uri(URI.create(server.url("/changes" + query)));
+    }
+
+    private HttpRequest.Builder postMessage(String text) {
+        return HttpRequest.newBuilder().uri(URI.create(server.url("/messages")))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\": 1, \"message_text\": \"" + text
+                        + "\", \"time_posted_epoch\": 1669947800}"));
+    }
+
+    private long lastSequence() {
+        return ChangeLog.getDefault().lastSequence();
+    }
+
+    @Test
+    public void writesAppearInOrder() throws Exception {
+        long since = lastSequence();
+        Message created = objectMapper.readValue(send(postMessage("change one")).body(), Message.class);
+        send(HttpRequest.newBuilder().uri(URI.create(server.url("/messages/" + created.getMessage_id())))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"change two\"}")));
+        send(HttpRequest.newBuilder().uri(URI.create(server.url("/messages/" + created.getMessage_id())))
+                .DELETE());
+        send(HttpRequest.newBuilder().uri(URI.create(server.url("/register")))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\": \"follower\", \"password\": \"secret\"}")));
+
+        HttpResponse<String> response = send(changes("?since=" + since));
+        Assert.assertEquals(200, response.statusCode());
+        JsonNode events = objectMapper.readTree(response.body());
+        Assert.assertEquals(4, events.size());
+        String[] ops = { "message create", "message update", "message delete", "account create" };
+        for (int i = 0; i < ops.length; i++) {
+            JsonNode event = events.get(i);
+            Assert.assertEquals(since + i + 1, event.get("sequence").asLong());
+            Assert.assertEquals(ops[i], event.get("entity").asText() + " " + event.get("op").asText());
+        }
+        Assert.assertEquals("change two", events.get(1).get("data").get("message_text").asText());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, events.get(i).get("version").asLong());
+        }
+        Assert.assertFalse(events.get(3).has("version"));
+        Assert.assertEquals("follower", events.get(3).get("data").get("username").asText());
+        Assert.assertFalse(events.get(3).get("data").has("password"));
+        Assert.assertEquals(Long.toString(since + 4), response.headers().firstValue("X-Last-Sequence").get());
+
+        JsonNode page = objectMapper.readTree(send(changes("?since=" + since + "&limit=2")).body());
+        Assert.assertEquals(2, page.size());
+        Assert.assertEquals(400, send(changes("?limit=0")).statusCode());
+        Assert.assertEquals(400, send(changes("?wait=31")).statusCode());
+    }
+
+    @Test
+    public void longPollWaitsForTheNextChange() throws Exception {
+        long since = lastSequence();
+        long start = System.nanoTime();
+        HttpResponse<String> empty = send(changes("?since=" + since + "&wait=1"));
+        Assert.assertEquals("[]", empty.body());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+
+        CompletableFuture<HttpResponse<String>> polling = webClient.sendAsync(
+                changes("?since=" + since + "&wait=20").build(), HttpResponse.BodyHandlers.ofString());
+        Thread.sleep(200);
+        Assert.assertFalse(polling.isDone());
+        start = System.nanoTime();
+        send(postMessage("long polled"));
+        JsonNode events = objectMapper.readTree(polling.get(5, TimeUnit.SECONDS).body());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals("long polled", events.get(0).get("data").get("message_text").asText());
+    }
+
+    @Test
+    public void reopeningRestoresTheSequence() throws Exception {
+        Path directory = Files.createTempDirectory("changes");
+        ChangeLog log = new ChangeLog(directory, 256, 10, true);
+        for (int i = 1; i <= 20; i++) {
+            Assert.assertEquals(i, log.append("message", "create", i, new Message(i, 1, "text " + i, 0)));
+        }
+        log.close();
+
+        ChangeLog reopened = new ChangeLog(directory, 256, 10, true);
+        Assert.assertEquals(20, reopened.lastSequence());
+        List<byte[]> events = reopened.read(15, 10);
+        Assert.assertEquals(5, events.size());
+        Assert.assertEquals(16, objectMapper.readTree(events.get(0)).get("sequence").asLong());
+        Assert.assertEquals(21, reopened.append("message", "delete", 1, new Message(1, 1, "text 1", 0)));
+        reopened.close();
+    }
+
+    /**
+     * Old segments are deleted as the log rolls over; reads and a reopened
+     * log start at the oldest retained event.
+     */
+    @Test
+    public void retainsTheNewestSegments() throws Exception {
+        Path directory = Files.createTempDirectory("changes");
+        ChangeLog log = new ChangeLog(directory, 1024, 2, 10, false, 1);
+        for (int i = 1; i <= 50; i++) {
+            log.append("message", "create", i, new Message(i, 1, "text " + i, 0));
+        }
+        long oldest = log.oldestSequence();
+        Assert.assertTrue(oldest > 1);
+        List<byte[]> events = log.read(0, 100);
+        Assert.assertEquals(50 - oldest + 1, events.size());
+        Assert.assertEquals(oldest, objectMapper.readTree(events.get(0)).get("sequence").asLong());
+        Assert.assertEquals(2, log.read(48, 100).size());
+        log.close();
+
+        ChangeLog reopened = new ChangeLog(directory, 1024, 2, 10, false, 1);
+        Assert.assertEquals(oldest, reopened.oldestSequence());
+        Assert.assertEquals(50, reopened.lastSequence());
+        Assert.assertEquals(51, reopened.append("message", "delete", 1, new Message(1, 1, "text 1", 0)));
+        reopened.close();
+    }
+
+    /**
+     * A consumer that falls behind the retained segments keeps moving
+     * forward: X-Last-Sequence names the last event served, not since plus
+     * the page size.
+     */
+    @Test
+    public void pollingSurvivesPruning() throws Exception {
+        ChangeLog log = new ChangeLog(Files.createTempDirectory("changes"), 1024, 1, 10, false, 1);
+        TestServer pruned = TestServer.start(new SocialMediaController(log));
+        try {
+            for (int i = 0; i < 30; i++) {
+                log.append("message", "create", i, new Message(i, 1, "text " + i, 0));
+            }
+            Assert.assertTrue(log.oldestSequence() > 1);
+            long since = 0;
+            int polls = 0;
+            while (since < log.lastSequence()) {
+                HttpResponse<String> response = send(HttpRequest.newBuilder()
+                        .uri(URI.create(pruned.url("/changes?since=" + since + "&limit=5"))));
+                JsonNode events = objectMapper.readTree(response.body());
+                long last = Long.parseLong(response.headers().firstValue("X-Last-Sequence").get());
+                Assert.assertTrue(events.size() > 0);
+                Assert.assertTrue(events.get(0).get("sequence").asLong() > since);
+                Assert.assertEquals(events.get(events.size() - 1).get("sequence").asLong(), last);
+                since = last;
+                if (++polls == 2) {
+                    // roll past the segment being read
+                    for (int i = 0; i < 30; i++) {
+                        log.append("message", "create", i, new Message(i, 1, "more " + i, 0));
+                    }
+                }
+                Assert.assertTrue(polls < 100);
+            }
+            HttpResponse<String> empty = send(HttpRequest.newBuilder()
+                    .uri(URI.create(pruned.url("/changes?since=" + since))));
+            Assert.assertEquals("[]", empty.body());
+            Assert.assertEquals(Long.toString(since), empty.headers().firstValue("X-Last-Sequence").get());
+        } finally {
+            pruned.close();
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.MessageDAO;
+import Model.Message;
+import Service.MessageService;
+import Util.ConnectionUtil;
+import Util.SchemaInitializer;
+import Util.StripedLock;
+import io.javalin.http.HttpResponseException;
+
+/**
+ * Messages carry a version, exposed as an ETag, that every update moves on;
+ * PATCH with If-Match only applies to the version the client last saw.
+ */
+public class ConditionalUpdateTest {
+
+    TestServer server;
+    HttpClient webClient;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpRequest patch(String text, String ifMatch) {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages/1")))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"" + text + "\"}"))
+                .header("Content-Type", "application/json");
+        if (ifMatch != null) {
+            request.header("If-Match", ifMatch);
+        }
+        return request.build();
+    }
+
+    private HttpResponse<String> getMessage() throws Exception {
+        return webClient.send(HttpRequest.newBuilder().uri(URI.create(server.url("/messages/1"))).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void ifMatchRejectsStaleVersions() throws Exception {
+        HttpResponse<String> read = getMessage();
+        Assert.assertEquals("\"0\"", read.headers().firstValue("ETag").orElse(null));
+
+        HttpResponse<String> first = webClient.send(patch("first edit", "\"0\""), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, first.statusCode());
+        Assert.assertEquals("\"1\"", first.headers().firstValue("ETag").orElse(null));
+
+        // a second client still holding version 0
+        HttpResponse<String> stale = webClient.send(patch("lost edit", "\"0\""), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(412, stale.statusCode());
+        Assert.assertTrue(getMessage().body().contains("\"message_text\":\"first edit\""));
+
+        HttpResponse<String> listed = webClient.send(patch("second edit", "\"7\", \"1\""),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, listed.statusCode());
+        Assert.assertEquals("\"2\"", getMessage().headers().firstValue("ETag").orElse(null));
+
+        Assert.assertEquals(200, webClient.send(patch("any version", "*"), HttpResponse.BodyHandlers.ofString())
+                .statusCode());
+        Assert.assertEquals(412, webClient.send(patch("weak tag", "W/\"3\""), HttpResponse.BodyHandlers.ofString())
+                .statusCode());
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> updates = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            updates.add(webClient.sendAsync(patch("edit " + i, null), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> update : updates) {
+            Assert.assertEquals(200, update.get().statusCode());
+        }
+        Assert.assertEquals("\"64\"", getMessage().headers().firstValue("ETag").orElse(null));
+    }
+
+    @Test
+    public void onlyOneOfManyConditionalUpdatesWins() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> updates = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            updates.add(webClient.sendAsync(patch("edit " + i, "\"0\""), HttpResponse.BodyHandlers.ofString()));
+        }
+        int applied = 0;
+        for (CompletableFuture<HttpResponse<String>> update : updates) {
+            int status = update.get().statusCode();
+            Assert.assertTrue("unexpected status " + status, status == 200 || status == 412);
+            if (status == 200) {
+                applied++;
+            }
+        }
+        Assert.assertEquals(1, applied);
+    }
+
+    /**
+     * An update that loses every attempt to other writers is a conflict,
+     * not a bad request.
+     */
+    @Test
+    public void updatesThatKeepLosingConflict() {
+        MessageService service = new MessageService(new MessageDAO() {
+            @Override
+            public boolean update(Message message, long expectedVersion) {
+                return false;
+            }
+        });
+        try {
+            service.updateMessage(new Message(1, 1, "never lands", 1669947792), Optional.empty(), version -> true);
+            Assert.fail();
+        } catch (HttpResponseException expected) {
+            Assert.assertEquals(409, expected.getStatus());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void stripesAreStablePerKey() {
+        StripedLock locks = new StripedLock(100);
+        Assert.assertSame(locks.forKey(42), locks.forKey(42));
+        int distinct = 0;
+        for (int key = 1; key <= 128; key++) {
+            if (locks.forKey(key) != locks.forKey(1)) {
+                distinct++;
+            }
+        }
+        Assert.assertTrue(distinct > 100);
+    }
+
+    /**
+     * A database from before message versions gets the column at startup,
+     * with version 0 on the rows it already has.
+     */
+    @Test
+    public void startupAddsTheVersionColumn() throws Exception {
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("ALTER TABLE message DROP COLUMN version");
+            SchemaInitializer.ensureSchema(conn);
+            try (ResultSet rs = statement.executeQuery("SELECT version FROM message WHERE message_id = 1")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals(0, rs.getLong(1));
+            }
+            Assert.assertEquals(0, SchemaInitializer.ensureSchema(conn));
+        }
+    }
+}
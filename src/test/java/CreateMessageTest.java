@@ -11,38 +11,28 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import Controller.SocialMediaController;
 import Model.Message;
-import Util.ConnectionUtil;
-import io.javalin.Javalin;
 
 public class CreateMessageTest {
-        SocialMediaController socialMediaController;
+        TestServer server;
         HttpClient webClient;
         ObjectMapper objectMapper;
-        Javalin app;
 
         /**
          * Before every test, reset the database, restart the Javalin app, and create a
          * new webClient and ObjectMapper
          * for interacting locally on the web.
-         * 
-         * @throws InterruptedException
          */
         @Before
-        public void setUp() throws InterruptedException {
-                ConnectionUtil.resetTestDatabase();
-                socialMediaController = new SocialMediaController();
-                app = socialMediaController.startAPI();
+        public void setUp() {
                 webClient = HttpClient.newHttpClient();
                 objectMapper = new ObjectMapper();
-                app.start(8080);
-                Thread.sleep(1000);
+                server = TestServer.start();
         }
 
         @After
         public void tearDown() {
-                app.stop();
+                server.close();
         }
 
         /**
@@ -56,7 +46,7 @@ public class CreateMessageTest {
         @Test
         public void createMessageSuccessful() throws IOException, InterruptedException {
                 HttpRequest postMessageRequest = HttpRequest.newBuilder()
-                                .uri(URI.create("http://localhost:8080/messages"))
+                                .uri(URI.create(server.url("/messages")))
                                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                                                 "\"posted_by\":1, " +
                                                 "\"message_text\": \"hello message\", " +
@@ -84,7 +74,7 @@ public class CreateMessageTest {
         @Test
         public void createMessageMessageTextBlank() throws IOException, InterruptedException {
                 HttpRequest postMessageRequest = HttpRequest.newBuilder()
-                                .uri(URI.create("http://localhost:8080/messages"))
+                                .uri(URI.create(server.url("/messages")))
                                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                                                 "\"posted_by\":1, " +
                                                 "\"message_text\": \"\", " +
@@ -109,7 +99,7 @@ public class CreateMessageTest {
         @Test
         public void createMessageMessageGreaterThan255() throws IOException, InterruptedException {
                 HttpRequest postMessageRequest = HttpRequest.newBuilder()
-                                .uri(URI.create("http://localhost:8080/messages"))
+                                .uri(URI.create(server.url("/messages")))
                                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                                                 "\"posted_by\":1, " +
                                                 "\"message_text\": \"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\", "
@@ -135,7 +125,7 @@ public class CreateMessageTest {
         @Test
         public void createMessageUserNotInDb() throws IOException, InterruptedException {
                 HttpRequest postMessageRequest = HttpRequest.newBuilder()
-                                .uri(URI.create("http://localhost:8080/messages"))
+                                .uri(URI.create(server.url("/messages")))
                                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                                                 "\"posted_by\":3, " +
                                                 "\"message_text\": \"message test\", " +
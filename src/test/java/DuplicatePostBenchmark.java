@@ -0,0 +1,63 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Util.Hashing;
+import Util.SlidingWindowMap;
+
+/**
+ * Measures the window MessageService checks posts against: each post hashes
+ * its poster, time and text, claims the key with putIfAbsent and records its
+ * id with replace, as a create does, with a tenth of the posts repeating an
+ * earlier one. Reports posts per second and the heap held once the window
+ * is full.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=DuplicatePostBenchmark \
+ *       -Dexec.args="1000000"
+ * </pre>
+ *
+ * The argument is the window's maxEntries; the clock is simulated at 20,000
+ * posts per second with a 60 s window.
+ */
+public class DuplicatePostBenchmark {
+
+    private static final int POSTS_PER_SECOND = 20_000;
+    private static final long WINDOW_MILLIS = 60_000;
+
+    public static void main(String[] args) {
+        int maxEntries = args.length == 0 ? 1_000_000 : Integer.parseInt(args[0]);
+        for (int round = 0; round < 3; round++) {
+            AtomicLong now = new AtomicLong();
+            System.gc();
+            long heapBefore = usedHeap();
+            SlidingWindowMap window = new SlidingWindowMap(WINDOW_MILLIS, 4, maxEntries, -1, now::get);
+            SplittableRandom random = new SplittableRandom(47);
+            int posts = 5 * 60 * POSTS_PER_SECOND;
+            int repeats = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < posts; i++) {
+                now.set(i * 1000L / POSTS_PER_SECOND);
+                int post = random.nextInt(10) == 0 ? Math.max(0, i - random.nextInt(1000)) : i;
+                long key = Hashing.hash64("post\0" + (post % 5000) + "\0" + (post / POSTS_PER_SECOND)
+                        + "\0message number " + post);
+                if (window.putIfAbsent(key, 0) == -1) {
+                    window.replace(key, 0, i + 1);
+                } else {
+                    repeats++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.gc();
+            System.out.printf("%,d posts in %,d ms: %,.0f posts/s, %,d repeats caught, %,d held, "
+                    + "about %,d bytes of heap, turned early %d times%n", posts, elapsed / 1_000_000,
+                    posts / (elapsed / 1e9), repeats, window.size(), usedHeap() - heapBefore, window.turnedEarly());
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,133 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Message;
+import Util.SlidingWindowMap;
+
+public class DuplicatePostTest {
+
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpRequest post(String text, long time, String idempotencyKey) {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages")))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\": 1, \"message_text\": \"" + text
+                        + "\", \"time_posted_epoch\": " + time + "}"))
+                .header("Content-Type", "application/json");
+        if (idempotencyKey != null) {
+            request.header("Idempotency-Key", idempotencyKey);
+        }
+        return request.build();
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws Exception {
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private int created(HttpRequest request) throws Exception {
+        HttpResponse<String> response = send(request);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class).getMessage_id();
+    }
+
+    private int messageCount() throws Exception {
+        HttpResponse<String> response = send(HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/accounts/1/messages"))).build());
+        return objectMapper.readValue(response.body(), Message[].class).length;
+    }
+
+    @Test
+    public void repeatedPostReturnsTheOriginal() throws Exception {
+        int before = messageCount();
+        int first = created(post("retried", 1669947800, null));
+        Assert.assertEquals(first, created(post("retried", 1669947800, null)));
+        Assert.assertNotEquals(first, created(post("retried", 1669947801, null)));
+        Assert.assertEquals(before + 2, messageCount());
+    }
+
+    @Test
+    public void idempotencyKeysDecideWhatIsARepeat() throws Exception {
+        int first = created(post("keyed", 1669947800, "key-1"));
+        Assert.assertEquals(first, created(post("keyed", 1669947800, "key-1")));
+        // a new key posts the same content again on purpose
+        Assert.assertNotEquals(first, created(post("keyed", 1669947800, "key-2")));
+        Assert.assertEquals(422, send(post("keyed", 1669947900, "key-1")).statusCode());
+        Assert.assertEquals(400, send(post("keyed", 1669947800, "")).statusCode());
+    }
+
+    @Test
+    public void concurrentRepeatsCreateOneMessage() throws Exception {
+        int before = messageCount();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            responses.add(webClient.sendAsync(post("racing", 1669947800, null), HttpResponse.BodyHandlers.ofString()));
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            int status = response.get().statusCode();
+            Assert.assertTrue("status " + status, status == 200 || status == 409);
+            if (status == 200) {
+                ids.add(objectMapper.readValue(response.get().body(), Message.class).getMessage_id());
+            }
+        }
+        Assert.assertEquals(1, ids.size());
+        Assert.assertEquals(before + 1, messageCount());
+    }
+
+    @Test
+    public void windowForgetsOldEntriesAndStaysBounded() {
+        AtomicLong now = new AtomicLong();
+        SlidingWindowMap window = new SlidingWindowMap(300, 4, 1000, -1, now::get);
+        Assert.assertEquals(-1, window.putIfAbsent(42, 0));
+        Assert.assertEquals(0, window.putIfAbsent(42, 7));
+        Assert.assertTrue(window.replace(42, 0, 7));
+        Assert.assertFalse(window.replace(42, 0, 8));
+        Assert.assertEquals(7, window.get(42));
+
+        now.set(250);
+        Assert.assertEquals(7, window.get(42));
+        now.set(400);
+        Assert.assertEquals(-1, window.get(42));
+        Assert.assertEquals(0, window.size());
+
+        for (long key = 1; key <= 5000; key++) {
+            window.putIfAbsent(key, (int) key);
+            Assert.assertTrue(window.size() <= 1000);
+        }
+        Assert.assertEquals(5000, window.get(5000));
+        Assert.assertTrue(window.turnedEarly() > 0);
+
+        Assert.assertTrue(window.remove(5000, 5000));
+        Assert.assertFalse(window.remove(5000, 5000));
+        Assert.assertEquals(4999, window.get(4999));
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import DAO.FollowDAO;
+import Model.Account;
+import Model.Message;
+import Service.FeedService;
+import Service.MessageService;
+import Util.Metrics;
+
+public class FeedTest {
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private void register(String username) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("POST", "/register",
+                "{\"username\": \"" + username + "\", \"password\": \"password\"}");
+        Assert.assertEquals(200, response.statusCode());
+    }
+
+    private Message post(int account, String text, long time) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("POST", "/messages",
+                "{\"posted_by\":" + account + ", \"message_text\": \"" + text + "\", \"time_posted_epoch\": " + time
+                        + "}");
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class);
+    }
+
+    private List<Message> feed(int account) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("GET", "/accounts/" + account + "/feed", null);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), new TypeReference<List<Message>>() {
+        });
+    }
+
+    /**
+     * Fan-out is asynchronous, so waits a while for the feed to catch up.
+     */
+    private void assertFeed(int account, List<Message> expected) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        List<Message> actual = feed(account);
+        while (!expected.equals(actual) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            actual = feed(account);
+        }
+        Assert.assertEquals(expected, actual);
+    }
+
+    /**
+     * A follower's feed holds the followees' messages newest first, including
+     * history from before the follow, and tracks later creates, updates,
+     * deletes and unfollows.
+     */
+    @Test
+    public void feedFollowsFolloweesMessages() throws IOException, InterruptedException {
+        register("reader");
+        register("writer");
+        Assert.assertEquals(201, send("PUT", "/accounts/2/following/1", null).statusCode());
+        Assert.assertEquals(201, send("PUT", "/accounts/2/following/3", null).statusCode());
+        Message original = new Message(1, 1, "test message 1", 1669947792);
+        assertFeed(2, Collections.singletonList(original));
+
+        Message first = post(3, "first", 1669947800);
+        Message second = post(1, "second", 1669947900);
+        post(2, "own messages stay out of the feed", 1669948000);
+        assertFeed(2, Arrays.asList(second, first, original));
+
+        Assert.assertEquals(200, send("PATCH", "/messages/" + first.getMessage_id(),
+                "{\"message_text\": \"first edited\"}").statusCode());
+        Assert.assertEquals(200, send("DELETE", "/messages/" + second.getMessage_id(), null).statusCode());
+        first.setMessage_text("first edited");
+        assertFeed(2, Arrays.asList(first, original));
+
+        Assert.assertEquals(200, send("DELETE", "/accounts/2/following/3", null).statusCode());
+        assertFeed(2, Collections.singletonList(original));
+    }
+
+    @Test
+    public void followValidation() throws IOException, InterruptedException {
+        register("reader");
+        Assert.assertEquals(400, send("PUT", "/accounts/2/following/2", null).statusCode());
+        Assert.assertEquals(400, send("PUT", "/accounts/2/following/99", null).statusCode());
+        Assert.assertEquals(400, send("PUT", "/accounts/99/following/1", null).statusCode());
+        Assert.assertEquals(404, send("DELETE", "/accounts/2/following/1", null).statusCode());
+        Assert.assertEquals(201, send("PUT", "/accounts/2/following/1", null).statusCode());
+        Assert.assertEquals(200, send("PUT", "/accounts/2/following/1", null).statusCode());
+        Assert.assertEquals(400, send("GET", "/accounts/2/feed?limit=0", null).statusCode());
+    }
+
+    /**
+     * Followees above the fan-out threshold are not pushed into inboxes but
+     * merged into the feed at read time, and are fanned out again once they
+     * drop back to the threshold.
+     */
+    @Test
+    public void celebritiesAreMergedOnRead() throws IOException, InterruptedException {
+        register("reader");
+        register("other");
+        MessageService messageService = new MessageService();
+        // more than one follower makes an account a celebrity
+        FeedService feedService = new FeedService(messageService, new FollowDAO(), 200, 100, 1, 1, 100);
+        try {
+            Assert.assertTrue(feedService.follow(2, 1));
+            Assert.assertTrue(feedService.follow(3, 1));
+            Message original = new Message(1, 1, "test message 1", 1669947792);
+            Assert.assertEquals(Collections.singletonList(original), feedService.getFeed(2, 10));
+
+            LongAdder deliveries = Metrics.counter("feed.fanout.deliveries");
+            long before = deliveries.sum();
+            Message broadcast = messageService.createMessage(new Message(1, "to everyone", 1669947800),
+                    Optional.of(new Account(1, "testuser1", "password")));
+            feedService.awaitFanout();
+            Assert.assertEquals(before, deliveries.sum());
+            Assert.assertEquals(Arrays.asList(broadcast, original), feedService.getFeed(2, 10));
+            Assert.assertEquals(Collections.singletonList(broadcast), feedService.getFeed(3, 1));
+
+            Assert.assertTrue(feedService.unfollow(3, 1));
+            Message direct = messageService.createMessage(new Message(1, "to one", 1669947900),
+                    Optional.of(new Account(1, "testuser1", "password")));
+            feedService.awaitFanout();
+            Assert.assertEquals(Arrays.asList(direct, broadcast, original), feedService.getFeed(2, 10));
+            Assert.assertTrue(feedService.getFeed(3, 10).isEmpty());
+        } finally {
+            feedService.close();
+            messageService.close();
+        }
+    }
+
+    /**
+     * A delivery that races an inbox build does not cost a second build: the
+     * read is served from the build, which is not cached, and the next read
+     * builds and caches the inbox.
+     */
+    @Test
+    public void racedBuildsAreServedWithoutCaching() throws IOException, InterruptedException {
+        register("reader");
+        AtomicReference<FeedService> racing = new AtomicReference<>();
+        MessageService messageService = new MessageService() {
+            @Override
+            public List<Message> getRecentMessagesByAccountId(int accountId, int beforeId, int limit) {
+                FeedService feedService = racing.getAndSet(null);
+                if (feedService != null) {
+                    feedService.messageInvalidated(1, accountId);
+                }
+                return super.getRecentMessagesByAccountId(accountId, beforeId, limit);
+            }
+        };
+        FeedService feedService = new FeedService(messageService, new FollowDAO(), 200, 100, 10, 1, 100);
+        try {
+            Assert.assertTrue(feedService.follow(2, 1));
+            List<Message> expected = Collections.singletonList(new Message(1, 1, "test message 1", 1669947792));
+            LongAdder builds = Metrics.counter("feed.inbox.builds");
+            LongAdder uncached = Metrics.counter("feed.inbox.uncachedBuilds");
+            long buildsBefore = builds.sum();
+            long uncachedBefore = uncached.sum();
+
+            racing.set(feedService);
+            Assert.assertEquals(expected, feedService.getFeed(2, 10));
+            Assert.assertEquals(buildsBefore + 1, builds.sum());
+            Assert.assertEquals(uncachedBefore + 1, uncached.sum());
+
+            Assert.assertEquals(expected, feedService.getFeed(2, 10));
+            Assert.assertEquals(expected, feedService.getFeed(2, 10));
+            Assert.assertEquals(buildsBefore + 2, builds.sum());
+            Assert.assertEquals(uncachedBefore + 1, uncached.sum());
+        } finally {
+            feedService.close();
+            messageService.close();
+        }
+    }
+}
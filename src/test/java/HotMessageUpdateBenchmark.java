@@ -0,0 +1,91 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import Util.Metrics;
+
+/**
+ * Measures PATCH /messages/1 throughput with WRITERS clients updating the
+ * same message, with and without the in-process striped lock, for
+ * unconditional updates and for read-then-If-Match updates that retry on
+ * 412.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=HotMessageUpdateBenchmark \
+ *       -Dexec.args="10"
+ * </pre>
+ */
+public class HotMessageUpdateBenchmark {
+
+    private static final int WRITERS = 64;
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length == 0 ? 10 : Long.parseLong(args[0]);
+        System.setProperty("ratelimit.enabled", "false");
+        for (boolean conditional : new boolean[] { false, true }) {
+            for (String stripes : new String[] { "256", "0" }) {
+                System.setProperty("message.update.lockStripes", stripes);
+                run(conditional, !"0".equals(stripes), seconds);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(boolean conditional, boolean locked, long seconds) throws Exception {
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(8)).build();
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try (TestServer server = TestServer.start()) {
+            long conflictsBefore = Metrics.snapshot().getOrDefault("message.update.versionConflicts", 0L);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Future<Map<Integer, Integer>>> results = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                results.add(writers.submit(() -> {
+                    Map<Integer, Integer> statuses = new TreeMap<>();
+                    int n = 0;
+                    while (System.nanoTime() < deadline) {
+                        HttpRequest.Builder patch = HttpRequest.newBuilder()
+                                .uri(URI.create(server.url("/messages/1")))
+                                .method("PATCH", HttpRequest.BodyPublishers.ofString(
+                                        "{\"message_text\": \"writer " + writer + " edit " + n++ + "\"}"))
+                                .header("Content-Type", "application/json");
+                        if (conditional) {
+                            HttpResponse<String> read = client.send(HttpRequest.newBuilder()
+                                    .uri(URI.create(server.url("/messages/1"))).build(),
+                                    HttpResponse.BodyHandlers.ofString());
+                            patch.header("If-Match", read.headers().firstValue("ETag").orElse("*"));
+                        }
+                        int status = client.send(patch.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+                        statuses.merge(status, 1, Integer::sum);
+                    }
+                    return statuses;
+                }));
+            }
+            Map<Integer, Integer> statuses = new TreeMap<>();
+            for (Future<Map<Integer, Integer>> result : results) {
+                result.get().forEach((status, count) -> statuses.merge(status, count, Integer::sum));
+            }
+            long conflicts = Metrics.snapshot().getOrDefault("message.update.versionConflicts", 0L) - conflictsBefore;
+            String etag = HttpClient.newHttpClient().send(HttpRequest.newBuilder()
+                    .uri(URI.create(server.url("/messages/1"))).build(), HttpResponse.BodyHandlers.discarding())
+                    .headers().firstValue("ETag").orElse("?");
+            int applied = statuses.getOrDefault(200, 0);
+            System.out.printf("%-13s %-9s %7.1f updates/s  statuses %s  version conflicts %d  final ETag %s%n",
+                    conditional ? "If-Match" : "unconditional", locked ? "locked" : "unlocked",
+                    applied / (double) seconds, statuses, conflicts, etag);
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+}
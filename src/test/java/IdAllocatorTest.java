@@ -0,0 +1,115 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.IdAllocator;
+import DAO.MessageDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+import Util.Metrics;
+
+public class IdAllocatorTest {
+
+    @Before
+    public void setUp() {
+        TestServer.resetDatabase();
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    /**
+     * Two allocators on one table stand in for two processes sharing the
+     * database; a third, created afterwards, for a restarted one.
+     */
+    @Test
+    public void idsAreUniqueAcrossAllocatorsAndRestarts() throws Exception {
+        IdAllocator first = new IdAllocator("message", "message_id", 100);
+        IdAllocator second = new IdAllocator("message", "message_id", 100);
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                IdAllocator allocator = t % 2 == 0 ? first : second;
+                tasks.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        Assert.assertTrue(ids.add(allocator.next()));
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(8000, ids.size());
+        // message 1 is seed data inserted without the allocator
+        Assert.assertFalse(ids.contains(1));
+
+        int restarted = new IdAllocator("message", "message_id", 100).next();
+        Assert.assertTrue(restarted > ids.stream().mapToInt(Integer::intValue).max().getAsInt());
+    }
+
+    @Test
+    public void batchInsertsTakeOneCommit() {
+        MessageDAO messageDAO = new MessageDAO();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            messages.add(new Message(1, "batched " + i, 1669947800 + i));
+        }
+        long commits = metric("db.commits");
+        List<Message> inserted = messageDAO.insertAll(messages);
+        Assert.assertEquals(1, metric("db.commits") - commits);
+
+        Assert.assertEquals(50, inserted.size());
+        Assert.assertEquals(2, inserted.get(0).getMessage_id());
+        for (int i = 0; i < inserted.size(); i++) {
+            Assert.assertEquals(messages.get(i).getMessage_text(), inserted.get(i).getMessage_text());
+            Assert.assertEquals(inserted.get(i), messageDAO.getById(inserted.get(i).getMessage_id()).get());
+        }
+        Assert.assertEquals(52, messageDAO.insert(new Message(1, "single", 1669948000)).getMessage_id());
+    }
+
+    /**
+     * Rows inserted through the identity column, as seed scripts and older
+     * releases do, must miss both the allocated ids and the blocks still
+     * being handed out.
+     */
+    @Test
+    public void identityInsertsMissAllocatedIds() throws Exception {
+        IdAllocator allocator = new IdAllocator("message", "message_id", 100);
+        MessageDAO messageDAO = new MessageDAO();
+        int allocated = messageDAO.insert(new Message(1, "allocated", 1669947800)).getMessage_id();
+        int first = allocator.next();
+        int generated;
+        try (Connection conn = ConnectionUtil.getConnection(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate("INSERT INTO message (posted_by, message_text, time_posted_epoch) "
+                    + "VALUES (1, 'identity', 1669947801)", Statement.RETURN_GENERATED_KEYS);
+            try (ResultSet rs = statement.getGeneratedKeys()) {
+                rs.next();
+                generated = rs.getInt(1);
+            }
+        }
+        // past the DAO's block of 1000 and this allocator's block of 100
+        Assert.assertTrue(generated >= first + 100);
+        Assert.assertTrue(generated > allocated + 999);
+        for (int i = 0; i < 150; i++) {
+            Assert.assertNotEquals(generated, allocator.next());
+        }
+        Assert.assertNotEquals(generated, messageDAO.insert(new Message(1, "after", 1669947802)).getMessage_id());
+    }
+}
@@ -0,0 +1,85 @@
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import Model.Message;
+import Service.InvalidationBus;
+import Service.InvalidationListener;
+import Util.LatencyHistogram;
+import Util.Metrics;
+import Util.UdpTransport;
+
+/**
+ * Sends message invalidations between two buses over UDP on localhost at a
+ * fixed rate and reports what arrived, how it was batched and the lag from
+ * queueing to applying.
+ *
+ * Usage: InvalidationBenchmark [perSecond,...] [batchMillis] [seconds]
+ */
+public class InvalidationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] rates = (args.length > 0 ? args[0] : "1000,10000,100000,1000000").split(",");
+        long batchMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("%10s %10s %10s %8s %8s %6s %8s %8s %8s%n", "target/s", "sent/s", "applied", "packets",
+                "perPkt", "gaps", "p50_ms", "p99_ms", "max_ms");
+        long nodes = 0;
+        for (String rate : rates) {
+            // the receiver only accepts the sender's port, so pick it first
+            int sendingPort;
+            try (DatagramSocket probe = new DatagramSocket(0)) {
+                sendingPort = probe.getLocalPort();
+            }
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            UdpTransport receiving = new UdpTransport(0, List.of(new InetSocketAddress(loopback, sendingPort)));
+            UdpTransport sending = new UdpTransport(sendingPort,
+                    List.of(new InetSocketAddress(loopback, receiving.localPort())));
+            InvalidationBus receiver = new InvalidationBus(receiving, ++nodes, 0, 1000, 100_000);
+            InvalidationBus sender = new InvalidationBus(sending, ++nodes, batchMillis, 1000, 100_000);
+            LongAdder applied = new LongAdder();
+            receiver.addListener(new InvalidationListener() {
+                @Override
+                public void messageInvalidated(int messageId, int accountId) {
+                    applied.increment();
+                }
+            });
+            LongAdder packets = Metrics.counter("invalidation.packets.sent");
+            LongAdder gaps = Metrics.counter("invalidation.gaps");
+            long packetsBefore = packets.sum();
+            long gapsBefore = gaps.sum();
+
+            long perSecond = Long.parseLong(rate);
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            long sent = 0;
+            Message message = new Message(0, 1, "text", 0);
+            for (long next = start; next < end; next += intervalNanos) {
+                long wait = next - System.nanoTime();
+                if (wait > 50_000) {
+                    LockSupport.parkNanos(wait);
+                }
+                message.setMessage_id((int) sent);
+                sender.messageUpdated(message);
+                sent++;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            // let the last batch and the heartbeat after it arrive
+            Thread.sleep(batchMillis + 1500);
+            long packetCount = packets.sum() - packetsBefore;
+            LatencyHistogram lag = receiver.getLag();
+            System.out.printf("%10d %10.0f %10d %8d %8.1f %6d %8d %8d %8d%n", perSecond, sent / elapsed,
+                    applied.sum(), packetCount, (double) applied.sum() / Math.max(1, packetCount),
+                    gaps.sum() - gapsBefore, lag.getValueAtPercentile(50), lag.getValueAtPercentile(99),
+                    lag.getMax());
+            sender.close();
+            receiver.close();
+        }
+    }
+}
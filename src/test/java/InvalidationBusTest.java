@@ -0,0 +1,273 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Model.Account;
+import Model.AccountSummary;
+import Model.Message;
+import Service.AccountService;
+import Service.FeedService;
+import Service.InvalidationBus;
+import Service.InvalidationListener;
+import Service.MessageService;
+import Util.LoopbackTransport;
+import Util.Metrics;
+import Util.UdpTransport;
+
+/**
+ * Two nodes in one JVM sharing the test database, each with its own services
+ * and caches, joined by a loopback bus that only sends on flush.
+ */
+public class InvalidationBusTest {
+
+    AccountService accountsA;
+    MessageService messagesA;
+    LoopbackTransport transportA;
+    InvalidationBus busA;
+    AccountService accountsB;
+    MessageService messagesB;
+    InvalidationBus busB;
+    LongAdder gaps = Metrics.counter("invalidation.gaps");
+
+    @Before
+    public void setUp() {
+        TestServer.resetDatabase();
+        String group = UUID.randomUUID().toString();
+        accountsA = new AccountService();
+        messagesA = new MessageService();
+        transportA = new LoopbackTransport(group);
+        busA = new InvalidationBus(transportA, 1, 0, 0, 1000);
+        messagesA.addListener(busA);
+        accountsA.addListener(busA);
+
+        accountsB = new AccountService();
+        messagesB = new MessageService();
+        busB = new InvalidationBus(new LoopbackTransport(group), 2, 0, 0, 1000);
+        busB.addListener(accountsB);
+        busB.addListener(messagesB);
+        // B starts from A's first sequence
+        flush();
+    }
+
+    @After
+    public void tearDown() {
+        busA.close();
+        busB.close();
+        messagesA.close();
+        messagesB.close();
+    }
+
+    /**
+     * Sends A's queue and waits for B to apply it.
+     */
+    private void flush() {
+        busA.flush();
+        try {
+            busB.awaitApplied();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Message post(String text) {
+        return messagesA.createMessage(new Message(1, text, 1669947800), accountsA.getAccountById(1));
+    }
+
+    private List<String> timelineOnB() {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messagesB.getRecentMessagesByAccountId(1, Integer.MAX_VALUE, 10)) {
+            texts.add(message.getMessage_text());
+        }
+        return texts;
+    }
+
+    @Test
+    public void remoteWritesReachTheOtherNodesCaches() {
+        Assert.assertFalse(accountsB.validateLogin(new Account("remoteuser", "password")).isPresent());
+        accountsA.createAccount(new Account("remoteuser", "password"));
+        // B's username filter and index have not heard of the account yet
+        Assert.assertTrue(accountsB.findAccountsByUsernamePrefix("remote", 10).isEmpty());
+        flush();
+        List<AccountSummary> found = accountsB.findAccountsByUsernamePrefix("remote", 10);
+        Assert.assertEquals(1, found.size());
+        Assert.assertTrue(accountsB.validateLogin(new Account("remoteuser", "password")).isPresent());
+
+        Assert.assertEquals(List.of("test message 1"), timelineOnB());
+        post("from node a");
+        Assert.assertEquals(List.of("test message 1"), timelineOnB());
+        flush();
+        Assert.assertEquals(List.of("from node a", "test message 1"), timelineOnB());
+
+        Account renamed = new Account(found.get(0).getAccount_id(), "renameduser", "password");
+        Assert.assertTrue(accountsA.updateAccount(renamed));
+        flush();
+        Assert.assertTrue(accountsB.findAccountsByUsernamePrefix("remote", 10).isEmpty());
+        Assert.assertEquals(1, accountsB.findAccountsByUsernamePrefix("renamed", 10).size());
+    }
+
+    @Test
+    public void followsReachTheOtherNodesGraph() {
+        FeedService feedA = new FeedService(messagesA);
+        FeedService feedB = new FeedService(messagesB);
+        feedA.addListener(busA);
+        busB.addListener(feedB);
+        try {
+            int follower = accountsA.createAccount(new Account("follower", "password")).getAccount_id();
+            Assert.assertTrue(feedB.getFeed(follower, 10).isEmpty());
+
+            Assert.assertTrue(feedA.follow(follower, 1));
+            flush();
+            Assert.assertEquals(List.of("test message 1"), texts(feedB.getFeed(follower, 10)));
+
+            Assert.assertTrue(feedA.unfollow(follower, 1));
+            flush();
+            Assert.assertTrue(feedB.getFeed(follower, 10).isEmpty());
+        } finally {
+            feedA.close();
+            feedB.close();
+        }
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messages) {
+            texts.add(message.getMessage_text());
+        }
+        return texts;
+    }
+
+    @Test
+    public void lostPacketsDropEveryCache() {
+        timelineOnB();
+        long before = gaps.sum();
+        transportA.dropNext(1);
+        post("lost");
+        flush();
+        Assert.assertEquals(List.of("test message 1"), timelineOnB());
+        // with nothing else to send, the heartbeat shows what was lost
+        flush();
+        Assert.assertEquals(before + 1, gaps.sum());
+        Assert.assertEquals(List.of("lost", "test message 1"), timelineOnB());
+
+        transportA.dropNext(1);
+        post("lost again");
+        flush();
+        post("next");
+        flush();
+        Assert.assertEquals(before + 2, gaps.sum());
+        Assert.assertEquals(List.of("next", "lost again", "lost", "test message 1"), timelineOnB());
+    }
+
+    @Test
+    public void invalidationsAreBatchedInOrder() {
+        List<Integer> seen = new ArrayList<>();
+        busB.addListener(new InvalidationListener() {
+            @Override
+            public void messageInvalidated(int messageId, int accountId) {
+                seen.add(messageId);
+            }
+        });
+        LongAdder packets = Metrics.counter("invalidation.packets.sent");
+        long sent = packets.sum();
+        for (int i = 1; i <= 1000; i++) {
+            busA.messageUpdated(new Message(i, 1, "text", 0));
+        }
+        flush();
+        // nine bytes an entry in packets of 1400
+        Assert.assertTrue(packets.sum() - sent <= 7);
+        Assert.assertEquals(1000, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            Assert.assertEquals(i + 1, (int) seen.get(i));
+        }
+        Assert.assertTrue(busB.getLag().getCount() > 0);
+
+        // past maxPending the excess is dropped and receivers are told
+        long before = gaps.sum();
+        for (int i = 0; i < 1001; i++) {
+            busA.messageUpdated(new Message(i, 1, "text", 0));
+        }
+        flush();
+        Assert.assertEquals(before + 1, gaps.sum());
+    }
+
+    /**
+     * A listener that fails partway through a packet drops everything, once,
+     * and the packets after it are applied again.
+     */
+    @Test
+    public void failingListenersDropEveryCache() {
+        List<Integer> seen = new ArrayList<>();
+        LongAdder drops = new LongAdder();
+        busB.addListener(new InvalidationListener() {
+            @Override
+            public void messageInvalidated(int messageId, int accountId) {
+                if (messageId == 2) {
+                    throw new IllegalStateException("listener failure");
+                }
+                seen.add(messageId);
+            }
+
+            @Override
+            public void allInvalidated() {
+                drops.increment();
+            }
+        });
+        long before = gaps.sum();
+        for (int i = 1; i <= 3; i++) {
+            busA.messageUpdated(new Message(i, 1, "text", 0));
+        }
+        flush();
+        Assert.assertEquals(List.of(1), seen);
+        Assert.assertEquals(before + 1, gaps.sum());
+        Assert.assertEquals(1, drops.sum());
+
+        busA.messageUpdated(new Message(4, 1, "text", 0));
+        flush();
+        Assert.assertEquals(List.of(1, 4), seen);
+        Assert.assertEquals(1, drops.sum());
+    }
+
+    /**
+     * Packets from addresses other than the configured peers are dropped.
+     */
+    @Test
+    public void udpAcceptsOnlyPeers() throws Exception {
+        LongAdder rejected = Metrics.counter("transport.udp.rejected");
+        LongAdder received = Metrics.counter("invalidation.packets.received");
+        try (DatagramSocket peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+                DatagramSocket stranger = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            UdpTransport transport = new UdpTransport(0,
+                    List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), peer.getLocalPort())));
+            InvalidationBus bus = new InvalidationBus(transport, 3, 0, 0, 1000);
+            try {
+                long rejectedBefore = rejected.sum();
+                long receivedBefore = received.sum();
+                InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        transport.localPort());
+                byte[] heartbeat = ByteBuffer.allocate(30).putInt(0x494e5631).putLong(9).putLong(5).putLong(0)
+                        .putShort((short) 0).array();
+                stranger.send(new DatagramPacket(heartbeat, heartbeat.length, target));
+                peer.send(new DatagramPacket(heartbeat, heartbeat.length, target));
+                long deadline = System.currentTimeMillis() + 5000;
+                while (received.sum() == receivedBefore && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assert.assertEquals(receivedBefore + 1, received.sum());
+                Assert.assertEquals(rejectedBefore + 1, rejected.sum());
+            } finally {
+                bus.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Util.LatencyHistogram;
+import Util.LoadGenerator;
+
+public class LoadGeneratorTest {
+
+    TestServer server;
+
+    @Before
+    public void setUp() {
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void histogramPercentilesStayWithinOnePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; value++) {
+            histogram.record(value);
+        }
+        Assert.assertEquals(1_000_000, histogram.getCount());
+        Assert.assertEquals(500_000, histogram.getValueAtPercentile(50), 5_000);
+        Assert.assertEquals(990_000, histogram.getValueAtPercentile(99), 9_900);
+        Assert.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void zipfKeysFavourLowIds() {
+        SplittableRandom random = new SplittableRandom(42);
+        int[] counts = new int[1001];
+        for (int i = 0; i < 100_000; i++) {
+            int key = LoadGenerator.zipf(random, 1000, 1.1);
+            Assert.assertTrue(key >= 1 && key <= 1000);
+            counts[key]++;
+        }
+        // P(1) / P(2) = 2^1.1
+        Assert.assertEquals(Math.pow(2, 1.1), counts[1] / (double) counts[2], 0.15);
+        Assert.assertTrue(counts[1] > counts[10] && counts[10] > counts[100]);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportsEveryRouteInTheMix() throws Exception {
+        LoadGenerator.seed(10, 50);
+        LoadGenerator generator = new LoadGenerator(server.url(""),
+                Map.of("register", 1, "login", 1, "create", 4, "read_all", 1,
+                        "read_one", 4, "read_account", 2, "read_recent", 2, "update", 2, "delete", 1),
+                50, false, 200, 1000, 64, 2, 10, 51, 10_000);
+
+        Map<String, Object> report = generator.run();
+
+        Map<String, Object> total = (Map<String, Object>) report.get("total");
+        Map<String, Object> routes = (Map<String, Object>) report.get("routes");
+        Assert.assertEquals(0L, total.get("errors"));
+        Assert.assertTrue((long) total.get("completed") > 30);
+        Assert.assertEquals(9, routes.size());
+        Map<String, Object> readOne = (Map<String, Object>) routes.get("read_one");
+        Assert.assertTrue(((Map<String, Long>) readOne.get("status")).containsKey("200"));
+        Assert.assertTrue(((Map<String, Object>) readOne.get("latency_us")).containsKey("p99.9"));
+    }
+}
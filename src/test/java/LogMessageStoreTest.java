@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.LogMessageDAO;
+import Model.Message;
+
+public class LogMessageStoreTest {
+
+    Path directory;
+    LogMessageDAO store;
+
+    /**
+     * Before every test, reset the database and open a fresh store, which
+     * imports the initial message from the message table.
+     */
+    @Before
+    public void setUp() throws IOException {
+        TestServer.resetDatabase();
+        directory = Files.createTempDirectory("message-store");
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private LogMessageDAO open() {
+        return new LogMessageDAO(directory, 4096, 5, true, 0.5, 3600, false);
+    }
+
+    @Test
+    public void importsExistingMessages() {
+        Assert.assertEquals(Arrays.asList(new Message(1, 1, "test message 1", 1669947792)), store.getAll());
+        // every message reads as version 0, so no entity tags are sent for it
+        Assert.assertFalse(store.keepsVersions());
+    }
+
+    @Test
+    public void survivesRestartWithAndWithoutSnapshot() {
+        Message second = store.insert(new Message(1, "second", 1669947800));
+        store.update(new Message(second.getMessage_id(), 1, "second edited", 1669947800));
+        store.insert(new Message(2, "third", 1669947900));
+        store.delete(new Message(1, 1, "test message 1", 1669947792));
+        List<Message> expected = store.getAll();
+
+        // close() writes a snapshot, so this reopen replays nothing
+        store.close();
+        store = open();
+        Assert.assertEquals(expected, store.getAll());
+
+        // without the snapshot the whole log is replayed
+        store.close();
+        directory.resolve("index.snapshot").toFile().delete();
+        store = open();
+        Assert.assertEquals(expected, store.getAll());
+        Assert.assertEquals(Arrays.asList(new Message(2, 1, "second edited", 1669947800)),
+                store.getMessagesByAccountId(1));
+        Assert.assertEquals(4, store.insert(new Message(1, "fourth", 1669948000)).getMessage_id());
+    }
+
+    @Test
+    public void compactionKeepsLiveMessagesOnly() {
+        for (int i = 0; i < 200; i++) {
+            store.update(new Message(1, 1, "rewrite " + i, 1669947792));
+        }
+        Message kept = store.insert(new Message(2, "kept", 1669947800));
+        long sizeBefore = directorySize();
+
+        store.compact();
+
+        Assert.assertTrue(directorySize() < sizeBefore);
+        Assert.assertEquals(Arrays.asList(new Message(1, 1, "rewrite 199", 1669947792), kept), store.getAll());
+        store.close();
+        store = open();
+        Assert.assertEquals(Arrays.asList(new Message(1, 1, "rewrite 199", 1669947792), kept), store.getAll());
+    }
+
+    /**
+     * Range queries come from the time index, in time order, across hour
+     * buckets and through updates, deletes and a restart from the snapshot.
+     */
+    @Test
+    public void timeRangeQueries() {
+        Message original = new Message(1, 1, "test message 1", 1669947792);
+        Message nextHour = store.insert(new Message(1, "next hour", 1669951392));
+        Message backdated = store.insert(new Message(2, "backdated", 1669940000));
+        Message moved = store.insert(new Message(2, "moved", 1669947793));
+        store.update(new Message(moved.getMessage_id(), 2, "moved", 1669947791));
+        moved.setTime_posted_epoch(1669947791);
+        Message deleted = store.insert(new Message(1, "deleted", 1669947795));
+        store.delete(deleted);
+
+        Assert.assertEquals(Arrays.asList(backdated, moved, original, nextHour), range(Long.MIN_VALUE, Long.MAX_VALUE, 0));
+        Assert.assertEquals(Arrays.asList(moved, original), range(1669947791, 1669951392, 0));
+        Assert.assertEquals(Arrays.asList(backdated, moved), range(0, 1669951392, 2));
+        Assert.assertEquals(Arrays.asList(nextHour), range(1669947793, Long.MAX_VALUE, 1));
+        Assert.assertEquals(Arrays.asList(), range(1669947796, 1669951392, 0));
+
+        store.close();
+        store = open();
+        Assert.assertEquals(Arrays.asList(backdated, moved, original, nextHour), range(Long.MIN_VALUE, Long.MAX_VALUE, 0));
+    }
+
+    private List<Message> range(long from, long to, int postedBy) {
+        List<Message> messages = new ArrayList<>();
+        store.forEachMessageInRange(from, to, postedBy, messages::add);
+        return messages;
+    }
+
+    private long directorySize() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Util.Metrics;
+
+/**
+ * Load test: a storm of concurrent logins must not degrade message reads,
+ * because password hashing runs on its own bounded executor and excess
+ * logins are rejected with 503 instead of queueing on request threads.
+ *
+ * Reads are compared by their median: the slowest few reads during the storm
+ * wait behind the client opening its connections, whatever the server does.
+ */
+public class LoginStormTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoginStormTest.class);
+
+    private static final int STORM_LOGINS = 300;
+    private static final int READS = 50;
+    private static final int MAX_SLOWDOWN = 4;
+    // below this, scheduling noise outweighs the ratio
+    private static final long MIN_BASELINE_MILLIS = 5;
+
+    TestServer server;
+    HttpClient webClient;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private long[] measureReads() throws Exception {
+        HttpRequest getRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages")))
+                .build();
+        long[] latencies = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            long start = System.nanoTime();
+            HttpResponse<String> response = webClient.send(getRequest, HttpResponse.BodyHandlers.ofString());
+            latencies[i] = (System.nanoTime() - start) / 1_000_000;
+            Assert.assertEquals(200, response.statusCode());
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    @Test
+    public void loginStormDoesNotDegradeReads() throws Exception {
+        long rehashesBefore = metric("accounts.rehashes");
+        long skippedBefore = metric("accounts.rehashes.skipped");
+        long[] baseline = measureReads();
+
+        HttpRequest loginRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/login")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"username\": \"testuser1\", " +
+                        "\"password\": \"password\" }"))
+                .header("Content-Type", "application/json")
+                .build();
+        List<CompletableFuture<HttpResponse<String>>> logins = new ArrayList<>();
+        for (int i = 0; i < STORM_LOGINS; i++) {
+            logins.add(webClient.sendAsync(loginRequest, HttpResponse.BodyHandlers.ofString()));
+        }
+        long[] duringStorm = measureReads();
+
+        int succeeded = 0;
+        int rejected = 0;
+        for (CompletableFuture<HttpResponse<String>> login : logins) {
+            int status = login.get().statusCode();
+            Assert.assertTrue("unexpected login status " + status, status == 200 || status == 503);
+            if (status == 200) {
+                succeeded++;
+            } else {
+                rejected++;
+            }
+        }
+
+        long rehashes = metric("accounts.rehashes") - rehashesBefore;
+        long skipped = metric("accounts.rehashes.skipped") - skippedBefore;
+
+        long baselineMedian = baseline[READS / 2];
+        long stormMedian = duringStorm[READS / 2];
+        LOGGER.info("logins ok={} rejected={}, rehashes started={} skipped={}, read median baseline={}ms storm={}ms,"
+                + " p95 baseline={}ms storm={}ms", succeeded, rejected, rehashes, skipped, baselineMedian, stormMedian,
+                baseline[READS * 95 / 100], duringStorm[READS * 95 / 100]);
+        Assert.assertTrue(succeeded > 0);
+        // the legacy password is upgraded once, not once per concurrent login
+        Assert.assertTrue(rehashes >= 1);
+        Assert.assertTrue("rehashed " + rehashes + " times for " + succeeded + " logins", rehashes < succeeded);
+        Assert.assertTrue("reads degraded to a median of " + stormMedian + "ms from " + baselineMedian + "ms",
+                stormMedian <= MAX_SLOWDOWN * Math.max(baselineMedian, MIN_BASELINE_MILLIS));
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import DAO.MessageDAO;
+import DAO.MessageScanFile;
+import Model.Message;
+import Util.ConnectionUtil;
+import Util.MessageJsonWriter;
+
+/**
+ * Compares full-scan throughput and allocation of GET /messages' two read
+ * paths: JDBC into a List of Messages serialised by Jackson, and the
+ * memory-mapped scan file streamed through MessageJsonWriter.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=MessageScanBenchmark \
+ *       -Dexec.args="1000000 10000000"
+ * </pre>
+ *
+ * Each argument is a table size; rows are added to reach it. The JDBC path
+ * keeps every row on the heap, so large sizes need a large -Xmx.
+ */
+public class MessageScanBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        ConnectionUtil.resetTestDatabase();
+        int seeded = 1;
+        Path directory = Files.createTempDirectory("scan-benchmark");
+        MessageDAO messageDAO = new MessageDAO();
+        MessageScanFile scanFile = new MessageScanFile(directory, 256L * 1024 * 1024, messageDAO);
+
+        for (String arg : args.length == 0 ? new String[] { "1000000" } : args) {
+            int rows = Integer.parseInt(arg);
+            long seedStart = System.nanoTime();
+            seed(seeded, rows);
+            seeded = Math.max(seeded, rows);
+            System.out.printf("%n== %,d rows (seeded in %d ms)%n", rows, (System.nanoTime() - seedStart) / 1_000_000);
+
+            scanFile.markStale();
+            long rebuildStart = System.nanoTime();
+            scanFile.rebuild();
+            System.out.printf("scan file rebuild: %d ms%n", (System.nanoTime() - rebuildStart) / 1_000_000);
+
+            ObjectMapper mapper = new ObjectMapper();
+            for (int round = 0; round < ROUNDS; round++) {
+                measure("jdbc + List", rows, () -> {
+                    List<Message> messages = messageDAO.getAll();
+                    mapper.writeValue(OutputStream.nullOutputStream(), messages);
+                });
+                measure("mmap stream", rows, () -> {
+                    try (MessageJsonWriter writer = new MessageJsonWriter(OutputStream.nullOutputStream())) {
+                        scanFile.scan(0, writer::write);
+                    }
+                });
+            }
+        }
+    }
+
+    interface Scan {
+        void run() throws Exception;
+    }
+
+    private static void measure(String name, int rows, Scan scan) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        scan.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("%-12s %,12.0f rows/s  %,10d ms  alloc %,8d MB (%,d B/row)  gc %d (%d ms)%n",
+                name, rows / (elapsed / 1e9), elapsed / 1_000_000, allocated >> 20, allocated / rows,
+                gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    private static void seed(int existing, int target) throws SQLException {
+        Connection conn = ConnectionUtil.getConnection();
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO message(posted_by, message_text, time_posted_epoch) VALUES (1, ?, ?)")) {
+            for (int i = existing; i < target; i++) {
+                ps.setString(1, "benchmark message number " + i);
+                ps.setLong(2, 1669947792L + i);
+                ps.addBatch();
+                if (i % 10_000 == 0) {
+                    ps.executeBatch();
+                    conn.commit();
+                }
+            }
+            ps.executeBatch();
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+}
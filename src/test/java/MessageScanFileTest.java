@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.AccountDAO;
+import DAO.MessageDAO;
+import DAO.MessageScanFile;
+import Model.Account;
+import Model.Message;
+
+public class MessageScanFileTest {
+    MessageDAO messageDAO;
+    Path directory;
+    MessageScanFile scanFile;
+
+    @Before
+    public void setUp() throws IOException {
+        TestServer.resetDatabase();
+        messageDAO = new MessageDAO();
+        directory = Files.createTempDirectory("scan-test");
+        scanFile = new MessageScanFile(directory, 1 << 20, messageDAO);
+        scanFile.rebuild();
+    }
+
+    private List<Message> scan(int postedBy) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        scanFile.scan(postedBy, (id, author, time, text, offset, length) -> messages
+                .add(new Message(id, author, new String(text, offset, length, StandardCharsets.UTF_8), time)));
+        return messages;
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Updates of any length, out-of-order inserts and deletes keep scans in
+     * id order without rebuilding the file.
+     */
+    @Test
+    public void writesDoNotRebuild() throws IOException {
+        AccountDAO accountDAO = new AccountDAO();
+        int[] authors = { 1, accountDAO.insert(new Account("testuser2", "password")).getAccount_id(),
+                accountDAO.insert(new Account("testuser3", "password")).getAccount_id() };
+        List<String> files = files();
+        List<Message> inserted = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            inserted.add(messageDAO.insert(new Message(authors[i % 3], "message " + i, 1669947800 + i)));
+        }
+        // the second half finishes before the first
+        inserted.subList(10, 20).forEach(scanFile::append);
+        inserted.subList(0, 10).forEach(scanFile::append);
+
+        Message longer = inserted.get(3);
+        longer.setMessage_text("a much longer text than before");
+        messageDAO.update(longer);
+        scanFile.update(longer);
+        Message shorter = inserted.get(15);
+        shorter.setMessage_text("s");
+        messageDAO.update(shorter);
+        scanFile.update(shorter);
+        shorter.setMessage_text("again");
+        messageDAO.update(shorter);
+        scanFile.update(shorter);
+
+        messageDAO.delete(longer);
+        scanFile.delete(longer.getMessage_id());
+        messageDAO.delete(inserted.get(2));
+        scanFile.delete(inserted.get(2).getMessage_id());
+
+        Assert.assertEquals(messageDAO.getAll(), scan(0));
+        Assert.assertEquals(messageDAO.getMessagesByAccountId(authors[1]), scan(authors[1]));
+        Assert.assertEquals(files, files());
+    }
+
+    /**
+     * A scan keeps reading the versions it started with, and sees each
+     * message once.
+     */
+    @Test
+    public void scansSeeOneVersion() throws IOException {
+        Message first = messageDAO.insert(new Message(1, "first", 1669947800));
+        scanFile.append(first);
+        Message second = messageDAO.insert(new Message(1, "second", 1669947801));
+        scanFile.append(second);
+
+        List<String> texts = new ArrayList<>();
+        scanFile.scan(0, (id, author, time, text, offset, length) -> {
+            if (id == 1) {
+                Message updated = new Message(second.getMessage_id(), 1, "second, edited at length", 1669947801);
+                scanFile.update(updated);
+            }
+            texts.add(new String(text, offset, length, StandardCharsets.UTF_8));
+        });
+        Assert.assertEquals(List.of("test message 1", "first", "second"), texts);
+    }
+
+    /**
+     * Writes made by another node's service reach the file through refresh.
+     */
+    @Test
+    public void refreshReadsTheStore() throws IOException {
+        Message message = messageDAO.insert(new Message(1, "elsewhere", 1669947800));
+        scanFile.refresh(message.getMessage_id());
+        Assert.assertEquals(messageDAO.getAll(), scan(0));
+
+        message.setMessage_text("edited elsewhere");
+        messageDAO.update(message);
+        scanFile.refresh(message.getMessage_id());
+        Assert.assertEquals(messageDAO.getAll(), scan(0));
+
+        messageDAO.delete(message);
+        scanFile.refresh(message.getMessage_id());
+        Assert.assertEquals(messageDAO.getAll(), scan(0));
+    }
+}
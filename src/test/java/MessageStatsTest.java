@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import DAO.MessageDAO;
+import Model.Message;
+import Model.MessageStats;
+import Service.StatsService;
+
+public class MessageStatsTest {
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Message post(int account, String text, long time) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("POST", "/messages",
+                "{\"posted_by\":" + account + ", \"message_text\": \"" + text + "\", \"time_posted_epoch\": " + time
+                        + "}");
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class);
+    }
+
+    private MessageStats stats(String path) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("GET", path, null);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), MessageStats.class);
+    }
+
+    private static Map<Long, Long> buckets(long... startsAndCounts) {
+        Map<Long, Long> buckets = new TreeMap<>();
+        for (int i = 0; i < startsAndCounts.length; i += 2) {
+            buckets.put(startsAndCounts[i], startsAndCounts[i + 1]);
+        }
+        return buckets;
+    }
+
+    /**
+     * The counts seeded from the message table at startup follow later
+     * creates and deletes, including deletes of the first or last post.
+     */
+    @Test
+    public void statsFollowCreatesAndDeletes() throws IOException, InterruptedException {
+        MessageStats initial = new MessageStats(1, 1669947792L, 1669947792L, 3600, buckets(1669946400, 1));
+        Assert.assertEquals(initial, stats("/stats"));
+        Assert.assertEquals(initial, stats("/accounts/1/stats"));
+
+        Assert.assertEquals(200, send("POST", "/register",
+                "{\"username\": \"other\", \"password\": \"password\"}").statusCode());
+        Assert.assertEquals(new MessageStats(0, null, null, 3600, buckets()), stats("/accounts/2/stats"));
+
+        Message nextHour = post(1, "next hour", 1669951392);
+        post(2, "same hour", 1669947000);
+        Assert.assertEquals(new MessageStats(3, 1669947000L, 1669951392L, 3600,
+                buckets(1669946400, 2, 1669950000, 1)), stats("/stats"));
+        Assert.assertEquals(new MessageStats(2, 1669947792L, 1669951392L, 3600,
+                buckets(1669946400, 1, 1669950000, 1)), stats("/accounts/1/stats"));
+
+        Assert.assertEquals(200, send("DELETE", "/messages/" + nextHour.getMessage_id(), null).statusCode());
+        Assert.assertEquals(new MessageStats(2, 1669947000L, 1669947792L, 3600, buckets(1669946400, 2)),
+                stats("/stats"));
+        Assert.assertEquals(initial, stats("/accounts/1/stats"));
+    }
+
+    /**
+     * A post dated ahead of the server clock counts in the current bucket
+     * instead of rotating the window past every real post.
+     */
+    @Test
+    public void futurePostsCountNow() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis() / 1000;
+        post(1, "now", now);
+        post(1, "next year", now + 365L * 24 * 3600);
+        MessageStats global = stats("/stats");
+        Assert.assertEquals(3, global.getMessage_count());
+        Assert.assertEquals(Long.valueOf(now + 365L * 24 * 3600), global.getLast_post_epoch());
+        long hour = Math.floorDiv(now, 3600) * 3600;
+        Assert.assertEquals(buckets(hour, 2), global.getBuckets());
+    }
+
+    /**
+     * A delete for an account with no counters recounts in the background
+     * rather than on the request.
+     */
+    @Test
+    public void unknownPosterRecountsInTheBackground() throws IOException, InterruptedException {
+        Assert.assertEquals(200, send("POST", "/register",
+                "{\"username\": \"other\", \"password\": \"password\"}").statusCode());
+        // written behind the service's back, so no counters exist for the poster
+        Message hidden = new MessageDAO().insert(new Message(2, "hidden", 1669947000));
+        new MessageDAO().insert(new Message(2, "also hidden", 1669947100));
+        Assert.assertEquals(200, send("DELETE", "/messages/" + hidden.getMessage_id(), null).statusCode());
+
+        MessageStats expected = new MessageStats(1, 1669947100L, 1669947100L, 3600, buckets(1669946400, 1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!expected.equals(stats("/accounts/2/stats")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(expected, stats("/accounts/2/stats"));
+        Assert.assertEquals(2, stats("/stats").getMessage_count());
+    }
+
+    /**
+     * Changes whose listeners run while a recount scans were either seen by
+     * the scan or not; either way each one counts exactly once.
+     */
+    @Test
+    public void recountCountsEachChangeOnce() {
+        List<Runnable> duringScan = new ArrayList<>();
+        MessageDAO dao = new MessageDAO() {
+            @Override
+            public void forEachMessage(Consumer<Message> consumer) {
+                duringScan.forEach(Runnable::run);
+                super.forEachMessage(consumer);
+            }
+        };
+        StatsService stats = new StatsService(dao, 3600, 24, 168);
+        Assert.assertEquals(1, stats.getGlobalStats().getMessage_count());
+
+        // committed before the scan, announced while it runs
+        Message created = dao.insert(new Message(1, "late listener", 1669947800));
+        duringScan.add(() -> stats.messageCreated(created));
+        stats.reconcile();
+        Assert.assertEquals(2, stats.getGlobalStats().getMessage_count());
+
+        // the scan never sees a message deleted before it
+        Message deleted = dao.getById(1).get();
+        dao.delete(deleted);
+        duringScan.clear();
+        duringScan.add(() -> stats.messageDeleted(deleted));
+        stats.reconcile();
+        Assert.assertEquals(1, stats.getGlobalStats().getMessage_count());
+        Assert.assertEquals(Long.valueOf(1669947800), stats.getGlobalStats().getFirst_post_epoch());
+    }
+
+    @Test
+    public void unknownAccount() throws IOException, InterruptedException {
+        Assert.assertEquals(404, send("GET", "/accounts/99/stats", null).statusCode());
+        Assert.assertEquals(400, send("GET", "/accounts/one/stats", null).statusCode());
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RateLimitTest {
+
+    TestServer server;
+    HttpClient webClient;
+
+    /**
+     * Before every test, reset the database and restart the Javalin app with a
+     * burst of 2 messages per account.
+     */
+    @Before
+    public void setUp() {
+        System.setProperty("ratelimit.post_messages.account.rate", "1");
+        System.setProperty("ratelimit.post_messages.account.burst", "2");
+        webClient = HttpClient.newHttpClient();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        System.clearProperty("ratelimit.post_messages.account.rate");
+        System.clearProperty("ratelimit.post_messages.account.burst");
+    }
+
+    private String login() throws IOException, InterruptedException {
+        HttpRequest postRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/login")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"username\": \"testuser1\", " +
+                        "\"password\": \"password\" }"))
+                .header("Content-Type", "application/json")
+                .build();
+        HttpResponse<String> response = webClient.send(postRequest, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        return response.headers().firstValue("X-Auth-Token").orElseThrow();
+    }
+
+    private HttpResponse<String> postMessage(int postedBy) throws IOException, InterruptedException {
+        return postMessage(postedBy, null);
+    }
+
+    private HttpResponse<String> postMessage(int postedBy, String token) throws IOException, InterruptedException {
+        return postMessage(postedBy, token, null);
+    }
+
+    private HttpResponse<String> postMessage(int postedBy, String token, String warmUpToken)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder postMessageRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":" + postedBy + ", " +
+                        "\"message_text\": \"hello message\", " +
+                        "\"time_posted_epoch\": 1669947792}"))
+                .header("Content-Type", "application/json");
+        if (token != null) {
+            postMessageRequest.header("Authorization", "Bearer " + token);
+        }
+        if (warmUpToken != null) {
+            postMessageRequest.header("X-Warm-Up-Token", warmUpToken);
+        }
+        return webClient.send(postMessageRequest.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sending more POST localhost:8080/messages requests with one account's
+     * token than its burst allows
+     *
+     * Expected Response:
+     * Status Code: 429 once the burst is used up, with a Retry-After header
+     */
+    @Test
+    public void createMessageRateLimited() throws IOException, InterruptedException {
+        String token = login();
+        Assert.assertEquals(200, postMessage(1, token).statusCode());
+        Assert.assertEquals(200, postMessage(1, token).statusCode());
+
+        HttpResponse<String> limited = postMessage(1, token);
+        Assert.assertEquals(429, limited.statusCode());
+        Assert.assertEquals("1", limited.headers().firstValue("Retry-After").orElse(null));
+    }
+
+    /**
+     * During warm-up only requests with the warm-up's token skip the limits;
+     * other local callers do not, and the token stops working once the
+     * server is ready.
+     */
+    @Test
+    public void onlyTheWarmUpSkipsTheLimits() throws IOException, InterruptedException {
+        String token = login();
+        String warmUpToken = server.controller().beginWarmUp();
+        try {
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(200, postMessage(1, token, warmUpToken).statusCode());
+            }
+            Assert.assertEquals(200, postMessage(1, token).statusCode());
+            Assert.assertEquals(200, postMessage(1, token).statusCode());
+            Assert.assertEquals(429, postMessage(1, token).statusCode());
+            Assert.assertEquals(429, postMessage(1, token, "guessed").statusCode());
+        } finally {
+            server.controller().markReady(Map.of());
+        }
+        Assert.assertEquals(429, postMessage(1, token, warmUpToken).statusCode());
+    }
+
+    /**
+     * Another account is not affected by a limited account
+     *
+     * Expected Response:
+     * Status Code: 400 (account 2 does not exist), not 429
+     */
+    @Test
+    public void otherAccountNotLimited() throws IOException, InterruptedException {
+        String token = login();
+        postMessage(1, token);
+        postMessage(1, token);
+        Assert.assertEquals(429, postMessage(1, token).statusCode());
+        Assert.assertEquals(400, postMessage(2).statusCode());
+    }
+
+    /**
+     * Anonymous POST localhost:8080/messages requests naming an account
+     *
+     * Expected Response:
+     * Status Code: 200 past the account's burst, which they do not use up
+     * for the account's own authenticated requests
+     */
+    @Test
+    public void anonymousPostsDoNotChargeTheNamedAccount() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(200, postMessage(1).statusCode());
+        }
+        Assert.assertEquals(200, postMessage(1, login()).statusCode());
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import DAO.AccountDAO;
+import DAO.DataSourceRouter;
+import DAO.MessageDAO;
+import DAO.UnitOfWork;
+import Model.Account;
+import Model.Message;
+import Util.Metrics;
+
+public class ReadReplicaTest {
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    DataSourceRouter router;
+    UnitOfWork.ConnectionSource original;
+    JdbcDataSource replica;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        TestServer.resetDatabase();
+        String url = "jdbc:h2:mem:replica" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        replica = new JdbcDataSource();
+        replica.setURL(url);
+        replica.setUser("sa");
+        replica.setPassword("sa");
+        router = new DataSourceRouter(List.of(url));
+        router.start();
+        original = UnitOfWork.getConnectionSource();
+        UnitOfWork.setConnectionSource(router);
+        server = TestServer.start(new SocialMediaController());
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        UnitOfWork.setConnectionSource(original);
+        router.close();
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    private HttpResponse<String> send(String method, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private long countOnReplica(String table) throws SQLException {
+        try (Connection conn = replica.getConnection();
+                Statement statement = conn.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void replicasStartWithACopyOfThePrimary() throws SQLException {
+        Assert.assertEquals(1, countOnReplica("account"));
+        Assert.assertEquals(1, countOnReplica("message"));
+    }
+
+    /**
+     * A poster reading their messages right after posting sees the new one,
+     * whether or not the replica has caught up; once it has, reads go to it.
+     */
+    @Test
+    public void readsSeeTheRequestersOwnWrites() throws Exception {
+        HttpResponse<String> posted = send("POST", "/messages",
+                "{\"posted_by\":1, \"message_text\": \"replicated\", \"time_posted_epoch\": 1669947800}");
+        Assert.assertEquals(200, posted.statusCode());
+        Message message = objectMapper.readValue(posted.body(), Message.class);
+
+        HttpResponse<String> own = send("GET", "/accounts/1/messages", null);
+        List<Message> messages = objectMapper.readValue(own.body(), new TypeReference<List<Message>>() {
+        });
+        Assert.assertTrue(messages.contains(message));
+
+        Assert.assertTrue(router.awaitReplicas(5000));
+        Assert.assertEquals(2, countOnReplica("message"));
+        long replicaReads = metric("db.route.replica");
+        HttpResponse<String> fetched = send("GET", "/messages/" + message.getMessage_id(), null);
+        Assert.assertEquals(message, objectMapper.readValue(fetched.body(), Message.class));
+        Assert.assertEquals(1, metric("db.route.replica") - replicaReads);
+
+        Assert.assertEquals(200, send("DELETE", "/messages/" + message.getMessage_id(), null).statusCode());
+        Assert.assertTrue(router.awaitReplicas(5000));
+        Assert.assertEquals(1, countOnReplica("message"));
+    }
+
+    @Test
+    public void rolledBackWritesNeverReachTheReplicas() throws Exception {
+        AccountDAO accountDAO = new AccountDAO();
+        try {
+            UnitOfWork.inTransaction(() -> {
+                accountDAO.insert(new Account("rolled back", "password"));
+                throw new IllegalStateException("abort");
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // rolled back
+        }
+        try {
+            // an auto-commit write could publish before it commits
+            accountDAO.insert(new Account("outside a unit", "password"));
+            Assert.fail();
+        } catch (DAO.Exception expected) {
+            // refused by the trigger
+        }
+        UnitOfWork.inTransaction(() -> accountDAO.insert(new Account("committed", "password")));
+        Assert.assertTrue(router.awaitReplicas(5000));
+        Assert.assertEquals(2, countOnReplica("account"));
+        Assert.assertEquals(0, metric("db.replica.lag"));
+    }
+
+    /**
+     * A change whose unit committed first can still publish after a newer
+     * change to the same row, even once many other rows have changed in
+     * between; the replica keeps the newer row.
+     */
+    @Test
+    public void lateChangesNeverOverwriteNewerOnes() throws Exception {
+        AccountDAO accountDAO = new AccountDAO();
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch committed = new CountDownLatch(1);
+        Thread late = new Thread(() -> UnitOfWork.inTransaction(() -> {
+            // runs before the unit's changes publish
+            UnitOfWork.afterCommit(() -> {
+                committed.countDown();
+                try {
+                    publishing.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            accountDAO.update(new Account(1, "older", "password"));
+        }));
+        late.start();
+        Assert.assertTrue(committed.await(5, TimeUnit.SECONDS));
+        UnitOfWork.inTransaction(() -> {
+            accountDAO.update(new Account(1, "newer", "password"));
+            try (Statement statement = UnitOfWork.connection().createStatement()) {
+                statement.execute("INSERT INTO account (username, password)"
+                        + " SELECT 'bulk' || X, 'password' FROM SYSTEM_RANGE(1, 10500)");
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assert.assertTrue(router.awaitReplicas(10000));
+        publishing.countDown();
+        late.join(5000);
+        Assert.assertTrue(router.awaitReplicas(5000));
+        try (Connection conn = replica.getConnection();
+                Statement statement = conn.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT username FROM account WHERE account_id = 1")) {
+            Assert.assertTrue(rs.next());
+            Assert.assertEquals("newer", rs.getString(1));
+        }
+    }
+
+    /**
+     * A row only the replica has stands in for one the primary has deleted
+     * but the replica has not yet heard of: caches must never be filled
+     * with it.
+     */
+    @Test
+    public void cacheFillsReadThePrimary() throws Exception {
+        try (Connection conn = replica.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("INSERT INTO message (message_id, posted_by, message_text, time_posted_epoch) "
+                    + "VALUES (99, 1, 'stale', 1669947800)");
+        }
+        MessageDAO messageDAO = new MessageDAO();
+        Assert.assertEquals(2, UnitOfWork.readOnly(() -> messageDAO.getRecentMessagesByAccountId(1, 100, 10)).size());
+        Assert.assertEquals(1,
+                UnitOfWork.readPrimary(() -> messageDAO.getRecentMessagesByAccountId(1, 100, 10)).size());
+        Assert.assertEquals(1, (int) UnitOfWork.readOnly(() -> {
+            messageDAO.getById(1);
+            return UnitOfWork.readPrimary(() -> messageDAO.getRecentMessagesByAccountId(1, 100, 10)).size();
+        }));
+
+        HttpResponse<String> timeline = send("GET", "/accounts/1/messages?limit=10", null);
+        Assert.assertFalse(timeline.body(), timeline.body().contains("stale"));
+    }
+}
@@ -0,0 +1,138 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import Util.Metrics;
+import Util.SingleFlight;
+
+public class RequestCoalescingTest {
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    private static void awaitMetric(String name, long value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metric(name) < value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(value, metric(name));
+    }
+
+    @Test
+    public void concurrentCallersShareOneCall() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>("test.share");
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<String>> callers = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            callers.add(CompletableFuture.supplyAsync(() -> flights.run(1, () -> {
+                executions.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "result";
+            }), executor));
+        }
+        awaitMetric("singleflight.test.share.shared", 7);
+        release.countDown();
+        for (CompletableFuture<String> caller : callers) {
+            Assert.assertEquals("result", caller.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, executions.get());
+        executor.shutdown();
+
+        // nothing is kept once the flight lands
+        Assert.assertEquals("again", flights.run(1, () -> "again"));
+    }
+
+    @Test
+    public void failuresReachEveryCallerAndAreNotKept() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>("test.failure");
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> leader = CompletableFuture.supplyAsync(() -> flights.run(1, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("boom");
+        }));
+        awaitMetric("singleflight.test.failure.calls", 1);
+        CompletableFuture<String> follower = CompletableFuture.supplyAsync(() -> flights.run(1, () -> "own"));
+        awaitMetric("singleflight.test.failure.shared", 1);
+        release.countDown();
+        for (CompletableFuture<String> caller : List.of(leader, follower)) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                Assert.fail("expected the leader's failure");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        Assert.assertEquals("ok", flights.run(1, () -> "ok"));
+    }
+
+    @Test
+    public void forgottenFlightsAreNotJoined() throws Exception {
+        SingleFlight<Integer, String> flights = new SingleFlight<>("test.forget");
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> before = CompletableFuture.supplyAsync(() -> flights.run(1, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "before the write";
+        }));
+        awaitMetric("singleflight.test.forget.calls", 1);
+        flights.forget(1);
+        Assert.assertEquals("after the write", flights.run(1, () -> "after the write"));
+        release.countDown();
+        Assert.assertEquals("before the write", before.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readsAfterAnUpdateSeeIt() throws Exception {
+        TestServer server = TestServer.start();
+        try {
+            HttpClient webClient = HttpClient.newHttpClient();
+            HttpRequest read = HttpRequest.newBuilder().uri(URI.create(server.url("/messages/1"))).build();
+            List<CompletableFuture<HttpResponse<String>>> reads = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                reads.add(webClient.sendAsync(read, HttpResponse.BodyHandlers.ofString()));
+            }
+            HttpRequest update = HttpRequest.newBuilder()
+                    .uri(URI.create(server.url("/messages/1")))
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"updated\"}"))
+                    .header("Content-Type", "application/json")
+                    .build();
+            Assert.assertEquals(200, webClient.send(update, HttpResponse.BodyHandlers.ofString()).statusCode());
+            for (CompletableFuture<HttpResponse<String>> response : reads) {
+                Assert.assertEquals(200, response.get().statusCode());
+            }
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(webClient.send(read, HttpResponse.BodyHandlers.ofString()).body()
+                        .contains("\"message_text\":\"updated\""));
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
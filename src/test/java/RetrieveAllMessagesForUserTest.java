@@ -14,36 +14,27 @@ import org.junit.Test;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import Controller.SocialMediaController;
 import Model.Message;
-import Util.ConnectionUtil;
-import io.javalin.Javalin;
 
 public class RetrieveAllMessagesForUserTest {
-    SocialMediaController socialMediaController;
+    TestServer server;
     HttpClient webClient;
     ObjectMapper objectMapper;
-    Javalin app;
 
     /**
      * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
      * for interacting locally on the web.
-     * @throws InterruptedException
      */
     @Before
-    public void setUp() throws InterruptedException {
-        ConnectionUtil.resetTestDatabase();
-        socialMediaController = new SocialMediaController();
-        app = socialMediaController.startAPI();
+    public void setUp() {
         webClient = HttpClient.newHttpClient();
         objectMapper = new ObjectMapper();
-        app.start(8080);
-        Thread.sleep(1000);
+        server = TestServer.start();
     }
 
     @After
     public void tearDown() {
-        app.stop();
+        server.close();
     }
 
     /**
@@ -56,7 +47,7 @@ public class RetrieveAllMessagesForUserTest {
     @Test
     public void getAllMessagesFromUserMessageExists() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/accounts/1/messages"))
+                .uri(URI.create(server.url("/accounts/1/messages")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -79,7 +70,7 @@ public class RetrieveAllMessagesForUserTest {
     @Test
     public void getAllMessagesFromUserNoMessagesFound() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/accounts/2/messages"))
+                .uri(URI.create(server.url("/accounts/2/messages")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -17,36 +17,28 @@ import org.junit.Test;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import Controller.SocialMediaController;
 import Model.Message;
 import Util.ConnectionUtil;
-import io.javalin.Javalin;
 
 public class RetrieveAllMessagesTest {
-    SocialMediaController socialMediaController;
+    TestServer server;
     HttpClient webClient;
     ObjectMapper objectMapper;
-    Javalin app;
 
     /**
      * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
      * for interacting locally on the web.
-     * @throws InterruptedException
      */
     @Before
-    public void setUp() throws InterruptedException {
-        ConnectionUtil.resetTestDatabase();
-        socialMediaController = new SocialMediaController();
-        app = socialMediaController.startAPI();
+    public void setUp() {
         webClient = HttpClient.newHttpClient();
         objectMapper = new ObjectMapper();
-        app.start(8080);
-        Thread.sleep(1000);
+        server = TestServer.start();
     }
 
     @After
     public void tearDown() {
-        app.stop();
+        server.close();
     }
 
 /**
@@ -59,7 +51,7 @@ public class RetrieveAllMessagesTest {
     @Test
     public void getAllMessagesMessagesAvailable() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages"))
+                .uri(URI.create(server.url("/messages")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -86,7 +78,7 @@ public class RetrieveAllMessagesTest {
         removeInitialMessage();
 
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages"))
+                .uri(URI.create(server.url("/messages")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -11,36 +11,27 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import Controller.SocialMediaController;
 import Model.Message;
-import Util.ConnectionUtil;
-import io.javalin.Javalin;
 
 public class RetrieveMessageByMessageIdTest {
-    SocialMediaController socialMediaController;
+    TestServer server;
     HttpClient webClient;
     ObjectMapper objectMapper;
-    Javalin app;
 
     /**
      * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
      * for interacting locally on the web.
-     * @throws InterruptedException
      */
     @Before
-    public void setUp() throws InterruptedException {
-        ConnectionUtil.resetTestDatabase();
-        socialMediaController = new SocialMediaController();
-        app = socialMediaController.startAPI();
+    public void setUp() {
         webClient = HttpClient.newHttpClient();
         objectMapper = new ObjectMapper();
-        app.start(8080);
-        Thread.sleep(1000);
+        server = TestServer.start();
     }
 
     @After
     public void tearDown() {
-        app.stop();
+        server.close();
     }
 
 
@@ -54,7 +45,7 @@ public class RetrieveMessageByMessageIdTest {
     @Test
     public void getMessageGivenMessageIdMessageFound() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages/1"))
+                .uri(URI.create(server.url("/messages/1")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -77,7 +68,7 @@ public class RetrieveMessageByMessageIdTest {
     @Test
     public void getMessageGivenMessageIdMessageNotFound() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages/100"))
+                .uri(URI.create(server.url("/messages/100")))
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
         int status = response.statusCode();
@@ -0,0 +1,141 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import DAO.MessageDAO;
+import Model.Message;
+import Service.ExceptionService;
+import Service.MessageService;
+import Util.FirstPageOutputStream;
+
+public class RetrieveMessagesByTimeRangeTest {
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Message post(int account, String text, long time) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("POST", "/messages",
+                "{\"posted_by\":" + account + ", \"message_text\": \"" + text + "\", \"time_posted_epoch\": " + time
+                        + "}");
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Message.class);
+    }
+
+    private List<Message> range(String query) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("GET", "/messages?" + query, null);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), new TypeReference<List<Message>>() {
+        });
+    }
+
+    /**
+     * GET /messages?from=&to= returns the messages posted in [from, to) in
+     * time order, whatever order they were created in, optionally narrowed
+     * to one account with posted_by.
+     */
+    @Test
+    public void messagesInTimeRange() throws IOException, InterruptedException {
+        Message original = new Message(1, 1, "test message 1", 1669947792);
+        Assert.assertEquals(200, send("POST", "/register",
+                "{\"username\": \"other\", \"password\": \"password\"}").statusCode());
+        Message later = post(1, "later", 1669951392);
+        Message backdated = post(2, "backdated", 1669947000);
+        Message sameSecond = post(2, "same second", 1669947792);
+
+        Assert.assertEquals(Arrays.asList(backdated, original, sameSecond, later), range("from=0"));
+        Assert.assertEquals(Arrays.asList(original, sameSecond), range("from=1669947792&to=1669947793"));
+        Assert.assertEquals(Arrays.asList(backdated, original, sameSecond), range("to=1669951392"));
+        Assert.assertEquals(Arrays.asList(backdated, sameSecond), range("posted_by=2"));
+        Assert.assertEquals(Collections.singletonList(later), range("from=1669947793&posted_by=1"));
+        Assert.assertEquals(Collections.emptyList(), range("from=1669947000&to=1669947000"));
+        // a bare posted_by names no account and lists everything as usual
+        Assert.assertEquals(Arrays.asList(original, later, backdated, sameSecond), range("posted_by="));
+    }
+
+    /**
+     * A failure within the first page reaches the caller before anything is
+     * sent, and a stream that fails later leaves its array unended.
+     */
+    @Test
+    public void failedStreamsAreNotComplete() throws IOException {
+        MessageService service = new MessageService(new MessageDAO() {
+            @Override
+            public void forEachMessageInRange(long from, long to, int postedBy, Consumer<Message> consumer) {
+                for (int i = 1; i <= 1000; i++) {
+                    consumer.accept(new Message(i, 1, "message " + i, 1669947792));
+                }
+                throw new DAO.Exception("connection lost");
+            }
+        });
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        FirstPageOutputStream out = new FirstPageOutputStream(sent, 1 << 20);
+        try {
+            service.writeMessagesInRangeJson(0, Long.MAX_VALUE, 0, out);
+            Assert.fail();
+        } catch (ExceptionService expected) {
+            Assert.assertFalse(out.isCommitted());
+            Assert.assertEquals(0, sent.size());
+        }
+        try {
+            service.writeMessagesInRangeJson(0, Long.MAX_VALUE, 0, sent);
+            Assert.fail();
+        } catch (ExceptionService expected) {
+            String body = sent.toString(StandardCharsets.UTF_8);
+            Assert.assertTrue(body, body.startsWith("[{\"message_id\":1,"));
+            Assert.assertFalse(body, body.endsWith("]"));
+        } finally {
+            service.close();
+        }
+
+        sent.reset();
+        out = new FirstPageOutputStream(sent, 4);
+        out.write("[{\"message_id\":1}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(out.isCommitted());
+        Assert.assertEquals("[{\"message_id\":1}", sent.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void invalidRangeIsRejected() throws IOException, InterruptedException {
+        Assert.assertEquals(400, send("GET", "/messages?from=10&to=5", null).statusCode());
+        Assert.assertEquals(400, send("GET", "/messages?from=yesterday", null).statusCode());
+        Assert.assertEquals(400, send("GET", "/messages?posted_by=-1", null).statusCode());
+    }
+}
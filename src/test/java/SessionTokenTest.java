@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Message;
+
+public class SessionTokenTest {
+
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a
+     * new webClient and ObjectMapper
+     * for interacting locally on the web.
+     */
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private String login() throws IOException, InterruptedException {
+        HttpRequest postRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/login")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"username\": \"testuser1\", " +
+                        "\"password\": \"password\" }"))
+                .header("Content-Type", "application/json")
+                .build();
+        HttpResponse<String> response = webClient.send(postRequest, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        return response.headers().firstValue("X-Auth-Token").orElseThrow();
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages with the token
+     * returned by a successful login
+     *
+     * Expected Response:
+     * Status Code: 200
+     * Response Body: JSON representation of message object
+     */
+    @Test
+    public void createMessageWithToken() throws IOException, InterruptedException {
+        String token = login();
+        HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":1, " +
+                        "\"message_text\": \"hello message\", " +
+                        "\"time_posted_epoch\": 1669947792}"))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + token)
+                .build();
+        HttpResponse<String> response = webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString());
+
+        Assert.assertEquals(200, response.statusCode());
+        Message expectedResult = new Message(2, 1, "hello message", 1669947792);
+        Message actualResult = objectMapper.readValue(response.body(), Message.class);
+        Assert.assertEquals(expectedResult, actualResult);
+    }
+
+    /**
+     * Sending an http request to POST localhost:8080/messages on behalf of another
+     * account than the one named by the token
+     *
+     * Expected Response:
+     * Status Code: 400
+     * Response Body:
+     */
+    @Test
+    public void createMessageForOtherAccount() throws IOException, InterruptedException {
+        String token = login();
+        HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages")))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":2, " +
+                        "\"message_text\": \"hello message\", " +
+                        "\"time_posted_epoch\": 1669947792}"))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + token)
+                .build();
+        HttpResponse<String> response = webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString());
+
+        Assert.assertEquals(400, response.statusCode());
+        Assert.assertEquals("", response.body());
+    }
+
+    /**
+     * Sending an http request to PATCH localhost:8080/messages/1 with a tampered
+     * token
+     *
+     * Expected Response:
+     * Status Code: 401
+     */
+    @Test
+    public void updateMessageWithInvalidToken() throws IOException, InterruptedException {
+        String token = login();
+        HttpRequest patchRequest = HttpRequest.newBuilder()
+                .uri(URI.create(server.url("/messages/1")))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{" +
+                        "\"message_text\": \"updated message\" }"))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer x" + token)
+                .build();
+        HttpResponse<String> response = webClient.send(patchRequest, HttpResponse.BodyHandlers.ofString());
+
+        Assert.assertEquals(401, response.statusCode());
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import DAO.DataSourceRouter;
+import DAO.IdAllocator;
+import DAO.ShardedMessageDAO;
+import DAO.UnitOfWork;
+import Model.Message;
+
+public class ShardedMessageStoreTest {
+    static final int SHARDS = 3;
+
+    ShardedMessageDAO store;
+    List<String> urls;
+
+    /**
+     * Before every test, reset the database and open three fresh in-memory
+     * shards, which copy in the initial message from the message table.
+     */
+    @Before
+    public void setUp() {
+        TestServer.resetDatabase();
+        String prefix = "jdbc:h2:mem:shard" + System.nanoTime() + "-";
+        urls = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) {
+            urls.add(prefix + i + ";DB_CLOSE_DELAY=-1");
+        }
+        store = new ShardedMessageDAO(urls);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void copiesExistingMessages() {
+        Message initial = new Message(1, 1, "test message 1", 1669947792);
+        Assert.assertEquals(Arrays.asList(initial), store.getAll());
+        Assert.assertEquals(Optional.of(initial), store.getById(1));
+        Assert.assertEquals(Arrays.asList(initial), store.getMessagesByAccountId(1));
+    }
+
+    /**
+     * Ids never repeat and grow in posting order across shards, and the
+     * account's messages all live on the account's shard.
+     */
+    @Test
+    public void shardsAllocateDistinctIds() {
+        Set<Integer> ids = new HashSet<>();
+        ids.add(1);
+        int previous = 1;
+        for (int account = 1; account <= 30; account++) {
+            for (int i = 0; i < 3; i++) {
+                Message message = store.insert(new Message(account, "message " + i, 1669947800 + account));
+                Assert.assertTrue(ids.add(message.getMessage_id()));
+                Assert.assertTrue(message.getMessage_id() > previous);
+                previous = message.getMessage_id();
+                Assert.assertEquals(Optional.of(message), store.getById(message.getMessage_id()));
+            }
+            Assert.assertEquals(account == 1 ? 4 : 3, store.getMessagesByAccountId(account).size());
+        }
+        // the shard count is fixed once the tables exist
+        store.close();
+        store = new ShardedMessageDAO(urls);
+        Assert.assertEquals(91, store.getAll().size());
+        // a restarted process does not reuse ids it never wrote to the primary
+        IdAllocator.resetAll();
+        int reopened = store.insert(new Message(7, "after reopening", 1669948000)).getMessage_id();
+        Assert.assertTrue(reopened > previous);
+    }
+
+    @Test
+    public void writesJoinTheUnitOfWork() {
+        try {
+            UnitOfWork.inTransaction(() -> {
+                Message message = store.insert(new Message(2, "rolled back", 1669947800));
+                // visible to the unit itself
+                Assert.assertEquals(Optional.of(message), store.getById(message.getMessage_id()));
+                throw new IllegalStateException("abort");
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("abort", expected.getMessage());
+        }
+        Assert.assertTrue(store.getMessagesByAccountId(2).isEmpty());
+        Message committed = UnitOfWork.inTransaction(() -> store.insert(new Message(2, "committed", 1669947800)));
+        Assert.assertEquals(Arrays.asList(committed), store.getMessagesByAccountId(2));
+    }
+
+    @Test
+    public void replicasFollowTheShards() throws Exception {
+        String url = "jdbc:h2:mem:shardreplica" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        DataSourceRouter router = new DataSourceRouter(List.of(url));
+        router.start();
+        try {
+            Message message = UnitOfWork.inTransaction(() -> store.insert(new Message(1, "replicated", 1669947800)));
+            Assert.assertTrue(router.awaitReplicas(5000));
+            Assert.assertEquals(2, countOnReplica(url));
+
+            // shards opened after the router started are copied in whole
+            ShardedMessageDAO other = new ShardedMessageDAO(urls);
+            try {
+                Assert.assertEquals(2, countOnReplica(url));
+                UnitOfWork.inTransaction(() -> other.delete(message));
+                Assert.assertTrue(router.awaitReplicas(5000));
+                Assert.assertEquals(1, countOnReplica(url));
+            } finally {
+                other.close();
+            }
+        } finally {
+            router.close();
+        }
+    }
+
+    private static long countOnReplica(String url) throws Exception {
+        JdbcDataSource replica = new JdbcDataSource();
+        replica.setURL(url);
+        replica.setUser("sa");
+        replica.setPassword("sa");
+        try (Connection conn = replica.getConnection(); Statement statement = conn.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM message")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void scansMergeTheShardsInOrder() {
+        List<Message> inserted = new ArrayList<>();
+        inserted.add(new Message(1, 1, "test message 1", 1669947792));
+        for (int i = 0; i < 2000; i++) {
+            // times run backwards against ids, so the two orders differ
+            inserted.add(store.insert(new Message(1 + i % 50, "message " + i, 1669990000 - i)));
+        }
+
+        List<Message> all = store.getAll();
+        Assert.assertEquals(inserted.size(), all.size());
+        for (int i = 1; i < all.size(); i++) {
+            Assert.assertTrue(all.get(i - 1).getMessage_id() < all.get(i).getMessage_id());
+        }
+        List<Message> streamed = new ArrayList<>();
+        store.forEachMessage(streamed::add);
+        Assert.assertEquals(all, streamed);
+
+        List<Message> range = new ArrayList<>();
+        store.forEachMessageInRange(1669989000, 1669989500, 0, range::add);
+        Assert.assertEquals(500, range.size());
+        for (int i = 1; i < range.size(); i++) {
+            Assert.assertTrue(range.get(i - 1).getTime_posted_epoch() < range.get(i).getTime_posted_epoch());
+        }
+        Assert.assertArrayEquals(new long[] { 1669947792, 1669990000 }, store.getPostTimeBounds(0));
+
+        // a consumer that stops early leaves no shard scan behind
+        try {
+            store.forEachMessage(message -> {
+                throw new IllegalStateException("stop");
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("stop", expected.getMessage());
+        }
+        Assert.assertTrue(store.delete(all.get(10)));
+        Assert.assertEquals(Optional.empty(), store.getById(all.get(10).getMessage_id()));
+    }
+
+    @Test
+    public void servesTheApi() throws IOException, InterruptedException {
+        System.setProperty("message.store", "sharded");
+        System.setProperty("message.shards", Integer.toString(SHARDS));
+        System.setProperty("message.shards.url", "jdbc:h2:mem:api" + System.nanoTime() + "-{shard};DB_CLOSE_DELAY=-1");
+        SocialMediaController controller;
+        try {
+            controller = new SocialMediaController();
+        } finally {
+            System.clearProperty("message.store");
+            System.clearProperty("message.shards");
+            System.clearProperty("message.shards.url");
+        }
+        HttpClient webClient = HttpClient.newHttpClient();
+        ObjectMapper objectMapper = new ObjectMapper();
+        try (TestServer server = TestServer.start(controller)) {
+            HttpResponse<String> posted = webClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(server.url("/messages")))
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"posted_by\":1, \"message_text\": \"sharded\", \"time_posted_epoch\": 1669947800}"))
+                    .header("Content-Type", "application/json")
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            Assert.assertEquals(200, posted.statusCode());
+            Message message = objectMapper.readValue(posted.body(), Message.class);
+
+            HttpResponse<String> all = webClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(server.url("/messages"))).build(), HttpResponse.BodyHandlers.ofString());
+            List<Message> messages = objectMapper.readValue(all.body(), new TypeReference<List<Message>>() {
+            });
+            Assert.assertEquals(Arrays.asList(new Message(1, 1, "test message 1", 1669947792), message), messages);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Controller.Startup;
+import Model.Message;
+import io.javalin.Javalin;
+
+public class StartupTest {
+
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        TestServer.resetDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        if (app != null) {
+            app.stop();
+        }
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + app.port() + path))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * GET /ready answers 503 until the warm-up has run, and the warm-up leaves
+     * the data as it found it.
+     */
+    @Test
+    public void readyOnlyAfterWarmUp() throws IOException, InterruptedException {
+        Startup startup = new Startup(true, 2000);
+        SocialMediaController controller = startup.initialize();
+        app = startup.start(controller, 0);
+
+        Assert.assertEquals(503, get("/ready").statusCode());
+
+        startup.warmUp(controller, app);
+
+        HttpResponse<String> ready = get("/ready");
+        Assert.assertEquals(200, ready.statusCode());
+        Map<String, Object> body = objectMapper.readValue(ready.body(), new TypeReference<Map<String, Object>>() {
+        });
+        Assert.assertEquals(true, body.get("ready"));
+        Assert.assertTrue(((Map<?, ?>) body.get("startup_ms")).containsKey("first_request"));
+
+        List<Message> messages = objectMapper.readValue(get("/messages").body(),
+                new TypeReference<List<Message>>() {
+                });
+        Assert.assertEquals(Arrays.asList(new Message(1, 1, "test message 1", 1669947792)), messages);
+    }
+}
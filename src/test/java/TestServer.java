@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.tools.RunScript;
+
+import Controller.SocialMediaController;
+import DAO.IdAllocator;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+/**
+ * Starts the API for integration tests on an ephemeral port and waits for the
+ * server's started event instead of sleeping, so test classes can run side by
+ * side in parallel forks.
+ *
+ * The database is reset without re-running SocialMedia.sql: the script is
+ * executed once per JVM, after which every table is truncated and the
+ * script's insert statements are replayed on a connection kept open for the
+ * life of the JVM, and cached id blocks are dropped.
+ */
+public class TestServer implements AutoCloseable {
+
+    private static final String SCHEMA_RESOURCE = "/SocialMedia.sql";
+
+    private static Connection connection;
+    private static List<String> seedStatements;
+
+    private final SocialMediaController controller;
+    private final Javalin app;
+
+    private TestServer(SocialMediaController controller) throws InterruptedException {
+        this.controller = controller;
+        this.app = controller.startAPI();
+        CountDownLatch started = new CountDownLatch(1);
+        app.events(event -> event.serverStarted(started::countDown));
+        app.start(0);
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Javalin did not start within 10 seconds");
+        }
+    }
+
+    /**
+     * Resets the database and starts a new controller on a free port.
+     */
+    public static TestServer start() {
+        resetDatabase();
+        return start(new SocialMediaController());
+    }
+
+    /**
+     * Starts the given controller on a free port without touching the database.
+     */
+    public static TestServer start(SocialMediaController controller) {
+        try {
+            return new TestServer(controller);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static synchronized void resetDatabase() {
+        try {
+            if (connection == null) {
+                connection = ConnectionUtil.getConnection();
+                try (Reader script = openSchema()) {
+                    RunScript.execute(connection, script);
+                }
+                seedStatements = readSeedStatements();
+                return;
+            }
+            try (Statement statement = connection.createStatement()) {
+                List<String> tables = new ArrayList<>();
+                try (ResultSet rs = statement.executeQuery(
+                        "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC'")) {
+                    while (rs.next()) {
+                        tables.add(rs.getString(1));
+                    }
+                }
+                statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+                for (String table : tables) {
+                    statement.execute("TRUNCATE TABLE " + table + " RESTART IDENTITY");
+                }
+                statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                for (String seed : seedStatements) {
+                    statement.execute(seed);
+                }
+            }
+            // blocks reserved before the reset would skip the restarted ids
+            IdAllocator.resetAll();
+        } catch (SQLException | IOException e) {
+            throw new IllegalStateException("Unable to reset the test database", e);
+        }
+    }
+
+    public String url(String path) {
+        return "http://localhost:" + app.port() + path;
+    }
+
+    public SocialMediaController controller() {
+        return controller;
+    }
+
+    @Override
+    public void close() {
+        app.stop();
+    }
+
+    private static Reader openSchema() {
+        InputStream in = TestServer.class.getResourceAsStream(SCHEMA_RESOURCE);
+        if (in == null) {
+            throw new IllegalStateException(SCHEMA_RESOURCE + " is not on the test classpath");
+        }
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readSeedStatements() throws IOException {
+        StringBuilder script = new StringBuilder();
+        try (Reader reader = openSchema()) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                script.append(buffer, 0, read);
+            }
+        }
+        List<String> seeds = new ArrayList<>();
+        for (String statement : script.toString().split(";")) {
+            String trimmed = statement.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("insert")) {
+                seeds.add(trimmed);
+            }
+        }
+        return seeds;
+    }
+}
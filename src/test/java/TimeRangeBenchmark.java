@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import DAO.MessageDAO;
+import Util.ConnectionUtil;
+import Util.MessageJsonWriter;
+import Util.TimeIndex;
+
+/**
+ * Measures GET /messages?from=&to= range queries on a large message table:
+ * the JDBC store's index range scan streamed through MessageJsonWriter, the
+ * same query forced onto a table scan as a baseline, and the in-memory
+ * {@link TimeIndex} used by the log store.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=TimeRangeBenchmark \
+ *       -Dexec.args="10000000"
+ * </pre>
+ *
+ * Messages are four per second from a fixed start, so 10M rows span about
+ * 29 days, posted round-robin by ACCOUNTS accounts.
+ */
+public class TimeRangeBenchmark {
+
+    private static final int ACCOUNTS = 1000;
+    private static final long START = 1669947792L;
+    private static final int ROUNDS = 5;
+    private static final long[] RANGES = { 60, 3600, 86_400, 7 * 86_400 };
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length == 0 ? 10_000_000 : Integer.parseInt(args[0]);
+        ConnectionUtil.resetTestDatabase();
+        long seedStart = System.nanoTime();
+        seed(rows);
+        System.out.printf("seeded %,d rows in %d ms%n", rows, (System.nanoTime() - seedStart) / 1_000_000);
+
+        MessageDAO messageDAO = new MessageDAO();
+        TimeIndex timeIndex = new TimeIndex(3600);
+        long buildStart = System.nanoTime();
+        messageDAO.forEachMessage(message -> timeIndex.put(message.getMessage_id(), message.getTime_posted_epoch()));
+        System.out.printf("time index of %,d ids built in %d ms%n", timeIndex.size(),
+                (System.nanoTime() - buildStart) / 1_000_000);
+
+        long span = rows / 4;
+        for (long width : RANGES) {
+            if (width > span) {
+                continue;
+            }
+            long from = START + span / 2 - width / 2;
+            long to = from + width;
+            System.out.printf("%n== %,d s range%n", width);
+            for (int round = 0; round < ROUNDS; round++) {
+                measure("jdbc index", () -> stream(messageDAO, from, to, 0));
+                measure("jdbc index, posted_by", () -> stream(messageDAO, from, to, 1));
+                measure("time index ids", () -> {
+                    long[] count = new long[1];
+                    timeIndex.forEach(from, to, id -> count[0]++);
+                    return count[0];
+                });
+            }
+            if (width == RANGES[0]) {
+                measure("jdbc table scan", () -> tableScan(from, to));
+            }
+        }
+    }
+
+    interface Query {
+        long run() throws Exception;
+    }
+
+    private static void measure(String name, Query query) throws Exception {
+        long start = System.nanoTime();
+        long rows = query.run();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-22s %,10d rows  %,10.3f ms  %,12.0f rows/s%n",
+                name, rows, elapsed / 1e6, rows / (elapsed / 1e9));
+    }
+
+    private static long stream(MessageDAO messageDAO, long from, long to, int postedBy) throws Exception {
+        try (MessageJsonWriter writer = new MessageJsonWriter(OutputStream.nullOutputStream())) {
+            messageDAO.forEachMessageInRange(from, to, postedBy, message -> {
+                try {
+                    writer.write(message);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return writer.getCount();
+        }
+    }
+
+    private static long tableScan(long from, long to) throws SQLException {
+        Connection conn = ConnectionUtil.getConnection();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT * FROM message USE INDEX () "
+                + "WHERE time_posted_epoch >= ? AND time_posted_epoch < ? ORDER BY time_posted_epoch, message_id")) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            long rows = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                }
+            }
+            return rows;
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void seed(int rows) throws SQLException {
+        Connection conn = ConnectionUtil.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("DELETE FROM message");
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO account (username, password) VALUES (?, 'password')")) {
+                for (int i = 2; i <= ACCOUNTS; i++) {
+                    ps.setString(1, "range" + i);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "INSERT INTO message(posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)")) {
+                for (int i = 0; i < rows; i++) {
+                    ps.setInt(1, 1 + i % ACCOUNTS);
+                    ps.setString(2, "benchmark message number " + i);
+                    ps.setLong(3, START + i / 4);
+                    ps.addBatch();
+                    if (i % 10_000 == 0) {
+                        ps.executeBatch();
+                        conn.commit();
+                    }
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import DAO.MessageDAO;
+import Model.Message;
+import Service.TimelineCache;
+
+public class TimelineTest {
+    TestServer server;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private List<Message> timeline(String query) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("GET", "/accounts/1/messages?" + query, null);
+        Assert.assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), new TypeReference<List<Message>>() {
+        });
+    }
+
+    private void post(String text, long time) throws IOException, InterruptedException {
+        HttpResponse<String> response = send("POST", "/messages",
+                "{\"posted_by\":1, \"message_text\": \"" + text + "\", \"time_posted_epoch\": " + time + "}");
+        Assert.assertEquals(200, response.statusCode());
+    }
+
+    /**
+     * GET /accounts/1/messages?limit= returns the newest messages first, pages
+     * back with before=, and reflects later creates, updates and deletes.
+     */
+    @Test
+    public void recentMessagesNewestFirst() throws IOException, InterruptedException {
+        post("second", 1669947800);
+        post("third", 1669947900);
+
+        Assert.assertEquals(Arrays.asList(
+                new Message(3, 1, "third", 1669947900),
+                new Message(2, 1, "second", 1669947800)), timeline("limit=2"));
+        Assert.assertEquals(Arrays.asList(
+                new Message(1, 1, "test message 1", 1669947792)), timeline("limit=2&before=2"));
+
+        post("fourth", 1669948000);
+        Assert.assertEquals(200, send("PATCH", "/messages/2", "{\"message_text\": \"second edited\"}").statusCode());
+        Assert.assertEquals(200, send("DELETE", "/messages/3", null).statusCode());
+        Assert.assertEquals(Arrays.asList(
+                new Message(4, 1, "fourth", 1669948000),
+                new Message(2, 1, "second edited", 1669947800),
+                new Message(1, 1, "test message 1", 1669947792)), timeline("limit=10"));
+
+        Map<String, Long> metrics = objectMapper.readValue(send("GET", "/metrics", null).body(),
+                new TypeReference<Map<String, Long>>() {
+                });
+        Assert.assertTrue(metrics.get("timeline.hits") > 0);
+        Assert.assertTrue(metrics.get("timeline.bytes") > 0);
+        Assert.assertEquals(1L, (long) metrics.get("timeline.accounts"));
+    }
+
+    @Test
+    public void invalidLimitRejected() throws IOException, InterruptedException {
+        Assert.assertEquals(400, send("GET", "/accounts/1/messages?limit=0", null).statusCode());
+        Assert.assertEquals(400, send("GET", "/accounts/1/messages?limit=abc", null).statusCode());
+    }
+
+    /**
+     * A page that needs more history than the ring holds is not served from
+     * the ring.
+     */
+    @Test
+    public void ringFallsBackBeyondCapacity() {
+        MessageDAO messageDAO = new MessageDAO();
+        messageDAO.insert(new Message(1, "second", 1669947800));
+        messageDAO.insert(new Message(1, "third", 1669947900));
+        TimelineCache timelines = new TimelineCache(messageDAO, 2, 10);
+
+        Assert.assertEquals(Arrays.asList(
+                new Message(3, 1, "third", 1669947900),
+                new Message(2, 1, "second", 1669947800)), timelines.getRecent(1, Integer.MAX_VALUE, 2));
+        Assert.assertNull(timelines.getRecent(1, Integer.MAX_VALUE, 3));
+        Assert.assertNull(timelines.getRecent(1, 2, 1));
+
+        Message fourth = messageDAO.insert(new Message(1, "fourth", 1669948000));
+        timelines.onCreate(fourth);
+        Assert.assertEquals(Arrays.asList(fourth, new Message(3, 1, "third", 1669947900)),
+                timelines.getRecent(1, Integer.MAX_VALUE, 2));
+        Assert.assertEquals(Arrays.asList(), timelines.getRecent(2, Integer.MAX_VALUE, 5));
+    }
+
+    /**
+     * Creates that arrive out of id order, as from racing commits or from
+     * other nodes' id blocks, land in id order, and repeats are dropped.
+     */
+    @Test
+    public void ringKeepsIdOrder() {
+        MessageDAO messageDAO = new MessageDAO();
+        TimelineCache timelines = new TimelineCache(messageDAO, 3, 10);
+        Message original = new Message(1, 1, "test message 1", 1669947792);
+        Assert.assertEquals(Arrays.asList(original), timelines.getRecent(1, Integer.MAX_VALUE, 5));
+
+        Message ten = new Message(10, 1, "ten", 1669947810);
+        Message five = new Message(5, 1, "five", 1669947805);
+        Message seven = new Message(7, 1, "seven", 1669947807);
+        timelines.onCreate(ten);
+        timelines.onCreate(five);
+        timelines.onCreate(five);
+        Assert.assertEquals(Arrays.asList(ten, five, original), timelines.getRecent(1, Integer.MAX_VALUE, 5));
+
+        // a full ring drops its oldest entry
+        timelines.onCreate(seven);
+        Assert.assertEquals(Arrays.asList(ten, seven, five), timelines.getRecent(1, Integer.MAX_VALUE, 3));
+        Assert.assertNull(timelines.getRecent(1, Integer.MAX_VALUE, 4));
+        timelines.onCreate(new Message(3, 1, "older than the ring", 1669947803));
+        Assert.assertEquals(Arrays.asList(ten, seven, five), timelines.getRecent(1, Integer.MAX_VALUE, 3));
+    }
+}
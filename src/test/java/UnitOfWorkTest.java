@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.AccountDAO;
+import DAO.UnitOfWork;
+import Model.Account;
+import Util.Metrics;
+
+public class UnitOfWorkTest {
+
+    AccountDAO accountDAO;
+
+    @Before
+    public void setUp() {
+        TestServer.resetDatabase();
+        accountDAO = new AccountDAO();
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    /**
+     * Statements inside a unit of work, including nested ones, take one
+     * commit between them, and side effects registered with afterCommit run
+     * after it.
+     */
+    @Test
+    public void groupsStatementsIntoOneCommit() {
+        long commits = metric("db.commits");
+        long statements = metric("db.unitOfWork.statements");
+        List<String> events = new ArrayList<>();
+
+        Account created = UnitOfWork.inTransaction(() -> {
+            Assert.assertFalse(accountDAO.doesUsernameExist("grouped"));
+            Account account = accountDAO.insert(new Account("grouped", "password"));
+            UnitOfWork.afterCommit(() -> events.add("committed"));
+            UnitOfWork.readOnly(() -> accountDAO.findAccountByUsername("grouped"));
+            events.add("work done");
+            return account;
+        });
+
+        Assert.assertEquals(List.of("work done", "committed"), events);
+        Assert.assertEquals(3, metric("db.unitOfWork.statements") - statements);
+        Assert.assertEquals(1, metric("db.commits") - commits);
+        Assert.assertEquals(Optional.of(created), accountDAO.getById(created.getAccount_id()));
+    }
+
+    @Test
+    public void rollsBackWhenTheWorkThrows() {
+        List<String> events = new ArrayList<>();
+        try {
+            UnitOfWork.inTransaction(() -> {
+                accountDAO.insert(new Account("rolled back", "password"));
+                UnitOfWork.afterCommit(() -> events.add("committed"));
+                throw new IllegalStateException("abort");
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("abort", expected.getMessage());
+        }
+        Assert.assertFalse(accountDAO.doesUsernameExist("rolled back"));
+        Assert.assertTrue(events.isEmpty());
+        Assert.assertFalse(UnitOfWork.isActive());
+    }
+
+    /**
+     * A task that throws after the commit neither stops the tasks after it
+     * nor reaches the caller, whose write has committed.
+     */
+    @Test
+    public void failingTasksDoNotFailTheUnit() {
+        long failures = metric("db.unitOfWork.taskFailures");
+        List<String> events = new ArrayList<>();
+
+        Account created = UnitOfWork.inTransaction(() -> {
+            Account account = accountDAO.insert(new Account("hooked", "password"));
+            UnitOfWork.afterCommit(() -> {
+                throw new IllegalStateException("listener failed");
+            });
+            UnitOfWork.afterCommit(() -> events.add("committed"));
+            UnitOfWork.afterCompletion(() -> events.add("completed"));
+            return account;
+        });
+
+        Assert.assertEquals(List.of("committed", "completed"), events);
+        Assert.assertEquals(1, metric("db.unitOfWork.taskFailures") - failures);
+        Assert.assertEquals(Optional.of(created), accountDAO.getById(created.getAccount_id()));
+    }
+
+    @Test
+    public void readOnlyUnitsUseReadOnlyConnections() {
+        UnitOfWork.ConnectionSource original = UnitOfWork.getConnectionSource();
+        List<Boolean> opened = new ArrayList<>();
+        UnitOfWork.setConnectionSource(readOnly -> {
+            opened.add(readOnly);
+            return original.open(readOnly);
+        });
+        try {
+            UnitOfWork.readOnly(() -> {
+                Assert.assertTrue(UnitOfWork.isReadOnly());
+                accountDAO.getById(1);
+                return accountDAO.getAll();
+            });
+            UnitOfWork.inTransaction(() -> accountDAO.getById(1));
+            Assert.assertEquals(List.of(true, false), opened);
+
+            try {
+                UnitOfWork.readOnly(() -> UnitOfWork.inTransaction(() -> accountDAO.getById(1)));
+                Assert.fail();
+            } catch (IllegalStateException expected) {
+                // a read-write unit cannot join a read-only one
+            }
+        } finally {
+            UnitOfWork.setConnectionSource(original);
+        }
+    }
+}
@@ -3,6 +3,8 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -11,39 +13,32 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import Controller.SocialMediaController;
+import DAO.AccountDAO;
 import Model.Account;
-import Util.ConnectionUtil;
-import io.javalin.Javalin;
+import Service.AccountService;
+import Service.PasswordHasher;
 
 public class UserLoginTest {
 
-    SocialMediaController socialMediaController;
+    TestServer server;
     HttpClient webClient;
     ObjectMapper objectMapper;
-    Javalin app;
 
     /**
      * Before every test, reset the database, restart the Javalin app, and create a
      * new webClient and ObjectMapper
      * for interacting locally on the web.
-     * 
-     * @throws InterruptedException
      */
     @Before
-    public void setUp() throws InterruptedException {
-        ConnectionUtil.resetTestDatabase();
-        socialMediaController = new SocialMediaController();
-        app = socialMediaController.startAPI();
+    public void setUp() {
         webClient = HttpClient.newHttpClient();
         objectMapper = new ObjectMapper();
-        app.start(8080);
-        Thread.sleep(1000);
+        server = TestServer.start();
     }
 
     @After
     public void tearDown() {
-        app.stop();
+        server.close();
     }
 
     /**
@@ -57,7 +52,7 @@ public class UserLoginTest {
     @Test
     public void loginSuccessful() throws IOException, InterruptedException {
         HttpRequest postRequest = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/login"))
+                .uri(URI.create(server.url("/login")))
                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                         "\"username\": \"testuser1\", " +
                         "\"password\": \"password\" }"))
@@ -84,7 +79,7 @@ public class UserLoginTest {
     @Test
     public void loginInvalidUsername() throws IOException, InterruptedException {
         HttpRequest postRequest = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/login"))
+                .uri(URI.create(server.url("/login")))
                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                         "\"username\": \"testuser404\", " +
                         "\"password\": \"password\" }"))
@@ -108,7 +103,7 @@ public class UserLoginTest {
     @Test
     public void loginInvalidPassword() throws IOException, InterruptedException {
         HttpRequest postRequest = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/login"))
+                .uri(URI.create(server.url("/login")))
                 .POST(HttpRequest.BodyPublishers.ofString("{" +
                         "\"username\": \"testuser1\", " +
                         "\"password\": \"pass123\" }"))
@@ -121,4 +116,30 @@ public class UserLoginTest {
         Assert.assertEquals("", response.body().toString());
 
     }
+
+    /**
+     * A legacy password is rehashed after a login, but not over an update
+     * committed while the hash was being computed.
+     */
+    @Test
+    public void rehashKeepsAConcurrentUpdate() {
+        CompletableFuture<String> held = new CompletableFuture<>();
+        AtomicBoolean holding = new AtomicBoolean(true);
+        PasswordHasher hasher = new PasswordHasher(1, 16, 1000) {
+            @Override
+            public CompletableFuture<String> hash(String password) {
+                return holding.getAndSet(false) ? held : super.hash(password);
+            }
+        };
+        AccountService accounts = new AccountService(new AccountDAO(), hasher);
+        Assert.assertTrue(accounts.validateLogin(new Account("testuser1", "password")).isPresent());
+        Assert.assertTrue(accounts.updateAccount(new Account(1, "renamed", "changed")));
+
+        // the rehash stores its result on this thread
+        held.complete(hasher.hash("password").join());
+        Account stored = new AccountDAO().getById(1).get();
+        Assert.assertEquals("renamed", stored.getUsername());
+        Assert.assertTrue(accounts.validateLogin(new Account("renamed", "changed")).isPresent());
+        Assert.assertFalse(accounts.validateLogin(new Account("renamed", "password")).isPresent());
+    }
 }
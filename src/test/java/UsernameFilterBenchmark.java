@@ -0,0 +1,43 @@
+import Util.BloomFilter;
+
+/**
+ * Measures the username {@link BloomFilter} at a given number of accounts:
+ * bytes held, build time, lookup time and the false positive rate observed
+ * over as many names that were never added, for a few target rates.
+ *
+ * Not a unit test. Run with, for example:
+ *
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=UsernameFilterBenchmark \
+ *       -Dexec.args="10000000"
+ * </pre>
+ */
+public class UsernameFilterBenchmark {
+
+    private static final double[] RATES = { 0.01, 0.001 };
+
+    public static void main(String[] args) {
+        int accounts = args.length == 0 ? 10_000_000 : Integer.parseInt(args[0]);
+        for (double rate : RATES) {
+            BloomFilter filter = BloomFilter.create(accounts, rate);
+            long start = System.nanoTime();
+            for (int i = 0; i < accounts; i++) {
+                filter.add("user" + i);
+            }
+            long built = System.nanoTime() - start;
+            start = System.nanoTime();
+            long falsePositives = 0;
+            for (int i = 0; i < accounts; i++) {
+                if (filter.mightContain("stranger" + i)) {
+                    falsePositives++;
+                }
+            }
+            long probed = System.nanoTime() - start;
+            System.out.printf("accounts %,d target %.3f%%: %,d bytes (%.1f bits/name, k=%d), "
+                    + "observed %.3f%% false positives, build %.0f ms, %.0f ns/lookup%n",
+                    accounts, rate * 100, filter.sizeInBytes(), filter.bitCount() / (double) accounts,
+                    filter.hashCount(), falsePositives * 100.0 / accounts, built / 1e6,
+                    probed / (double) accounts);
+        }
+    }
+}
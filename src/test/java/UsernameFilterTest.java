@@ -0,0 +1,105 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.AccountDAO;
+import Model.Account;
+import Service.AccountService;
+import Util.BloomFilter;
+import Util.Metrics;
+
+public class UsernameFilterTest {
+
+    TestServer server;
+    HttpClient webClient;
+
+    @Before
+    public void setUp() {
+        webClient = HttpClient.newHttpClient();
+        server = TestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    private int post(String path, String username) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(server.url(path)))
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        "{\"username\": \"" + username + "\", \"password\": \"password\"}"))
+                .header("Content-Type", "application/json")
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Test
+    public void unknownUsernamesAreRejectedWithoutAQuery() throws Exception {
+        long negatives = metric("account.filter.negatives");
+        long statements = metric("db.autocommit.statements") + metric("db.unitOfWork.statements");
+
+        Assert.assertEquals(401, post("/login", "nobody-by-this-name"));
+
+        Assert.assertEquals(negatives + 1, metric("account.filter.negatives"));
+        Assert.assertEquals(statements, metric("db.autocommit.statements") + metric("db.unitOfWork.statements"));
+    }
+
+    @Test
+    public void seededAndRegisteredUsernamesAreFound() throws Exception {
+        Assert.assertEquals(200, post("/login", "testuser1"));
+        Assert.assertEquals(401, post("/login", "newcomer"));
+        Assert.assertEquals(200, post("/register", "newcomer"));
+        Assert.assertEquals(200, post("/login", "newcomer"));
+        Assert.assertEquals(400, post("/register", "newcomer"));
+    }
+
+    /**
+     * With several nodes and no invalidation bus, an account another node
+     * created is looked up instead of being turned away by the filter.
+     */
+    @Test
+    public void otherNodesAccountsCanLogInWithoutTheBus() {
+        System.setProperty("cluster.nodes", "2");
+        AccountService accounts;
+        try {
+            accounts = new AccountService();
+        } finally {
+            System.clearProperty("cluster.nodes");
+        }
+        // written by another node, which this one is not told about
+        new AccountDAO().insert(new Account("elsewhere", "password"));
+        Assert.assertTrue(accounts.validateLogin(new Account("elsewhere", "password")).isPresent());
+    }
+
+    @Test
+    public void filterHasNoFalseNegativesAndKeepsItsRate() {
+        int added = 100_000;
+        BloomFilter filter = BloomFilter.create(added, 0.01);
+        for (int i = 0; i < added; i++) {
+            filter.add("user" + i);
+        }
+        for (int i = 0; i < added; i++) {
+            Assert.assertTrue(filter.mightContain("user" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < added; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positive rate " + falsePositives / (double) added,
+                falsePositives < added * 0.015);
+        Assert.assertEquals(0.01, filter.expectedFalsePositiveRate(added), 0.001);
+    }
+}